@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -14,6 +16,7 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.OperatorCardinality;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
@@ -63,6 +66,14 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("IN") || wx.getOperator().equals("NOT IN")) {
+            processInExpression(tid, wx, lp, wx.getOperator().equals("NOT IN"));
+        } else if (wx.getOperator().equals("EXISTS")) {
+            processInExpression(tid, decorrelate(wx), lp, false);
+        } else if (wx.getOperator().equals("NOT") && wx.nbOperands() == 1
+                && wx.getOperand(0) instanceof ZExpression
+                && ((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")) {
+            processInExpression(tid, decorrelate((ZExpression) wx.getOperand(0)), lp, true);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -75,6 +86,22 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            if (isParameter(ops.get(0)) || isParameter(ops.get(1))) {
+                if (parameters == null) {
+                    throw new simpledb.ParsingException(
+                            "Parameters (?) are only supported in prepared queries.");
+                }
+                ZExp other = isParameter(ops.get(0)) ? ops.get(1) : ops.get(0);
+                if (!(other instanceof ZConstant) || ((ZConstant) other).getType() != ZConstant.COLUMNNAME) {
+                    throw new simpledb.ParsingException(
+                            "A parameter can only be compared with a field.");
+                }
+                Parameter param = new Parameter(parameters.size());
+                parameters.add(param);
+                lp.addFilter(((ZConstant) other).getValue(), op, param);
+                return;
+            }
+
             boolean op1const = ops.get(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -137,6 +164,160 @@ public class Parser {
 
     }
 
+    /**
+     * Add field IN (subquery) or field NOT IN (subquery) to the plan as a
+     * semi-join or anti-join with the subquery, planned on its own.
+     */
+    void processInExpression(TransactionId tid, ZExpression wx, LogicalPlan lp, boolean anti)
+            throws simpledb.ParsingException, IOException, ParseException {
+        if (wx.nbOperands() != 2 || !(wx.getOperand(1) instanceof ZQuery)) {
+            throw new simpledb.ParsingException(
+                    "Only IN (subquery) is supported, not IN lists.");
+        }
+        ZExp left = wx.getOperand(0);
+        if (!(left instanceof ZConstant) || ((ZConstant) left).getType() != ZConstant.COLUMNNAME) {
+            throw new simpledb.ParsingException(
+                    "Only a field can be tested for membership in a subquery.");
+        }
+        LogicalPlan sublp = parseQueryLogicalPlan(tid, (ZQuery) wx.getOperand(1));
+        OpIterator pp = sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        if (pp.getTupleDesc().numFields() != 1) {
+            throw new simpledb.ParsingException(
+                    "A subquery of IN must return a single field.");
+        }
+        int card = -1;
+        if (pp instanceof Operator) {
+            OperatorCardinality.updateOperatorCardinality((Operator) pp,
+                    sublp.getTableAliasToIdMapping(), TableStats.getStatsMap());
+            card = ((Operator) pp).getEstimatedCardinality();
+        }
+        lp.addSemiJoin(((ZConstant) left).getValue(), pp, card, anti);
+    }
+
+    /**
+     * Rewrite EXISTS (SELECT ... FROM ... WHERE inner = outer AND ...), whose
+     * subquery refers to the outer query through a single equality, as
+     * outer IN (SELECT inner FROM ... WHERE ...), which no longer depends on
+     * the outer query.
+     *
+     * @param exists the EXISTS expression
+     * @return the equivalent IN expression
+     * @throws simpledb.ParsingException if the subquery isn't correlated by
+     *             exactly one equality, or aggregates its tuples
+     */
+    static ZExpression decorrelate(ZExpression exists) throws simpledb.ParsingException {
+        if (exists.nbOperands() != 1 || !(exists.getOperand(0) instanceof ZQuery)) {
+            throw new simpledb.ParsingException("EXISTS needs a subquery.");
+        }
+        ZQuery sub = (ZQuery) exists.getOperand(0);
+        if (sub.getGroupBy() != null) {
+            throw new simpledb.ParsingException(
+                    "EXISTS subqueries with GROUP BY are not supported.");
+        }
+        Set<String> inner = new HashSet<>();
+        @SuppressWarnings("unchecked")
+        List<ZFromItem> from = sub.getFrom();
+        for (ZFromItem fi : from) {
+            inner.add(fi.getAlias() != null ? fi.getAlias() : fi.getTable());
+        }
+
+        List<ZExp> conjuncts = new ArrayList<>();
+        if (sub.getWhere() != null) {
+            flattenAnd(sub.getWhere(), conjuncts);
+        }
+        String innerField = null, outerField = null;
+        ZExpression where = new ZExpression("AND");
+        for (ZExp c : conjuncts) {
+            ZExpression e = (ZExpression) c;
+            if (references(e, inner)) {
+                if (outerField != null || !e.getOperator().equals("=") || e.nbOperands() != 2
+                        || !(e.getOperand(0) instanceof ZConstant) || !(e.getOperand(1) instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "An EXISTS subquery may only refer to the outer query in a single equality.");
+                }
+                String f0 = ((ZConstant) e.getOperand(0)).getValue();
+                String f1 = ((ZConstant) e.getOperand(1)).getValue();
+                boolean outer0 = isOuterField((ZConstant) e.getOperand(0), inner);
+                if (outer0 == isOuterField((ZConstant) e.getOperand(1), inner)) {
+                    throw new simpledb.ParsingException(
+                            "An EXISTS subquery may only refer to the outer query in a single equality.");
+                }
+                outerField = outer0 ? f0 : f1;
+                innerField = outer0 ? f1 : f0;
+            } else {
+                where.addOperand(e);
+            }
+        }
+        if (outerField == null) {
+            throw new simpledb.ParsingException(
+                    "Only EXISTS subqueries that refer to the outer query are supported.");
+        }
+        @SuppressWarnings("unchecked")
+        List<ZSelectItem> select = sub.getSelect();
+        for (ZSelectItem si : select) {
+            if (si.getAggregate() != null) {
+                throw new simpledb.ParsingException(
+                        "EXISTS subqueries with aggregates are not supported.");
+            }
+        }
+
+        ZQuery rewritten = new ZQuery();
+        Vector<ZSelectItem> newSelect = new Vector<>();
+        newSelect.add(new ZSelectItem(innerField));
+        rewritten.addSelect(newSelect);
+        rewritten.addFrom(sub.getFrom());
+        if (where.nbOperands() == 1) {
+            rewritten.addWhere(where.getOperand(0));
+        } else if (where.nbOperands() > 1) {
+            rewritten.addWhere(where);
+        }
+        return new ZExpression("IN", new ZConstant(outerField, ZConstant.COLUMNNAME), rewritten);
+    }
+
+    private static void flattenAnd(ZExp e, List<ZExp> into) throws simpledb.ParsingException {
+        if (!(e instanceof ZExpression)) {
+            throw new simpledb.ParsingException(
+                    "Nested queries are currently unsupported.");
+        }
+        ZExpression x = (ZExpression) e;
+        if (x.getOperator().equals("AND")) {
+            for (int i = 0; i < x.nbOperands(); i++) {
+                flattenAnd(x.getOperand(i), into);
+            }
+        } else {
+            into.add(x);
+        }
+    }
+
+    /** @return true if a field of e belongs to a table not among the aliases */
+    private static boolean references(ZExpression e, Set<String> aliases) {
+        for (int i = 0; i < e.nbOperands(); i++) {
+            ZExp o = e.getOperand(i);
+            if (o instanceof ZConstant && isOuterField((ZConstant) o, aliases)) {
+                return true;
+            }
+            if (o instanceof ZExpression && references((ZExpression) o, aliases)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if c is a field qualified by an alias not among the aliases */
+    private static boolean isOuterField(ZConstant c, Set<String> aliases) {
+        if (c.getType() != ZConstant.COLUMNNAME) {
+            return false;
+        }
+        String[] parts = c.getValue().split("[.]");
+        return parts.length > 1 && !aliases.contains(parts[0]);
+    }
+
+    /** @return true if e is a ? standing for a value bound later */
+    private static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -284,6 +465,8 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.setLimit(limit);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -463,14 +646,41 @@ public class Parser {
         }
     }
 
+    /** A LIMIT clause at the end of a statement, which Zql doesn't parse */
+    private static final Pattern LIMIT = Pattern.compile("(?is)^(.*\\S)\\s+LIMIT\\s+(\\d+)(\\s*;?\\s*)$");
+
+    /** The LIMIT of the query statement being processed, or -1 if none */
+    private int limit = -1;
+
+    /**
+     * @return the number of tuples the LIMIT clause ending a statement
+     *         allows, or -1 if it has none
+     */
+    static int limitOf(String sql) {
+        Matcher m = LIMIT.matcher(sql);
+        return m.matches() ? Integer.parseInt(m.group(2)) : -1;
+    }
+
+    /**
+     * @return the statement without the LIMIT clause it ends with, if any,
+     *         so that Zql can parse it; a trailing semicolon is kept
+     */
+    static String withoutLimit(String sql) {
+        Matcher m = LIMIT.matcher(sql);
+        return m.matches() ? m.group(1) + m.group(3) : sql;
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(withoutLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limitOf(s) >= 0)
+                    lp.setLimit(limitOf(s));
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -481,6 +691,103 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    /** The parameters of the query being prepared, or null if not preparing */
+    private List<Parameter> parameters = null;
+
+    private static volatile int planCacheSize = 64;
+
+    /**
+     * Set how many prepared queries each parser keeps planned. Prepared
+     * queries beyond that are evicted least recently used first.
+     */
+    public static void setPlanCacheSize(int size) {
+        planCacheSize = size;
+    }
+
+    private final Map<String, PreparedQuery> planCache = new LinkedHashMap<String, PreparedQuery>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedQuery> eldest) {
+            return size() > planCacheSize;
+        }
+    };
+
+    /**
+     * @return the query with runs of whitespace outside quotes collapsed to a
+     *         single space and any trailing semicolon removed, so that
+     *         differently formatted copies of a query share a cache entry
+     */
+    static String normalize(String sql) {
+        StringBuilder sb = new StringBuilder();
+        char quote = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+                    sb.append(' ');
+                continue;
+            }
+            sb.append(c);
+        }
+        String s = sb.toString().trim();
+        while (s.endsWith(";"))
+            s = s.substring(0, s.length() - 1).trim();
+        return s;
+    }
+
+    /**
+     * Plan a SELECT query whose constants may be written as ?, to be bound
+     * each time it's executed. Plans are cached by the text of the query:
+     * preparing the same query again returns the cached plan, unless the
+     * catalog or the table statistics have changed since it was planned.
+     *
+     * @param sql the query
+     * @return the planned query
+     * @throws simpledb.ParsingException if the query isn't a valid SELECT
+     */
+    public synchronized PreparedQuery prepare(String sql) throws simpledb.ParsingException, IOException {
+        String key = normalize(sql);
+        PreparedQuery cached = planCache.get(key);
+        if (cached != null && cached.isValid()) {
+            return cached;
+        }
+
+        ZqlParser p = new ZqlParser(new ByteArrayInputStream((withoutLimit(key) + ";").getBytes(StandardCharsets.UTF_8)));
+        ZStatement stmt;
+        try {
+            stmt = p.readStatement();
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid SQL expression: \n \t " + e);
+        }
+        if (!(stmt instanceof ZQuery)) {
+            throw new simpledb.ParsingException("Only queries can be prepared: " + sql);
+        }
+
+        // the plan is built without reading any table; each execution
+        // binds the transaction it runs in
+        TransactionId tid = new TransactionId();
+        parameters = new ArrayList<>();
+        try {
+            LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+            if (limitOf(key) >= 0)
+                lp.setLimit(limitOf(key));
+            OpIterator physicalPlan = lp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+            PreparedQuery prepared = new PreparedQuery(key, physicalPlan, lp, parameters);
+            planCache.put(key, prepared);
+            return prepared;
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid SQL expression: \n \t " + e);
+        } finally {
+            parameters = null;
+        }
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -489,8 +796,16 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Process a statement, which may be a query ending with a LIMIT clause.
+     */
     public void processNextStatement(String s) {
-        processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
+        limit = limitOf(s);
+        try {
+            processNextStatement(new ByteArrayInputStream(withoutLimit(s).getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            limit = -1;
+        }
     }
 
     public void processNextStatement(InputStream is) {
@@ -567,11 +882,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,7 +896,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-sample rate]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -593,7 +908,6 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
 
@@ -611,12 +925,22 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-sample")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected sample rate after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    TableStats.setSampling(Double.parseDouble(argv[i]), 0.0, 0.95);
+                    System.out.println("Sampling " + argv[i] + " of each table for statistics.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+        TableStats.computeStatistics();
+
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
@@ -660,7 +984,6 @@ public class Parser {
                     buffer.append(line, 0, split + 1);
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -669,8 +992,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
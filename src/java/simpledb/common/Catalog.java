@@ -1,9 +1,14 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.execution.AggregateView;
+import simpledb.execution.Aggregator;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -11,6 +16,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -26,11 +33,15 @@ public class Catalog {
         DbFile dbFile;
         String name;
         String pkey;
+        List<int[]> columnGroups;
+        List<SecondaryIndex> indexes;
 
         public CatalogElement(DbFile dbFile, String name, String pkey) {
             this.dbFile = dbFile;
             this.name = name;
             this.pkey = pkey;
+            this.columnGroups = new CopyOnWriteArrayList<>();
+            this.indexes = new CopyOnWriteArrayList<>();
         }
 
         public DbFile getDbFile() {
@@ -49,6 +60,8 @@ public class Catalog {
 
     private Map<String, Integer> name2Id;
     private Map<Integer, CatalogElement> id2CatalogElement;
+    private final Map<Integer, List<AggregateView>> id2AggregateViews;
+    private final AtomicLong version = new AtomicLong();
 
 
     /**
@@ -59,6 +72,7 @@ public class Catalog {
         // some code goes here
         name2Id = new HashMap<>();
         id2CatalogElement = new HashMap<>();
+        id2AggregateViews = new ConcurrentHashMap<>();
     }
 
     /**
@@ -74,6 +88,8 @@ public class Catalog {
         // some code goes here
         name2Id.put(name, file.getId());
         id2CatalogElement.put(file.getId(), new CatalogElement(file, name, pkeyField));
+        id2AggregateViews.remove(file.getId());
+        version.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -146,16 +162,132 @@ public class Catalog {
         // some code goes here
         return id2CatalogElement.get(id).getName();
     }
+
+    /**
+     * Declare a group of columns of a table whose values are correlated.
+     * TableStats keeps joint statistics for each group, which the optimizer
+     * uses when several filters hit columns of the same group.
+     * @param tableid the id of the table
+     * @param fieldNames the names of the grouped fields, at least two
+     * @throws NoSuchElementException if the table or one of the fields doesn't exist
+     */
+    public void addColumnGroup(int tableid, List<String> fieldNames) throws NoSuchElementException {
+        if (!id2CatalogElement.containsKey(tableid)) {
+            throw new NoSuchElementException();
+        }
+        if (fieldNames.size() < 2) {
+            throw new IllegalArgumentException("a column group needs at least two columns");
+        }
+        TupleDesc td = getTupleDesc(tableid);
+        int[] fields = new int[fieldNames.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = td.fieldNameToIndex(fieldNames.get(i));
+        }
+        Arrays.sort(fields);
+        id2CatalogElement.get(tableid).columnGroups.add(fields);
+    }
+
+    /**
+     * @return the column groups declared on the specified table, each as a
+     *     sorted array of field indices
+     */
+    public List<int[]> getColumnGroups(int tableid) {
+        CatalogElement e = id2CatalogElement.get(tableid);
+        return e == null ? Collections.emptyList() : e.columnGroups;
+    }
+
+    /**
+     * Register a secondary index over one of the heap file tables in the
+     * catalog. The index, which must be empty, is built from the current
+     * contents of its table; from now on it is kept up to date by the
+     * BufferPool on every insert and delete into the table. Its B+ tree is
+     * added to the catalog under {@link SecondaryIndex#getName}, but is not
+     * one of the tables {@link #tableIdIterator} lists.
+     * @param index the index to register
+     * @param tid the transaction scanning the table
+     * @throws NoSuchElementException if the index's table doesn't exist
+     */
+    public void addIndex(SecondaryIndex index, TransactionId tid)
+            throws NoSuchElementException, DbException, IOException, TransactionAbortedException {
+        CatalogElement table = id2CatalogElement.get(index.getTableId());
+        if (table == null) {
+            throw new NoSuchElementException();
+        }
+        DbFile file = index.getFile();
+        id2CatalogElement.put(file.getId(), new CatalogElement(file, index.getName(), ""));
+        index.build(tid);
+        table.indexes.add(index);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the secondary indexes registered over the specified table, or
+     *     an empty list if there are none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        CatalogElement e = id2CatalogElement.get(tableid);
+        return e == null ? Collections.emptyList() : e.indexes;
+    }
+
+    /**
+     * Register a materialized aggregate view over one of the tables in the
+     * catalog. The view must already be populated; from now on it is kept up
+     * to date by the BufferPool on every insert and delete into its table.
+     * @param view the view to register
+     * @throws NoSuchElementException if the view's base table doesn't exist
+     */
+    public void addAggregateView(AggregateView view) throws NoSuchElementException {
+        if (!id2CatalogElement.containsKey(view.getTableId())) {
+            throw new NoSuchElementException();
+        }
+        id2AggregateViews.computeIfAbsent(view.getTableId(), k -> new CopyOnWriteArrayList<>()).add(view);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the aggregate views registered over the specified table, or an
+     *     empty list if there are none
+     */
+    public List<AggregateView> getAggregateViews(int tableid) {
+        List<AggregateView> views = id2AggregateViews.get(tableid);
+        return views == null ? Collections.emptyList() : views;
+    }
+
+    /**
+     * Find a registered view that stores the given aggregate.
+     * @return the matching view, or null if there is none
+     */
+    public AggregateView findAggregateView(int tableid, int gbField, int aField, Aggregator.Op op) {
+        for (AggregateView view : getAggregateViews(tableid)) {
+            if (view.matches(tableid, gbField, aField, op))
+                return view;
+        }
+        return null;
+    }
     
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
         name2Id.clear();
         id2CatalogElement.clear();
+        id2AggregateViews.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return a number that changes whenever tables or views are added or
+     *     removed, so that plans built against an older catalog can be
+     *     recognized
+     */
+    public long getVersion() {
+        return version.get();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Besides table definitions, a line of the form
+     * <code>columngroup name (field, field, ...)</code> declares a column group
+     * on a table defined earlier in the file.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -165,6 +297,16 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
             
             while ((line = br.readLine()) != null) {
+                if (line.trim().startsWith("columngroup ")) {
+                    String name = line.substring(line.indexOf(" ") + 1, line.indexOf("(")).trim();
+                    List<String> fields = new ArrayList<>();
+                    for (String f : line.substring(line.indexOf("(") + 1, line.indexOf(")")).split(",")) {
+                        fields.add(f.trim());
+                    }
+                    addColumnGroup(getTableId(name), fields);
+                    System.out.println("Added column group " + fields + " to table : " + name);
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
@@ -203,7 +345,7 @@ public class Catalog {
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException | IllegalArgumentException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
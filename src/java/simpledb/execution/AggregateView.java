@@ -0,0 +1,276 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.Serializable;
+import java.util.*;
+
+import static simpledb.execution.Aggregator.NO_GROUPING;
+
+/**
+ * A materialized aggregate view over a single base table, e.g. the result of
+ * <code>SELECT g, SUM(x) FROM t GROUP BY g</code>.
+ * <p>
+ * The view is computed once by {@link #populate} and is then maintained
+ * incrementally: {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple} call {@link #insert} and {@link #delete} for
+ * every view registered on the modified table, so reading the view never has
+ * to rescan the base table.
+ * <p>
+ * Each group keeps its sum and count (enough for SUM, COUNT and AVG) and, for
+ * MIN and MAX, a multiset of the aggregated values so that deleting the
+ * current extreme can fall back to the next one.
+ *
+ * @see simpledb.common.Catalog#addAggregateView
+ */
+public class AggregateView implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tableId;
+    private final int gbField;
+    private final int aField;
+    private final Aggregator.Op op;
+    private final TupleDesc td;
+
+    private final Map<Field, GroupState> groups;
+
+    private static class GroupState implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long sum;
+        int count;
+        TreeMap<Integer, Integer> values; // only kept for MIN and MAX
+    }
+
+    /**
+     * Constructor. The view is empty until {@link #populate} is called.
+     *
+     * @param tableId the id of the base table
+     * @param gbField the index of the group-by field in the base table, or
+     *                {@link Aggregator#NO_GROUPING}
+     * @param aField  the index of the aggregated field in the base table
+     * @param op      the aggregation operator; only COUNT is supported over
+     *                string fields
+     * @throws IllegalArgumentException if the aggregate is not supported
+     */
+    public AggregateView(int tableId, int gbField, int aField, Aggregator.Op op) {
+        TupleDesc base = Database.getCatalog().getTupleDesc(tableId);
+        if (op == Aggregator.Op.SUM_COUNT || op == Aggregator.Op.SC_AVG) {
+            throw new IllegalArgumentException("unsupported view aggregate " + op);
+        }
+        if (base.getFieldType(aField) != Type.INT_TYPE && op != Aggregator.Op.COUNT) {
+            throw new IllegalArgumentException("only COUNT is supported over string fields");
+        }
+        this.tableId = tableId;
+        this.gbField = gbField;
+        this.aField = aField;
+        this.op = op;
+        this.groups = new HashMap<>();
+
+        if (gbField == NO_GROUPING) {
+            td = new TupleDesc(new Type[]{Type.INT_TYPE});
+        } else {
+            td = new TupleDesc(new Type[]{base.getFieldType(gbField), Type.INT_TYPE});
+        }
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    public int getGroupField() {
+        return gbField;
+    }
+
+    public int getAggregateField() {
+        return aField;
+    }
+
+    public Aggregator.Op getAggregateOp() {
+        return op;
+    }
+
+    /**
+     * @return true if this view stores the result of aggregating aField of
+     * tableId with op, grouped by gbField
+     */
+    public boolean matches(int tableId, int gbField, int aField, Aggregator.Op op) {
+        return this.tableId == tableId && this.gbField == gbField
+                && this.aField == aField && this.op == op;
+    }
+
+    /**
+     * (Re)compute the view from the current contents of the base table.
+     *
+     * @param tid the transaction scanning the base table
+     */
+    public void populate(TransactionId tid) throws DbException, TransactionAbortedException {
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        synchronized (this) {
+            groups.clear();
+            it.open();
+            while (it.hasNext()) {
+                insert(it.next());
+            }
+            it.close();
+        }
+    }
+
+    private Field groupKey(Tuple t) {
+        return gbField == NO_GROUPING ? null : t.getField(gbField);
+    }
+
+    /**
+     * Apply the delta of a tuple inserted into the base table.
+     */
+    public synchronized void insert(Tuple t) {
+        GroupState g = groups.computeIfAbsent(groupKey(t), k -> new GroupState());
+        g.count++;
+        if (op == Aggregator.Op.COUNT) {
+            return;
+        }
+        int v = ((IntField) t.getField(aField)).getValue();
+        g.sum += v;
+        if (op == Aggregator.Op.MIN || op == Aggregator.Op.MAX) {
+            if (g.values == null) {
+                g.values = new TreeMap<>();
+            }
+            g.values.merge(v, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Apply the delta of a tuple deleted from the base table. The tuple must
+     * still carry the field values it had when it was stored.
+     */
+    public synchronized void delete(Tuple t) {
+        Field key = groupKey(t);
+        GroupState g = groups.get(key);
+        if (g == null) {
+            return;
+        }
+        if (--g.count == 0) {
+            groups.remove(key);
+            return;
+        }
+        if (op == Aggregator.Op.COUNT) {
+            return;
+        }
+        int v = ((IntField) t.getField(aField)).getValue();
+        g.sum -= v;
+        if (g.values != null) {
+            Integer n = g.values.get(v);
+            if (n != null) {
+                if (n == 1) {
+                    g.values.remove(v);
+                } else {
+                    g.values.put(v, n - 1);
+                }
+            }
+        }
+    }
+
+    private int aggregateValue(GroupState g) {
+        switch (op) {
+            case MIN:
+                return g.values.firstKey();
+            case MAX:
+                return g.values.lastKey();
+            case SUM:
+                return (int) g.sum;
+            case AVG:
+                return (int) (g.sum / g.count);
+            case COUNT:
+            default:
+                return g.count;
+        }
+    }
+
+    /**
+     * @return a snapshot of the current view contents, in the same format as
+     * the output of an {@link Aggregate} with the same parameters
+     */
+    public synchronized List<Tuple> snapshot() {
+        List<Tuple> result = new ArrayList<>(groups.size());
+        for (Map.Entry<Field, GroupState> e : groups.entrySet()) {
+            Tuple t = new Tuple(td);
+            if (gbField == NO_GROUPING) {
+                t.setField(0, new IntField(aggregateValue(e.getValue())));
+            } else {
+                t.setField(0, e.getKey());
+                t.setField(1, new IntField(aggregateValue(e.getValue())));
+            }
+            result.add(t);
+        }
+        return result;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Create an OpIterator over the view. The contents are captured when the
+     * iterator is opened or rewound.
+     */
+    public OpIterator iterator() {
+        return new ViewIterator();
+    }
+
+    private class ViewIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private Iterator<Tuple> it = null;
+
+        @Override
+        public void open() {
+            it = snapshot().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it != null && it.hasNext();
+        }
+
+        @Override
+        public Tuple next() throws NoSuchElementException {
+            if (it == null) {
+                throw new IllegalStateException("iterator not open");
+            }
+            return it.next();
+        }
+
+        @Override
+        public void rewind() {
+            open();
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        @Override
+        public void close() {
+            it = null;
+        }
+
+        @Override
+        public String toString() {
+            return "view " + AggregateView.this;
+        }
+    }
+
+    @Override
+    public String toString() {
+        TupleDesc base = Database.getCatalog().getTupleDesc(tableId);
+        return Database.getCatalog().getTableName(tableId) + ": " + op + "(" + base.getFieldName(aField) + ")"
+                + (gbField == NO_GROUPING ? "" : " group by " + base.getFieldName(gbField));
+    }
+}
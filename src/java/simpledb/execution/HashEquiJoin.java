@@ -9,6 +9,15 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * The join builds a hash table of the tuples of child1, then probes it with
+ * each tuple of child2. If child2 reads its join field from a {@link SeqScan},
+ * the join also hands that scan a {@link RuntimeFilter} of the keys in the
+ * hash table, so that tuples without a match are dropped as they're read.
+ * The filter is only built when the hash table holds all of child1: child2
+ * is read again for each further batch of child1, and operators between the
+ * join and the scan, such as a {@link SortMergeJoin}, may keep what they read
+ * under the filter of the first batch.
  */
 public class HashEquiJoin extends Operator {
 
@@ -18,6 +27,18 @@ public class HashEquiJoin extends Operator {
     private final TupleDesc comboTD;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
+    transient private RuntimeFilter runtimeFilter = null;
+    transient private boolean published = false;
+
+    private static volatile boolean runtimeFilters = true;
+
+    /**
+     * Set whether hash joins hand runtime filters to the scans of their
+     * probe sides; they do by default.
+     */
+    public static void setRuntimeFilters(boolean enabled) {
+        runtimeFilters = enabled;
+    }
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -66,17 +87,76 @@ public class HashEquiJoin extends Operator {
             List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
             list.add(t1);
             if (cnt++ == MAP_SIZE)
-                return true;
+                break;
         }
         return cnt > 0;
 
     }
 
+    /**
+     * Find the scan that the join field of child2 is read from, looking
+     * through operators that pass the scan's tuples on unchanged or only
+     * drop or extend them.
+     *
+     * @return the scan, or null if there isn't one
+     */
+    private static SeqScan probeScan(OpIterator op, String field) {
+        if (op instanceof SeqScan) {
+            return hasField(op.getTupleDesc(), field) ? (SeqScan) op : null;
+        } else if (op instanceof Filter || op instanceof LateMaterialize || op instanceof HashEquiJoin
+                || op instanceof Join || op instanceof BlockNestedLoopJoin || op instanceof SortMergeJoin
+                || op instanceof IndexNestedLoopJoin) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                SeqScan scan = probeScan(child, field);
+                if (scan != null)
+                    return scan;
+            }
+        } else if (op instanceof HashSemiJoin) {
+            // its fields all come from its first child
+            return probeScan(((HashSemiJoin) op).getChildren()[0], field);
+        }
+        return null;
+    }
+
+    private static boolean hasField(TupleDesc td, String field) {
+        try {
+            td.fieldNameToIndex(field);
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    private void publishRuntimeFilter() {
+        published = true;
+        String field = getJoinField2Name();
+        TupleDesc td = child2.getTupleDesc();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (i != pred.getField2() && Objects.equals(field, td.getFieldName(i)))
+                return; // the name doesn't tell which scan the field is from
+        }
+        SeqScan scan = field == null ? null : probeScan(child2, field);
+        if (scan != null) {
+            runtimeFilter = new RuntimeFilter(scan.getFields()[scan.getTupleDesc().fieldNameToIndex(field)]);
+            scan.addRuntimeFilter(runtimeFilter);
+        }
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        if (!published && runtimeFilters)
+            publishRuntimeFilter();
         child1.open();
-        child2.open();
+        // build first, so the probe side reads its first page with the
+        // runtime filter in place
         loadMap();
+        if (runtimeFilter != null) {
+            if (child1.hasNext())
+                runtimeFilter.clear();
+            else
+                runtimeFilter.build(map.keySet());
+        }
+        child2.open();
         super.open();
     }
 
@@ -152,8 +232,8 @@ public class HashEquiJoin extends Operator {
         }
 
         // child2 is done: advance child1
-        child2.rewind();
         if (loadMap()) {
+            child2.rewind();
             return fetchNext();
         }
 
@@ -169,6 +249,8 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        this.runtimeFilter = null;
+        this.published = false;
     }
     
 }
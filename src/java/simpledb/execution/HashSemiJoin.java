@@ -0,0 +1,125 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A semi-join returns the tuples of its first child that have a match in its
+ * second child, each once, however many matches it has; an anti-join returns
+ * those that have none. They compute x IN (subquery) and x NOT IN (subquery).
+ * <p>
+ * The join keys of the second child are read into a hash set once, when the
+ * operator is opened; rewinding the operator only rewinds the first child.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private final boolean anti;
+    private OpIterator child1, child2;
+    private final Set<Field> keys = new HashSet<>();
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate matching tuples of the children; must be
+     *            Predicate.Op.EQUALS
+     * @param child1
+     *            Iterator for the relation whose tuples are returned
+     * @param child2
+     *            Iterator for the relation the tuples are matched against
+     * @param anti
+     *            If true, return the tuples of child1 without a match
+     *            instead of those with one
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("hash semi-join needs an equality predicate");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /** @return true if this is an anti-join */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    /** @return the tuple descriptor of child1, whose tuples are returned */
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        keys.clear();
+        child2.open();
+        while (child2.hasNext()) {
+            keys.add(child2.next().getField(pred.getField2()));
+        }
+        child2.close();
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        keys.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the keys of child2 are already in memory
+        child1.rewind();
+    }
+
+    /**
+     * Returns the next tuple of child1 whose join field is (or, for an
+     * anti-join, isn't) among the keys of child2.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (keys.contains(t.getField(pred.getField1())) != anti) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,222 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A nested loops join whose inner relation is a table stored in a B+ tree
+ * keyed on the inner join field: instead of scanning the inner relation, the
+ * tuples matching each outer tuple are looked up in the tree. The inner
+ * table's own filters are applied to the tuples found.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1;
+    private TransactionId tid;
+    private final BTreeFile file;
+    private final String tableAlias;
+    private final List<Predicate> innerFilters;
+    private final TupleDesc innerTD;
+    private final TupleDesc comboTD;
+    transient private Tuple t1 = null;
+    transient private DbFileIterator probe = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; its second field
+     *            must be the key of the inner table, and its operator one the
+     *            B+ tree can search by (not LIKE or NOT_EQUALS)
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param tid
+     *            The transaction the lookups are part of
+     * @param tableid
+     *            The inner table, which must be a BTreeFile
+     * @param tableAlias
+     *            The alias of the inner table, which prefixes its field names
+     *            as in {@link SeqScan}
+     * @param innerFilters
+     *            Predicates over the fields of the inner table that its
+     *            tuples must also satisfy
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, TransactionId tid, int tableid,
+                               String tableAlias, List<Predicate> innerFilters) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof BTreeFile)) {
+            throw new IllegalArgumentException("table " + tableid + " has no index");
+        }
+        this.file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+        if (file.keyField() != p.getField2() || p.getOperator() == Predicate.Op.LIKE
+                || p.getOperator() == Predicate.Op.NOT_EQUALS) {
+            throw new IllegalArgumentException("the index can't be searched by " + p.getOperator()
+                    + " on field " + p.getField2());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.tid = tid;
+        this.tableAlias = tableAlias;
+        this.innerFilters = new ArrayList<>(innerFilters);
+
+        TupleDesc original = file.getTupleDesc();
+        Type[] types = new Type[original.numFields()];
+        String[] names = new String[original.numFields()];
+        for (int i = 0; i < original.numFields(); i++) {
+            types[i] = original.getFieldType(i);
+            names[i] = tableAlias + "." + original.getFieldName(i);
+        }
+        innerTD = new TupleDesc(types, names);
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), innerTD);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * Make the lookups part of another transaction from now on. The join
+     * must not be open.
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    /** @return the name of the inner table in the catalog */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(file.getId());
+    }
+
+    /** @return the filters applied to the inner table's tuples */
+    public List<Predicate> getInnerFilters() {
+        return innerFilters;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return innerTD.getFieldName(pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeProbe();
+        child1.close();
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeProbe();
+        child1.rewind();
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+    }
+
+    /**
+     * The operator the key of an inner tuple must satisfy against the outer
+     * join field: t1.f1 op t2.f2 is f2 (reversed op) f1.
+     */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the next tuple found by looking up the current outer
+     * tuple's join field in the index, or else the first match of the next
+     * outer tuple that has any.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (probe != null) {
+                while (probe.hasNext()) {
+                    Tuple t2 = probe.next();
+                    if (passesFilters(t2)) {
+                        return merge(t1, t2);
+                    }
+                }
+                closeProbe();
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            t1 = child1.next();
+            probe = file.indexIterator(tid,
+                    new IndexPredicate(reverse(pred.getOperator()), t1.getField(pred.getField1())));
+            probe.open();
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate p : innerFilters) {
+            if (!p.filter(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = innerTD.numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+    }
+}
@@ -1,11 +1,21 @@
 package simpledb.execution;
 
+import simpledb.storage.CompositeField;
 import simpledb.storage.Field;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * IndexPredicate compares a field which has index on it against a given value
+ * <p>
+ * On an index keyed on more than one field, the value may be a
+ * {@link CompositeField} of the values of the first few key fields. Then the
+ * key fields but the last must equal their values, and the last is compared
+ * with its value by the operator: GREATER_THAN (5, 100) on a key of
+ * (tenant_id, ts) matches the keys with tenant_id = 5 and ts &gt; 100.
  * @see IndexOpIterator
  */
 public class IndexPredicate implements Serializable {
@@ -29,8 +39,38 @@ public class IndexPredicate implements Serializable {
         this.fieldvalue = fvalue;
     }
 
+    /**
+     * @return the value; if it's a {@link Parameter}, the value bound to it
+     */
     public Field getField() {
-        return fieldvalue;
+        return Parameter.resolve(fieldvalue);
+    }
+
+    /**
+     * @return a predicate comparing the specified field with the value of
+     * this one, which may be a {@link Parameter} not bound yet
+     */
+    public Predicate toPredicate(int field) {
+        return new Predicate(field, op, fieldvalue);
+    }
+
+    /**
+     * @return predicates comparing the specified key fields with the values
+     * of this one, that together match what this one does
+     * @param fields the key fields of the index, in order
+     */
+    public List<Predicate> toPredicates(int[] fields) {
+        if (!(fieldvalue instanceof CompositeField)) {
+            return Collections.singletonList(toPredicate(fields[0]));
+        }
+        CompositeField value = (CompositeField) fieldvalue;
+        int last = value.numFields() - 1;
+        List<Predicate> preds = new ArrayList<>();
+        for (int i = 0; i < last; i++) {
+            preds.add(new Predicate(fields[i], Predicate.Op.EQUALS, value.getField(i)));
+        }
+        preds.add(new Predicate(fields[last], op, value.getField(last)));
+        return preds;
     }
 
     public Predicate.Op getOp() {
@@ -0,0 +1,142 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Adds fields of a heap file table to the tuples of its child, which carry
+ * the row number of the table's tuple they come from (see
+ * {@link HeapFile#ROW_NUMBER}) in place of those fields. Wide fields that are
+ * only needed in a query's output can so be read once the query's joins and
+ * filters have left fewer tuples, instead of being carried through them.
+ */
+public class LateMaterialize extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private TransactionId tid;
+    private final HeapFile file;
+    private final int[] fields;
+    private final int rowField;
+    private final TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator, whose tuples have a field named
+     *            tableAlias.{@link HeapFile#ROW_NUMBER_NAME}
+     * @param tid
+     *            The transaction the fields are read as a part of
+     * @param tableid
+     *            The table the fields are read from, which must be a HeapFile
+     * @param tableAlias
+     *            The alias of the table, which prefixes the names of the
+     *            fields added as in {@link SeqScan}
+     * @param fields
+     *            The fields of the table to add after the child's fields
+     */
+    public LateMaterialize(OpIterator child, TransactionId tid, int tableid, String tableAlias, int[] fields) {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("table " + tableid + " isn't a heap file");
+        }
+        this.child = child;
+        this.tid = tid;
+        this.file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.fields = fields.clone();
+
+        TupleDesc childTD = child.getTupleDesc();
+        rowField = childTD.fieldNameToIndex(tableAlias + "." + HeapFile.ROW_NUMBER_NAME);
+        TupleDesc original = file.getTupleDesc();
+        Type[] types = new Type[childTD.numFields() - 1 + fields.length];
+        String[] names = new String[types.length];
+        int n = 0;
+        for (int i = 0; i < childTD.numFields(); i++) {
+            if (i != rowField) {
+                types[n] = childTD.getFieldType(i);
+                names[n++] = childTD.getFieldName(i);
+            }
+        }
+        for (int f : fields) {
+            types[n] = original.getFieldType(f);
+            names[n++] = tableAlias + "." + original.getFieldName(f);
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Read the fields as a part of another transaction from now on. The
+     * operator must not be open.
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    /** @return the name of the table the fields are read from */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(file.getId());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Returns the next tuple of the child, with the fields of the table's
+     * tuple it refers to read from that tuple's page.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (!child.hasNext()) {
+            return null;
+        }
+        Tuple in = child.next();
+        RecordId rid = file.recordId(((IntField) in.getField(rowField)).getValue());
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        Tuple out = new Tuple(td);
+        int n = 0;
+        for (int i = 0; i < in.getTupleDesc().numFields(); i++) {
+            if (i != rowField) {
+                out.setField(n++, in.getField(i));
+            }
+        }
+        for (int f : fields) {
+            out.setField(n++, page.getField(rid.getTupleNumber(), f));
+        }
+        return out;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A placeholder (a ? in a prepared query) for the constant a predicate
+ * compares against, whose value is bound each time the query is executed.
+ * {@link Predicate#getOperand()} and {@link IndexPredicate#getField()} return
+ * the bound value, so a plan can be built once with parameters in place of
+ * its constants and run again with different values.
+ */
+public class Parameter implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int index;
+    private Type type;
+    private Field value;
+
+    /**
+     * @param index the position of the parameter among its query's parameters,
+     *              counting from 0
+     */
+    public Parameter(int index) {
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Set the type of the field the parameter is compared with; values bound
+     * to the parameter are parsed as this type.
+     */
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Bind a value to the parameter.
+     *
+     * @param s the value, as it would be written as a constant in the query
+     * @throws IllegalArgumentException if the value isn't of the parameter's type
+     */
+    public void bind(String s) {
+        if (type == Type.INT_TYPE) {
+            try {
+                value = new IntField(Integer.parseInt(s.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("parameter " + index + " must be an integer, not " + s);
+            }
+        } else {
+            value = new StringField(s, Type.STRING_LEN);
+        }
+    }
+
+    /**
+     * @return the value bound to the parameter
+     * @throws IllegalStateException if no value has been bound
+     */
+    public Field getValue() {
+        if (value == null) {
+            throw new IllegalStateException("parameter " + index + " is not bound");
+        }
+        return value;
+    }
+
+    /**
+     * @return the value bound to f if it's a parameter, f with the values bound
+     * to its parameters if it's a {@link CompositeField}, else f itself
+     */
+    public static Field resolve(Field f) {
+        if (f instanceof CompositeField) {
+            CompositeField c = (CompositeField) f;
+            Field[] fields = new Field[c.numFields()];
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = resolve(c.getField(i));
+            return new CompositeField(fields);
+        }
+        return f instanceof Parameter ? ((Parameter) f).getValue() : f;
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        getValue().serialize(dos);
+    }
+
+    public boolean compare(Predicate.Op op, Field val) {
+        return getValue().compare(op, resolve(val));
+    }
+
+    public boolean equals(Object o) {
+        return o == this;
+    }
+
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    public String toString() {
+        return value == null ? "?" : value.toString();
+    }
+}
@@ -1,53 +1,152 @@
 package simpledb.execution;
 import simpledb.optimizer.LogicalJoinNode;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to join a given set of relations. Relations are numbered from 0, and
+ * a set of them is a bitmask with bit i set for relation i; the cache is a
+ * single array indexed by that mask, or a hash table when there are too many
+ * relations for an array of every set (searches that wide only plan a few
+ * of the sets anyway).
+ * <p>
+ * The best plan for a set is stored as the two sets it is the join of, and
+ * the joins applied to combine them, so the full order of a plan is
+ * rebuilt from the plans of its parts.
+ */
 public class PlanCache {
-    final Map<Set<LogicalJoinNode>,List<LogicalJoinNode>> bestOrders= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+
+    private static class Entry {
+        double cost;
+        int card;
+        boolean pkey;
+        long left;
+        long right;
+        List<LogicalJoinNode> joins;
+    }
+
+    /** The most relations for which plans are kept in an array */
+    public static final int MAX_DENSE_RELATIONS = 20;
+
+    private final Entry[] plans;
+    private final Map<Long, Entry> sparsePlans;
+
+    /**
+     * Create an empty PlanCache
+     * @param numRelations the number of relations being joined, at most 64;
+     *        up to MAX_DENSE_RELATIONS the cache takes space exponential in it
+     */
+    public PlanCache(int numRelations) {
+        if (numRelations < 0 || numRelations > 64)
+            throw new IllegalArgumentException("cannot cache plans for " + numRelations + " relations");
+        if (numRelations <= MAX_DENSE_RELATIONS) {
+            plans = new Entry[1 << numRelations];
+            sparsePlans = null;
+        } else {
+            plans = null;
+            sparsePlans = new HashMap<>();
+        }
+    }
+
+    private Entry get(long s) {
+        return plans != null ? plans[(int) s] : sparsePlans.get(s);
+    }
+
+    /** Add a plan for a single base relation, which takes no joins
+        @param s the set containing the relation
+        @param cost the estimated cost of scanning the relation
+        @param card the estimated cardinality of the relation
+    */
+    public void addBasePlan(long s, double cost, int card) {
+        addPlan(s, cost, card, false, 0, 0, Collections.emptyList());
+    }
+
+    /** Add a new cost, cardinality and plan for a particular set of relations.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
-        specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        specified set
+        @param s the set of relations for which a new plan is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param pkey whether one of the joins of the plan is on a primary key
+        @param left the set of relations on the outer side of the last join
+        @param right the set of relations on the inner side of the last join
+        @param joins the joins combining left and right; the first one is the join
+               itself, the others are further predicates between the two sides
     */
-    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+    public void addPlan(long s, double cost, int card, boolean pkey, long left, long right,
+                        List<LogicalJoinNode> joins) {
+        Entry e = new Entry();
+        e.cost = cost;
+        e.card = card;
+        e.pkey = pkey;
+        e.left = left;
+        e.right = right;
+        e.joins = joins;
+        if (plans != null)
+            plans[(int) s] = e;
+        else
+            sparsePlans.put(s, e);
+    }
+
+    /** @return true if there is a plan for the specified set of relations */
+    public boolean hasPlan(long s) {
+        return get(s) != null;
+    }
+
+    /** Find the best join order in the cache for the specified set of relations
+        @param s the set of relations to look up the best order for
+        @return the best order for s in the cache, in an order in which the
+                joins can be executed one after the other; null if there is none
     */
-    public List<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    public List<LogicalJoinNode> getOrder(long s) {
+        if (get(s) == null)
+            return null;
+        List<LogicalJoinNode> order = new ArrayList<>();
+        addOrder(s, order);
+        return order;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    private void addOrder(long s, List<LogicalJoinNode> order) {
+        Entry e = get(s);
+        if (e.left != 0) {
+            addOrder(e.left, order);
+            addOrder(e.right, order);
+        }
+        order.addAll(e.joins);
+    }
+
+    /** Find the cost of the best plan in the cache for the specified set of relations
+        @param s the set of relations to look up the best cost for
+        @return the cost of the best plan for s in the cache
     */
-    public double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    public double getCost(long s) {
+        return get(s).cost;
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+
+    /** Find the cardinality of the best plan in the cache for the specified set of relations
+        @param s the set of relations to look up the best cardinality for
+        @return the cardinality of the best plan for s in the cache
     */
-    public int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    public int getCard(long s) {
+        return get(s).card;
+    }
+
+    /** @return true if the best plan for s joins a primary key */
+    public boolean hasPkey(long s) {
+        return get(s).pkey;
+    }
+
+    /** @return the outer side of the last join of the best plan for s, or 0 for a base relation */
+    public long getLeft(long s) {
+        return get(s).left;
+    }
+
+    /** @return the inner side of the last join of the best plan for s, or 0 for a base relation */
+    public long getRight(long s) {
+        return get(s).right;
     }
 }
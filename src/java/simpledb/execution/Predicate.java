@@ -1,9 +1,11 @@
 package simpledb.execution;
 
+import simpledb.storage.CompositeField;
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * Predicate compares tuples to a specified Field value.
@@ -83,11 +85,44 @@ public class Predicate implements Serializable {
     }
 
     /**
-     * @return the operand
+     * @return the operand; if it's a {@link Parameter}, the value bound to it
      */
     public Field getOperand() {
         // some code goes here
-        return operand;
+        return Parameter.resolve(operand);
+    }
+
+    /**
+     * @return true if the operand is a {@link Parameter}
+     */
+    public boolean isParameterized() {
+        return operand instanceof Parameter;
+    }
+
+    /**
+     * @return an index predicate comparing the key with the operand of this
+     * one, which may be a {@link Parameter} not bound yet
+     */
+    public IndexPredicate toIndexPredicate() {
+        return new IndexPredicate(op, operand);
+    }
+
+    /**
+     * @return an index predicate on a prefix of an index keyed on more than
+     * one field: comparing its first key fields with the operands of preds,
+     * of which all but the last compare by EQUALS
+     * @param preds the predicates on the key fields, in order
+     * @see IndexPredicate
+     */
+    public static IndexPredicate toIndexPredicate(List<Predicate> preds) {
+        if (preds.size() == 1) {
+            return preds.get(0).toIndexPredicate();
+        }
+        Field[] values = new Field[preds.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = preds.get(i).operand;
+        }
+        return new IndexPredicate(preds.get(values.length - 1).op, new CompositeField(values));
     }
 
     /**
@@ -101,7 +136,15 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-        return t.getField(fieldNum).compare(op, operand);
+        return matches(t.getField(fieldNum));
+    }
+
+    /**
+     * @param value the value of the predicate's field in some tuple
+     * @return true if a tuple with that value satisfies the predicate
+     */
+    public boolean matches(Field value) {
+        return value.compare(op, getOperand());
     }
 
     /**
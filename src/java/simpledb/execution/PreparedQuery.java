@@ -0,0 +1,126 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeScan;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A query planned once and executed any number of times. Its constants may be
+ * left as parameters ({@link Parameter}), which are bound each time the query
+ * is executed; executing it only binds the parameters and the transaction, so
+ * the physical plan is reused as it is. The plan stays valid until the
+ * catalog or the table statistics it was chosen with change.
+ *
+ * @see simpledb.Parser#prepare(String)
+ */
+public class PreparedQuery {
+
+    private final String sql;
+    private final OpIterator plan;
+    private final LogicalPlan logicalPlan;
+    private final List<Parameter> parameters;
+    private final long catalogVersion;
+    private final long statsVersion;
+    private Query last = null;
+
+    /**
+     * Constructor. Must be called with the catalog and statistics the plan
+     * was built from still in place.
+     *
+     * @param sql
+     *            The query, as the plan cache knows it
+     * @param plan
+     *            The physical plan of the query
+     * @param logicalPlan
+     *            The logical plan the physical plan was built from
+     * @param parameters
+     *            The parameters in the plan's predicates, in order
+     */
+    public PreparedQuery(String sql, OpIterator plan, LogicalPlan logicalPlan, List<Parameter> parameters) {
+        this.sql = sql;
+        this.plan = plan;
+        this.logicalPlan = logicalPlan;
+        this.parameters = new ArrayList<>(parameters);
+        this.catalogVersion = Database.getCatalog().getVersion();
+        this.statsVersion = TableStats.getVersion();
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public OpIterator getPhysicalPlan() {
+        return plan;
+    }
+
+    /** @return the number of values {@link #execute} must be given */
+    public int getParameterCount() {
+        return parameters.size();
+    }
+
+    /**
+     * @return false if tables or statistics have changed since the query was
+     *         planned, so that it must be planned again
+     */
+    public boolean isValid() {
+        return catalogVersion == Database.getCatalog().getVersion()
+                && statsVersion == TableStats.getVersion();
+    }
+
+    /**
+     * Bind the parameters and get the query ready to run. A run started by a
+     * previous call is closed, as both share the same plan.
+     *
+     * @param tid
+     *            The transaction to run the query as a part of
+     * @param values
+     *            The values of the parameters, in order, as they would be
+     *            written as constants in the query
+     * @return The query, which the caller starts and reads
+     * @throws IllegalArgumentException if the number of values is wrong, or a
+     *             value doesn't match the type of the field it's compared with
+     */
+    public synchronized Query execute(TransactionId tid, String... values) {
+        if (values.length != parameters.size()) {
+            throw new IllegalArgumentException("query has " + parameters.size()
+                    + " parameters, got " + values.length + " values");
+        }
+        if (last != null) {
+            last.close();
+            last = null;
+        }
+        for (int i = 0; i < values.length; i++) {
+            parameters.get(i).bind(values[i]);
+        }
+        setTransactionId(plan, tid);
+        last = new Query(plan, tid);
+        last.setLogicalPlan(logicalPlan);
+        return last;
+    }
+
+    /** Make every operator in the plan that reads pages do so as part of tid */
+    private static void setTransactionId(OpIterator op, TransactionId tid) {
+        if (op instanceof SeqScan) {
+            ((SeqScan) op).setTransactionId(tid);
+        } else if (op instanceof BTreeScan) {
+            ((BTreeScan) op).setTransactionId(tid);
+        } else if (op instanceof SecondaryIndexScan) {
+            ((SecondaryIndexScan) op).setTransactionId(tid);
+        } else if (op instanceof IndexNestedLoopJoin) {
+            ((IndexNestedLoopJoin) op).setTransactionId(tid);
+        } else if (op instanceof LateMaterialize) {
+            ((LateMaterialize) op).setTransactionId(tid);
+        }
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                setTransactionId(child, tid);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+
+import java.util.Collection;
+
+/**
+ * A bloom filter over the join keys on the build side of a hash join, which
+ * the join hands to the scan of its probe side (see
+ * {@link SeqScan#addRuntimeFilter}). The scan can then drop tuples whose key
+ * has no match before they travel up to the join. Keys that were added
+ * always pass; a few other keys pass too, which the join itself drops.
+ * <p>
+ * Until it's first built, the filter lets every tuple pass.
+ */
+public class RuntimeFilter extends Predicate {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Bits set per key, and bits of the filter per key it's built from */
+    static final int NUM_HASHES = 3;
+    static final int BITS_PER_KEY = 8;
+
+    private long[] bits = null;
+    private int mask;
+    private int numKeys;
+
+    /**
+     * @param field the field the keys are compared with, numbered as in the
+     *              tuples the filter is applied to
+     */
+    public RuntimeFilter(int field) {
+        super(field, Op.EQUALS, null);
+    }
+
+    /**
+     * Replace the keys the filter lets pass.
+     *
+     * @param keys the join keys of the build side; the filter keeps no
+     *             reference to them
+     */
+    public void build(Collection<?> keys) {
+        int size = 64;
+        while (size < keys.size() * BITS_PER_KEY) {
+            size <<= 1;
+        }
+        bits = new long[size / 64];
+        mask = size - 1;
+        numKeys = keys.size();
+        for (Object key : keys) {
+            int h = key.hashCode();
+            int h1 = mix(h);
+            int h2 = mix(h1) | 1;
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int bit = (h1 + i * h2) & mask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Let every tuple pass again, as before the filter was first built.
+     */
+    public void clear() {
+        bits = null;
+        numKeys = 0;
+    }
+
+    /**
+     * @return false only if no key the filter was built from equals value
+     */
+    @Override
+    public boolean matches(Field value) {
+        if (bits == null) {
+            return true;
+        }
+        int h1 = mix(value.hashCode());
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The finalizer of MurmurHash3, spreading every bit of h over the result */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    public String toString() {
+        return "f = " + getField() + " in bloom filter of " + (bits == null ? "all" : numKeys) + " keys";
+    }
+}
@@ -7,6 +7,7 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -25,6 +26,11 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private DbFile dbFile;
     private String alias;
+    private List<Predicate> filters = Collections.emptyList();
+    // predicates added while the query runs, such as a join's runtime filter
+    private final List<Predicate> runtimeFilters = new ArrayList<>();
+    // the fields of the table the scan returns, or null for all of them
+    private int[] fields = null;
     private DbFileIterator it;
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -51,6 +57,51 @@ public class SeqScan implements OpIterator {
         alias = tableAlias;
     }
 
+    /**
+     * Creates a sequential scan over the specified table that returns only
+     * the tuples satisfying all of the specified predicates. The predicates
+     * are handed to the table's file, which may test them before building
+     * each tuple; see {@link DbFile#iterator(TransactionId, List)}.
+     *
+     * @param filters
+     *            Predicates over the fields of the table, numbered as in its
+     *            {@link DbFile#getTupleDesc()}
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> filters) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.filters = new ArrayList<>(filters);
+        dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        it = dbFile.iterator(this.tid, this.filters);
+        alias = tableAlias;
+    }
+
+    /**
+     * Creates a sequential scan over the specified heap file table that
+     * returns only the specified fields of the tuples satisfying all of the
+     * specified predicates; see
+     * {@link HeapFile#iterator(TransactionId, List, int[])}.
+     *
+     * @param filters
+     *            Predicates over the fields of the table, numbered as in its
+     *            {@link DbFile#getTupleDesc()}
+     * @param fields
+     *            The fields of the table to return, in order; may include
+     *            {@link HeapFile#ROW_NUMBER}
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, List<Predicate> filters, int[] fields) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.filters = new ArrayList<>(filters);
+        this.fields = fields.clone();
+        dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(dbFile instanceof HeapFile)) {
+            throw new IllegalArgumentException("only heap files can be scanned for some of their fields");
+        }
+        it = ((HeapFile) dbFile).iterator(this.tid, this.filters, this.fields);
+        alias = tableAlias;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -69,6 +120,72 @@ public class SeqScan implements OpIterator {
         return alias;
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the transaction the scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /**
+     * Run the scan as a part of another transaction from now on. The scan
+     * must not be open.
+     */
+    public void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+        reset(tableid, alias);
+    }
+
+    /**
+     * @return the predicates the tuples returned satisfy; empty if the scan
+     *         returns all tuples
+     */
+    public List<Predicate> getFilters() {
+        return filters;
+    }
+
+    /**
+     * Make the scan also drop the tuples that fail a predicate whose operand
+     * is only known once the query runs, such as a {@link RuntimeFilter}.
+     * The scan must not be open.
+     *
+     * @param p a predicate over the fields of the table, numbered as in its
+     *          {@link DbFile#getTupleDesc()}
+     */
+    public void addRuntimeFilter(Predicate p) {
+        runtimeFilters.add(p);
+        reset(tableid, alias);
+    }
+
+    /**
+     * @return the predicates added by {@link #addRuntimeFilter}
+     */
+    public List<Predicate> getRuntimeFilters() {
+        return runtimeFilters;
+    }
+
+    /**
+     * @return the field of the table each field of {@link #getTupleDesc()}
+     *         comes from, or {@link HeapFile#ROW_NUMBER}
+     */
+    public int[] getFields() {
+        if (fields == null) {
+            int[] all = new int[dbFile.getTupleDesc().numFields()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        return fields.clone();
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -86,7 +203,13 @@ public class SeqScan implements OpIterator {
         this.tableid = tableid;
         dbFile = Database.getCatalog().getDatabaseFile(tableid);
         this.alias = tableAlias;
-        it = dbFile.iterator(this.tid);
+        List<Predicate> all = filters;
+        if (!runtimeFilters.isEmpty()) {
+            all = new ArrayList<>(filters);
+            all.addAll(runtimeFilters);
+        }
+        it = fields == null ? dbFile.iterator(this.tid, all)
+                : ((HeapFile) dbFile).iterator(this.tid, all, fields);
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -112,6 +235,16 @@ public class SeqScan implements OpIterator {
         // some code goes here
         // construct prefixed field names
         TupleDesc original = dbFile.getTupleDesc();
+        if (fields != null) {
+            Type[] types = new Type[fields.length];
+            String[] names = new String[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                boolean row = fields[i] == HeapFile.ROW_NUMBER;
+                types[i] = row ? Type.INT_TYPE : original.getFieldType(fields[i]);
+                names[i] = alias + "." + (row ? HeapFile.ROW_NUMBER_NAME : original.getFieldName(fields[i]));
+            }
+            return new TupleDesc(types, names);
+        }
         Type[] types = new Type[original.numFields()];
         String[] names = new String[original.numFields()];
         Iterator<TupleDesc.TDItem> it = original.iterator();
@@ -0,0 +1,171 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An equi-join that sorts both of its children on their join fields, then
+ * merges them in a single pass over each. Both children are sorted in
+ * memory when the operator is opened.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final List<Tuple> left = new ArrayList<>();
+    private final List<Tuple> right = new ArrayList<>();
+    // the current left tuple, and the run of right tuples with its key
+    transient private int li, ri, runStart, runEnd, pos;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be
+     *            Predicate.Op.EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("sort-merge join needs an equality predicate");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.LESS_THAN, b))
+            return -1;
+        return a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0;
+    }
+
+    private static void sort(OpIterator child, int field, List<Tuple> into)
+            throws DbException, TransactionAbortedException {
+        into.clear();
+        while (child.hasNext()) {
+            into.add(child.next());
+        }
+        into.sort((a, b) -> compare(a.getField(field), b.getField(field)));
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        sort(child1, pred.getField1(), left);
+        sort(child2, pred.getField2(), right);
+        li = ri = runStart = runEnd = pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        left.clear();
+        right.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // both sides are already sorted in memory
+        li = ri = runStart = runEnd = pos = 0;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Each left tuple is combined with the run of right tuples
+     * that have its key; consecutive left tuples with the same key reuse the
+     * run.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (li < left.size()) {
+            if (pos < runEnd) {
+                return merge(left.get(li), right.get(pos++));
+            }
+            if (runEnd > runStart) {
+                // done with this left tuple; the next one may have the same key
+                li++;
+                if (li < left.size() && compare(left.get(li).getField(pred.getField1()),
+                        right.get(runStart).getField(pred.getField2())) == 0) {
+                    pos = runStart;
+                } else {
+                    ri = runStart = runEnd;
+                }
+                continue;
+            }
+            if (ri >= right.size()) {
+                return null;
+            }
+            int c = compare(left.get(li).getField(pred.getField1()), right.get(ri).getField(pred.getField2()));
+            if (c < 0) {
+                li++;
+            } else if (c > 0) {
+                ri++;
+            } else {
+                runEnd = ri + 1;
+                while (runEnd < right.size() && compare(right.get(runEnd).getField(pred.getField2()),
+                        right.get(ri).getField(pred.getField2())) == 0) {
+                    runEnd++;
+                }
+                runStart = pos = ri;
+            }
+        }
+        return null;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,773 @@
+package simpledb.index;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.*;
+
+import simpledb.common.DbException;
+import simpledb.index.BTreeFileEncoder.TupleComparator;
+import simpledb.storage.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile bottom-up from tuples given in any order.
+ *
+ * The tuples are sorted externally: runs of up to {@link #setRunSize(int)} tuples
+ * are sorted in memory and spilled to temporary files, which are then merged. The
+ * merged stream is packed into leaf pages, and the keys separating them into
+ * internal pages, to a fill factor. The layout of every level follows from the
+ * number of tuples, so each page is written once, complete with its parent and
+ * sibling pointers, and each level is written sequentially to its own region of
+ * the file in writes of many pages.
+ *
+ * Compact pages (see {@link BTreePage#isCompact()}) hold as many tuples or entries as fit
+ * in their bytes, so the layout of a level follows from the sizes of its items instead:
+ * the merged stream is read twice, once to pack the leaves and note the keys separating
+ * them, from which the internal levels are packed, and once to write the pages.
+ *
+ * The BTreeFile must be in the catalog, and its file must be empty.
+ */
+public class BTreeBulkLoader {
+
+	/** Default number of tuples sorted in memory per run */
+	public static final int DEFAULT_RUN_SIZE = 1 << 18;
+
+	/** Most runs merged at once; more runs are merged in several passes */
+	private static final int MAX_FAN_IN = 64;
+
+	/** Pages buffered per level before they are written out */
+	private static final int PAGES_PER_WRITE = 64;
+
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final TupleComparator comparator;
+
+	private double fillFactor = 1.0;
+	private int runSize = DEFAULT_RUN_SIZE;
+
+	private List<Tuple> run = new ArrayList<>();
+	private final List<Run> runs = new ArrayList<>();
+	private final List<Source> sources = new ArrayList<>();
+	private long numTuples = 0;
+	private boolean finished = false;
+
+	private FileChannel channel;
+
+	/**
+	 * Create a loader for a BTreeFile
+	 *
+	 * @param bf - the BTreeFile to load, whose file must be empty
+	 */
+	public BTreeBulkLoader(BTreeFile bf) {
+		if(bf.getFile().length() > 0) {
+			throw new IllegalArgumentException("bulk loading requires an empty BTreeFile");
+		}
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.keyFields = bf.keyFields();
+		this.comparator = new TupleComparator(keyFields);
+	}
+
+	/**
+	 * Set the fraction of each page to fill. The last pages of a level may be filled
+	 * differently so that none is less than half full.
+	 *
+	 * @param fillFactor - a fraction between 0.5 and 1, 1 by default
+	 */
+	public void setFillFactor(double fillFactor) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Set the number of tuples sorted in memory before a run is spilled to disk
+	 *
+	 * @param runSize - the number of tuples per run, {@link #DEFAULT_RUN_SIZE} by default
+	 */
+	public void setRunSize(int runSize) {
+		if(runSize < 1) {
+			throw new IllegalArgumentException("run size must be positive");
+		}
+		this.runSize = runSize;
+	}
+
+	/**
+	 * Add a tuple to the file. The loader may keep a reference to it until
+	 * {@link #finish()}, so it must not be changed afterwards.
+	 *
+	 * @param t - the tuple to add
+	 */
+	public void add(Tuple t) throws IOException {
+		if(finished) {
+			throw new IllegalStateException("bulk load already finished");
+		}
+		if(!t.getTupleDesc().equals(td)) {
+			throw new IllegalArgumentException("tuple desc does not match the BTreeFile");
+		}
+		run.add(t);
+		numTuples++;
+		if(run.size() >= runSize) {
+			spill(run);
+			run = new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Sort and merge the tuples added and write the BTreeFile
+	 *
+	 * @return the BTreeFile
+	 */
+	public BTreeFile finish() throws IOException, DbException {
+		if(finished) {
+			throw new IllegalStateException("bulk load already finished");
+		}
+		finished = true;
+		run.sort(comparator);
+		try {
+			while(runs.size() + 1 > MAX_FAN_IN) {
+				mergeRuns();
+			}
+			write();
+		} finally {
+			closeSources();
+			for(Run r : runs) {
+				r.file.delete();
+			}
+			runs.clear();
+			run = null;
+		}
+		return bf;
+	}
+
+	/**
+	 * Merge the runs left after {@link #mergeRuns()} with the one in memory, from the start
+	 *
+	 * @return the merged stream of tuples
+	 */
+	private Merger merge() throws IOException {
+		closeSources();
+		for(Run r : runs) {
+			sources.add(new RunReader(r));
+		}
+		sources.add(new ListSource(run));
+		return new Merger(sources);
+	}
+
+	private void closeSources() throws IOException {
+		for(Source s : sources) {
+			s.close();
+		}
+		sources.clear();
+	}
+
+	/**
+	 * Sort a run and write it to a temporary file
+	 */
+	private void spill(List<Tuple> tuples) throws IOException {
+		tuples.sort(comparator);
+		Run r = new Run(tuples.size());
+		try (DataOutputStream dos = r.openOutput()) {
+			for(Tuple t : tuples) {
+				r.writeTuple(dos, t);
+			}
+		}
+		runs.add(r);
+	}
+
+	/**
+	 * Merge the first MAX_FAN_IN runs into one at the end of the list of runs
+	 */
+	private void mergeRuns() throws IOException {
+		List<Run> merged = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+		runs.subList(0, MAX_FAN_IN).clear();
+		long size = 0;
+		List<Source> sources = new ArrayList<>();
+		for(Run r : merged) {
+			size += r.size;
+		}
+		Run out = new Run(size);
+		try (DataOutputStream dos = out.openOutput()) {
+			for(Run r : merged) {
+				sources.add(new RunReader(r));
+			}
+			Merger m = new Merger(sources);
+			while(m.hasNext()) {
+				out.writeTuple(dos, m.next());
+			}
+		} finally {
+			for(Source s : sources) {
+				s.close();
+			}
+			for(Run r : merged) {
+				r.file.delete();
+			}
+		}
+		runs.add(out);
+	}
+
+	/**
+	 * Write the tree: leaf pages are numbered from 1, followed by each level of internal
+	 * pages in turn, and the root is the last page of the file.
+	 */
+	private void write() throws IOException, DbException {
+		BTreePageId samplePid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage sampleLeaf = new BTreeLeafPage(samplePid, BTreePage.createEmptyPageData(), keyFields);
+		samplePid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage sampleInternal = new BTreeInternalPage(samplePid, BTreePage.createEmptyPageData(), keyFields);
+
+		List<int[]> levels;
+		if(sampleLeaf.isCompact()) {
+			levels = packCompact(sampleLeaf, sampleInternal);
+		}
+		else {
+			int maxTuples = sampleLeaf.getMaxTuples();
+			int maxEntries = sampleInternal.getMaxEntries();
+			levels = new ArrayList<>();
+			levels.add(pack(numTuples, maxTuples, maxTuples / 2, false));
+			while(levels.get(levels.size() - 1).length > 1) {
+				levels.add(pack(levels.get(levels.size() - 1).length, maxEntries + 1, maxEntries / 2 + 1, true));
+			}
+		}
+
+		channel = FileChannel.open(bf.getFile().toPath(), StandardOpenOption.WRITE);
+		try {
+			// build the writers from the root down, as each needs its parent
+			InternalLevel parent = null;
+			int firstPageNo = 1;
+			for(int[] counts : levels) {
+				firstPageNo += counts.length;
+			}
+			for(int level = levels.size() - 1; level > 0; level--) {
+				firstPageNo -= levels.get(level).length;
+				parent = new InternalLevel(levels.get(level), firstPageNo, parent);
+			}
+			LeafLevel leaves = new LeafLevel(levels.get(0), parent);
+			Merger tuples = merge();
+			while(tuples.hasNext()) {
+				leaves.add(tuples.next());
+			}
+			leaves.finish();
+
+			int root = 0;
+			for(int[] counts : levels) {
+				root += counts.length;
+			}
+			int rootCategory = levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			BTreeRootPtrPage rootPtr = new BTreeRootPtrPage(BTreeRootPtrPage.getId(bf.getId()),
+					BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0));
+			channel.write(ByteBuffer.wrap(rootPtr.getPageData()), 0);
+		} finally {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Decide how many items (tuples or child pointers) each page of a level holds:
+	 * as many as the fill factor allows, except that the last pages share the
+	 * remainder rather than leave the last one under half full.
+	 *
+	 * @param numItems - the number of items on this level
+	 * @param capacity - the most items a page can hold
+	 * @param minItems - the fewest items a page other than the root may hold
+	 * @param roundUp - whether the second to last page gets the odd item when the last
+	 * two share theirs (as internal pages always have, while leaf pages have given it
+	 * to the last page)
+	 * @return the number of items on each page of the level
+	 */
+	private int[] pack(long numItems, int capacity, int minItems, boolean roundUp) {
+		int full = Math.max(minItems, Math.min(capacity, (int) (capacity * fillFactor)));
+		// an empty tree still has a root leaf
+		long numPages = Math.max(1, (numItems + full - 1) / full);
+		if(numPages > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many tuples for one BTreeFile");
+		}
+		int[] counts = new int[(int) numPages];
+		Arrays.fill(counts, full);
+		int last = (int) (numItems - (numPages - 1) * full);
+		counts[counts.length - 1] = last;
+		if(numPages > 1 && last < minItems) {
+			int shared = full + last;
+			if(shared / 2 >= minItems) {
+				// split the last two pages' items between them
+				counts[counts.length - 2] = roundUp ? shared - shared / 2 : shared / 2;
+				counts[counts.length - 1] = shared - counts[counts.length - 2];
+			}
+			else {
+				// spread the last page's items over the others, which only happens
+				// for fill factors low enough that they have room
+				counts = new int[counts.length - 1];
+				Arrays.fill(counts, (int) (numItems / counts.length));
+				for(int i = 0; i < numItems % counts.length; i++) {
+					counts[i]++;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Decide how many items each page of each level holds for compact pages, reading the
+	 * merged stream through once
+	 *
+	 * @return the number of items on each page of each level, from the leaves up
+	 */
+	private List<int[]> packCompact(BTreeLeafPage sampleLeaf, BTreeInternalPage sampleInternal)
+			throws IOException {
+		List<int[]> levels = new ArrayList<>();
+		BytePacker leaves = new BytePacker(sampleLeaf.getCompactCapacity(), sampleLeaf.getMaxRecordSize(),
+				sampleLeaf.getCompactUnit(), sampleLeaf.getMaxTuples());
+		Merger tuples = merge();
+		Field prevKey = null;
+		while(tuples.hasNext()) {
+			Tuple t = tuples.next();
+			int next = sampleLeaf.getRecordSize(t, prevKey);
+			leaves.add(bf.getKey(t), sampleLeaf.getRecordSize(t, null), next, next);
+			prevKey = bf.getKey(t);
+		}
+		levels.add(leaves.finish());
+
+		// the keys separating the pages of a level are pushed up to the level above
+		List<Field> keys = new ArrayList<>();
+		for(int i = 1; i < leaves.firstKeys.size(); i++) {
+			keys.add(BTreeFile.separator(leaves.lastKeys.get(i - 1), leaves.firstKeys.get(i)));
+		}
+		while(!keys.isEmpty()) {
+			BytePacker internal = new BytePacker(sampleInternal.getCompactCapacity(),
+					sampleInternal.getMaxEntrySize(), sampleInternal.getCompactUnit(), sampleInternal.getMaxEntries());
+			// the first child of a page takes no entry, and its key is pushed up
+			internal.add(null, 0, 0, 0);
+			for(int i = 0; i < keys.size(); i++) {
+				Field key = keys.get(i);
+				internal.add(key, 0, sampleInternal.getEntrySize(key, null),
+						sampleInternal.getEntrySize(key, i == 0 ? null : keys.get(i - 1)));
+			}
+			levels.add(internal.finish());
+			keys = internal.firstKeys.subList(1, internal.firstKeys.size());
+		}
+		return levels;
+	}
+
+	/**
+	 * Packs the items of a level of compact pages by the bytes they take, to the fill
+	 * factor. What an item takes depends on whether it is first on its page, second, or
+	 * later, as items compress their keys against the one before them on the page. The
+	 * items of the last two pages are kept so that they can share them if the last page
+	 * would be under half full.
+	 */
+	private class BytePacker {
+		private final int capacity;
+		private final int target;
+		private final int minBytes;
+		private final List<Integer> counts = new ArrayList<>();
+		final List<Field> firstKeys = new ArrayList<>();
+		final List<Field> lastKeys = new ArrayList<>();
+		private List<Field> prevItemKeys = new ArrayList<>();
+		private List<int[]> prevItems = new ArrayList<>();
+		private List<Field> itemKeys = new ArrayList<>();
+		private List<int[]> items = new ArrayList<>();
+		private int used = 0;
+
+		/**
+		 * @param capacity - the bytes a page has for items
+		 * @param maxItemSize - the bytes the largest item takes
+		 * @param unit - the bytes in each unit the capacity of a page is counted in
+		 * @param maxItems - the capacity of a page in units
+		 */
+		BytePacker(int capacity, int maxItemSize, int unit, int maxItems) {
+			this.capacity = capacity;
+			// the fewest bytes a page other than the root may take, which leaves it with
+			// no more than half its capacity in units empty
+			this.minBytes = Math.max(0, (maxItems - (maxItems - maxItems / 2 + 1)) * unit + 1);
+			// a page is only left as soon as the next item would not fit in it, so it
+			// is filled to within one item of the target
+			this.target = Math.min(capacity, Math.max((int) (capacity * fillFactor), minBytes + maxItemSize));
+		}
+
+		void add(Field key, int firstSize, int secondSize, int nextSize) {
+			int size = items.isEmpty() ? firstSize : items.size() == 1 ? secondSize : nextSize;
+			if(!items.isEmpty() && used + size > target) {
+				endPage();
+				size = firstSize;
+			}
+			items.add(new int[] { firstSize, secondSize, nextSize });
+			itemKeys.add(key);
+			used += size;
+		}
+
+		private void endPage() {
+			counts.add(items.size());
+			firstKeys.add(itemKeys.get(0));
+			lastKeys.add(itemKeys.get(itemKeys.size() - 1));
+			prevItems = items;
+			prevItemKeys = itemKeys;
+			items = new ArrayList<>();
+			itemKeys = new ArrayList<>();
+			used = 0;
+		}
+
+		int[] finish() {
+			if(!items.isEmpty() || counts.isEmpty()) {
+				// an empty tree still has a root leaf
+				counts.add(items.size());
+				firstKeys.add(items.isEmpty() ? null : itemKeys.get(0));
+				lastKeys.add(items.isEmpty() ? null : itemKeys.get(itemKeys.size() - 1));
+			}
+			if(counts.size() > 1 && used < minBytes) {
+				shareLastPages();
+			}
+			int[] result = new int[counts.size()];
+			for(int i = 0; i < result.length; i++) {
+				result[i] = counts.get(i);
+			}
+			return result;
+		}
+
+		/**
+		 * Put the items of the last two pages on one page if they fit, and otherwise split
+		 * them between the two as evenly as their sizes allow
+		 */
+		private void shareLastPages() {
+			List<int[]> shared = new ArrayList<>(prevItems);
+			shared.addAll(items);
+			List<Field> sharedKeys = new ArrayList<>(prevItemKeys);
+			sharedKeys.addAll(itemKeys);
+			int last = counts.size() - 1;
+			counts.remove(last);
+			firstKeys.remove(last);
+			lastKeys.remove(last);
+
+			int all = bytes(shared, 0, shared.size());
+			if(all <= capacity) {
+				counts.set(last - 1, shared.size());
+				lastKeys.set(last - 1, sharedKeys.get(sharedKeys.size() - 1));
+				return;
+			}
+			int best = 1;
+			int bestMin = -1;
+			for(int split = 1; split < shared.size(); split++) {
+				int min = Math.min(bytes(shared, 0, split), bytes(shared, split, shared.size()));
+				if(min > bestMin) {
+					best = split;
+					bestMin = min;
+				}
+			}
+			counts.set(last - 1, best);
+			lastKeys.set(last - 1, sharedKeys.get(best - 1));
+			counts.add(shared.size() - best);
+			firstKeys.add(sharedKeys.get(best));
+			lastKeys.add(sharedKeys.get(sharedKeys.size() - 1));
+		}
+
+		/**
+		 * @return the bytes the items from index from to index to take on one page
+		 */
+		private int bytes(List<int[]> items, int from, int to) {
+			int total = 0;
+			for(int i = from; i < to; i++) {
+				total += items.get(i)[Math.min(i - from, 2)];
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * A level of the tree being written, buffering full pages for large sequential writes
+	 */
+	private abstract class Level {
+		final int[] counts;
+		final int firstPageNo;
+		final InternalLevel parent;
+		final int category;
+		final int pageSize = BufferPool.getPageSize();
+		final ByteBuffer buffer = ByteBuffer.allocate(PAGES_PER_WRITE * pageSize);
+		int page = 0;
+		BTreePageId parentId;
+		int bufferedFrom = 0;
+
+		Level(int[] counts, int firstPageNo, InternalLevel parent, int category) {
+			this.counts = counts;
+			this.firstPageNo = firstPageNo;
+			this.parent = parent;
+			this.category = category;
+		}
+
+		BTreePageId pageId(int i) {
+			return new BTreePageId(bf.getId(), firstPageNo + i, category);
+		}
+
+		/**
+		 * Start the next page of this level, adding it to its parent
+		 *
+		 * @param key - the key separating the page from the previous one, or null for the first
+		 */
+		void startPage(Field key) throws IOException, DbException {
+			if(parent == null) {
+				parentId = BTreeRootPtrPage.getId(bf.getId());
+			}
+			else {
+				parentId = parent.add(key, pageId(page));
+			}
+		}
+
+		/**
+		 * Buffer the data of the current page and move on to the next
+		 */
+		void endPage(BTreePage p) throws IOException {
+			buffer.put(p.getPageData());
+			page++;
+			if(!buffer.hasRemaining() || page == counts.length) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			long position = BTreeRootPtrPage.getPageSize() + (long) (firstPageNo + bufferedFrom - 1) * pageSize;
+			while(buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+			buffer.clear();
+			bufferedFrom = page;
+		}
+	}
+
+	/**
+	 * The leaf level: takes the sorted tuples
+	 */
+	private class LeafLevel extends Level {
+		private List<Tuple> tuples = new ArrayList<>();
+		private Field prevKey = null;
+
+		LeafLevel(int[] counts, InternalLevel parent) {
+			super(counts, 1, parent, BTreePageId.LEAF);
+		}
+
+		void add(Tuple t) throws IOException, DbException {
+			if(tuples.size() == counts[page]) {
+				writePage();
+			}
+			if(tuples.isEmpty()) {
+				// "copy up" the first key of the page, cut short as on a split
+				startPage(page == 0 ? null : BTreeFile.separator(prevKey, bf.getKey(t)));
+			}
+			tuples.add(t);
+			prevKey = bf.getKey(t);
+		}
+
+		void finish() throws IOException, DbException {
+			if(numTuples == 0) {
+				startPage(null);
+			}
+			writePage();
+			if(page != counts.length) {
+				throw new DbException("bulk load wrote " + page + " of " + counts.length + " leaf pages");
+			}
+			if(parent != null) {
+				parent.finish();
+			}
+		}
+
+		private void writePage() throws IOException, DbException {
+			BTreeLeafPage p = BTreeLeafPage.fromTuples(pageId(page), tuples, keyFields);
+			p.setParentId(parentId);
+			p.setLeftSiblingId(page == 0 ? null : pageId(page - 1));
+			p.setRightSiblingId(page == counts.length - 1 ? null : pageId(page + 1));
+			endPage(p);
+			tuples = new ArrayList<>();
+		}
+	}
+
+	/**
+	 * A level of internal pages: takes the pages of the level below and the keys
+	 * separating them
+	 */
+	private class InternalLevel extends Level {
+		private final List<Field> keys = new ArrayList<>();
+		private final List<BTreePageId> children = new ArrayList<>();
+
+		InternalLevel(int[] counts, int firstPageNo, InternalLevel parent) {
+			super(counts, firstPageNo, parent, BTreePageId.INTERNAL);
+		}
+
+		/**
+		 * Add the next child page
+		 *
+		 * @param key - the key separating the child from the previous one, or null for the first
+		 * @param child - the id of the child
+		 * @return the id of the page the child was added to
+		 */
+		BTreePageId add(Field key, BTreePageId child) throws IOException, DbException {
+			if(children.size() == counts[page]) {
+				writePage();
+			}
+			if(children.isEmpty()) {
+				// "push up" the key separating this page from the previous one
+				startPage(key);
+			}
+			else {
+				keys.add(key);
+			}
+			children.add(child);
+			return pageId(page);
+		}
+
+		void finish() throws IOException, DbException {
+			writePage();
+			if(page != counts.length) {
+				throw new DbException("bulk load wrote " + page + " of " + counts.length + " internal pages");
+			}
+			if(parent != null) {
+				parent.finish();
+			}
+		}
+
+		private void writePage() throws IOException, DbException {
+			List<BTreeEntry> entries = new ArrayList<>();
+			for(int i = 0; i < keys.size(); i++) {
+				entries.add(new BTreeEntry(keys.get(i), children.get(i), children.get(i + 1)));
+			}
+			BTreeInternalPage p = BTreeInternalPage.fromEntries(pageId(page), entries, keyFields);
+			p.setParentId(parentId);
+			endPage(p);
+			keys.clear();
+			children.clear();
+		}
+	}
+
+	/**
+	 * A sorted run spilled to a temporary file
+	 */
+	private class Run {
+		final File file;
+		final long size;
+
+		Run(long size) throws IOException {
+			this.file = File.createTempFile("btreerun", ".dat");
+			this.file.deleteOnExit();
+			this.size = size;
+		}
+
+		DataOutputStream openOutput() throws IOException {
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), STREAM_BUFFER_SIZE));
+		}
+
+		void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+			for(int i = 0; i < td.numFields(); i++) {
+				t.getField(i).serialize(dos);
+			}
+		}
+	}
+
+	/**
+	 * A sorted stream of tuples to merge
+	 */
+	private interface Source {
+		Tuple peek();
+		void advance() throws IOException;
+		void close() throws IOException;
+	}
+
+	private static class ListSource implements Source {
+		private final Iterator<Tuple> it;
+		private Tuple next;
+
+		ListSource(List<Tuple> tuples) {
+			it = tuples.iterator();
+			next = it.hasNext() ? it.next() : null;
+		}
+
+		public Tuple peek() {
+			return next;
+		}
+
+		public void advance() {
+			next = it.hasNext() ? it.next() : null;
+		}
+
+		public void close() {
+		}
+	}
+
+	private class RunReader implements Source {
+		private final DataInputStream dis;
+		private long remaining;
+		private Tuple next;
+
+		RunReader(Run r) throws IOException {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(r.file), STREAM_BUFFER_SIZE));
+			remaining = r.size;
+			advance();
+		}
+
+		public Tuple peek() {
+			return next;
+		}
+
+		public void advance() throws IOException {
+			if(remaining == 0) {
+				next = null;
+				return;
+			}
+			remaining--;
+			next = new Tuple(td);
+			try {
+				for(int i = 0; i < td.numFields(); i++) {
+					next.setField(i, td.getFieldType(i).parse(dis));
+				}
+			} catch(ParseException e) {
+				throw new IOException("corrupt bulk load run", e);
+			}
+		}
+
+		public void close() throws IOException {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Merges sorted sources; ties go to the earlier source, so the merge is stable
+	 */
+	private class Merger {
+		private final PriorityQueue<Integer> heap;
+		private final List<Source> sources;
+
+		Merger(List<Source> sources) {
+			this.sources = sources;
+			heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+				int cmp = comparator.compare(sources.get(a).peek(), sources.get(b).peek());
+				return cmp != 0 ? cmp : Integer.compare(a, b);
+			});
+			for(int i = 0; i < sources.size(); i++) {
+				if(sources.get(i).peek() != null) {
+					heap.add(i);
+				}
+			}
+		}
+
+		boolean hasNext() {
+			return !heap.isEmpty();
+		}
+
+		Tuple next() throws IOException {
+			if(heap.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			int i = heap.poll();
+			Source s = sources.get(i);
+			Tuple t = s.peek();
+			s.advance();
+			if(s.peek() != null) {
+				heap.add(i);
+			}
+			return t;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package simpledb.index;
+
+import java.io.IOException;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * BTreeDefragmenter rewrites the leaf level of a BTreeFile online, while the file
+ * is searched and changed, after deletes have left its leaf pages sparse and
+ * scattered through the file.
+ *
+ * The leaf pages are taken in key order: each is filled with tuples from its right
+ * sibling, which is freed once empty, and moved to the page after the previous one,
+ * so that the leaf pages end up dense and physically sequential at the start of the
+ * file. The internal pages are then moved into the free pages left before them, and
+ * the free pages at the end of the file are cut off.
+ *
+ * The work is done in batches of a few pages, each a structure modification of the
+ * file (see {@link BTreeFile}) in a transaction of its own, so that other operations
+ * wait for one batch at most. {@link #run()} paces the batches to a number of pages
+ * per second, so that it can run alongside other work.
+ */
+public class BTreeDefragmenter {
+
+	/** Default number of pages defragmented per batch */
+	public static final int DEFAULT_BATCH_PAGES = 8;
+
+	private final BTreeFile bf;
+	private final int batchPages;
+	private final int pagesPerSecond;
+
+	// the first tuple of the next leaf page to defragment, null before the first one
+	private Tuple next = null;
+	private boolean leavesDone = false;
+	private boolean done = false;
+
+	/**
+	 * Create a defragmenter for a BTreeFile, running batches of DEFAULT_BATCH_PAGES
+	 * pages with no pause between them
+	 *
+	 * @param bf - the BTreeFile to defragment, which must be in the catalog
+	 */
+	public BTreeDefragmenter(BTreeFile bf) {
+		this(bf, DEFAULT_BATCH_PAGES, 0);
+	}
+
+	/**
+	 * Create a defragmenter for a BTreeFile
+	 *
+	 * @param bf - the BTreeFile to defragment, which must be in the catalog
+	 * @param batchPages - the most pages defragmented per batch
+	 * @param pagesPerSecond - the most pages {@link #run()} defragments per second, or 0
+	 *        for no limit
+	 */
+	public BTreeDefragmenter(BTreeFile bf, int batchPages, int pagesPerSecond) {
+		if(batchPages <= 0) {
+			throw new IllegalArgumentException("a batch needs at least one page");
+		}
+		this.bf = bf;
+		this.batchPages = batchPages;
+		this.pagesPerSecond = Math.max(0, pagesPerSecond);
+	}
+
+	/**
+	 * @return true once the file has been defragmented
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Run one batch, as a transaction of its own.
+	 *
+	 * @return true if there is more to do
+	 */
+	public boolean runBatch() throws DbException, IOException, TransactionAbortedException {
+		if(done) {
+			return false;
+		}
+		TransactionId tid = new TransactionId();
+		boolean committed = false;
+		try {
+			if(!leavesDone) {
+				next = bf.defragmentLeaves(tid, next, batchPages);
+				leavesDone = next == null;
+			}
+			else {
+				done = bf.compactFile(tid, batchPages);
+			}
+			committed = true;
+		} finally {
+			Database.getBufferPool().transactionComplete(tid, committed);
+		}
+		return !done;
+	}
+
+	/**
+	 * Run batches until the file has been defragmented, pausing after each so as to
+	 * defragment no more pages per second than asked for.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while pausing, which
+	 *         stops the defragmentation between two batches; {@link #run()} continues it
+	 */
+	public void run() throws DbException, IOException, TransactionAbortedException, InterruptedException {
+		while(true) {
+			long start = System.nanoTime();
+			if(!runBatch()) {
+				return;
+			}
+			if(pagesPerSecond > 0) {
+				long pause = batchPages * 1000L / pagesPerSecond - (System.nanoTime() - start) / 1000000;
+				if(pause > 0) {
+					Thread.sleep(pause);
+				}
+			}
+		}
+	}
+}
@@ -2,9 +2,14 @@ package simpledb.index;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.common.Database;
 import simpledb.common.Permissions;
+import simpledb.common.Type;
 import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
@@ -19,7 +24,15 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
- * 
+ * <p>
+ * Threads share the tree through short-term latches on its pages, separate from the
+ * transactional locks the BufferPool grants: a latch is held only while a page is read
+ * or changed. Searches, and inserts or deletes that change a single leaf page, crab down
+ * the tree, latching each child before releasing its parent, and run concurrently.
+ * Structure modifications (splits, merges and redistributions) hold the file's structure
+ * latch exclusively and latch every page they change, top down and left to right, so
+ * that searches never see them half done.
+ *
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
  * @see BTreeHeaderPage#BTreeHeaderPage
@@ -32,6 +45,28 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final int[] keyFields;
+
+	// latches on the pages of this file, by page number
+	private final Map<Integer, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+	// held shared by inserts and deletes that change a single leaf page, and
+	// exclusively by those that split, merge or redistribute pages
+	private final ReentrantReadWriteLock structureLatch = new ReentrantReadWriteLock();
+	// incremented when a structure modification starts and when it ends
+	private final AtomicLong structureVersion = new AtomicLong();
+
+	// the number of pages the file grows by at once when a page is allocated past its end
+	public static final int EXTENT_PAGES = 16;
+	// the free pages of this file, as marked in its header pages, and the ids of the header
+	// pages in order. They are read from the header pages when a page is first allocated or
+	// freed, and again if the buffer pool is replaced; they are only changed, with the header
+	// pages, by structure modifications, which hold the structure latch exclusively
+	private BitSet freePages = null;
+	private final List<BTreePageId> headerIds = new ArrayList<>();
+	private BufferPool freePagesPool = null;
+	// the number of pages allocated, once a page has been: the file may hold more, reserved
+	// for the next allocations until it is trimmed (see trimReservedPages)
+	private volatile int allocatedPages = -1;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,9 +77,28 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on more than one field, whose tuples are ordered
+	 * by their values of the first key field, then of the second, and so on. Its keys
+	 * are {@link CompositeField}s. The other fields are stored with the keys in the
+	 * leaf pages, so a scan of the file needs nothing else.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
 	}
 
@@ -101,6 +155,11 @@ public class BTreeFile implements DbFile {
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
+                // a page past the last one allocated, as one cut off when the file shrank, is
+                // only read by a search following a stale pointer, which doesn't trust it
+                if (allocatedPages >= 0 && id.getPageNumber() > allocatedPages) {
+                    return createEmptyPage(id);
+                }
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
                 if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
                         BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
@@ -117,9 +176,9 @@ public class BTreeFile implements DbFile {
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    return new BTreeInternalPage(id, pageBuf, keyFields);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    return new BTreeLeafPage(id, pageBuf, keyFields);
                 } else { // id.pgcateg() == BTreePageId.HEADER
                     return new BTreeHeaderPage(id, pageBuf);
                 }
@@ -157,63 +216,273 @@ public class BTreeFile implements DbFile {
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
+		int allocated = allocatedPages;
+		if(allocated >= 0) {
+			return allocated;
+		}
 		// we only ever write full pages
 		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, the first of them
+	 * if it is keyed on more than one
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * @return the key of a tuple in this file: its key field, or a {@link CompositeField}
+	 * of its key fields if the file is keyed on more than one
+	 * @param t - the tuple
+	 */
+	public Field getKey(Tuple t) {
+		return BTreePage.getKey(t, keyFields);
+	}
+
+	/**
+	 * @return a key or prefix of a key to search this file for, as a {@link CompositeField}
+	 * if the file is keyed on more than one field
+	 * @param key - the key, or for a file keyed on more than one field, the value of the
+	 * first key field or a composite field of the values of the first few
+	 */
+	Field searchKey(Field key) {
+		if(key == null || keyFields.length == 1 || key instanceof CompositeField) {
+			return key;
+		}
+		return new CompositeField(key);
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
+	 * It latches each page before releasing the latch on its parent, shared unless it's the
+	 * leaf page and perm is READ_WRITE, and returns with only the leaf page latched.
+	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latches - the latches held, the last of which is on the parent of pid; null if
+	 * the caller holds the structure latch exclusively, and need not latch pages to read them
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Latches latches,
+			BTreePageId pid, Permissions perm, Field f)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, dirtypages, latches, pid, perm, f, false);
+	}
+
+	/**
+	 * As {@link #findLeafPage(TransactionId, Map, Latches, BTreePageId, Permissions, Field)},
+	 * or, if last is true, finds the right-most leaf page possibly containing the key field f
+	 * instead, and the right-most leaf page if f is null -- used by the reverse iterators.
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Latches latches,
+			BTreePageId pid, Permissions perm, Field f, boolean last)
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(latches != null) {
+			latches.latch(pid, pid.pgcateg() == BTreePageId.LEAF && perm == Permissions.READ_WRITE);
+			latches.releaseAncestors();
+		}
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		BTreePageId child = last ? page.findLastChild(f) : page.findChild(f);
+		if(child == null) {
+			throw new DbException("empty internal page " + pid);
+		}
+		return findLeafPage(tid, dirtypages, latches, child, perm, f, last);
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Copy the tuples of the left-most leaf page possibly containing the key field f,
+	 * from the first whose key is not less than f, or for a reverse scan the tuples of the
+	 * right-most one, in reverse order from the last whose key is not greater than f.
+	 * Used by the BTreeFile iterators, which read the file a leaf page at a time.
+	 * @see #findLeafPage(TransactionId, Map, Latches, BTreePageId, Permissions, Field, boolean)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
-	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @param f - the field to search for, or null for the left-most (right-most) leaf page
+	 * @param reverse - whether the tuples are read in reverse order
+	 * @param tuples - the list the tuples of the page are added to
+	 * @return the id of the right sibling of the page, or of the left sibling for a reverse
+	 * scan, or null if there is none
+	 * 
+	 */
+	BTreePageId readLeafPage(TransactionId tid, Field f, boolean reverse, List<Tuple> tuples)
+					throws DbException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		Latches latches = new Latches();
+		try {
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			latches.latch(rootPtrId, false);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+			BTreePageId rootId = rootPtr.getRootId();
+			if(rootId == null) {
+				return null;
+			}
+			BTreeLeafPage page = findLeafPage(tid, dirtypages, latches, rootId, Permissions.READ_ONLY, f, reverse);
+			Iterator<Tuple> it;
+			if(reverse) {
+				it = f == null ? page.reverseIterator() : page.reverseIterator(f);
+			}
+			else {
+				it = f == null ? page.iterator() : page.iterator(f);
+			}
+			return copyLeafPage(page, it, reverse, tuples);
+		} finally {
+			latches.releaseAll();
+		}
+	}
+
+	/**
+	 * Copy the tuples of a leaf page, holding a shared latch on it.
 	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the leaf page to read
+	 * @param reverse - whether the tuples are read in reverse order
+	 * @param tuples - the list the tuples of the page are added to
+	 * @return the id of the right sibling of the page, or of the left sibling for a reverse
+	 * scan, or null if there is none
+	 */
+	BTreePageId readLeafPage(TransactionId tid, BTreePageId pid, boolean reverse, List<Tuple> tuples)
+					throws DbException, TransactionAbortedException {
+		Latches latches = new Latches();
+		try {
+			latches.latch(pid, false);
+			BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			return copyLeafPage(page, reverse ? page.reverseIterator() : page.iterator(), reverse, tuples);
+		} finally {
+			latches.releaseAll();
+		}
+	}
+
+	/**
+	 * Find the leaf pages to the right of a leaf page under the same parent, which a scan
+	 * reading the leaves in order will read next, or to its left for a reverse scan. The
+	 * leaf and its parent are latched one after the other rather than together, so the
+	 * pages found may be out of date if the structure of the tree changes meanwhile; they
+	 * are only a hint for read-ahead.
+	 *
+	 * A leaf is only included if all keys before it, which are at most the key separating
+	 * it from its left sibling, are within a bound: a scan stopping at the first key past
+	 * the bound reads every leaf included. For a reverse scan, the keys after it, which are
+	 * at least the key separating it from its right sibling, must be within the bound.
+	 *
+	 * @param tid - the transaction id
+	 * @param pid - a leaf page
+	 * @param reverse - whether the scan reads the leaves in reverse order
+	 * @param bound - the last key of the scan, or null if it reads to the end of the tree
+	 * @param inclusive - whether the scan includes keys equal to the bound
+	 * @return the ids of the leaves after it in the order of the scan under its parent, or
+	 * an empty list if it is the root or is no longer a child of its parent
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	List<BTreePageId> leavesAfter(TransactionId tid, BTreePageId pid, boolean reverse, Field bound, boolean inclusive)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		BTreePageId parentId;
+		Latches latches = new Latches();
+		try {
+			latches.latch(pid, false);
+			parentId = ((BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).getParentId();
+		} finally {
+			latches.releaseAll();
+		}
+		List<BTreePageId> leaves = new ArrayList<>();
+		if(parentId.pgcateg() != BTreePageId.INTERNAL) {
+			return leaves;
+		}
+		latches = new Latches();
+		try {
+			latches.latch(parentId, false);
+			BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().getPage(tid, parentId, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = reverse ? parent.reverseIterator() : parent.iterator();
+			Op within = reverse ? (inclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN)
+					: (inclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN);
+			boolean found = false;
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				found = found || (reverse ? e.getRightChild() : e.getLeftChild()).equals(pid);
+				if(!found) {
+					continue;
+				}
+				if(bound != null && !e.getKey().compare(within, bound)) {
+					break;
+				}
+				leaves.add(reverse ? e.getLeftChild() : e.getRightChild());
+			}
+		} finally {
+			latches.releaseAll();
+		}
+		return leaves;
+	}
+
+	private static BTreePageId copyLeafPage(BTreeLeafPage page, Iterator<Tuple> it, boolean reverse,
+			List<Tuple> tuples) {
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		return reverse ? page.getLeftSiblingId() : page.getRightSiblingId();
+	}
+
+	/**
+	 * @return a number which changes whenever a structure modification of this file starts or
+	 * ends, or releases the pages a step of it changed, and is odd while one is under way.
+	 * A structure modification holds the latches of the pages it changes until the number
+	 * changes, so two pages read while it stays the same, even if odd, were read from the
+	 * same tree structure.
+	 */
+	long getStructureVersion() {
+		return structureVersion.get();
+	}
+
+	/**
+	 * The key to separate two pages in their parent, which must be at least the last key of
+	 * the left page and at most the first key of the right page. A string key is cut to the
+	 * shortest prefix of the first key of the right page that is not less than the last key
+	 * of the left page, so that internal pages hold more, shorter keys.
+	 *
+	 * @param leftMax - the last key of the left page
+	 * @param rightMin - the first key of the right page
+	 * @return the key separating the pages
+	 */
+	static Field separator(Field leftMax, Field rightMin) {
+		if(!(rightMin instanceof StringField)) {
+			return rightMin;
+		}
+		String right = ((StringField) rightMin).getValue();
+		for(int len = 0; len < right.length(); len++) {
+			Field prefix = new StringField(right.substring(0, len), Type.STRING_LEN);
+			if(prefix.compare(Op.GREATER_THAN_OR_EQ, leftMax)) {
+				return prefix;
+			}
+		}
+		return rightMin;
 	}
 
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
-	 * of the first tuple in the right-hand page (the key is "copied up"), and child pointers 
-	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent 
-	 * pointers as needed.  
+	 * of the first tuple in the right-hand page (the key is "copied up"), and child pointers
+	 * pointing to the two leaf pages resulting from the split.  Update sibling pointers and parent
+	 * pointers as needed. String keys are cut to the shortest prefix that still separates the
+	 * pages (see {@link #separator(Field, Field)}).
 	 * 
 	 * Return the leaf page into which a new tuple with key field "field" should be inserted.
 	 * 
@@ -231,16 +500,43 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeLeafPage splitLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage page, Field field)
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page: half the space they take,
+		// as tuples on compact pages differ in size, but at least one and never all of them
+		Iterator<Tuple> it = page.reverseIterator();
+		while(it.hasNext() && page.getNumTuples() > 1) {
+			Tuple t = it.next();
+			if(newPage.getNumTuples() > 0
+					&& newPage.getUsedSpace() + newPage.getSpaceFor(t) > page.getUsedSpace() - page.getSpaceOf(t)) {
+				break;
+			}
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in to the right of the page
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field key = separator(getKey(page.reverseIterator().next()), getKey(newPage.iterator().next()));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		// keys equal to the copied up key are searched for on the left
+		if(field.compare(Op.GREATER_THAN, key)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -268,16 +564,37 @@ public class BTreeFile implements DbFile {
 	public BTreeInternalPage splitInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, by the space they take, leaving
+		// at least the middle entry and one more
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(it.hasNext() && page.getNumEntries() > 2) {
+			BTreeEntry e = it.next();
+			if(newPage.getNumEntries() > 0 && newPage.getUsedSpace() + newPage.getSpaceFor(e.getKey())
+					> page.getUsedSpace() - page.getSpaceOf(e)) {
+				break;
+			}
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+
+		// push the middle entry up into the parent
+		BTreeEntry middle = page.reverseIterator().next();
+		page.deleteKeyAndRightChild(middle);
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -419,35 +736,151 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to insert
-	 * @return a list of all pages that were dirtied by this operation. Could include
-	 * many pages since parent pointers will need to be updated when an internal node splits.
+	 * @return an empty list. The pages dirtied by this operation, which could be many
+	 * since parent pointers will need to be updated when an internal node splits, are
+	 * already marked dirty and in the buffer pool: they are put there before their
+	 * latches are released, as other threads may change them right after.
 	 * @see #splitLeafPage(TransactionId, Map, BTreeLeafPage, Field)
 	 */
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = getKey(t);
+
+		// first try to insert the tuple with only its leaf page latched exclusively,
+		// which will do unless the leaf page is full
+		structureLatch.readLock().lock();
+		Latches latches = new Latches();
+		try {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			latches.latch(rootPtr.getId(), false);
+			BTreePageId rootId = rootPtr.getRootId();
+			if(rootId != null) {
+				BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, latches, rootId, Permissions.READ_WRITE, key);
+				if(leafPage.getNumEmptySlots() > 0) {
+					leafPage.insertTuple(t);
+					publishDirtyPages(tid, dirtypages);
+					return new ArrayList<>();
+				}
+			}
+		} finally {
+			latches.releaseAll();
+			structureLatch.readLock().unlock();
+		}
+
+		dirtypages.clear();
+		latches = beginStructureModification();
+		try {
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it
+				latches.latch(rootPtr.getId(), true);
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, null, rootId, Permissions.READ_WRITE, key);
+			latchForInsert(tid, dirtypages, latches, leafPage);
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+			publishDirtyPages(tid, dirtypages);
+		} finally {
+			endStructureModification(latches);
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+        return new ArrayList<>();
+	}
+
+	/**
+	 * Start a structure modification: take the structure latch exclusively, so that
+	 * no other thread changes the tree until it ends, though searches still may read it.
+	 *
+	 * @return the latches the structure modification will take on the pages it changes
+	 */
+	private Latches beginStructureModification() {
+		structureLatch.writeLock().lock();
+		structureVersion.incrementAndGet();
+		return new Latches();
+	}
+
+	/**
+	 * Mark the pages an operation dirtied dirty and make sure the buffer pool holds
+	 * them before their latches are released: once they are, other threads may change
+	 * them, and the buffer pool must not have evicted the versions they change.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages dirtied by the operation
+	 */
+	private void publishDirtyPages(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException {
+		for(Page p : dirtypages.values()) {
+			Database.getBufferPool().putDirtied(tid, p);
 		}
+	}
+
+	/**
+	 * End a structure modification, releasing its latches. The structure version changes
+	 * before the pages it changed are released, so that a search which read a page before
+	 * it does not trust the sibling pointer it found there once it reads them.
+	 */
+	private void endStructureModification(Latches latches) {
+		structureVersion.incrementAndGet();
+		latches.releaseAll();
+		structureLatch.writeLock().unlock();
+	}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+	/**
+	 * End a step of a structure modification which releases the latches it took before the
+	 * structure modification ends. The structure version changes before the pages the step
+	 * changed are released, so that a search which read a page before the step does not
+	 * trust the sibling pointer it found there once it reads them.
+	 */
+	private void endStructureModificationStep(Latches latches) {
+		structureVersion.addAndGet(2);
+		latches.releaseAll();
+	}
 
-        return new ArrayList<>(dirtypages.values());
+	/**
+	 * Exclusively latch the pages that inserting into a leaf page changes: if it's full,
+	 * the leaf page and its right sibling, its full ancestors, and the parent of the
+	 * highest of them, or the root pointer page if they include the root.
+	 *
+	 * Called with the structure latch held exclusively, so the tree can be read
+	 * without latches to find them.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latches - the latches held
+	 * @param leafPage - the leaf page the tuple is inserted into
+	 */
+	private void latchForInsert(TransactionId tid, Map<PageId, Page> dirtypages, Latches latches,
+			BTreeLeafPage leafPage) throws DbException, TransactionAbortedException {
+		List<List<BTreePageId>> levels = new ArrayList<>();
+		List<BTreePageId> leafLevel = new ArrayList<>();
+		leafLevel.add(leafPage.getId());
+		if(leafPage.getNumEmptySlots() == 0 && leafPage.getRightSiblingId() != null) {
+			leafLevel.add(leafPage.getRightSiblingId());
+		}
+		levels.add(leafLevel);
+
+		BTreePage page = leafPage;
+		while(page.getNumEmptySlots() == 0) {
+			BTreePageId parentId = page.getParentId();
+			levels.add(Collections.singletonList(parentId));
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				break;
+			}
+			page = (BTreePage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+		}
+		latches.latchLevels(levels);
 	}
 	
 	/**
@@ -552,7 +985,8 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
 	 * half full.  Update the parent's entry so that the key matches the key field of the first
-	 * tuple in the right-hand page.
+	 * tuple in the right-hand page, cut short as on a split. Nothing is stolen if the parent is
+	 * a compact page with too little room for a longer key.
 	 * 
 	 * @param page - the leaf page which is less than half full
 	 * @param sibling - the sibling which has tuples to spare
@@ -564,11 +998,24 @@ public class BTreeFile implements DbFile {
 	 */
 	public void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		if(!parent.hasRoomToUpdateKey()) {
+			return;
+		}
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(page.getUsedSpace() + page.getSpaceFor(t) > sibling.getUsedSpace() - sibling.getSpaceOf(t)) {
+				break;
+			}
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key in the parent is the first key of the right-hand page
+		BTreeLeafPage leftPage = isRightSibling ? page : sibling;
+		BTreeLeafPage rightPage = isRightSibling ? sibling : page;
+		entry.setKey(separator(getKey(leftPage.reverseIterator().next()), getKey(rightPage.iterator().next())));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -627,7 +1074,8 @@ public class BTreeFile implements DbFile {
 	 * Steal entries from the left sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the 
 	 * parent is "pulled down" to the right-hand page, and the last key in the left-hand page is "pushed up"
-	 * to the parent.  Update parent pointers as needed.
+	 * to the parent.  Update parent pointers as needed. Nothing is stolen if the parent is a compact
+	 * page with too little room for a longer key.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -643,18 +1091,32 @@ public class BTreeFile implements DbFile {
 	public void stealFromLeftInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		if(!parent.hasRoomToUpdateKey()) {
+			return;
+		}
+		while(true) {
+			// the key in the parent comes down in front of the page's entries, and the
+			// last key of the left sibling goes up in its place
+			BTreeEntry last = leftSibling.reverseIterator().next();
+			BTreeEntry first = page.iterator().next();
+			if(page.getUsedSpace() + page.getSpaceFor(parentEntry.getKey())
+					> leftSibling.getUsedSpace() - leftSibling.getSpaceOf(last)) {
+				break;
+			}
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			leftSibling.deleteKeyAndRightChild(last);
+			parentEntry.setKey(last.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
 	 * Steal entries from the right sibling and copy them to the given page so that both pages are at least
 	 * half full. Keys can be thought of as rotating through the parent entry, so the original key in the 
 	 * parent is "pulled down" to the left-hand page, and the last key in the right-hand page is "pushed up"
-	 * to the parent.  Update parent pointers as needed.
+	 * to the parent.  Update parent pointers as needed. Nothing is stolen if the parent is a compact
+	 * page with too little room for a longer key.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -670,11 +1132,24 @@ public class BTreeFile implements DbFile {
 	public void stealFromRightInternalPage(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		if(!parent.hasRoomToUpdateKey()) {
+			return;
+		}
+		while(true) {
+			// the key in the parent comes down behind the page's entries, and the
+			// first key of the right sibling goes up in its place
+			BTreeEntry first = rightSibling.iterator().next();
+			BTreeEntry last = page.reverseIterator().next();
+			if(page.getUsedSpace() + page.getSpaceFor(parentEntry.getKey())
+					> rightSibling.getUsedSpace() - rightSibling.getSpaceOf(first)) {
+				break;
+			}
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), first.getLeftChild()));
+			rightSibling.deleteKeyAndLeftChild(first);
+			parentEntry.setKey(first.getKey());
+		}
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -698,13 +1173,26 @@ public class BTreeFile implements DbFile {
 	public void mergeLeafPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		List<Tuple> toMove = new ArrayList<>(rightPage.getNumTuples());
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			toMove.add(it.next());
+		}
+		for(Tuple t : toMove) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -730,14 +1218,24 @@ public class BTreeFile implements DbFile {
 	public void mergeInternalPages(TransactionId tid, Map<PageId, Page> dirtypages,
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the key in the parent down between the entries of the two pages
+		BTreePageId leftLast = leftPage.reverseIterator().next().getRightChild();
+		BTreePageId rightFirst = rightPage.iterator().next().getLeftChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), leftLast, rightFirst));
+
+		List<BTreeEntry> toMove = new ArrayList<>(rightPage.getNumEntries());
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			toMove.add(it.next());
+		}
+		for(BTreeEntry e : toMove) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -767,7 +1265,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -794,27 +1292,240 @@ public class BTreeFile implements DbFile {
 	 * 
 	 * @param tid - the transaction id
 	 * @param t - the tuple to delete
-	 * @return a list of all pages that were dirtied by this operation. Could include
-	 * many pages since parent pointers will need to be updated when an internal node merges.
+	 * @return an empty list. The pages dirtied by this operation, which could be many
+	 * since parent pointers will need to be updated when an internal node merges, are
+	 * already marked dirty and in the buffer pool: they are put there before their
+	 * latches are released, as other threads may change them right after.
 	 * @see #handleMinOccupancyPage(TransactionId, Map, BTreePage)
 	 */
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		// first try to delete the tuple with only its leaf page latched exclusively,
+		// which will do unless the leaf page would fall below minimum occupancy
+		structureLatch.readLock().lock();
+		Latches latches = new Latches();
+		try {
+			BTreeLeafPage page = latchLeafPage(tid, dirtypages, latches, t);
+			Tuple stored = storedTuple(page, t);
+			if(stored != null && isSafeForDelete(page)) {
+				page.deleteTuple(stored);
+				t.setRecordId(null);
+				publishDirtyPages(tid, dirtypages);
+				return new ArrayList<>();
+			}
+		} finally {
+			latches.releaseAll();
+			structureLatch.readLock().unlock();
+		}
+
+		dirtypages.clear();
+		latches = beginStructureModification();
+		try {
+			// the record id may be stale (see storedTuple), and then may not even name a
+			// leaf page any more, so the page is only read until the tuple is found
+			Tuple stored = storedTuple((BTreeLeafPage) getPage(tid, dirtypages, leafPageId(t), Permissions.READ_ONLY), t);
+			if(stored == null) {
+				stored = findStoredTuple(tid, dirtypages, t);
+			}
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, leafPageId(stored), Permissions.READ_WRITE);
+			latchForDelete(tid, dirtypages, latches, page);
+			page.deleteTuple(storedTuple(page, stored));
+			t.setRecordId(null);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+			publishDirtyPages(tid, dirtypages);
+		} finally {
+			endStructureModification(latches);
+		}
 
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+        return new ArrayList<>();
+	}
+
+	/**
+	 * A tuple to delete may be a copy of the one the file stores, read before its page
+	 * was evicted from the buffer pool and read back in: then structure modifications
+	 * since have moved the stored tuple without updating the copy's record id.
+	 *
+	 * @param page - the leaf page named by the record id of t
+	 * @param t - the tuple to delete
+	 * @return the tuple the page stores in the slot named by the record id of t, if it has
+	 * the same fields as t, or null
+	 */
+	private Tuple storedTuple(BTreeLeafPage page, Tuple t) {
+		Tuple stored;
+		try {
+			stored = page.getTuple(t.getRecordId().getTupleNumber());
+		} catch(NoSuchElementException e) {
+			return null;
+		}
+		return stored != null && sameFields(stored, t) ? stored : null;
+	}
+
+	private boolean sameFields(Tuple t1, Tuple t2) {
+		for(int i = 0; i < td.numFields(); i++) {
+			if(!t1.getField(i).equals(t2.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Search the leaf pages which may hold the key of a tuple for a stored tuple with
+	 * the same fields. Called with the structure latch held exclusively.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param t - the tuple to delete
+	 * @return the stored tuple
+	 * @throws DbException if the file stores no such tuple
+	 */
+	private Tuple findStoredTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = getKey(t);
+		BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+		BTreeLeafPage page = rootId == null ? null
+				: findLeafPage(tid, dirtypages, null, rootId, Permissions.READ_ONLY, key);
+		while(page != null) {
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Tuple stored = it.next();
+				if(getKey(stored).compare(Op.GREATER_THAN, key)) {
+					throw new DbException("tried to delete tuple not in the file");
+				}
+				if(sameFields(stored, t)) {
+					return stored;
+				}
+			}
+			BTreePageId rightId = page.getRightSiblingId();
+			page = rightId == null ? null : (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+		}
+		throw new DbException("tried to delete tuple not in the file");
+	}
+
+	private BTreePageId leafPageId(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if(rid == null) {
+			throw new DbException("tried to delete tuple with null rid");
+		}
+		return new BTreePageId(tableid, rid.getPageId().getPageNumber(), BTreePageId.LEAF);
+	}
+
+	/**
+	 * Exclusively latch the leaf page holding a tuple. Until the page is latched, a
+	 * structure modification may move the tuple to another page, so its record id is
+	 * checked again once the page is latched.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latches - the latches held
+	 * @param t - the tuple
+	 * @return the leaf page holding the tuple
+	 */
+	private BTreeLeafPage latchLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Latches latches, Tuple t)
+			throws DbException, TransactionAbortedException {
+		while(true) {
+			BTreePageId pageId = leafPageId(t);
+			latches.latch(pageId, true);
+			if(leafPageId(t).equals(pageId)) {
+				return (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			}
+			latches.releaseAll();
+		}
+	}
+
+	/**
+	 * @return true if deleting a tuple or entry from the page leaves it at or above
+	 * minimum occupancy, so that no other page changes
+	 */
+	private static boolean isSafeForDelete(BTreePage page) {
+		if(page.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+			// the root may be less than half full, but is replaced by its only child
+			// once an internal root has no entries left
+			return page instanceof BTreeLeafPage || ((BTreeInternalPage) page).getNumEntries() > 1;
 		}
+		int maxSlots = page instanceof BTreeLeafPage ? ((BTreeLeafPage) page).getMaxTuples()
+				: ((BTreeInternalPage) page).getMaxEntries();
+		int maxEmptySlots = maxSlots - maxSlots/2; // ceiling
+		return page.getNumEmptySlots() < maxEmptySlots;
+	}
+
+	/**
+	 * Exclusively latch the pages that deleting from a leaf page changes: the leaf page
+	 * and those of its ancestors that would fall below minimum occupancy, the siblings
+	 * they steal from or merge with, the right sibling of the right-hand leaf page of a
+	 * merge, and the parent of the highest of them, or the root pointer page if that's
+	 * the root and it may be replaced.
+	 *
+	 * Called with the structure latch held exclusively, so the tree can be read
+	 * without latches to find them.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latches - the latches held
+	 * @param leafPage - the leaf page the tuple is deleted from
+	 * @see #handleMinOccupancyPage(TransactionId, Map, BTreePage)
+	 */
+	private void latchForDelete(TransactionId tid, Map<PageId, Page> dirtypages, Latches latches,
+			BTreeLeafPage leafPage) throws DbException, TransactionAbortedException {
+		List<List<BTreePageId>> levels = new ArrayList<>();
+		BTreePage page = leafPage;
+		while(true) {
+			List<BTreePageId> level = new ArrayList<>();
+			levels.add(level);
+			BTreePageId parentId = page.getParentId();
+			if(isSafeForDelete(page) || parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				level.add(page.getId());
+				if(!isSafeForDelete(page)) {
+					levels.add(Collections.singletonList(parentId));
+				}
+				break;
+			}
 
-        return new ArrayList<>(dirtypages.values());
+			// the page steals from or merges with its left sibling if it has one in the
+			// same parent, and its right sibling otherwise
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+			BTreeEntry leftEntry = null;
+			BTreeEntry rightEntry = null;
+			Iterator<BTreeEntry> it = parent.iterator();
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				if(e.getLeftChild().equals(page.getId())) {
+					rightEntry = e;
+					break;
+				}
+				else if(e.getRightChild().equals(page.getId())) {
+					leftEntry = e;
+				}
+			}
+			BTreePageId rightPageId = page.getId();
+			if(leftEntry != null) {
+				level.add(leftEntry.getLeftChild());
+				level.add(page.getId());
+			}
+			else {
+				level.add(page.getId());
+				if(rightEntry != null) {
+					level.add(rightEntry.getRightChild());
+					rightPageId = rightEntry.getRightChild();
+				}
+			}
+			if(page instanceof BTreeLeafPage) {
+				BTreeLeafPage rightPage = (BTreeLeafPage) getPage(tid, dirtypages, rightPageId, Permissions.READ_ONLY);
+				if(rightPage.getRightSiblingId() != null) {
+					level.add(rightPage.getRightSiblingId());
+				}
+			}
+			page = parent;
+		}
+		latches.latchLevels(levels);
 	}
 
 	/**
@@ -850,6 +1561,13 @@ public class BTreeFile implements DbFile {
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
 	 * 
+	 * The free pages are found in a bitmap kept in memory, read from the header pages
+	 * the first time it is needed; the header page covering the page returned is still
+	 * marked, so that the header pages, written when the buffer pool is flushed, as when
+	 * the log is checkpointed, keep recording the free pages. A new page is allocated past
+	 * the last one, and when that is past the end of the file, the file grows by
+	 * EXTENT_PAGES pages at once.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @return the page number of the first empty page
@@ -860,56 +1578,113 @@ public class BTreeFile implements DbFile {
 	 */
 	public int getEmptyPageNo(TransactionId tid, Map<PageId, Page> dirtypages)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
-
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
-				}
-				else {
-					headerPage = null;
-				}
-			}
-
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
-			}
+		readFreePages(tid, dirtypages);
+		int emptyPageNo = freePages.nextSetBit(0);
+		if(emptyPageNo < 0) {
+			return allocatePage();
 		}
+		takeFreePage(tid, dirtypages, emptyPageNo);
+		return emptyPageNo;
+	}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+	/**
+	 * Mark a free page used, in the bitmap and in the header page covering it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number of the free page
+	 */
+	private void takeFreePage(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo)
+			throws DbException, TransactionAbortedException {
+		BTreePageId headerId = headerIds.get(pageNo / BTreeHeaderPage.getNumSlots());
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(pageNo % BTreeHeaderPage.getNumSlots(), true);
+		freePages.clear(pageNo);
+	}
+
+	/**
+	 * @return whether a page of this file is a header page
+	 */
+	private boolean isHeaderPage(int pageNo) {
+		for(BTreePageId headerId : headerIds) {
+			if(headerId.getPageNumber() == pageNo) {
+				return true;
 			}
 		}
-
-		return emptyPageNo; 
+		return false;
 	}
-	
+
 	/**
-	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and 
-	 * returns a clean copy locked with read-write permission
+	 * Read the free pages of this file from its header pages, unless they have been read
+	 * through the current buffer pool already.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 */
+	private void readFreePages(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(freePages != null && freePagesPool == Database.getBufferPool()) {
+			return;
+		}
+		BitSet free = new BitSet();
+		headerIds.clear();
+		BTreePageId headerId = getRootPtrPage(tid, dirtypages).getHeaderId();
+		while(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int first = headerIds.size() * BTreeHeaderPage.getNumSlots();
+			for(int slot = 0; slot < BTreeHeaderPage.getNumSlots(); slot++) {
+				if(!headerPage.isSlotUsed(slot)) {
+					free.set(first + slot);
+				}
+			}
+			headerIds.add(headerId);
+			headerId = headerPage.getNextPageId();
+		}
+		freePages = free;
+		freePagesPool = Database.getBufferPool();
+	}
+
+	/**
+	 * Allocate the page after the last one allocated, growing the file by EXTENT_PAGES
+	 * empty pages if it doesn't hold it yet.
+	 * 
+	 * @return the page number of the new page
+	 */
+	private synchronized int allocatePage() throws IOException {
+		int pageNo = numPages() + 1;
+		if(f.length() < BTreeRootPtrPage.getPageSize() + (long) pageNo * BufferPool.getPageSize()) {
+			try(FileOutputStream out = new FileOutputStream(f, true)) {
+				out.write(new byte[EXTENT_PAGES * BufferPool.getPageSize()]);
+			}
+		}
+		allocatedPages = pageNo;
+		return pageNo;
+	}
+
+	/**
+	 * Shrink the file to the pages allocated, giving back those it grew by for the next
+	 * allocations. Called by {@link BufferPool#flushAllPages}, as when the log is checkpointed,
+	 * once every page in the buffer pool has been written, so that a file opened again finds
+	 * only the pages allocated, its length giving their number.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void trimReservedPages() throws IOException {
+		if(allocatedPages < 0) {
+			return;
+		}
+		long end = BTreeRootPtrPage.getPageSize() + (long) allocatedPages * BufferPool.getPageSize();
+		if(f.length() > end) {
+			try(RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+				rf.setLength(end);
+			}
+		}
+	}
+	
+	/**
+	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
+	 * and creates a new page if none are available.  It wipes the page in the cache, where it is
+	 * written to disk from, and returns a clean copy locked with read-write permission
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -924,21 +1699,59 @@ public class BTreeFile implements DbFile {
 	 */
 	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pgcateg)
 			throws DbException, IOException, TransactionAbortedException {
-		// create the new page
-		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
+		return getEmptyPage(tid, dirtypages, getEmptyPageNo(tid, dirtypages), pgcateg);
+	}
+
+	/**
+	 * As {@link #getEmptyPage(TransactionId, Map, int)}, for a page number already taken
+	 * from the free pages, or allocated.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param emptyPageNo - the page number of the new page
+	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
+	 * @return the new empty page
+	 */
+	private Page getEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int emptyPageNo, int pgcateg)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
-		
-		// make sure the page is not in the buffer pool	or in the local cache		
-		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
-		
-		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+
+		// a search following a stale pointer may be reading the page into the buffer
+		// pool, and must not put its old contents back in after the page is wiped
+		Lock latch = latchOf(newPageId).writeLock();
+		latch.lock();
+		try {
+			// make sure the page is not in the buffer pool	or in the local cache, as a
+			// page of any category: a dirty version of the page from before it was freed
+			// would otherwise be written over the new page when it's evicted
+			for(int categ : new int[] {BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER}) {
+				BTreePageId pid = new BTreePageId(tableid, emptyPageNo, categ);
+				Database.getBufferPool().discardPage(pid);
+				dirtypages.remove(pid);
+			}
+
+			// the old contents may still be on disk, so the empty page is put in the buffer
+			// pool rather than read, before a read of the page there can be cached
+			Page newPage = createEmptyPage(newPageId);
+			Database.getBufferPool().putDirtied(tid, newPage);
+			dirtypages.put(newPageId, newPage);
+			return newPage;
+		} finally {
+			latch.unlock();
+		}
+	}
+
+	/**
+	 * @return an empty leaf, internal or header page with the specified id
+	 */
+	private Page createEmptyPage(BTreePageId pid) throws IOException {
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), keyFields);
+		}
+		else if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), keyFields);
+		}
+		return new BTreeHeaderPage(pid, BTreeHeaderPage.createEmptyPageData());
 	}
 
 	/**
@@ -977,54 +1790,503 @@ public class BTreeFile implements DbFile {
 //			}
 //		}
 
-		// otherwise, get a read lock on the root pointer page and use it to locate 
-		// the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		BTreePageId prevId = null;
-		int headerPageCount = 0;
-
-		// if there are no header pages, create the first header page and update
-		// the header pointer in the BTreeRootPtrPage
-		if(headerId == null) {
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			
+		// otherwise, add header pages until there is one with the slot corresponding
+		// to emptyPageNo, the first one pointed to by the BTreeRootPtrPage
+		readFreePages(tid, dirtypages);
+		while(headerIds.size() <= emptyPageNo / BTreeHeaderPage.getNumSlots()) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
 			headerPage.init();
-			rootPtr.setHeaderId(headerId);
+			if(headerIds.isEmpty()) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(headerPage.getId());
+			}
+			else {
+				BTreePageId prevId = headerIds.get(headerIds.size() - 1);
+				BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
+				headerPage.setPrevPageId(prevId);
+				prevPage.setNextPageId(headerPage.getId());
+			}
+			headerIds.add(headerPage.getId());
 		}
 
-		// iterate through all the existing header pages to find the one containing the slot
-		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			prevId = headerId;
-			headerId = headerPage.getNextPageId();
-			headerPageCount++;
+		BTreePageId headerId = headerIds.get(emptyPageNo / BTreeHeaderPage.getNumSlots());
+		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+		headerPage.markSlotUsed(emptyPageNo % BTreeHeaderPage.getNumSlots(), false);
+		freePages.set(emptyPageNo);
+	}
+
+	/**
+	 * Defragment part of the leaf level of this file, for {@link BTreeDefragmenter}, as one
+	 * structure modification. The leaf pages are taken in key order. Each is filled with the
+	 * tuples of its right sibling, if that has the same parent, which frees the sibling if
+	 * they all fit, and is then moved to the page after its left sibling, or to the first page,
+	 * skipping header pages. A page already there is moved to the last free page first. The
+	 * leaf pages thus end up full, at the start of the file, one after the other in key order.
+	 *
+	 * The pages each step changes are latched only for that step, so searches go on between
+	 * steps, searching the tree again after each page they read until the structure
+	 * modification ends.
+	 *
+	 * @param tid - the transaction id
+	 * @param next - the first tuple of the leaf page to start from, as returned for the last
+	 *        part, or null to start from the first leaf page
+	 * @param maxPages - the most leaf pages to defragment
+	 * @return the first tuple of the leaf page to continue from, or null once the last leaf
+	 *         page has been defragmented
+	 */
+	Tuple defragmentLeaves(TransactionId tid, Tuple next, int maxPages)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		Latches latches = beginStructureModification();
+		try {
+			BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+			if(rootId == null) {
+				return null;
+			}
+			readFreePages(tid, dirtypages);
+			Map<Integer, BTreePageId> pages = treePages(tid, dirtypages, rootId);
+
+			BTreeLeafPage leaf;
+			if(next == null) {
+				leaf = findLeafPage(tid, dirtypages, null, rootId, Permissions.READ_ONLY, null);
+			}
+			else {
+				// with a key on more than one leaf page, the one to continue from may follow
+				// the first one holding it
+				Field key = getKey(next);
+				leaf = findLeafPage(tid, dirtypages, null, rootId, Permissions.READ_ONLY, key);
+				while(!leaf.getId().equals(next.getRecordId().getPageId()) && leaf.getRightSiblingId() != null) {
+					BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+					if(!getKey(right.iterator().next()).equals(key)) {
+						break;
+					}
+					leaf = right;
+				}
+			}
+
+			for(int n = 0; n < maxPages; n++) {
+				while(packLeafPage(tid, dirtypages, pages, leaf.getId())) {
+					// take tuples from the next sibling too
+				}
+				leaf = placeLeafPage(tid, dirtypages, pages, leaf.getId());
+				if(leaf.getRightSiblingId() == null) {
+					return null;
+				}
+				leaf = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+			}
+
+			// a copy, as the record id of the tuple changes if it is moved
+			Tuple first = leaf.iterator().next();
+			Tuple t = new Tuple(td);
+			for(int i = 0; i < td.numFields(); i++) {
+				t.setField(i, first.getField(i));
+			}
+			t.setRecordId(first.getRecordId());
+			return t;
+		} finally {
+			endStructureModification(latches);
 		}
+	}
 
-		// at this point headerId should either be null or set with 
-		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
-			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
-			
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
-			headerPage.init();
-			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
-			
-			headerPageCount++;
-			prevId = headerId;
+	/**
+	 * Move the pages of the tree past the first free page of this file into the free pages,
+	 * the last one first, for {@link BTreeDefragmenter} once the leaf level is defragmented,
+	 * as one structure modification. The free pages left at the end of the file are then
+	 * cut off, and the file shrinks.
+	 *
+	 * @param tid - the transaction id
+	 * @param maxPages - the most pages to move
+	 * @return true if there were no more pages to move
+	 */
+	boolean compactFile(TransactionId tid, int maxPages)
+			throws DbException, IOException, TransactionAbortedException {
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		Latches latches = beginStructureModification();
+		try {
+			BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+			if(rootId == null) {
+				return true;
+			}
+			readFreePages(tid, dirtypages);
+			TreeMap<Integer, BTreePageId> pages = treePages(tid, dirtypages, rootId);
+			boolean done = false;
+			for(int n = 0; n < maxPages && !done; n++) {
+				int lastHeader = -1;
+				for(int i = 0; i < headerIds.size(); i++) {
+					if(lastHeader < 0 || headerIds.get(i).getPageNumber() > headerIds.get(lastHeader).getPageNumber()) {
+						lastHeader = i;
+					}
+				}
+				boolean header = lastHeader >= 0 && headerIds.get(lastHeader).getPageNumber() > pages.lastKey();
+				int free = freePages.nextSetBit(0);
+				done = free < 0 || free > (header ? headerIds.get(lastHeader).getPageNumber() : pages.lastKey());
+				if(!done) {
+					takeFreePage(tid, dirtypages, free);
+					if(header) {
+						moveHeaderPage(tid, dirtypages, lastHeader, free);
+					}
+					else {
+						movePage(tid, dirtypages, pages, pages.lastEntry().getValue(), free);
+					}
+				}
+			}
+
+			// pages past the end of the file are marked used in the header pages
+			int last = numPages();
+			while(last > 1 && freePages.get(last)) {
+				takeFreePage(tid, dirtypages, last);
+				for(int categ : new int[] {BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER}) {
+					Database.getBufferPool().discardPage(new BTreePageId(tableid, last, categ));
+				}
+				last--;
+			}
+			publishDirtyPages(tid, dirtypages);
+			synchronized(this) {
+				allocatedPages = last;
+			}
+			trimReservedPages();
+			return done;
+		} finally {
+			endStructureModification(latches);
 		}
+	}
 
-		// now headerId should be set with the headerPage containing the slot corresponding to 
-		// emptyPageNo
-		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
-		headerPage.markSlotUsed(emptySlot, false);
+	/**
+	 * Move a header page of this file to a free page. Header pages are only read and
+	 * written by structure modifications, so no page latch is needed.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages
+	 * @param index - the position of the header page in the list of header pages
+	 * @param pageNo - the page to move it to, already marked used
+	 */
+	private void moveHeaderPage(TransactionId tid, Map<PageId, Page> dirtypages, int index, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId pid = headerIds.get(index);
+		BTreeHeaderPage page = (BTreeHeaderPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		BTreeHeaderPage moved = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, pageNo, BTreePageId.HEADER);
+		for(int slot = 0; slot < BTreeHeaderPage.getNumSlots(); slot++) {
+			moved.markSlotUsed(slot, page.isSlotUsed(slot));
+		}
+		moved.setPrevPageId(page.getPrevPageId());
+		moved.setNextPageId(page.getNextPageId());
+		if(page.getPrevPageId() == null) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setHeaderId(moved.getId());
+		}
+		else {
+			BTreeHeaderPage prev = (BTreeHeaderPage) getPage(tid, dirtypages, page.getPrevPageId(), Permissions.READ_WRITE);
+			prev.setNextPageId(moved.getId());
+		}
+		if(page.getNextPageId() != null) {
+			BTreeHeaderPage next = (BTreeHeaderPage) getPage(tid, dirtypages, page.getNextPageId(), Permissions.READ_WRITE);
+			next.setPrevPageId(moved.getId());
+		}
+		headerIds.set(index, moved.getId());
+
+		dirtypages.remove(pid);
+		Database.getBufferPool().discardPage(pid);
+		setEmptyPage(tid, dirtypages, pid.getPageNumber());
+	}
+
+	/**
+	 * @return the leaf and internal pages of the tree, by page number. Only the internal
+	 *         pages are read.
+	 */
+	private TreeMap<Integer, BTreePageId> treePages(TransactionId tid, Map<PageId, Page> dirtypages,
+			BTreePageId rootId) throws DbException, TransactionAbortedException {
+		TreeMap<Integer, BTreePageId> pages = new TreeMap<>();
+		Deque<BTreePageId> toVisit = new ArrayDeque<>();
+		toVisit.add(rootId);
+		while(!toVisit.isEmpty()) {
+			BTreePageId pid = toVisit.removeFirst();
+			pages.put(pid.getPageNumber(), pid);
+			if(pid.pgcateg() == BTreePageId.INTERNAL) {
+				Iterator<BTreeEntry> it = ((BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY)).iterator();
+				BTreeEntry e = null;
+				while(it.hasNext()) {
+					e = it.next();
+					toVisit.add(e.getLeftChild());
+				}
+				if(e != null) {
+					toVisit.add(e.getRightChild());
+				}
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * Fill a leaf page with the tuples of its right sibling, if it has one with the same
+	 * parent. The two pages are merged if all the tuples fit and the parent can lose an
+	 * entry without stealing from or merging with its siblings. Otherwise the leaf page is
+	 * filled with as many as fit, while the sibling stays at least half full, unless it can
+	 * then be merged with, or take tuples from, its own right sibling in the parent.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages, empty between steps
+	 * @param pages - the pages of the tree, by page number, kept up to date
+	 * @param pid - the id of the leaf page
+	 * @return true if the pages were merged, so that the leaf page may take more tuples
+	 *         from its new right sibling
+	 */
+	private boolean packLeafPage(TransactionId tid, Map<PageId, Page> dirtypages,
+			Map<Integer, BTreePageId> pages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		if(leaf.getParentId().pgcateg() == BTreePageId.ROOT_PTR || leaf.getNumEmptySlots() == 0) {
+			return false;
+		}
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, leaf.getParentId(), Permissions.READ_ONLY);
+		// the entries in the parent after the leaf page and after its right sibling
+		BTreeEntry entry = null;
+		BTreeEntry nextEntry = null;
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext() && nextEntry == null) {
+			BTreeEntry e = it.next();
+			if(entry != null) {
+				nextEntry = e;
+			}
+			else if(e.getLeftChild().equals(pid)) {
+				entry = e;
+			}
+		}
+		if(entry == null) {
+			return false;
+		}
+		BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, entry.getRightChild(), Permissions.READ_ONLY);
+		boolean isRoot = parent.getParentId().pgcateg() == BTreePageId.ROOT_PTR;
+		boolean canMerge = isRoot || isSafeForDelete(parent);
+		boolean merge = canMerge && fitsInto(leaf, right);
+		if(!merge && !parent.hasRoomToUpdateKey()) {
+			return false;
+		}
+		// a compact parent may not have room to update a second key
+		if(merge || !canMerge || parent.isCompact()) {
+			nextEntry = null;
+		}
+
+		List<List<BTreePageId>> levels = new ArrayList<>();
+		List<BTreePageId> leafLevel = new ArrayList<>(Arrays.asList(pid, right.getId()));
+		if(right.getRightSiblingId() != null) {
+			leafLevel.add(right.getRightSiblingId());
+		}
+		if(nextEntry != null) {
+			BTreeLeafPage next = (BTreeLeafPage) getPage(tid, dirtypages, nextEntry.getRightChild(), Permissions.READ_ONLY);
+			if(next.getRightSiblingId() != null) {
+				leafLevel.add(next.getRightSiblingId());
+			}
+		}
+		levels.add(leafLevel);
+		levels.add(Collections.singletonList(parent.getId()));
+		if(merge && isRoot && parent.getNumEntries() == 1) {
+			// the leaf page replaces the parent as the root
+			levels.add(Collections.singletonList(parent.getParentId()));
+		}
+		Latches latches = new Latches();
+		try {
+			latches.latchLevels(levels);
+			leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			right = (BTreeLeafPage) getPage(tid, dirtypages, right.getId(), Permissions.READ_WRITE);
+			parent = (BTreeInternalPage) getPage(tid, dirtypages, parent.getId(), Permissions.READ_WRITE);
+			if(merge) {
+				mergeLeafPages(tid, dirtypages, leaf, right, parent, entry);
+				pages.remove(right.getId().getPageNumber());
+				if(parent.getNumEntries() == 0) {
+					pages.remove(parent.getId().getPageNumber());
+				}
+			}
+			else {
+				BTreeLeafPage next = nextEntry == null ? null
+						: (BTreeLeafPage) getPage(tid, dirtypages, nextEntry.getRightChild(), Permissions.READ_WRITE);
+				Iterator<Tuple> tuples = right.iterator();
+				while(tuples.hasNext() && leaf.getNumEmptySlots() > 0 && right.getNumTuples() > 1
+						&& (next != null || isSafeForDelete(right))) {
+					Tuple t = tuples.next();
+					right.deleteTuple(t);
+					leaf.insertTuple(t);
+				}
+				entry.setKey(separator(getKey(leaf.reverseIterator().next()), getKey(right.iterator().next())));
+				parent.updateEntry(entry);
+
+				if(next != null && right.getMaxTuples() - right.getNumEmptySlots() < right.getMaxTuples() / 2) {
+					if(fitsInto(right, next)) {
+						mergeLeafPages(tid, dirtypages, right, next, parent, nextEntry);
+						pages.remove(next.getId().getPageNumber());
+					}
+					else {
+						stealFromLeafPage(right, next, parent, nextEntry, true);
+					}
+				}
+			}
+			publishDirtyPages(tid, dirtypages);
+		} finally {
+			endStructureModificationStep(latches);
+			dirtypages.clear();
+		}
+		return merge;
+	}
+
+	/**
+	 * @return whether all the tuples of a leaf page fit on another; a compact page gets a
+	 *         unit to spare, as a key may take more space next to other keys
+	 */
+	private static boolean fitsInto(BTreeLeafPage page, BTreeLeafPage sibling) {
+		return page.getNumEmptySlots()
+				>= sibling.getMaxTuples() - sibling.getNumEmptySlots() + (page.isCompact() ? 1 : 0);
+	}
+
+	/**
+	 * Move a leaf page to the page after its left sibling, or to the first page if it has
+	 * none, skipping header pages, unless it is there or before it already. The page there,
+	 * unless it is free, is moved out of the way to the last free page first.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages, empty between steps
+	 * @param pages - the pages of the tree, by page number, kept up to date
+	 * @param pid - the id of the leaf page
+	 * @return the leaf page, where it is now
+	 */
+	private BTreeLeafPage placeLeafPage(TransactionId tid, Map<PageId, Page> dirtypages,
+			Map<Integer, BTreePageId> pages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		int target = leaf.getLeftSiblingId() == null ? 1 : leaf.getLeftSiblingId().getPageNumber() + 1;
+		while(isHeaderPage(target)) {
+			target++;
+		}
+		if(target >= pid.getPageNumber()) {
+			return leaf;
+		}
+		if(!freePages.get(target)) {
+			BTreePageId occupant = pages.get(target);
+			if(occupant == null) {
+				return leaf;
+			}
+			int to = freePages.length() - 1;
+			if(to < 0) {
+				to = getEmptyPageNo(tid, dirtypages);
+			}
+			else {
+				takeFreePage(tid, dirtypages, to);
+			}
+			movePage(tid, dirtypages, pages, occupant, to);
+		}
+		takeFreePage(tid, dirtypages, target);
+		return (BTreeLeafPage) movePage(tid, dirtypages, pages, pid, target);
+	}
+
+	/**
+	 * Move a leaf or internal page of the tree to another page, and free the page it was on.
+	 * The pointers to it in its parent, or the root pointer page, and in its siblings or
+	 * children are updated.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages, empty between steps
+	 * @param pages - the pages of the tree, by page number, kept up to date
+	 * @param pid - the id of the page to move
+	 * @param pageNo - the page to move it to, already taken from the free pages or allocated
+	 * @return the page, where it is now
+	 */
+	private BTreePage movePage(TransactionId tid, Map<PageId, Page> dirtypages,
+			Map<Integer, BTreePageId> pages, BTreePageId pid, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePage page = (BTreePage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		BTreePageId parentId = page.getParentId();
+		List<List<BTreePageId>> levels = new ArrayList<>();
+		List<BTreePageId> level = new ArrayList<>();
+		levels.add(level);
+		if(page instanceof BTreeLeafPage) {
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			if(leaf.getLeftSiblingId() != null) {
+				level.add(leaf.getLeftSiblingId());
+			}
+			level.add(pid);
+			if(leaf.getRightSiblingId() != null) {
+				level.add(leaf.getRightSiblingId());
+			}
+		}
+		else {
+			// the children, whose parent pointers change
+			Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				level.add(e.getLeftChild());
+			}
+			if(e != null) {
+				level.add(e.getRightChild());
+			}
+			levels.add(Collections.singletonList(pid));
+		}
+		levels.add(Collections.singletonList(parentId));
+
+		Latches latches = new Latches();
+		try {
+			latches.latchLevels(levels);
+			BTreePage newPage = (BTreePage) getEmptyPage(tid, dirtypages, pageNo, pid.pgcateg());
+			BTreePageId newId = newPage.getId();
+			if(page instanceof BTreeLeafPage) {
+				BTreeLeafPage leaf = (BTreeLeafPage) page;
+				BTreeLeafPage newLeaf = (BTreeLeafPage) newPage;
+				Iterator<Tuple> it = leaf.iterator();
+				while(it.hasNext()) {
+					newLeaf.insertTuple(it.next());
+				}
+				if(leaf.getLeftSiblingId() != null) {
+					BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getLeftSiblingId(), Permissions.READ_WRITE);
+					left.setRightSiblingId(newId);
+					newLeaf.setLeftSiblingId(left.getId());
+				}
+				if(leaf.getRightSiblingId() != null) {
+					BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, leaf.getRightSiblingId(), Permissions.READ_WRITE);
+					right.setLeftSiblingId(newId);
+					newLeaf.setRightSiblingId(right.getId());
+				}
+			}
+			else {
+				BTreeInternalPage newInternal = (BTreeInternalPage) newPage;
+				Iterator<BTreeEntry> it = ((BTreeInternalPage) page).iterator();
+				while(it.hasNext()) {
+					newInternal.insertEntry(it.next());
+				}
+				updateParentPointers(tid, dirtypages, newInternal);
+			}
+
+			newPage.setParentId(parentId);
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				rootPtr.setRootId(newId);
+			}
+			else {
+				BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+				Iterator<BTreeEntry> it = parent.iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					if(e.getLeftChild().equals(pid)) {
+						e.setLeftChild(newId);
+						parent.updateEntry(e);
+						break;
+					}
+					if(e.getRightChild().equals(pid)) {
+						e.setRightChild(newId);
+						parent.updateEntry(e);
+						break;
+					}
+				}
+			}
+
+			// the old page, now a copy of the new one, need not be written
+			Database.getBufferPool().discardPage(pid);
+			setEmptyPage(tid, dirtypages, pid.getPageNumber());
+			pages.remove(pid.getPageNumber());
+			pages.put(pageNo, newId);
+			publishDirtyPages(tid, dirtypages);
+			return newPage;
+		} finally {
+			endStructureModificationStep(latches);
+			dirtypages.clear();
+		}
 	}
 
 	/**
@@ -1038,7 +2300,21 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for the filtered tuples
 	 */
 	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred) {
-		return new BTreeSearchIterator(this, tid, ipred);
+		return new BTreeSearchIterator(this, tid, ipred, false);
+	}
+
+	/**
+	 * get the specified tuples from the file based on its IndexPredicate value, as
+	 * {@link #indexIterator(TransactionId, IndexPredicate)} does, in key order or in
+	 * reverse key order.
+	 * 
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @param reverse - whether to return the tuples in reverse key order
+	 * @return an iterator for the filtered tuples
+	 */
+	public DbFileIterator indexIterator(TransactionId tid, IndexPredicate ipred, boolean reverse) {
+		return new BTreeSearchIterator(this, tid, ipred, reverse);
 	}
 
 	/**
@@ -1050,71 +2326,288 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for all the tuples in this file
 	 */
 	public DbFileIterator iterator(TransactionId tid) {
-		return new BTreeFileIterator(this, tid);
+		return new BTreeFileIterator(this, tid, false);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in sorted order or in reverse
+	 * sorted order, as {@link #iterator(TransactionId)} does.
+	 * 
+	 * @param tid - the transaction id
+	 * @param reverse - whether to return the tuples in reverse key order
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid, boolean reverse) {
+		return new BTreeFileIterator(this, tid, reverse);
+	}
+
+	private ReentrantReadWriteLock latchOf(BTreePageId pid) {
+		return latches.computeIfAbsent(pid.getPageNumber(), k -> new ReentrantReadWriteLock());
+	}
+
+	/**
+	 * The latches one operation on this file holds. A latch is a short-term lock on a
+	 * page, shared or exclusive, held while the operation reads or changes the page.
+	 * Latches are only ever acquired top down, and left to right among the pages at
+	 * the same level of the tree, so operations never wait for each other in a cycle.
+	 */
+	private class Latches {
+		private final List<Lock> held = new ArrayList<>();
+
+		/**
+		 * Latch a page, waiting until no other thread holds a conflicting latch on it.
+		 *
+		 * @param pid - the page to latch
+		 * @param exclusive - whether to latch the page exclusively
+		 */
+		void latch(BTreePageId pid, boolean exclusive) {
+			Lock l = exclusive ? latchOf(pid).writeLock() : latchOf(pid).readLock();
+			l.lock();
+			held.add(l);
+		}
+
+		/**
+		 * Exclusively latch the pages of a structure modification.
+		 *
+		 * @param levels - the pages, level by level from the bottom of the tree up, and
+		 * from left to right within a level
+		 */
+		void latchLevels(List<List<BTreePageId>> levels) {
+			for(int i = levels.size() - 1; i >= 0; i--) {
+				for(BTreePageId pid : levels.get(i)) {
+					latch(pid, true);
+				}
+			}
+		}
+
+		/**
+		 * Release every latch held but the last one taken.
+		 */
+		void releaseAncestors() {
+			if(held.size() > 1) {
+				Lock last = held.remove(held.size() - 1);
+				releaseAll();
+				held.add(last);
+			}
+		}
+
+		void releaseAll() {
+			for(Lock l : held) {
+				l.unlock();
+			}
+			held.clear();
+		}
 	}
 
 }
 
+/**
+ * Helper class that reads the tuples of a BTreeFile in key order, or in reverse key order
+ * following the left sibling pointers, copying one leaf page at a time so that no latch
+ * is held between calls. A structure modification may move
+ * tuples between leaf pages while no latch is held, so if one starts or ends between
+ * reading a page and reading its sibling, the cursor searches the tree again for the
+ * last key it returned instead of trusting the sibling pointer. One that is still under
+ * way does not stop the cursor: the pages it changes stay latched until it ends.
+ */
+class BTreeCursor {
+
+	/** Number of leaf pages a range scan reads ahead of the one it is reading */
+	static final int READ_AHEAD = 8;
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final boolean reverse;
+	private final List<Tuple> tuples = new ArrayList<>();
+	private int pos = 0;
+	private BTreePageId nextp = null;
+	private long version;
+
+	// the leaves after the one being read under their parent, found once the cursor has
+	// read past its first leaf; the first READ_AHEAD of them are read ahead
+	private final Deque<BTreePageId> ahead = new ArrayDeque<>();
+	// the last key the reader of the cursor will ask for, if it stops before the end
+	private Field bound = null;
+	private boolean inclusive = true;
+
+	// the key the cursor started from, and the last key it returned and how many times
+	private Field startKey = null;
+	private Field lastKey = null;
+	private int numLastKey = 0;
+	// after searching the tree again, tuples up to the last one returned are skipped
+	private boolean skipping = false;
+	private int numToSkip = 0;
+
+	/**
+	 * @param f - the BTreeFile to read
+	 * @param tid - the transaction id
+	 */
+	BTreeCursor(BTreeFile f, TransactionId tid) {
+		this(f, tid, false);
+	}
+
+	/**
+	 * @param f - the BTreeFile to read
+	 * @param tid - the transaction id
+	 * @param reverse - whether to read the tuples in reverse key order
+	 */
+	BTreeCursor(BTreeFile f, TransactionId tid, boolean reverse) {
+		this.f = f;
+		this.tid = tid;
+		this.reverse = reverse;
+	}
+
+	/**
+	 * Start at the left-most leaf page possibly containing the key field key, or for a
+	 * reverse cursor at the last tuple of the right-most one whose key is at most key.
+	 * @param key - the key to start from, or null to start from the first leaf page
+	 */
+	void open(Field key) throws DbException, TransactionAbortedException {
+		open(key, null, true);
+	}
+
+	/**
+	 * Start from the key field key as {@link #open(Field)} does, for a reader that stops
+	 * at the first key past a bound. No leaf past the one holding that key is read ahead.
+	 * @param key - the key to start from, or null to start from the first leaf page
+	 * @param bound - the last key the reader asks for, or null if it reads to the end
+	 * @param inclusive - whether the reader asks for keys equal to the bound
+	 */
+	void open(Field key, Field bound, boolean inclusive) throws DbException, TransactionAbortedException {
+		this.bound = bound;
+		this.inclusive = inclusive;
+		startKey = key;
+		lastKey = null;
+		numLastKey = 0;
+		skipping = false;
+		seek(key);
+	}
+
+	private void seek(Field key) throws DbException, TransactionAbortedException {
+		tuples.clear();
+		ahead.clear();
+		pos = 0;
+		nextp = f.readLeafPage(tid, key, reverse, tuples);
+		version = f.getStructureVersion();
+	}
+
+	/**
+	 * @return the next tuple in key order, or reverse key order, or null if there are no more
+	 */
+	Tuple next() throws DbException, TransactionAbortedException {
+		while(true) {
+			while(pos == tuples.size()) {
+				if(nextp == null) {
+					return null;
+				}
+				long prevVersion = version;
+				BTreePageId pid = nextp;
+				tuples.clear();
+				pos = 0;
+				nextp = f.readLeafPage(tid, pid, reverse, tuples);
+				version = f.getStructureVersion();
+				if(version != prevVersion) {
+					seek(lastKey != null ? lastKey : startKey);
+					skipping = lastKey != null;
+					numToSkip = numLastKey;
+				}
+				else {
+					readAhead(pid);
+				}
+			}
+			Tuple t = tuples.get(pos++);
+			Field key = f.getKey(t);
+			if(skipping) {
+				if(key.compare(reverse ? Op.GREATER_THAN : Op.LESS_THAN, lastKey)) {
+					continue;
+				}
+				if(key.equals(lastKey) && numToSkip > 0) {
+					numToSkip--;
+					continue;
+				}
+				skipping = false;
+			}
+			if(key.equals(lastKey)) {
+				numLastKey++;
+			}
+			else {
+				lastKey = key;
+				numLastKey = 1;
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * Read ahead the leaves after one the cursor has moved on to, which a scan that has
+	 * gone past its first leaf is likely to read too. The leaves are found in the parent
+	 * of the leaf, so that several can be read at once rather than one after the other
+	 * by following sibling pointers.
+	 *
+	 * @param pid - the leaf just read
+	 */
+	private void readAhead(BTreePageId pid) throws DbException, TransactionAbortedException {
+		if(ahead.contains(pid)) {
+			while(!ahead.removeFirst().equals(pid)) {
+				// skip the leaves before it
+			}
+		}
+		else {
+			ahead.clear();
+		}
+		if(ahead.isEmpty()) {
+			ahead.addAll(f.leavesAfter(tid, pid, reverse, bound, inclusive));
+		}
+		int n = 0;
+		for(BTreePageId next : ahead) {
+			if(n++ == READ_AHEAD) {
+				break;
+			}
+			Database.getBufferPool().prefetchPage(next);
+		}
+	}
+
+	void close() {
+		tuples.clear();
+		ahead.clear();
+		pos = 0;
+		nextp = null;
+	}
+}
+
 /**
  * Helper class that implements the Java Iterator for tuples on a BTreeFile
  */
 class BTreeFileIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
-
-	final TransactionId tid;
-	final BTreeFile f;
+	final BTreeCursor cursor;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
+	 * @param reverse - whether to return the tuples in reverse key order
 	 */
-	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
-		this.f = f;
-		this.tid = tid;
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, boolean reverse) {
+		this.cursor = new BTreeCursor(f, tid, reverse);
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page
+	 * Open this iterator by reading the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		cursor.open(null);
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
+	 * from the next page by following the right (left) sibling pointer.
 	 * 
 	 * @return the next tuple, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
-		}
-
-		if (it == null)
-			return null;
-		return it.next();
+		return cursor.next();
 	}
 
 	/**
@@ -1130,92 +2623,108 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
-		curp = null;
+		cursor.close();
 	}
 }
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File. On a file keyed on more than one field, the predicate may compare
+ * a prefix of the key: its key fields but the last must equal the values of the
+ * prefix, and the last is compared with the operator (see {@link IndexPredicate}).
+ * A reverse iterator starts from the end of the range the predicate matches.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	final BTreeCursor cursor;
 
-	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	final boolean reverse;
+
+	// the values of the predicate but the last, which the keys must start with, or null
+	private CompositeField prefix;
+	// the last value of the predicate, and the key field it is compared with
+	private Field last;
+	private int lastField;
 
 	/**
 	 * Constructor for this iterator
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
 	 * @param ipred - the predicate to filter on
+	 * @param reverse - whether to return the tuples in reverse key order
 	 */
-	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, boolean reverse) {
 		this.f = f;
-		this.tid = tid;
+		this.cursor = new BTreeCursor(f, tid, reverse);
 		this.ipred = ipred;
+		this.reverse = reverse;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
+	 * Open this iterator by reading the first leaf page applicable
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
-				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+		Field value = f.searchKey(ipred.getField());
+		prefix = null;
+		last = value;
+		if(value instanceof CompositeField && ((CompositeField) value).numFields() > 1) {
+			CompositeField v = (CompositeField) value;
+			lastField = v.numFields() - 1;
+			prefix = v.prefix(lastField);
+			last = v.getField(lastField);
+		}
+		boolean greater = ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+		if(ipred.getOp() == Op.EQUALS) {
+			cursor.open(value, value, true);
+		}
+		else if(greater != reverse) {
+			cursor.open(value, prefix, true);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			cursor.open(prefix, value, ipred.getOp() == Op.LESS_THAN_OR_EQ || ipred.getOp() == Op.GREATER_THAN_OR_EQ);
 		}
-		it = curp.iterator();
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * the predicate or from the next page by following the right (left) sibling pointer.
 	 * 
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
+		Tuple t;
+		while((t = cursor.next()) != null) {
+			Field key = f.getKey(t);
+			if(prefix != null) {
+				if(key.compare(reverse ? Op.GREATER_THAN : Op.LESS_THAN, prefix)) {
+					continue;
 				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
+				if(key.compare(reverse ? Op.LESS_THAN : Op.GREATER_THAN, prefix)) {
+					// past the keys starting with the prefix
 					return null;
 				}
+				key = ((CompositeField) key).getField(lastField);
 			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+			boolean less = ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ;
+			boolean greater = ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+			if (key.compare(ipred.getOp(), last)) {
+				return t;
+			}
+			else if(reverse ? greater : less) {
+				// if the predicate was not satisfied and the operation is less than (greater
+				// than, reading in reverse), we have hit the end
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+			else if(ipred.getOp() == Op.EQUALS && 
+					key.compare(reverse ? Op.LESS_THAN : Op.GREATER_THAN, last)) {
+				// if the tuple is now past the field passed in and the operation
+				// is equals, we have reached the end
+				return null;
 			}
 		}
 
@@ -1235,6 +2744,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
+		cursor.close();
 	}
 }
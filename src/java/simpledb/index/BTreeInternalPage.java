@@ -23,13 +23,18 @@ import simpledb.storage.RecordId;
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	// parent pointer, child page category, number of entries and first child of a compact page
+	private static final int COMPACT_HEADER_SIZE = 2 * INDEX_SIZE + 4;
+
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
-	
+
 	private int childCategory; // either leaf or internal
 
+	private int usedBytes; // bytes taken by the entries of a compact page
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -43,7 +48,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || (getMaxEntries() - getNumEmptySlots() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -62,6 +67,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A compact page (see {@link #isCompact()}) has no header bytes. The parent pointer
+	 * and child page category are followed by the number of entries, whether the first
+	 * child pointer is in use and the first child pointer, then by each entry in order:
+	 * its slot number, its key compressed against the key before it, and its right
+	 * child pointer.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -71,8 +82,21 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on more than one field, with
+	 * {@link simpledb.storage.CompositeField} keys.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.numSlots = isCompact() ? getCompactCapacity() / getMinEntrySize() + 1 : getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -86,12 +110,20 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = dis.readByte();
 
-		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(isCompact()) {
+			readCompactEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
+		// read the header slots of this page
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		keys = new Field[numSlots];
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +135,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -119,8 +150,13 @@ public class BTreeInternalPage extends BTreePage {
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
-	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+	public int getMaxEntries() {
+		if(isCompact()) {
+			// counted as for leaf pages, see BTreeLeafPage#getMaxTuples()
+			int max = (getCompactCapacity() - getMaxEntrySize()) / getCompactUnit() + 1;
+			return Math.max(1, max % 2 == 0 ? max - 1 : max);
+		}
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -132,14 +168,155 @@ public class BTreeInternalPage extends BTreePage {
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
 	 */
-	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+	private int getHeaderSize() {
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return the number of bytes for entries in a compact page
+	 */
+	int getCompactCapacity() {
+		return BufferPool.getPageSize() - COMPACT_HEADER_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes the largest entry takes in a compact page
+	 */
+	int getMaxEntrySize() {
+		return 2 + maxCompactKeySize() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes the smallest entry takes in a compact page
+	 */
+	private int getMinEntrySize() {
+		return 2 + minCompactKeySize() + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes an entry takes in a compact page
+	 * @param key - the key of the entry
+	 * @param prevKey - the key before it on the page, or null
+	 */
+	int getEntrySize(Field key, Field prevKey) {
+		return 2 + compactKeySize(key, prevKey) + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes a compact page takes to hold a key between the keys in
+	 * two slots: its entry, and the change in how much of the next key it shares
+	 * @param key - the key
+	 * @param prevSlot - the slot of the key before it, or 0 for none
+	 * @param nextSlot - the slot of the key after it, or -1
+	 */
+	private int getEntrySizeBetween(Field key, int prevSlot, int nextSlot) {
+		Field prevKey = prevSlot <= 0 ? null : keys[prevSlot];
+		int size = getEntrySize(key, prevKey);
+		if(nextSlot != -1) {
+			size += compactKeySize(keys[nextSlot], key) - compactKeySize(keys[nextSlot], prevKey);
+		}
+		return size;
+	}
+
+	private int prevUsedSlot(int i) {
+		for (i--; i > 0; i--)
+			if (isSlotUsed(i))
+				return i;
+		return 0;
+	}
+
+	private int nextUsedSlot(int i) {
+		for (i++; i < numSlots; i++)
+			if (isSlotUsed(i))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Read the entries of a compact page
+	 */
+	private void readCompactEntries(DataInputStream dis) throws IOException {
+		int numEntries = dis.readUnsignedShort();
+		if(dis.readBoolean())
+			markSlotUsed(0, true);
+		children[0] = dis.readInt();
+		Field prevKey = null;
+		for (int i=0; i<numEntries; i++) {
+			int slotId = dis.readUnsignedShort();
+			keys[slotId] = readCompactKey(dis, prevKey);
+			children[slotId] = dis.readInt();
+			markSlotUsed(slotId, true);
+			usedBytes += getEntrySize(keys[slotId], prevKey);
+			prevKey = keys[slotId];
+		}
+	}
+
+	/**
+	 * Write the entries of a compact page
+	 */
+	private void writeCompactEntries(DataOutputStream dos) throws IOException {
+		dos.writeShort(getNumEntries());
+		dos.writeBoolean(isSlotUsed(0));
+		dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+		Field prevKey = null;
+		for (int i=1; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			dos.writeShort(i);
+			writeCompactKey(dos, keys[i], prevKey);
+			dos.writeInt(children[i]);
+			prevKey = keys[i];
+		}
+	}
+
+	/**
+	 * Create a page holding entries in its first slots, for building pages in bulk
+	 * without shifting entries as {@link #insertEntry(BTreeEntry)} does.
+	 *
+	 * @param id - the id of the page
+	 * @param entries - the entries, in key order and each sharing its left child with
+	 * the right child of the one before
+	 * @param keyFields - the fields which the index is keyed on
+	 * @throws DbException if the entries do not fit on the page
+	 */
+	static BTreeInternalPage fromEntries(BTreePageId id, List<BTreeEntry> entries, int[] keyFields) throws IOException, DbException {
+		BTreeInternalPage p = new BTreeInternalPage(id, createEmptyPageData(), keyFields);
+		if (entries.isEmpty())
+			return p;
+		if (entries.size() >= p.numSlots)
+			throw new DbException("too many entries for one page");
+		p.childCategory = entries.get(0).getLeftChild().pgcateg();
+		p.children[0] = entries.get(0).getLeftChild().getPageNumber();
+		p.markSlotUsed(0, true);
+		Field prevKey = null;
+		for (int i=1; i<=entries.size(); i++) {
+			BTreeEntry e = entries.get(i - 1);
+			p.keys[i] = e.getKey();
+			p.children[i] = e.getRightChild().getPageNumber();
+			p.markSlotUsed(i, true);
+			if (p.isCompact()) {
+				p.usedBytes += p.getEntrySize(e.getKey(), prevKey);
+				prevKey = e.getKey();
+			}
+		}
+		if (p.isCompact() && p.usedBytes > p.getCompactCapacity())
+			throw new DbException("too many entries for one page");
+		return p;
+	}
+
+	/**
+	 * @return whether the key of any entry can be updated to any other key. A compact
+	 * page may have no room for a longer key, which can also change how much of the
+	 * next key is shared.
+	 */
+	boolean hasRoomToUpdateKey() {
+		return !isCompact() || usedBytes + 2 * maxCompactKeySize() <= getCompactCapacity();
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -149,7 +326,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -172,7 +349,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +362,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -256,6 +433,17 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if(isCompact()) {
+			try {
+				writeCompactEntries(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -273,7 +461,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -320,7 +508,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -356,6 +544,10 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to delete entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null entry.");
+		if(isCompact()) {
+			int slot = rid.getTupleNumber();
+			usedBytes -= getEntrySizeBetween(keys[slot], prevUsedSlot(slot), nextUsedSlot(slot));
+		}
 		if(deleteRightChild) {
 			markSlotUsed(rid.getTupleNumber(), false);
 		}
@@ -402,8 +594,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * record id.
 	 * @param e - the entry with updated key and/or child pointers
 	 * @throws DbException if this entry is not on this page, entry slot is
-	 *         already empty, or updating this key would put the entry out of 
-	 *         order on the page
+	 *         already empty, or updating this key would put the entry out of
+	 *         order on the page or, for a compact page, not fit
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
 		RecordId rid = e.getRecordId();
@@ -413,6 +605,16 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+
+		int sizeChange = 0;
+		if(isCompact()) {
+			int slot = rid.getTupleNumber();
+			int prev = prevUsedSlot(slot);
+			int next = nextUsedSlot(slot);
+			sizeChange = getEntrySizeBetween(e.getKey(), prev, next) - getEntrySizeBetween(keys[slot], prev, next);
+			if(usedBytes + sizeChange > getCompactCapacity())
+				throw new DbException("no room on page to update entry with key " + e.getKey());
+		}
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -435,17 +637,19 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		usedBytes += sizeChange;
 	}
 
 	/**
 	 * Adds the specified entry to the page; the entry's recordId should be updated to 
 	 * reflect that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or key field type,
+	 * @throws DbException if the page is full (no empty slots, or for a compact page, not
+	 *         enough bytes) or key field type,
 	 *         table id, or child page category is a mismatch, or the entry is invalid
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKeyType(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -461,7 +665,9 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
+			if(isCompact())
+				usedBytes = getEntrySize(e.getKey(), null);
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -525,6 +731,13 @@ public class BTreeInternalPage extends BTreePage {
 					" left and right keys");
 		}
 
+		int size = 0;
+		if(isCompact()) {
+			size = getEntrySizeBetween(e.getKey(), lessOrEqKey, nextUsedSlot(lessOrEqKey));
+			if(usedBytes + size > getCompactCapacity())
+				throw new DbException("called insertEntry on page with no room for the entry.");
+		}
+
 		// shift entries back or forward to fill empty slot and make room for new entry
 		// while keeping entries in sorted order
 		int goodSlot = -1;
@@ -547,6 +760,7 @@ public class BTreeInternalPage extends BTreePage {
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
+		usedBytes += size;
 	}
 
 	/**
@@ -566,11 +780,18 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		// start from 1 because the first key slot is not used
+		// since a node with m keys has m+1 pointers
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
-	
+
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For a compact page, this is the
+	 * number of units of {@link #getCompactUnit()} bytes left, up to {@link #getMaxEntries()}.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
@@ -579,9 +800,74 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if(isCompact()) {
+			int unit = getCompactUnit();
+			int free = getMaxEntries() * unit - usedBytes;
+			return free < 0 ? 0 : Math.min(cnt, free / unit);
+		}
 		return cnt;
 	}
 
+	/**
+	 * The bytes in each of the units the capacity of a compact page is counted in: three of the
+	 * largest entries, as for {@link BTreeLeafPage#getCompactUnit()}.
+	 */
+	int getCompactUnit() {
+		return 3 * getMaxEntrySize();
+	}
+
+	/**
+	 * @return the space the entries on this page take: bytes for a compact page, and
+	 * otherwise in proportion to the number of entries
+	 */
+	int getUsedSpace() {
+		return isCompact() ? usedBytes : getNumEntries() * getEntrySpace();
+	}
+
+	/**
+	 * @return the space deleting an entry on this page would free, as for {@link #getUsedSpace()}
+	 * @param e - the entry, which must be on this page
+	 */
+	int getSpaceOf(BTreeEntry e) {
+		if(!isCompact())
+			return getEntrySpace();
+		int slot = e.getRecordId().getTupleNumber();
+		return getEntrySizeBetween(keys[slot], prevUsedSlot(slot), nextUsedSlot(slot));
+	}
+
+	/**
+	 * @return the space inserting an entry with a key into this page would take, as for
+	 * {@link #getUsedSpace()}
+	 * @param key - the key of the entry
+	 */
+	int getSpaceFor(Field key) {
+		if(!isCompact())
+			return getEntrySpace();
+		int lessOrEqKey = 0;
+		for (int i=1; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				if(keys[i].compare(Op.LESS_THAN_OR_EQ, key))
+					lessOrEqKey = i;
+				else
+					break;
+			}
+		}
+		return getEntrySizeBetween(key, lessOrEqKey, nextUsedSlot(lessOrEqKey));
+	}
+
+	private int getEntrySpace() {
+		return getKeySize() + INDEX_SIZE;
+	}
+
+	/**
+	 * Returns the number of slots on this page, including the first, which has a child
+	 * pointer but no key. For a compact page this is more than {@link #getMaxEntries()}
+	 * + 1: as many as the smallest entries would fill.
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -621,6 +907,43 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	/**
+	 * Find the child page to follow to the left-most leaf page possibly holding a key: the
+	 * left child of the first entry whose key is at least the key, since keys equal to it
+	 * may be in the left child as well as the right, or the right child of the last entry.
+	 * The entries are found by binary search.
+	 *
+	 * @param key - the key, or null for the left-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findChild(Field key) {
+		if(getNumEntries() == 0) {
+			return null;
+		}
+		if(key == null) {
+			return getChildId(0);
+		}
+		int s = searchSlots(1, numSlots, i -> key.compare(Op.LESS_THAN_OR_EQ, keys[i]));
+		return getChildId(prevUsedSlot(s));
+	}
+
+	/**
+	 * Find the child page to follow to the right-most leaf page possibly holding a key: the
+	 * left child of the first entry whose key is greater than the key, since keys equal to
+	 * an entry's may be in its right child as well as its left, or the right child of the
+	 * last entry. The entries are found by binary search.
+	 *
+	 * @param key - the key, or null for the right-most child
+	 * @return the id of the child page, or null if this page has no entries
+	 */
+	public BTreePageId findLastChild(Field key) {
+		if(getNumEntries() == 0) {
+			return null;
+		}
+		int s = key == null ? numSlots : searchSlots(1, numSlots, i -> key.compare(Op.LESS_THAN, keys[i]));
+		return getChildId(prevUsedSlot(s));
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
@@ -745,7 +1068,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -765,8 +1088,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is the child of the previous used slot, which
+					// need not be the adjacent one once entries have been deleted
+					int prev = entry - 1;
+					while(prev > 0 && !p.isSlotUsed(prev)) {
+						prev--;
+					}
+					BTreePageId childId = p.getChildId(prev);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
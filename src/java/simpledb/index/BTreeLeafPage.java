@@ -20,28 +20,37 @@ import java.io.*;
  *
  */
 public class BTreeLeafPage extends BTreePage {
+	// parent and sibling pointers, and the number of tuples, of a compact page
+	private static final int COMPACT_HEADER_SIZE = 3 * INDEX_SIZE + 2;
+
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
-	
+
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
 
+	private int usedBytes; // bytes taken by the records of a compact page
+
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
+		checkRep(new int[] { fieldid }, lowerBound, upperBound, checkoccupancy, depth);
+	}
+
+	public void checkRep(int[] fieldids, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.LEAF);
 
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, getKey(t, fieldids)));
+			prev = getKey(t, fieldids);
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+        assert !checkoccupancy || depth <= 0 || (getMaxTuples() - getNumEmptySlots() >= getMaxTuples() / 2);
 	}
 
 	/**
@@ -57,6 +66,11 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * A compact page (see {@link #isCompact()}) has no header bytes. The pointers are
+	 * followed by the number of tuples, then by each tuple in order: its slot number,
+	 * then its fields, with the key compressed against the key of the tuple before it,
+	 * other strings stored at their own length, and other fields as usual.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,8 +80,21 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxTuples();
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on more than one field, whose tuples
+	 * are kept in the order of their {@link #getKey(Tuple) keys}.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.numSlots = isCompact() ? getCompactCapacity() / getMinRecordSize() : getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent and sibling pointers
@@ -92,18 +119,23 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
-
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		if(isCompact()) {
+			readCompactTuples(dis);
+		}
+		else {
+			// read the header slots of this page
+			for (int i=0; i<header.length; i++)
+				header[i] = dis.readByte();
+
+			try{
+				// read the actual records of this page
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = readNextTuple(dis,i);
+			}catch(NoSuchElementException e){
+				e.printStackTrace();
+			}
 		}
 		dis.close();
 
@@ -113,7 +145,13 @@ public class BTreeLeafPage extends BTreePage {
 	/** 
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
-	public int getMaxTuples() {        
+	public int getMaxTuples() {
+		if(isCompact()) {
+			// one more than the units there is room for with a tuple to spare, so that a page with
+			// an empty slot has room for any tuple; odd, so that half full holds after a split
+			int max = (getCompactCapacity() - getMaxRecordSize()) / getCompactUnit() + 1;
+			return Math.max(1, max % 2 == 0 ? max - 1 : max);
+		}
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8;
@@ -123,14 +161,188 @@ public class BTreeLeafPage extends BTreePage {
 	/**
 	 * Computes the number of bytes in the header of a page in a BTreeFile with each tuple occupying tupleSize bytes
 	 */
-	private int getHeaderSize() {        
-		int tuplesPerPage = getMaxTuples();
+	private int getHeaderSize() {
+		int tuplesPerPage = numSlots;
 		int hb = (tuplesPerPage / 8);
 		if (hb * 8 < tuplesPerPage) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return the number of bytes for records in a compact page
+	 */
+	int getCompactCapacity() {
+		return BufferPool.getPageSize() - COMPACT_HEADER_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes the largest tuple takes in a compact page
+	 */
+	int getMaxRecordSize() {
+		int size = 2;
+		for (int j=0; j<td.numFields(); j++) {
+			if(j == keyField)
+				size += maxCompactKeySize();
+			else if(td.getFieldType(j) == Type.STRING_TYPE)
+				size += 1 + Type.STRING_LEN;
+			else
+				size += td.getFieldType(j).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes the smallest tuple takes in a compact page
+	 */
+	private int getMinRecordSize() {
+		int size = 2;
+		for (int j=0; j<td.numFields(); j++) {
+			if(j == keyField)
+				size += minCompactKeySize();
+			else if(td.getFieldType(j) == Type.STRING_TYPE)
+				size += 1;
+			else
+				size += td.getFieldType(j).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes a tuple takes in a compact page
+	 * @param t - the tuple
+	 * @param prevKey - the key of the tuple before it on the page, or null
+	 */
+	int getRecordSize(Tuple t, Field prevKey) {
+		int size = 2;
+		for (int j=0; j<td.numFields(); j++) {
+			if(j == keyField)
+				size += compactKeySize(t.getField(j), prevKey);
+			else if(td.getFieldType(j) == Type.STRING_TYPE)
+				size += 1 + compactString(t.getField(j)).length();
+			else
+				size += td.getFieldType(j).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes a compact page takes to hold a tuple between the tuples
+	 * in two slots: its own record, and the change in how much of the next key it shares
+	 * @param t - the tuple
+	 * @param prevSlot - the slot of the tuple before it, or -1
+	 * @param nextSlot - the slot of the tuple after it, or -1
+	 */
+	private int getRecordSizeBetween(Tuple t, int prevSlot, int nextSlot) {
+		Field prevKey = prevSlot == -1 ? null : tuples[prevSlot].getField(keyField);
+		Field key = t.getField(keyField);
+		int size = getRecordSize(t, prevKey);
+		if(nextSlot != -1) {
+			Field nextKey = tuples[nextSlot].getField(keyField);
+			size += compactKeySize(nextKey, key) - compactKeySize(nextKey, prevKey);
+		}
+		return size;
+	}
+
+	private int prevUsedSlot(int i) {
+		for (i--; i >= 0; i--)
+			if (isSlotUsed(i))
+				return i;
+		return -1;
+	}
+
+	private int nextUsedSlot(int i) {
+		for (i++; i < numSlots; i++)
+			if (isSlotUsed(i))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Read the tuples of a compact page
+	 */
+	private void readCompactTuples(DataInputStream dis) throws IOException {
+		int numTuples = dis.readUnsignedShort();
+		Field prevKey = null;
+		for (int i=0; i<numTuples; i++) {
+			int slotId = dis.readUnsignedShort();
+			Tuple t = new Tuple(td);
+			t.setRecordId(new RecordId(pid, slotId));
+			for (int j=0; j<td.numFields(); j++) {
+				if(j == keyField)
+					t.setField(j, readCompactKey(dis, prevKey));
+				else if(td.getFieldType(j) == Type.STRING_TYPE)
+					t.setField(j, readCompactString(dis));
+				else {
+					try {
+						t.setField(j, td.getFieldType(j).parse(dis));
+					} catch (java.text.ParseException e) {
+						e.printStackTrace();
+						throw new NoSuchElementException("parsing error!");
+					}
+				}
+			}
+			usedBytes += getRecordSize(t, prevKey);
+			prevKey = t.getField(keyField);
+			markSlotUsed(slotId, true);
+			tuples[slotId] = t;
+		}
+	}
+
+	/**
+	 * Write the tuples of a compact page
+	 */
+	private void writeCompactTuples(DataOutputStream dos) throws IOException {
+		dos.writeShort(getNumTuples());
+		Field prevKey = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			dos.writeShort(i);
+			for (int j=0; j<td.numFields(); j++) {
+				Field f = tuples[i].getField(j);
+				if(j == keyField)
+					writeCompactKey(dos, f, prevKey);
+				else if(td.getFieldType(j) == Type.STRING_TYPE)
+					writeCompactString(dos, f);
+				else
+					f.serialize(dos);
+			}
+			prevKey = tuples[i].getField(keyField);
+		}
+	}
+
+	/**
+	 * Create a page holding tuples in its first slots, for building pages in bulk
+	 * without shifting records as {@link #insertTuple(Tuple)} does.
+	 *
+	 * @param id - the id of the page
+	 * @param tuples - the tuples, in key order, which are copied
+	 * @param keyFields - the fields which the index is keyed on
+	 * @throws DbException if the tuples do not fit on the page
+	 */
+	static BTreeLeafPage fromTuples(BTreePageId id, List<Tuple> tuples, int[] keyFields) throws IOException, DbException {
+		BTreeLeafPage p = new BTreeLeafPage(id, createEmptyPageData(), keyFields);
+		if (tuples.size() > p.numSlots)
+			throw new DbException("too many tuples for one page");
+		Field prevKey = null;
+		for (int i=0; i<tuples.size(); i++) {
+			Tuple t = new Tuple(p.td);
+			for (int j=0; j<p.td.numFields(); j++)
+				t.setField(j, tuples.get(i).getField(j));
+			t.setRecordId(new RecordId(id, i));
+			p.markSlotUsed(i, true);
+			p.tuples[i] = t;
+			if (p.isCompact()) {
+				p.usedBytes += p.getRecordSize(t, prevKey);
+				prevKey = p.getKey(t);
+			}
+		}
+		if (p.isCompact() && p.usedBytes > p.getCompactCapacity())
+			throw new DbException("too many tuples for one page");
+		return p;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
@@ -140,7 +352,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -226,6 +438,17 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if(isCompact()) {
+			try {
+				writeCompactTuples(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -297,6 +520,10 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to delete null tuple.");
+		if (isCompact()) {
+			int slot = rid.getTupleNumber();
+			usedBytes -= getRecordSizeBetween(tuples[slot], prevUsedSlot(slot), nextUsedSlot(slot));
+		}
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
 	}
@@ -305,8 +532,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Adds the specified tuple to the page such that all records remain in sorted order;  
 	 * the tuple should be updated to reflect
 	 *  that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or tupledesc
-	 *         is mismatch.
+	 * @throws DbException if the page is full (no empty slots, or for a compact page, not
+	 *         enough bytes) or tupledesc is mismatch.
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
@@ -326,15 +553,15 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
+		Field key = getKey(t);
+		int lessOrEqKey = prevUsedSlot(searchSlots(0, numSlots,
+				i -> getKey(tuples[i]).compare(Predicate.Op.GREATER_THAN, key)));
+
+		int size = 0;
+		if (isCompact()) {
+			size = getRecordSizeBetween(t, lessOrEqKey, nextUsedSlot(lessOrEqKey));
+			if (usedBytes + size > getCompactCapacity())
+				throw new DbException("called addTuple on page with no room for the tuple.");
 		}
 
 		// shift records back or forward to fill empty slot and make room for new record
@@ -359,6 +586,7 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		usedBytes += size;
 	}
 
 	/**
@@ -441,20 +669,85 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of tuples currently stored on this page
 	 */
 	public int getNumTuples() {
-		return numSlots - getNumEmptySlots();
+		int cnt = 0;
+		for(int i=0; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For a compact page, this is the
+	 * number of units of {@link #getCompactUnit()} bytes left, up to {@link #getMaxTuples()}.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
 		for(int i=0; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if(isCompact()) {
+			int unit = getCompactUnit();
+			int free = getMaxTuples() * unit - usedBytes;
+			return free < 0 ? 0 : Math.min(cnt, free / unit);
+		}
 		return cnt;
 	}
 
+	/**
+	 * The bytes in each of the units the capacity of a compact page is counted in: three of the
+	 * largest tuples. Splits and steals balance pages by bytes, and tuples differ in size, so
+	 * units this large keep pages at least half full however the tuples fall.
+	 */
+	int getCompactUnit() {
+		return 3 * getMaxRecordSize();
+	}
+
+	/**
+	 * @return the space the tuples on this page take: bytes for a compact page, and
+	 * otherwise in proportion to the number of tuples
+	 */
+	int getUsedSpace() {
+		return isCompact() ? usedBytes : getNumTuples() * td.getSize();
+	}
+
+	/**
+	 * @return the space deleting a tuple on this page would free, as for {@link #getUsedSpace()}
+	 * @param t - the tuple, which must be on this page
+	 */
+	int getSpaceOf(Tuple t) {
+		if(!isCompact())
+			return td.getSize();
+		int slot = t.getRecordId().getTupleNumber();
+		return getRecordSizeBetween(tuples[slot], prevUsedSlot(slot), nextUsedSlot(slot));
+	}
+
+	/**
+	 * @return the space inserting a tuple into this page would take, as for {@link #getUsedSpace()}
+	 * @param t - the tuple
+	 */
+	int getSpaceFor(Tuple t) {
+		if(!isCompact())
+			return td.getSize();
+		int lessOrEqKey = -1;
+		for (int i=0; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				if(getKey(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, getKey(t)))
+					lessOrEqKey = i;
+				else
+					break;
+			}
+		}
+		return getRecordSizeBetween(t, lessOrEqKey, nextUsedSlot(lessOrEqKey));
+	}
+
+	/**
+	 * Returns the number of slots on this page, which for a compact page is more than
+	 * {@link #getMaxTuples()}: as many as the smallest tuples would fill
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -494,6 +787,32 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose keys are not less than a key,
+	 * in order, found by binary search (calling remove on this iterator throws an
+	 * UnsupportedOperationException)
+	 * @param key - the key, which may be a prefix of the keys of an index keyed on more
+	 * than one field
+	 */
+	public Iterator<Tuple> iterator(Field key) {
+		BTreeLeafPageIterator it = new BTreeLeafPageIterator(this);
+		it.curTuple = searchSlots(0, numSlots, i -> !getKey(tuples[i]).compare(Predicate.Op.LESS_THAN, key));
+		return it;
+	}
+
+	/**
+	 * @return an iterator over the tuples on this page whose keys are not greater than a
+	 * key, in reverse order, found by binary search (calling remove on this iterator
+	 * throws an UnsupportedOperationException)
+	 * @param key - the key, which may be a prefix of the keys of an index keyed on more
+	 * than one field
+	 */
+	public Iterator<Tuple> reverseIterator(Field key) {
+		BTreeLeafPageReverseIterator it = new BTreeLeafPageReverseIterator(this);
+		it.curTuple = searchSlots(0, numSlots, i -> getKey(tuples[i]).compare(Predicate.Op.GREATER_THAN, key)) - 1;
+		return it;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -578,7 +897,7 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 
 	public BTreeLeafPageReverseIterator(BTreeLeafPage p) {
 		this.p = p;
-		this.curTuple = p.getMaxTuples() - 1;
+		this.curTuple = p.getNumSlots() - 1;
 	}
 
 	public boolean hasNext() {
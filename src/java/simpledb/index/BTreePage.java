@@ -1,11 +1,20 @@
 package simpledb.index;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.function.IntPredicate;
+
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
@@ -26,6 +35,8 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
+	private final boolean compact;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -55,9 +66,75 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in order
+	 * @see #getKey(Tuple)
+	 */
+	public BTreePage(BTreePageId id, int[] keys) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		this.compact = keys.length == 1 && isCompact(td, keyField);
+	}
+
+	/**
+	 * @return the key of a tuple: its key field, or a {@link CompositeField} of its key
+	 * fields if the index is keyed on more than one
+	 * @param t - the tuple
+	 */
+	public Field getKey(Tuple t) {
+		return getKey(t, keyFields);
+	}
+
+	static Field getKey(Tuple t, int[] keyFields) {
+		if(keyFields.length == 1)
+			return t.getField(keyFields[0]);
+		Field[] fields = new Field[keyFields.length];
+		for (int i=0; i<keyFields.length; i++)
+			fields[i] = t.getField(keyFields[i]);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the number of bytes a key takes in a fixed-width slot
+	 */
+	protected int getKeySize() {
+		int size = 0;
+		for (int key : keyFields)
+			size += td.getFieldType(key).getLen();
+		return size;
+	}
+
+	/**
+	 * Read a key as written by its serialize method into a fixed-width slot.
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		if(keyFields.length == 1)
+			return td.getFieldType(keyField).parse(dis);
+		Type[] types = new Type[keyFields.length];
+		for (int i=0; i<keyFields.length; i++)
+			types[i] = td.getFieldType(keyFields[i]);
+		return CompositeField.parse(types, dis);
+	}
+
+	/**
+	 * @return whether a field can be a key of this index
+	 */
+	protected boolean isKeyType(Field f) {
+		if(keyFields.length == 1)
+			return f.getType().equals(td.getFieldType(keyField));
+		if(!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length)
+			return false;
+		for (int i=0; i<keyFields.length; i++) {
+			if(!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i])))
+				return false;
+		}
+		return true;
 	}
 
 	/**
@@ -134,6 +211,133 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * Whether the pages of this index are compact: rather than in fixed-width slots,
+	 * they store their records at their own length, with each key compressed against
+	 * the key before it on the page. Indexes on a single string key are, since a string takes
+	 * {@link Type#STRING_LEN} + 4 bytes in a fixed-width slot however short it is.
+	 * <p>
+	 * The capacity of a compact page is counted in units of a few of the largest
+	 * records it could be asked to hold, so that a page with an empty slot has room
+	 * for any record, but holds as many records as fit. Pages too small to count at
+	 * least five such units keep to fixed-width slots.
+	 */
+	boolean isCompact() {
+		return compact;
+	}
+
+	private static boolean isCompact(TupleDesc td, int keyField) {
+		if(td.getFieldType(keyField) != Type.STRING_TYPE)
+			return false;
+		// the largest record of either page, a tuple or a key and child pointer
+		int maxSize = 2 + maxCompactKeySize() + INDEX_SIZE;
+		for (int j=0; j<td.numFields(); j++) {
+			if(j != keyField)
+				maxSize += td.getFieldType(j) == Type.STRING_TYPE ? 1 + Type.STRING_LEN : td.getFieldType(j).getLen();
+		}
+		return BufferPool.getPageSize() >= 16 * maxSize;
+	}
+
+	/**
+	 * @return the number of bytes a key takes in a compact page
+	 * @param key - the key
+	 * @param prev - the key before it on the page, or null
+	 */
+	static int compactKeySize(Field key, Field prev) {
+		return 2 + compactString(key).length() - sharedPrefix(key, prev);
+	}
+
+	/**
+	 * @return the number of bytes the largest key takes in a compact page
+	 */
+	static int maxCompactKeySize() {
+		return 2 + Type.STRING_LEN;
+	}
+
+	/**
+	 * @return the number of bytes the smallest key takes in a compact page
+	 */
+	static int minCompactKeySize() {
+		return 2;
+	}
+
+	/**
+	 * Write a key to a compact page: the number of leading characters it shares with the
+	 * key before it, then the number of remaining characters, then those characters
+	 *
+	 * @param dos - the stream to write to
+	 * @param key - the key
+	 * @param prev - the key before it on the page, or null
+	 */
+	static void writeCompactKey(DataOutputStream dos, Field key, Field prev) throws IOException {
+		String s = compactString(key);
+		int shared = sharedPrefix(key, prev);
+		dos.writeByte(shared);
+		dos.writeByte(s.length() - shared);
+		dos.writeBytes(s.substring(shared));
+	}
+
+	/**
+	 * Read a key written by {@link #writeCompactKey(DataOutputStream, Field, Field)}
+	 *
+	 * @param dis - the stream to read from
+	 * @param prev - the key before it on the page, or null
+	 * @return the key
+	 */
+	static Field readCompactKey(DataInputStream dis, Field prev) throws IOException {
+		int shared = dis.readUnsignedByte();
+		byte[] suffix = new byte[dis.readUnsignedByte()];
+		dis.readFully(suffix);
+		String prefix = shared == 0 ? "" : compactString(prev).substring(0, shared);
+		return new StringField(prefix + new String(suffix), Type.STRING_LEN);
+	}
+
+	/**
+	 * Write a string that is not a key to a compact page: its length, then its characters
+	 *
+	 * @param dos - the stream to write to
+	 * @param f - the string
+	 */
+	static void writeCompactString(DataOutputStream dos, Field f) throws IOException {
+		String s = compactString(f);
+		dos.writeByte(s.length());
+		dos.writeBytes(s);
+	}
+
+	/**
+	 * Read a string written by {@link #writeCompactString(DataOutputStream, Field)}
+	 *
+	 * @param dis - the stream to read from
+	 * @return the string
+	 */
+	static Field readCompactString(DataInputStream dis) throws IOException {
+		byte[] bs = new byte[dis.readUnsignedByte()];
+		dis.readFully(bs);
+		return new StringField(new String(bs), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the value of a string field as a page stores it, cut to {@link Type#STRING_LEN}
+	 */
+	static String compactString(Field f) {
+		String s = ((StringField) f).getValue();
+		return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+	}
+
+	private static int sharedPrefix(Field key, Field prev) {
+		if(prev == null) {
+			return 0;
+		}
+		String a = compactString(key);
+		String b = compactString(prev);
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while(i < n && a.charAt(i) == b.charAt(i)) {
+			i++;
+		}
+		return i;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -144,5 +348,41 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
+	/**
+	 * Binary search the used slots of this page, which hold their keys in order, for the
+	 * first at which a condition on the key holds, given that once it holds it holds for
+	 * every later key. Unused slots between the used ones are skipped over.
+	 *
+	 * @param from - the first slot to search
+	 * @param to - the slot after the last to search
+	 * @param holds - the condition, tested on the number of a used slot
+	 * @return the first used slot from which the condition holds, or to if there is none
+	 */
+	protected int searchSlots(int from, int to, IntPredicate holds) {
+		int lo = from;
+		int hi = to;
+		// the condition fails at the used slots before lo and holds at those from hi on
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int s = mid;
+			while(s < hi && !isSlotUsed(s)) {
+				s++;
+			}
+			if(s == hi) {
+				hi = mid;
+			}
+			else if(holds.test(s)) {
+				hi = s;
+			}
+			else {
+				lo = s + 1;
+			}
+		}
+		while(lo < to && !isSlotUsed(lo)) {
+			lo++;
+		}
+		return lo;
+	}
+
 }
 
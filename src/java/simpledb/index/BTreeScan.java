@@ -15,18 +15,20 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, or in reverse sorted order
  */
 public class BTreeScan implements OpIterator {
 
 	private static final long serialVersionUID = 1L;
 
 	private boolean isOpen = false;
-	private final TransactionId tid;
+	private TransactionId tid;
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
+	private boolean reverse = false;
 	private transient DbFileIterator it;
 	private String tablename;
+	private int tableid;
 	private String alias;
 
 	/**
@@ -49,8 +51,29 @@ public class BTreeScan implements OpIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan over the specified table as a part of the
+	 * specified transaction, returning the tuples in sorted order or in
+	 * reverse sorted order.
+	 * 
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param tableid
+	 *            the table to scan.
+	 * @param tableAlias
+	 *            the alias of this table (needed by the parser)
+	 * @param ipred
+	 * 			  The index predicate to match. If null, the scan will return all tuples
+	 * @param reverse
+	 *            whether to return the tuples in reverse sorted order
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred, boolean reverse) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.reverse = reverse;
 		reset(tableid,tableAlias);
 	}
 
@@ -71,6 +94,44 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the id of the table the operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the transaction the scan is running as a part of
+	 */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * Run the scan as a part of another transaction from now on. The scan
+	 * must not be open.
+	 */
+	public void setTransactionId(TransactionId tid) {
+		this.tid = tid;
+		reset(tableid, alias);
+	}
+
+	/**
+	 * @return the predicate the keys of the tuples returned match, or null
+	 *         if the scan returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return whether the scan returns the tuples in reverse sorted order
+	 */
+	public boolean isReverse() {
+		return this.reverse;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -87,11 +148,13 @@ public class BTreeScan implements OpIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		this.tableid = tableid;
 		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+			this.it = reverse ? ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).iterator(tid, true)
+					: Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred, reverse);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
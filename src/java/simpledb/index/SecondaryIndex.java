@@ -0,0 +1,290 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A secondary index over a table stored in a HeapFile: a BTreeFile holding, for
+ * each tuple of the table, the values of the indexed fields followed by the
+ * tuple's row number in the heap file (see {@link HeapFile#ROW_NUMBER}), and then
+ * the values of its included fields, if any.
+ *
+ * The B+ tree is keyed on all of its fields, so that every entry is unique and
+ * the entry of a deleted tuple can be found again. A search on the indexed
+ * fields is a search on a prefix of that key (see {@link IndexPredicate}), and
+ * finds the row numbers of the matching tuples, which {@link SecondaryIndexScan}
+ * then reads from the heap file. The B+ tree is keyed on the indexed fields and
+ * the row number only; the included fields are stored in its leaves alongside, so
+ * that a search needing no other fields of the table is answered from the index
+ * without reading the heap file.
+ *
+ * The index is built from the table when it is registered with
+ * {@link simpledb.common.Catalog#addIndex}, and is then maintained by
+ * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}, which call
+ * {@link #insert} and {@link #delete} for every index registered on the
+ * modified table.
+ *
+ * @see simpledb.common.Catalog#addIndex
+ */
+public class SecondaryIndex {
+
+	private final int tableid;
+	private final int[] fields;
+	private final int[] included;
+	private final HeapFile table;
+	private final BTreeFile file;
+	private final String name;
+
+	/**
+	 * Create a secondary index over some fields of a table. The index is empty
+	 * until it is registered in the catalog.
+	 *
+	 * @param f - the file the B+ tree of the index is stored in
+	 * @param tableid - the table to index, which must be stored in a HeapFile
+	 * @param fields - the fields of the table to index, in order
+	 */
+	public SecondaryIndex(File f, int tableid, int[] fields) {
+		this(f, tableid, fields, new int[0]);
+	}
+
+	/**
+	 * Create a secondary index over some fields of a table, whose entries also
+	 * hold the values of some other fields of the table. The index is empty
+	 * until it is registered in the catalog.
+	 *
+	 * @param f - the file the B+ tree of the index is stored in
+	 * @param tableid - the table to index, which must be stored in a HeapFile
+	 * @param fields - the fields of the table to index, in order
+	 * @param included - the fields of the table to store in the entries besides
+	 *        the indexed ones, which they must not repeat
+	 */
+	public SecondaryIndex(File f, int tableid, int[] fields, int[] included) {
+		if(!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+			throw new IllegalArgumentException("table " + tableid + " isn't a heap file");
+		}
+		if(fields.length == 0) {
+			throw new IllegalArgumentException("an index needs at least one field");
+		}
+		Set<Integer> stored = new HashSet<>();
+		for(int field : fields) {
+			stored.add(field);
+		}
+		for(int field : included) {
+			if(!stored.add(field)) {
+				throw new IllegalArgumentException("field " + field + " is already stored in the index");
+			}
+		}
+		this.tableid = tableid;
+		this.fields = fields.clone();
+		this.included = included.clone();
+		this.table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+
+		TupleDesc td = table.getTupleDesc();
+		Type[] types = new Type[fields.length + 1 + included.length];
+		String[] names = new String[fields.length + 1 + included.length];
+		int[] keys = new int[fields.length + 1];
+		StringBuilder sb = new StringBuilder(Database.getCatalog().getTableName(tableid)).append("$index(");
+		for(int i = 0; i < fields.length; i++) {
+			types[i] = td.getFieldType(fields[i]);
+			names[i] = td.getFieldName(fields[i]);
+			keys[i] = i;
+			sb.append(i > 0 ? "," : "").append(names[i]);
+		}
+		types[fields.length] = Type.INT_TYPE;
+		names[fields.length] = HeapFile.ROW_NUMBER_NAME;
+		keys[fields.length] = fields.length;
+		for(int i = 0; i < included.length; i++) {
+			types[fields.length + 1 + i] = td.getFieldType(included[i]);
+			names[fields.length + 1 + i] = td.getFieldName(included[i]);
+			sb.append(i > 0 ? "," : " include ").append(names[fields.length + 1 + i]);
+		}
+		this.file = new BTreeFile(f, keys, new TupleDesc(types, names));
+		this.name = sb.append(")").toString();
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * @return the indexed fields of the table, in order
+	 */
+	public int[] getFields() {
+		return fields.clone();
+	}
+
+	/**
+	 * @return the fields of the table the entries hold besides the indexed
+	 *         ones, in order
+	 */
+	public int[] getIncludedFields() {
+		return included.clone();
+	}
+
+	/**
+	 * @param field - a field of the table
+	 * @return the number of the field in the entries of the index, or -1 if
+	 *         they don't hold it
+	 */
+	public int entryField(int field) {
+		for(int i = 0; i < fields.length; i++) {
+			if(fields[i] == field) {
+				return i;
+			}
+		}
+		for(int i = 0; i < included.length; i++) {
+			if(included[i] == field) {
+				return fields.length + 1 + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the B+ tree holding the entries of the index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the name the B+ tree of the index is known by in the catalog
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Fill the index with the entries of the tuples the table holds now. The
+	 * index must be empty, with its B+ tree but not itself in the catalog yet;
+	 * the entries are sorted and bulk loaded. Called by
+	 * {@link simpledb.common.Catalog#addIndex}.
+	 *
+	 * @param tid - the transaction scanning the table
+	 */
+	public void build(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		int[] read = Arrays.copyOf(fields, fields.length + 1 + included.length);
+		read[fields.length] = HeapFile.ROW_NUMBER;
+		System.arraycopy(included, 0, read, fields.length + 1, included.length);
+		BTreeBulkLoader loader = new BTreeBulkLoader(file);
+		DbFileIterator it = table.iterator(tid, Collections.emptyList(), read);
+		it.open();
+		while(it.hasNext()) {
+			loader.add(it.next());
+		}
+		it.close();
+		loader.finish();
+	}
+
+	/**
+	 * @param t - a tuple of the table, with the record id it is stored at
+	 * @return the entry of the index for t
+	 */
+	public Tuple entry(Tuple t) {
+		Tuple entry = new Tuple(file.getTupleDesc());
+		for(int i = 0; i < fields.length; i++) {
+			entry.setField(i, t.getField(fields[i]));
+		}
+		entry.setField(fields.length, new IntField(table.rowNumber(t.getRecordId())));
+		for(int i = 0; i < included.length; i++) {
+			entry.setField(fields.length + 1 + i, t.getField(included[i]));
+		}
+		return entry;
+	}
+
+	/**
+	 * Add the entry of a tuple just inserted into the table.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the tuple, with the record id it was stored at
+	 */
+	public void insert(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Database.getBufferPool().insertTuple(tid, file.getId(), entry(t));
+	}
+
+	/**
+	 * Remove the entry of a tuple about to be deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple, still with the record id it is stored at
+	 */
+	public void delete(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple entry = entry(t);
+		// the entry is unique, so a search on all of its key fields finds it, with its record id
+		Field[] key = new Field[fields.length + 1];
+		for(int i = 0; i < key.length; i++) {
+			key[i] = entry.getField(i);
+		}
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new CompositeField(key)));
+		it.open();
+		Tuple stored = it.hasNext() ? it.next() : null;
+		it.close();
+		if(stored == null) {
+			throw new DbException("tuple " + t.getRecordId() + " has no entry in index " + name);
+		}
+		Database.getBufferPool().deleteTuple(tid, stored);
+	}
+
+	/**
+	 * Find the tuples of the table whose indexed fields match a predicate.
+	 *
+	 * @param tid - the transaction searching the index
+	 * @param ipred - the predicate on the indexed fields; on an index of more
+	 *        than one field, its value may be a {@link CompositeField} of the
+	 *        values of the first few of them
+	 * @return the row numbers of the matching tuples, in increasing order
+	 */
+	public int[] search(TransactionId tid, IndexPredicate ipred)
+			throws DbException, TransactionAbortedException {
+		int[] rows = new int[16];
+		int n = 0;
+		DbFileIterator it = file.indexIterator(tid, ipred);
+		it.open();
+		while(it.hasNext()) {
+			if(n == rows.length) {
+				rows = Arrays.copyOf(rows, 2 * n);
+			}
+			rows[n++] = ((IntField) it.next().getField(fields.length)).getValue();
+		}
+		it.close();
+		rows = Arrays.copyOf(rows, n);
+		Arrays.sort(rows);
+		return rows;
+	}
+
+	/**
+	 * Read a tuple of the table from its page.
+	 *
+	 * @param tid - the transaction reading the tuple
+	 * @param rowNumber - the row number of the tuple, as found by {@link #search}
+	 * @return the tuple, with its record id
+	 */
+	public Tuple readTuple(TransactionId tid, int rowNumber)
+			throws DbException, TransactionAbortedException {
+		RecordId rid = table.recordId(rowNumber);
+		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+		TupleDesc td = table.getTupleDesc();
+		Tuple t = new Tuple(td);
+		for(int i = 0; i < td.numFields(); i++) {
+			t.setField(i, page.getField(rid.getTupleNumber(), i));
+		}
+		t.setRecordId(rid);
+		return t;
+	}
+}
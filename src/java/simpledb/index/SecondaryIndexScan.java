@@ -0,0 +1,224 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an operator which reads the tuples of a heap file
+ * table whose indexed fields match a predicate, by searching a
+ * {@link SecondaryIndex} of the table.
+ *
+ * The row numbers the search finds are sorted before any tuple is read, so
+ * the tuples are returned in the order they are stored in, not in the order
+ * of the index, and each page of the table holding matching tuples is read
+ * in the order of the file, its tuples one after the other.
+ *
+ * A scan returning only fields the entries of the index hold (see
+ * {@link SecondaryIndex#entryField}) reads them from the entries instead,
+ * in the order of the index, without reading the table at all.
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final String alias;
+	private final TupleDesc myTd;
+	private final int[] fields;
+	private final int[] entryFields;
+	private int[] rows;
+	private int next;
+	private transient DbFileIterator entries;
+
+	/**
+	 * Creates a scan through a secondary index as a part of the specified
+	 * transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to search
+	 * @param tableAlias
+	 *            the alias of the indexed table; the returned tupleDesc has
+	 *            fields with name tableAlias.fieldName, as {@link BTreeScan}'s
+	 * @param ipred
+	 *            The predicate the indexed fields of the returned tuples match
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this(tid, index, tableAlias, ipred, null);
+	}
+
+	/**
+	 * Creates a scan returning some fields of the tuples found through a
+	 * secondary index, read from the entries of the index alone.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to search
+	 * @param tableAlias
+	 *            the alias of the indexed table
+	 * @param ipred
+	 *            The predicate the indexed fields of the returned tuples match
+	 * @param fields
+	 *            the fields of the table to return, in order, which the
+	 *            entries of the index must all hold; or null to return every
+	 *            field, read from the table
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+			int[] fields) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		if (fields == null) {
+			this.fields = null;
+			this.entryFields = null;
+			fields = new int[td.numFields()];
+			for (int i = 0; i < fields.length; i++)
+				fields[i] = i;
+		} else {
+			this.fields = fields.clone();
+			this.entryFields = new int[fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				entryFields[i] = index.entryField(fields[i]);
+				if (entryFields[i] < 0)
+					throw new IllegalArgumentException("index " + index.getName() + " doesn't hold field " + fields[i]);
+			}
+		}
+		String[] names = new String[fields.length];
+		Type[] types = new Type[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			names[i] = tableAlias + "." + td.getFieldName(fields[i]);
+			types[i] = td.getFieldType(fields[i]);
+		}
+		myTd = new TupleDesc(types, names);
+	}
+
+	/**
+	 * @return the name of the indexed table in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the indexed table
+	 */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return index.getTableId();
+	}
+
+	/**
+	 * @return the index the scan searches
+	 */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the predicate the indexed fields of the tuples returned match
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * @return the fields of the table the scan returns, read from the entries
+	 *         of the index, or null if it returns every field, read from the
+	 *         table
+	 */
+	public int[] getFields() {
+		return fields == null ? null : fields.clone();
+	}
+
+	/**
+	 * Run the scan as a part of another transaction from now on. The scan
+	 * must not be open.
+	 */
+	public void setTransactionId(TransactionId tid) {
+		this.tid = tid;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		if (fields == null) {
+			rows = index.search(tid, ipred);
+			next = 0;
+		} else {
+			entries = index.getFile().indexIterator(tid, ipred);
+			entries.open();
+		}
+		isOpen = true;
+	}
+
+	/**
+	 * @return the TupleDesc of the indexed table, or of the fields of it the
+	 *         scan returns, with field names prefixed with the tableAlias
+	 *         string from the constructor
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if (entries != null)
+			return entries.hasNext();
+		return next < rows.length;
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		if (entries != null) {
+			Tuple entry = entries.next();
+			Tuple t = new Tuple(myTd);
+			for (int i = 0; i < entryFields.length; i++)
+				t.setField(i, entry.getField(entryFields[i]));
+			return t;
+		}
+		return index.readTuple(tid, rows[next++]);
+	}
+
+	public void close() {
+		if (entries != null) {
+			entries.close();
+			entries = null;
+		}
+		rows = null;
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
@@ -0,0 +1,144 @@
+package simpledb.optimizer;
+
+import simpledb.execution.Predicate;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An equi-depth histogram over a single integer-based field: every bucket
+ * holds (about) the same number of values, so skewed columns get narrow
+ * buckets where the data is dense. Each bucket records its bounds, its
+ * number of values and its number of distinct values.
+ * <p>
+ * The histogram is built at once from all (or a sample of) the column's
+ * values, since bucket boundaries depend on their order.
+ */
+public class EquiDepthHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] lo;
+    private final int[] hi;
+    private final int[] count;
+    private final int[] distinct;
+    private final int numValues;
+
+    /**
+     * Create a new EquiDepthHistogram.
+     *
+     * @param buckets The maximum number of buckets
+     * @param values  The values to histogram; not modified
+     * @param n       The number of values of the array to use
+     */
+    public EquiDepthHistogram(int buckets, int[] values, int n) {
+        int[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        int numBuckets = n == 0 ? 0 : Math.min(buckets, n);
+        lo = new int[numBuckets];
+        hi = new int[numBuckets];
+        count = new int[numBuckets];
+        distinct = new int[numBuckets];
+        numValues = n;
+
+        for (int b = 0; b < numBuckets; b++) {
+            int start = (int) ((long) n * b / numBuckets);
+            int end = (int) ((long) n * (b + 1) / numBuckets);
+            lo[b] = sorted[start];
+            hi[b] = sorted[end - 1];
+            count[b] = end - start;
+            int d = 1;
+            for (int i = start + 1; i < end; i++) {
+                if (sorted[i] != sorted[i - 1]) {
+                    d++;
+                }
+            }
+            distinct[b] = d;
+        }
+    }
+
+    /** @return the estimated fraction of values less than v */
+    private double lessThan(int v) {
+        double res = 0;
+        for (int b = 0; b < lo.length; b++) {
+            if (v > hi[b]) {
+                res += count[b];
+            } else if (v > lo[b]) {
+                // assume values are spread uniformly over the bucket
+                res += count[b] * (double) ((long) v - lo[b]) / ((long) hi[b] - lo[b] + 1);
+            } else {
+                break;
+            }
+        }
+        return res / numValues;
+    }
+
+    /** @return the estimated fraction of values equal to v */
+    private double equalTo(int v) {
+        double res = 0;
+        for (int b = 0; b < lo.length; b++) {
+            if (v >= lo[b] && v <= hi[b]) {
+                res += (double) count[b] / distinct[b];
+            }
+        }
+        return res / numValues;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this table.
+     *
+     * @param op Operator
+     * @param v  Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        if (numValues == 0) {
+            return op == Predicate.Op.NOT_EQUALS ? 1.0 : 0.0;
+        }
+        double lt = lessThan(v);
+        double eq = Math.min(equalTo(v), 1.0 - lt);
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return eq;
+            case NOT_EQUALS:
+                return 1.0 - eq;
+            case LESS_THAN:
+                return lt;
+            case LESS_THAN_OR_EQ:
+                return lt + eq;
+            case GREATER_THAN:
+                return 1.0 - lt - eq;
+            case GREATER_THAN_OR_EQ:
+                return 1.0 - lt;
+        }
+        throw new RuntimeException("shouldn't get here");
+    }
+
+    /**
+     * @return the number of distinct values in the histogram; a value that
+     * spans several buckets is counted once
+     */
+    public int distinctValues() {
+        int d = 0;
+        for (int b = 0; b < distinct.length; b++) {
+            d += distinct[b];
+            if (b > 0 && lo[b] == hi[b - 1]) {
+                d--;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int b = 0; b < lo.length; b++) {
+            sb.append('[').append(lo[b]).append(", ").append(hi[b]).append("]: ")
+                    .append(count[b]).append(" (").append(distinct[b]).append(" distinct)\n");
+        }
+        return sb.toString();
+    }
+}
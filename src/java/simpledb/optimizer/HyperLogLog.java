@@ -0,0 +1,85 @@
+package simpledb.optimizer;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values added to
+ * it in constant space (2^P one-byte registers), with a standard error of
+ * about 1.04 / sqrt(2^P), i.e. 1.6%.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int P = 12;
+    private static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    /** Add an integer value to the sketch */
+    public void addValue(int v) {
+        add(mix(v));
+    }
+
+    /** Add a string value to the sketch */
+    public void addValue(String s) {
+        // 64-bit FNV-1a; String.hashCode() has too few bits for large tables
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        add(mix(h));
+    }
+
+    /** The finalizer of MurmurHash3, spreads every input bit over the output */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void add(long hash) {
+        int idx = (int) (hash >>> (64 - P));
+        // position of the first 1 bit in the remaining bits; the sentinel bit
+        // bounds the rank by 64 - P + 1
+        long w = (hash << P) | (1L << (P - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+        if (rank > registers[idx]) {
+            registers[idx] = rank;
+        }
+    }
+
+    /** Add every value seen by other to this sketch */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < M; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / M);
+        double e = alpha * M * M / sum;
+        if (e <= 2.5 * M && zeros > 0) {
+            // small range correction: linear counting
+            e = M * Math.log((double) M / zeros);
+        }
+        return Math.round(e);
+    }
+}
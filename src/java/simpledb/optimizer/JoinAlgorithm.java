@@ -0,0 +1,18 @@
+package simpledb.optimizer;
+
+/**
+ * The algorithms a join can be executed with. The optimizer estimates the
+ * cost of each one that can execute a join (see
+ * {@link JoinOptimizer#estimateJoinCost(JoinAlgorithm, LogicalJoinNode, int, int, double, double, TableStats)})
+ * and records the cheapest in the {@link LogicalJoinNode}.
+ */
+public enum JoinAlgorithm {
+    /** Scan the inner once per block of outer tuples held in memory */
+    BLOCK_NESTED_LOOP,
+    /** Hash the outer, then probe the hash table with each inner tuple; equality only */
+    HASH,
+    /** Sort both sides on the join field and merge them; equality only */
+    SORT_MERGE,
+    /** Look up each outer tuple in the B+ tree the inner table is keyed on */
+    INDEX_NESTED_LOOP
+}
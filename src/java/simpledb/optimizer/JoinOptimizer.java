@@ -3,7 +3,10 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
-import simpledb.storage.TupleDesc;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.transaction.TransactionId;
 
 import java.util.*;
 
@@ -19,6 +22,26 @@ public class JoinOptimizer {
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
+    // joins of more relations than dpThreshold are ordered greedily, as are
+    // those whose dynamic program runs longer than planningBudgetMillis
+    private static volatile int dpThreshold = 16;
+    private static volatile long planningBudgetMillis = 500;
+
+    /**
+     * Configure when orderJoins gives up on finding the cheapest plan and
+     * orders joins greedily instead.
+     *
+     * @param relations    the most relations to plan by dynamic programming
+     * @param budgetMillis how long dynamic programming may run, or 0 for no limit
+     */
+    public static void setPlanningLimits(int relations, long budgetMillis) {
+        if (relations < 1 || budgetMillis < 0) {
+            throw new IllegalArgumentException("invalid planning limits");
+        }
+        dpThreshold = relations;
+        planningBudgetMillis = budgetMillis;
+    }
+
     /**
      * Constructor
      *
@@ -31,12 +54,18 @@ public class JoinOptimizer {
     }
 
     /**
-     * Return best iterator for computing a given logical join, given the
-     * specified statistics, and the provided left and right subplans. Note that
-     * there is insufficient information to determine which plan should be the
-     * inner/outer here -- because OpIterator's don't provide any cardinality
-     * estimates, and stats only has information about the base tables. For this
-     * reason, the plan1
+     * Return the iterator computing a given logical join with the algorithm
+     * the optimizer chose for it (see {@link LogicalJoinNode#algorithm}).
+     * Joins that weren't planned have no cardinality estimates to choose by,
+     * and are computed by a hash join for equality or else a block nested
+     * loops join.
+     * <p>
+     * An index nested loops join replaces plan2, which must be a scan of the
+     * inner table, possibly under filters, whose B+ tree is keyed on the join
+     * field; otherwise the join falls back on the default algorithm.
+     * <p>
+     * A semi-join or anti-join with a subquery is always a
+     * {@link HashSemiJoin}.
      *
      * @param lj    The join being considered
      * @param plan1 The left join node's child
@@ -46,7 +75,6 @@ public class JoinOptimizer {
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
 
         int t1id = 0, t2id = 0;
-        OpIterator j;
 
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
@@ -68,28 +96,79 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (lj instanceof LogicalSubplanJoinNode && ((LogicalSubplanJoinNode) lj).isSemiJoin()) {
+            return new HashSemiJoin(p, plan1, plan2,
+                    ((LogicalSubplanJoinNode) lj).kind == LogicalSubplanJoinNode.Kind.ANTI);
+        }
 
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[]{p, plan1, plan2});
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
+        JoinAlgorithm a = lj.algorithm;
+        if (a == JoinAlgorithm.INDEX_NESTED_LOOP) {
+            OpIterator j = instantiateIndexJoin(p, plan1, plan2);
+            if (j != null) {
+                return j;
             }
-        } else {
-            j = new Join(p, plan1, plan2);
+            a = null;
         }
+        if (a == null) {
+            a = lj.p == Predicate.Op.EQUALS ? JoinAlgorithm.HASH : JoinAlgorithm.BLOCK_NESTED_LOOP;
+        }
+        switch (a) {
+            case HASH:
+                return new HashEquiJoin(p, plan1, plan2);
+            case SORT_MERGE:
+                return new SortMergeJoin(p, plan1, plan2);
+            default:
+                return new BlockNestedLoopJoin(p, plan1, plan2);
+        }
+    }
 
-        return j;
-
+    /**
+     * @return an index nested loops join of plan1 with the table plan2 scans,
+     * or null if plan2 isn't a filtered scan (or index scan) of a table indexed
+     * on the join field
+     */
+    private static OpIterator instantiateIndexJoin(JoinPredicate p, OpIterator plan1, OpIterator plan2) {
+        List<Predicate> filters = new ArrayList<>();
+        OpIterator inner = plan2;
+        while (inner instanceof Filter) {
+            filters.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        TransactionId tid;
+        int tableId;
+        String alias;
+        if (inner instanceof SeqScan) {
+            SeqScan scan = (SeqScan) inner;
+            tid = scan.getTransactionId();
+            tableId = scan.getTableId();
+            alias = scan.getAlias();
+            filters.addAll(scan.getFilters());
+        } else if (inner instanceof BTreeScan) {
+            // the join looks up the key itself; the scan's key range
+            // becomes one more filter on the tuples it finds
+            BTreeScan scan = (BTreeScan) inner;
+            tid = scan.getTransactionId();
+            tableId = scan.getTableId();
+            alias = scan.getAlias();
+            IndexPredicate ipred = scan.getIndexPredicate();
+            if (ipred != null) {
+                filters.addAll(ipred.toPredicates(
+                        ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyFields()));
+            }
+        } else {
+            return null;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != p.getField2()) {
+            return null;
+        }
+        return new IndexNestedLoopJoin(p, plan1, tid, tableId, alias, filters);
     }
 
     /**
-     * Estimate the cost of a join.
+     * Estimate the cost of a join, executed with the cheapest algorithm that
+     * doesn't depend on the shape of its inner side (so not an index nested
+     * loops join; see {@link #chooseJoinAlgorithm}).
      * <p>
      * The cost of the join should be calculated based on the join algorithm (or
      * algorithms) that you implemented for Lab 2. It should be a function of
@@ -110,19 +189,96 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
                                    double cost1, double cost2) {
-        // joincost(t1 join t2) = scancost(t1) + ntups(t1) x scancost(t2) //IO cost
-        //                                     + ntups(t1) x ntups(t2) //CPU cost
+        JoinAlgorithm a = chooseJoinAlgorithm(j, card1, card2, cost1, cost2, null);
+        return estimateJoinCost(a, j, card1, card2, cost1, cost2, null);
+    }
+
+    /**
+     * Choose the cheapest algorithm that can execute a join.
+     *
+     * @param j          the join
+     * @param card1      estimated cardinality of the outer side
+     * @param card2      estimated cardinality of the inner side
+     * @param cost1      estimated cost of computing the outer side
+     * @param cost2      estimated cost of computing the inner side
+     * @param innerIndex the statistics of the inner table if the inner side
+     *                   is a scan of a table whose B+ tree is keyed on the
+     *                   inner join field, or null
+     * @return the algorithm with the lowest estimated cost
+     */
+    public JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1, int card2,
+                                             double cost1, double cost2, TableStats innerIndex) {
+        JoinAlgorithm best = null;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (JoinAlgorithm a : JoinAlgorithm.values()) {
+            double cost = algorithmCost(a, j.p, card1, card2, cost1, cost2, innerIndex);
+            if (best == null || cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of a join executed with a particular algorithm, with
+     * the arguments of {@link #chooseJoinAlgorithm}.
+     *
+     * @return the estimated cost, or infinity if the algorithm can't execute
+     * the join
+     */
+    public double estimateJoinCost(JoinAlgorithm a, LogicalJoinNode j, int card1, int card2,
+                                   double cost1, double cost2, TableStats innerIndex) {
         if (j instanceof LogicalSubplanJoinNode) {
+            if (((LogicalSubplanJoinNode) j).isSemiJoin()) {
+                // the subquery is computed and hashed once, then each
+                // outer tuple is looked up
+                return cost1 + cost2 + card2 + card1;
+            }
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
         }
+        return algorithmCost(a, j.p, card1, card2, cost1, cost2, innerIndex);
+    }
+
+    private static double algorithmCost(JoinAlgorithm a, Predicate.Op op, int card1, int card2,
+                                        double cost1, double cost2, TableStats innerIndex) {
+        switch (a) {
+            case BLOCK_NESTED_LOOP:
+                // the inner is computed once per block of the outer, and every
+                // pair of tuples is compared
+                return cost1 + blocks(card1, BlockNestedLoopJoin.BLOCK_SIZE) * cost2 + (double) card1 * card2;
+            case HASH: {
+                if (op != Predicate.Op.EQUALS) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                // the outer is hashed in chunks that fit in memory; the inner
+                // is computed and probes the table once per chunk
+                double chunks = blocks(card1, HashEquiJoin.MAP_SIZE);
+                return cost1 + chunks * cost2 + card1 + chunks * card2;
+            }
+            case SORT_MERGE:
+                if (op != Predicate.Op.EQUALS) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1 + card2;
+            case INDEX_NESTED_LOOP:
+                if (innerIndex == null || op == Predicate.Op.LIKE || op == Predicate.Op.NOT_EQUALS) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                // the inner is never scanned; each outer tuple is looked up
+                return cost1 + card1 * innerIndex.estimateIndexLookupCost(op);
+        }
+        throw new IllegalArgumentException("unknown join algorithm " + a);
+    }
+
+    private static double blocks(int card, int blockSize) {
+        return Math.max(1.0, Math.ceil((double) card / blockSize));
+    }
+
+    private static double sortCost(int card) {
+        return card < 2 ? 0 : card * (Math.log(card) / Math.log(2));
     }
 
     /**
@@ -141,6 +297,11 @@ public class JoinOptimizer {
     public int estimateJoinCardinality(LogicalJoinNode j, int card1, int card2,
                                        boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
+            LogicalSubplanJoinNode sj = (LogicalSubplanJoinNode) j;
+            if (sj.isSemiJoin()) {
+                return estimateSemiJoinCardinality(sj.kind == LogicalSubplanJoinNode.Kind.ANTI,
+                        j.t1Alias, j.f1PureName, card1, sj.subPlanCardinality, stats, p.getTableAliasToIdMapping());
+            }
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1;
@@ -161,6 +322,8 @@ public class JoinOptimizer {
                                                    Map<String, Integer> tableAliasToId) {
         int card = 1;
         // some code goes here
+        int ndv1 = distinctValues(table1Alias, field1PureName, card1, stats, tableAliasToId);
+        int ndv2 = distinctValues(table2Alias, field2PureName, card2, stats, tableAliasToId);
         if (joinOp == Predicate.Op.EQUALS) {
             if (t1pkey || t2pkey) {
                 if (t1pkey && t2pkey) {
@@ -171,47 +334,125 @@ public class JoinOptimizer {
                 } else {
                     return card1;
                 }
+            } else if (ndv1 > 0 && ndv2 > 0) {
+                // each value of the side with fewer distinct values matches
+                // |R||S|/max(ndv) tuples on average
+                return capCardinality((double) card1 * card2 / Math.max(ndv1, ndv2));
             } else {
                 return Math.max(card1, card2);
             }
+        } else if (joinOp == Predicate.Op.NOT_EQUALS && ndv1 > 0 && ndv2 > 0) {
+            return capCardinality((double) card1 * card2 * (1.0 - 1.0 / Math.max(ndv1, ndv2)));
         } else {
-            return (int) (0.3 * card1 * card2);
+            return capCardinality(0.3 * card1 * card2);
         }
     }
 
+    /**
+     * Estimate the cardinality of a semi-join or anti-join of a table with a
+     * subquery. The subquery returns at most card2 distinct keys; each is
+     * assumed to match one of the distinct values of the table's field, so
+     * that a fraction card2 / ndv of the table's tuples has a match.
+     *
+     * @param anti true for an anti-join, which keeps the tuples without a match
+     * @param card1 the cardinality of the table's side
+     * @param card2 the cardinality of the subquery, or -1 if unknown
+     */
+    public static int estimateSemiJoinCardinality(boolean anti, String table1Alias, String field1PureName,
+                                                  int card1, int card2, Map<String, TableStats> stats,
+                                                  Map<String, Integer> tableAliasToId) {
+        int ndv1 = distinctValues(table1Alias, field1PureName, card1, stats, tableAliasToId);
+        double matched = ndv1 > 0 && card2 >= 0 ? Math.min(1.0, (double) card2 / ndv1) : 0.5;
+        return capCardinality(card1 * (anti ? 1.0 - matched : matched));
+    }
+
+    /**
+     * @return the number of distinct values of a join field, given that
+     * card tuples of its table take part in the join, or -1 if there are no
+     * statistics for the table
+     */
+    private static int distinctValues(String tableAlias, String fieldPureName, int card,
+                                      Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        Integer tableId = tableAliasToId == null ? null : tableAliasToId.get(tableAlias);
+        if (tableId == null || fieldPureName == null) {
+            return -1;
+        }
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null) {
+            return -1;
+        }
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(fieldPureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+        return Math.max(1, Math.min(s.estimateDistinctValues(field), card));
+    }
+
+    private static int capCardinality(double card) {
+        return (int) Math.max(1, Math.min(card, Integer.MAX_VALUE));
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
+     * <p>
+     * Subsets are generated as bitmasks over the positions of v, in increasing
+     * order, with Gosper's hack (see {@link #nextSubset}).
      *
      * @param v    The vector whose subsets are desired
      * @param size The size of the subsets of interest
      * @return a set of all subsets of the specified size
      */
     public <T> Set<Set<T>> enumerateSubsets(List<T> v, int size) {
+        if (v.size() > 62) {
+            throw new IllegalArgumentException("too many elements to enumerate subsets of");
+        }
         Set<Set<T>> els = new HashSet<>();
-        els.add(new HashSet<>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = new HashSet<>(s);
-                    if (news.add(t))
-                        newels.add(news);
-                }
+        if (size == 0) {
+            els.add(new HashSet<>());
+            return els;
+        }
+        long end = 1L << v.size();
+        for (long s = (1L << size) - 1; s < end; s = nextSubset(s)) {
+            Set<T> set = new HashSet<>();
+            for (long b = s; b != 0; b &= b - 1) {
+                set.add(v.get(Long.numberOfTrailingZeros(b)));
             }
-            els = newels;
+            els.add(set);
         }
-
         return els;
+    }
 
+    /**
+     * Gosper's hack: the smallest bitmask larger than s with the same number
+     * of bits set.
+     */
+    static long nextSubset(long s) {
+        long lowest = s & -s;
+        long ripple = s + lowest;
+        return (((ripple ^ s) >>> 2) / lowest) | ripple;
     }
 
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * Plans are built bottom-up by dynamic programming over sets of
+     * relations, represented as bitmasks. Only pairs of connected sets that
+     * are joined by at least one predicate are considered (the DPccp
+     * enumeration of Moerkotte and Neumann), so no cross products are
+     * planned and sparse join graphs take time polynomial in their size.
+     * <p>
+     * Both sides of a join may be the result of other joins, so plans can be
+     * bushy; when explain is set, the cost of the best bushy plan is printed
+     * next to the cost of the best left-deep one.
+     * <p>
+     * Joins of more relations than set by {@link #setPlanningLimits}, or
+     * whose dynamic program exceeds the planning time budget, are ordered
+     * greedily (see {@link #greedyOrder}) in time polynomial in the number
+     * of relations.
      *
      * @param stats               Statistics for each table involved in the join, referenced by
      *                            base table names, not alias
@@ -220,8 +461,10 @@ public class JoinOptimizer {
      *                            name)
      * @param explain             Indicates whether your code should explain its query plan or
      *                            simply execute it
-     * @return A List<LogicalJoinNode> that stores joins in the left-deep
-     * order in which they should be executed.
+     * @return A List<LogicalJoinNode> that stores joins in the
+     * order in which they should be executed. The joins of both sides of a
+     * join come before it, so the tables each join combines have already
+     * been joined by the joins preceding it.
      * @throws ParsingException when stats or filter selectivities is missing a table in the
      *                          join, or or when another internal error occurs
      */
@@ -230,184 +473,469 @@ public class JoinOptimizer {
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
 
-        // some code goes here
-        //Replace the following
         int numJoins = joins.size();
-        PlanCache planCache = new PlanCache();
-        for (int i = 1; i <= numJoins; i++) {
-            for (Set<LogicalJoinNode> set : enumerateSubsets(joins, i)) {
-                CostCard best = new CostCard();
-                best.cost = Double.MAX_VALUE;
-                for (LogicalJoinNode toRemove : set) {
-                    CostCard costCard = computeCostAndCardOfSubplan(stats, filterSelectivities, toRemove, set, best.cost, planCache);
-                    if (Objects.nonNull(costCard) && costCard.cost < best.cost) {
-                        best = costCard;
-                    }
+        if (numJoins == 0) {
+            return joins;
+        }
+        JoinGraph g = new JoinGraph(stats, filterSelectivities, true);
+        boolean greedy = g.aliases.size() > dpThreshold;
+        if (!greedy) {
+            try {
+                g.startClock();
+                enumerateCsgCmpPairs(g);
+            } catch (PlanningBudgetExceeded e) {
+                // the subplans found so far are still valid plans, and the
+                // greedy search may use them
+                greedy = true;
+            }
+        }
+        if (greedy) {
+            g.deadline = 0;
+            greedyOrder(g);
+            if (explain) {
+                for (long component : g.components) {
+                    System.out.println("Greedy join plan of " + Long.bitCount(component) + " tables: cost "
+                            + g.pc.getCost(component) + ", card " + g.pc.getCard(component) + ": "
+                            + planString(g, component));
                 }
-                planCache.addPlan(set, best.cost, best.card, best.plan);
-                if (i == numJoins) {
-                    return planCache.getOrder(set);
+            }
+        } else if (explain) {
+            JoinGraph leftDeep = new JoinGraph(stats, filterSelectivities, false);
+            enumerateCsgCmpPairs(leftDeep);
+            for (long component : g.components) {
+                System.out.println("Best left-deep join plan: cost " + leftDeep.pc.getCost(component)
+                        + ", card " + leftDeep.pc.getCard(component) + ": " + planString(leftDeep, component));
+                System.out.println("Best bushy join plan:     cost " + g.pc.getCost(component)
+                        + ", card " + g.pc.getCard(component) + ": " + planString(g, component));
+            }
+        }
+
+        // one plan per connected component of the join graph; the caller
+        // rejects queries that would need a cross product between them
+        List<LogicalJoinNode> result = new ArrayList<>();
+        for (long component : g.components) {
+            List<LogicalJoinNode> order = g.pc.getOrder(component);
+            if (order == null) {
+                throw new RuntimeException("shouldn't get here");
+            }
+            result.addAll(order);
+            // a predicate between two fields of one table joins no relations
+            for (int k = 0; k < numJoins; k++) {
+                if (g.rel1[k] == g.rel2[k] && (component & (1L << g.rel1[k])) != 0) {
+                    result.add(joins.get(k));
                 }
             }
         }
-        throw new RuntimeException("shouldn't get here");
+        return result;
     }
 
     // ===================== Private Methods =================================
 
+    /** Thrown by considerJoin when the planning time budget has run out */
+    private static class PlanningBudgetExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     *
-     * @param stats               table stats for all of the tables, referenced by table names
-     *                            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities the selectivities of the filters over each of the tables
-     *                            (where tables are identified by their alias or name if no
-     *                            alias is given)
-     * @param joinToRemove        the join to remove from joinSet
-     * @param joinSet             the set of joins being considered
-     * @param bestCostSoFar       the best way to join joinSet so far (minimum of previous
-     *                            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *                            from returned CostCard)
-     * @param pc                  the PlanCache for this join; should have subplans for all
-     *                            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     * optimal subplan
-     * @throws ParsingException when stats, filterSelectivities, or pc object is missing
-     *                          tables involved in join
+     * The relations and join predicates of the query. Relations are numbered
+     * in breadth-first order of the join graph, which the DPccp enumeration
+     * needs to produce subplans before the plans that use them.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            Map<String, TableStats> stats,
-            Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private class JoinGraph {
+        /** The alias of each relation; null for the subquery of a LogicalSubplanJoinNode */
+        final List<String> aliases = new ArrayList<>();
+        /** The relations each relation shares a join predicate with */
+        final long[] neighbors;
+        /** The joins each relation takes part in */
+        final int[][] incident;
+        /** For each join, the relations on its t1 and t2 sides */
+        final int[] rel1, rel2;
+        /** For each join, whether its t1 and t2 fields are primary keys */
+        final boolean[] pkey1, pkey2;
+        /**
+         * For each join, the statistics of its t1 and t2 tables if they are
+         * B+ trees keyed on the join field, and null otherwise
+         */
+        final TableStats[] index1, index2;
+        /** The connected components of the join graph */
+        final List<Long> components = new ArrayList<>();
+        final PlanCache pc;
+        final Map<String, TableStats> stats;
+        /** Whether both sides of a join may be joins; otherwise plans are left-deep */
+        final boolean bushy;
+        /** When planning must stop, in System.nanoTime() terms; 0 for never */
+        long deadline;
+        int steps;
+
+        JoinGraph(Map<String, TableStats> stats, Map<String, Double> filterSelectivities, boolean bushy)
+                throws ParsingException {
+            this.stats = stats;
+            this.bushy = bushy;
+            int numJoins = joins.size();
+            rel1 = new int[numJoins];
+            rel2 = new int[numJoins];
+            pkey1 = new boolean[numJoins];
+            pkey2 = new boolean[numJoins];
+            index1 = new TableStats[numJoins];
+            index2 = new TableStats[numJoins];
+
+            // number the relations in the order they first appear
+            Map<String, Integer> index = new HashMap<>();
+            List<String> found = new ArrayList<>();
+            int[] first = new int[numJoins], second = new int[numJoins];
+            for (int k = 0; k < numJoins; k++) {
+                LogicalJoinNode j = joins.get(k);
+                first[k] = relation(index, found, j.t1Alias);
+                second[k] = j instanceof LogicalSubplanJoinNode ? relation(index, found, null)
+                        : relation(index, found, j.t2Alias);
+            }
+            int n = found.size();
+            if (n > Long.SIZE) {
+                throw new ParsingException("Cannot plan a join of more than " + Long.SIZE + " tables");
+            }
+            List<List<Integer>> adjacent = new ArrayList<>();
+            for (int r = 0; r < n; r++) {
+                adjacent.add(new ArrayList<>());
+            }
+            for (int k = 0; k < numJoins; k++) {
+                adjacent.get(first[k]).add(second[k]);
+                adjacent.get(second[k]).add(first[k]);
+            }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+            // renumber them breadth-first, one component after the other
+            int[] bfs = new int[n];
+            Arrays.fill(bfs, -1);
+            int next = 0;
+            for (int start = 0; start < n; start++) {
+                if (bfs[start] != -1) {
+                    continue;
+                }
+                long component = 0;
+                Deque<Integer> queue = new ArrayDeque<>();
+                queue.add(start);
+                bfs[start] = next++;
+                while (!queue.isEmpty()) {
+                    int r = queue.poll();
+                    aliases.add(found.get(r));
+                    component |= 1L << bfs[r];
+                    for (int a : adjacent.get(r)) {
+                        if (bfs[a] == -1) {
+                            bfs[a] = next++;
+                            queue.add(a);
+                        }
+                    }
+                }
+                components.add(component);
             }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+            neighbors = new long[n];
+            int[] degree = new int[n];
+            for (int k = 0; k < numJoins; k++) {
+                LogicalJoinNode j = joins.get(k);
+                rel1[k] = bfs[first[k]];
+                rel2[k] = bfs[second[k]];
+                neighbors[rel1[k]] |= 1L << rel2[k];
+                neighbors[rel2[k]] |= 1L << rel1[k];
+                degree[rel1[k]]++;
+                if (rel2[k] != rel1[k]) {
+                    degree[rel2[k]]++;
+                }
+                pkey1[k] = isPkey(j.t1Alias, j.f1PureName);
+                pkey2[k] = !(j instanceof LogicalSubplanJoinNode) && isPkey(j.t2Alias, j.f2PureName);
+                index1[k] = index(j.t1Alias, j.f1PureName);
+                index2[k] = j instanceof LogicalSubplanJoinNode ? null : index(j.t2Alias, j.f2PureName);
+            }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
+            incident = new int[n][];
+            for (int r = 0; r < n; r++) {
+                incident[r] = new int[degree[r]];
+                degree[r] = 0;
+            }
+            for (int k = 0; k < numJoins; k++) {
+                incident[rel1[k]][degree[rel1[k]]++] = k;
+                if (rel2[k] != rel1[k]) {
+                    incident[rel2[k]][degree[rel2[k]]++] = k;
+                }
+            }
+
+            int[] subPlanCards = new int[n];
+            for (int k = 0; k < numJoins; k++) {
+                if (joins.get(k) instanceof LogicalSubplanJoinNode) {
+                    subPlanCards[rel2[k]] = Math.max(0, ((LogicalSubplanJoinNode) joins.get(k)).subPlanCardinality);
+                }
+            }
+
+            pc = new PlanCache(n);
+            for (int r = 0; r < n; r++) {
+                String alias = aliases.get(r);
+                if (alias == null) {
+                    // the subplan of a subquery join; its cost is not modeled
+                    pc.addBasePlan(1L << r, 0, subPlanCards[r]);
+                    continue;
+                }
+                TableStats s = stats.get(Database.getCatalog().getTableName(p.getTableId(alias)));
+                Double selectivity = filterSelectivities.get(alias);
+                if (s == null || selectivity == null) {
+                    throw new ParsingException("Missing statistics for table " + alias);
+                }
+                pc.addBasePlan(1L << r, p.getScanCost(alias, s), s.estimateTableCardinality(selectivity));
+            }
+        }
+
+        private int relation(Map<String, Integer> index, List<String> found, String alias)
+                throws ParsingException {
+            if (alias == null) {
+                found.add(null);
+                return found.size() - 1;
+            }
+            if (p.getTableId(alias) == null) {
+                throw new ParsingException("Unknown table " + alias);
+            }
+            Integer r = index.get(alias);
+            if (r == null) {
+                r = found.size();
+                index.put(alias, r);
+                found.add(alias);
+            }
+            return r;
+        }
+
+        /** @return the statistics of the table if it is keyed on field, else null */
+        private TableStats index(String alias, String field) {
+            int tableId = p.getTableId(alias);
+            TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+            if (s == null || s.indexField() == -1) {
+                return null;
+            }
+            try {
+                int f = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(field);
+                return s.indexField() == f ? s : null;
+            } catch (NoSuchElementException e) {
                 return null;
             }
         }
 
-        // Note: the two (left and right) tables of j are symmetric (no inner or outer at this point)
-        // case where the left table of j is in prevbest
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-        // case where the right table of j is in prevbest
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        void startClock() {
+            deadline = planningBudgetMillis == 0 ? 0 : System.nanoTime() + planningBudgetMillis * 1000000;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        /** @return the relations outside s that share a join predicate with s */
+        long neighborhood(long s) {
+            long n = 0;
+            for (long b = s; b != 0; b &= b - 1) {
+                n |= neighbors[Long.numberOfTrailingZeros(b)];
+            }
+            return n & ~s;
+        }
+    }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = new ArrayList<>(prevBest);
-        cc.plan.add(j); // prevbest is left -- add new join to end
-        return cc;
+    /** @return the set of relations numbered i or less */
+    private static long upTo(int i) {
+        return i >= 63 ? -1L : (1L << (i + 1)) - 1;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Enumerate every pair of disjoint, connected sets of relations that are
+     * connected to each other, each once, passing them to
+     * {@link #considerJoin}. Both sets of a pair are enumerated before any
+     * pair whose union contains them.
      */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private void enumerateCsgCmpPairs(JoinGraph g) {
+        for (int i = g.aliases.size() - 1; i >= 0; i--) {
+            long v = 1L << i;
+            emitCsg(g, v);
+            enumerateCsgRec(g, v, upTo(i));
         }
-        return false;
+    }
+
+    /**
+     * Extend the connected set s by neighbours not in x, emitting each
+     * extension. Subsets of the neighbourhood are enumerated in increasing
+     * order, so that every set is emitted before its supersets.
+     */
+    private void enumerateCsgRec(JoinGraph g, long s, long x) {
+        long n = g.neighborhood(s) & ~x;
+        if (n == 0) {
+            return;
+        }
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            emitCsg(g, s | sub);
+        }
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            enumerateCsgRec(g, s | sub, x | n);
+        }
+    }
+
+    /** Emit every connected complement of the connected set s1 */
+    private void emitCsg(JoinGraph g, long s1) {
+        long x = s1 | upTo(Long.numberOfTrailingZeros(s1));
+        long n = g.neighborhood(s1) & ~x;
+        for (long b = n; b != 0; b &= ~Long.highestOneBit(b)) {
+            int i = 63 - Long.numberOfLeadingZeros(b);
+            long s2 = 1L << i;
+            considerJoin(g, s1, s2);
+            // left-deep plans join a set to a single relation, so only
+            // a single s1 needs larger complements
+            if (g.bushy || Long.bitCount(s1) == 1) {
+                enumerateCmpRec(g, s1, s2, x | (upTo(i) & n));
+            }
+        }
+    }
+
+    /** Extend the complement s2 of s1 by neighbours not in x, emitting each extension */
+    private void enumerateCmpRec(JoinGraph g, long s1, long s2, long x) {
+        long n = g.neighborhood(s2) & ~x;
+        if (n == 0) {
+            return;
+        }
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            considerJoin(g, s1, s2 | sub);
+        }
+        for (long sub = n & -n; sub != 0; sub = (sub - n) & n) {
+            enumerateCmpRec(g, s1, s2 | sub, x | n);
+        }
+    }
+
+    /**
+     * Consider joining the best plans of the disjoint sets of relations s1
+     * and s2, by each of the join predicates between them and with either
+     * side as the outer, each with its cheapest join algorithm, and record
+     * the result in the plan cache if it is cheaper than the best plan found
+     * so far for their union. Unless the
+     * graph allows bushy plans, one of the sides must be a single relation.
+     */
+    private void considerJoin(JoinGraph g, long s1, long s2) {
+        if (!g.bushy && Long.bitCount(s1) > 1 && Long.bitCount(s2) > 1) {
+            return;
+        }
+        if (g.deadline != 0 && (++g.steps & 0x3ff) == 0 && System.nanoTime() > g.deadline) {
+            throw new PlanningBudgetExceeded();
+        }
+        PlanCache pc = g.pc;
+        long s = s1 | s2;
+        double bestCost = pc.hasPlan(s) ? pc.getCost(s) : Double.MAX_VALUE;
+        CostCard best = null;
+        long bestOuter = 0;
+        int bestJoin = -1;
+        List<Integer> crossing = crossingJoins(g, s1, s2);
+
+        for (int k : crossing) {
+            LogicalJoinNode j = joins.get(k);
+            long outer = (s1 & (1L << g.rel1[k])) != 0 ? s1 : s2;
+            long inner = s ^ outer;
+            // the subplan of a subquery join can only be the inner
+            int orientations = j instanceof LogicalSubplanJoinNode ? 1 : 2;
+            for (int o = 0; o < orientations; o++) {
+                long l = o == 0 ? outer : inner, r = o == 0 ? inner : outer;
+                // only a base table can be looked up in its index
+                TableStats index = Long.bitCount(r) == 1 ? (o == 0 ? g.index2[k] : g.index1[k]) : null;
+                JoinAlgorithm a = chooseJoinAlgorithm(j, pc.getCard(l), pc.getCard(r), pc.getCost(l),
+                        pc.getCost(r), index);
+                double cost = estimateJoinCost(a, j, pc.getCard(l), pc.getCard(r), pc.getCost(l),
+                        pc.getCost(r), index);
+                if (cost >= bestCost) {
+                    continue;
+                }
+                LogicalJoinNode oj = (o == 0 ? j : j.swapInnerOuter()).withAlgorithm(a);
+                boolean lPkey = Long.bitCount(l) == 1 ? (o == 0 ? g.pkey1[k] : g.pkey2[k]) : pc.hasPkey(l);
+                boolean rPkey = Long.bitCount(r) == 1 ? (o == 0 ? g.pkey2[k] : g.pkey1[k]) : pc.hasPkey(r);
+                best = new CostCard();
+                best.cost = cost;
+                best.card = estimateJoinCardinality(oj, pc.getCard(l), pc.getCard(r), lPkey, rPkey, g.stats);
+                best.plan = new ArrayList<>();
+                best.plan.add(oj);
+                bestCost = cost;
+                bestOuter = l;
+                bestJoin = k;
+            }
+        }
+        if (best == null) {
+            return;
+        }
+
+        // further predicates between the two sides are applied after the join
+        boolean pkey = pc.hasPkey(s1) || pc.hasPkey(s2);
+        for (int k : crossing) {
+            pkey |= g.pkey1[k] || g.pkey2[k];
+            if (k != bestJoin) {
+                best.plan.add(joins.get(k));
+            }
+        }
+        pc.addPlan(s, best.cost, best.card, pkey, bestOuter, s ^ bestOuter, best.plan);
+    }
+
+    /**
+     * Greedy operator ordering: starting from the base relations, repeatedly
+     * join the two plans that share a join predicate and whose join has the
+     * smallest estimated cardinality, until every connected component of the
+     * join graph is covered by a single plan. Takes O(n^3) steps for n
+     * relations.
+     */
+    private void greedyOrder(JoinGraph g) {
+        PlanCache pc = g.pc;
+        List<Long> plans = new ArrayList<>();
+        for (int r = 0; r < g.aliases.size(); r++) {
+            plans.add(1L << r);
+        }
+        while (true) {
+            int bestA = -1, bestB = -1;
+            long best = 0;
+            for (int a = 0; a < plans.size(); a++) {
+                long sa = plans.get(a);
+                long na = g.neighborhood(sa);
+                for (int b = a + 1; b < plans.size(); b++) {
+                    long sb = plans.get(b);
+                    if ((na & sb) == 0) {
+                        continue;
+                    }
+                    long s = sa | sb;
+                    // a union seen in an earlier round is still a valid plan
+                    if (!pc.hasPlan(s)) {
+                        considerJoin(g, sa, sb);
+                        if (!pc.hasPlan(s)) {
+                            continue;
+                        }
+                    }
+                    if (bestA == -1 || pc.getCard(s) < pc.getCard(best)
+                            || (pc.getCard(s) == pc.getCard(best) && pc.getCost(s) < pc.getCost(best))) {
+                        bestA = a;
+                        bestB = b;
+                        best = s;
+                    }
+                }
+            }
+            if (bestA == -1) {
+                return;
+            }
+            plans.set(bestA, best);
+            plans.remove(bestB);
+        }
+    }
+
+    /** @return the best plan for the relations s of g as a parenthesized expression */
+    private static String planString(JoinGraph g, long s) {
+        if (Long.bitCount(s) == 1) {
+            String alias = g.aliases.get(Long.numberOfTrailingZeros(s));
+            return alias == null ? "subplan" : alias;
+        }
+        return "(" + planString(g, g.pc.getLeft(s)) + " JOIN " + planString(g, g.pc.getRight(s)) + ")";
+    }
+
+    /** @return the joins with one side in s1 and the other in s2 */
+    private List<Integer> crossingJoins(JoinGraph g, long s1, long s2) {
+        List<Integer> crossing = new ArrayList<>();
+        long small = Long.bitCount(s1) <= Long.bitCount(s2) ? s1 : s2;
+        long other = (s1 | s2) ^ small;
+        for (long b = small; b != 0; b &= b - 1) {
+            int r = Long.numberOfTrailingZeros(b);
+            for (int k : g.incident[r]) {
+                int o = g.rel1[k] == r ? g.rel2[k] : g.rel1[k];
+                if ((other & (1L << o)) != 0) {
+                    crossing.add(k);
+                }
+            }
+        }
+        return crossing;
     }
 
     /**
@@ -424,20 +952,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(List<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -445,12 +959,13 @@ public class JoinOptimizer {
      *
      * @param js            the join plan to visualize
      * @param pc            the PlanCache accumulated whild building the optimal plan
+     * @param g             the join graph the relation sets of pc are numbered by
      * @param stats         table statistics for base tables
      * @param selectivities the selectivities of the filters over each of the tables
      *                      (where tables are indentified by their alias or name if no
      *                      alias is given)
      */
-    private void printJoins(List<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(List<LogicalJoinNode> js, PlanCache pc, JoinGraph g,
                             Map<String, TableStats> stats,
                             Map<String, Double> selectivities) {
 
@@ -470,13 +985,14 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<>();
+        long pathSoFar = 0;
         boolean neither;
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
+            pathSoFar |= 1L << g.aliases.indexOf(j.t1Alias);
+            pathSoFar |= 1L << g.aliases.indexOf(j.t2Alias);
+            System.out.println("PATH SO FAR = " + Long.toBinaryString(pathSoFar));
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
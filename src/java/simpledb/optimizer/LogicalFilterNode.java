@@ -1,5 +1,6 @@
 package simpledb.optimizer;
 
+import simpledb.execution.Parameter;
 import simpledb.execution.Predicate;
 
 /** A LogicalFilterNode represents the parameters of a filter in the WHERE clause of a query.
@@ -17,6 +18,9 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public final String c;
+
+    /** The parameter on the right side of the filter in place of a constant, or null */
+    public final Parameter param;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public final String fieldPureName;
@@ -24,9 +28,18 @@ public class LogicalFilterNode {
     public final String fieldQuantifiedName;
     
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
+        this(table, field, pred, constant, null);
+    }
+
+    public LogicalFilterNode(String table, String field, Predicate.Op pred, Parameter param) {
+        this(table, field, pred, null, param);
+    }
+
+    private LogicalFilterNode(String table, String field, Predicate.Op pred, String constant, Parameter param) {
         tableAlias = table;
         p = pred;
         c = constant;
+        this.param = param;
         String[] tmps = field.split("[.]");
         if (tmps.length>1)
             fieldPureName = tmps[tmps.length-1];
@@ -4,6 +4,10 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -30,6 +34,8 @@ public class LogicalPlan {
     private final List<LogicalFilterNode> filters;
     private final Map<String, OpIterator> subplanMap;
     private final Map<String,Integer> tableMap;
+    // the estimated cost of reading each table, for tables not read by a full scan
+    private final Map<String,Double> scanCosts = new HashMap<>();
 
     private final List<LogicalSelectListNode> selectList;
     private String groupByField = null;
@@ -38,6 +44,7 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
     private String query;
 //    private Query owner;
 
@@ -108,6 +115,18 @@ public class LogicalPlan {
         filters.add(lf);
     }
 
+    /** Add a new filter to the logical plan that compares a field with a
+     *   parameter, whose value is bound when the physical plan is run.
+     *   The parameter is given the type of the field.
+     *   @see #addFilter(String, Predicate.Op, String)
+     */
+    public void addFilter(String field, Predicate.Op p, Parameter param) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        filters.add(new LogicalFilterNode(table, field.split("[.]")[1], p, param));
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -159,6 +178,30 @@ public class LogicalPlan {
         joins.add(lj);
     }
 
+    /** Add a semi-join (joinField1 IN subquery) or an anti-join (joinField1
+     *  NOT IN subquery) to the logical plan: the tuples of the table are kept
+     *  or dropped depending on whether the subquery returns their value of
+     *  the field. Unlike a join, neither returns any field of the subquery.
+     *  @param joinField1 The name of the field of a table in the plan
+     *  @param subplan The subquery, whose first field is matched with joinField1
+     *  @param subplanCardinality The estimated number of tuples the subquery
+     *    returns, or -1 if unknown
+     *  @param anti True for NOT IN, false for IN
+     *  @throws ParsingException if the field is ambiguous, or is not in one of
+     *      the tables added via {@link #addScan}
+     */
+    public void addSemiJoin(String joinField1, OpIterator subplan, int subplanCardinality, boolean anti)
+            throws ParsingException {
+        joinField1 = disambiguateName(joinField1);
+
+        String table1 = joinField1.split("[.]")[0];
+        String pureField = joinField1.split("[.]")[1];
+
+        joins.add(new LogicalSubplanJoinNode(table1, pureField, subplan, Predicate.Op.EQUALS,
+                anti ? LogicalSubplanJoinNode.Kind.ANTI : LogicalSubplanJoinNode.Kind.SEMI, subplanCardinality));
+        System.out.println("Added " + (anti ? "anti" : "semi") + "-join on " + joinField1);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -219,6 +262,13 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Return only the first n tuples of the query's result, as for a LIMIT clause.
+        @param n the number of tuples to return at most
+    */
+    public void setLimit(int n) {
+        limit = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +324,324 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * If one of the filters on a table stored in a B+ tree compares the key
+     * with a constant, and searching the tree for the tuples it matches is
+     * cheaper than scanning the whole table, replace the table's subplan by a
+     * {@link BTreeScan} with that filter, followed by the remaining filters.
+     * The most selective such filter is used. On a tree keyed on more than one
+     * field, filters comparing the first key fields by equality and the next
+     * one by any operator are used together, to search a prefix of the key.
+     * <p>
+     * A table stored in a heap file is likewise read through a
+     * {@link SecondaryIndexScan} of the cheapest of its secondary indexes, if
+     * that is cheaper than scanning the table. An index whose entries hold
+     * every field of the table the query uses answers it alone, without
+     * reading the table.
+     *
+     * @return true if the table is read through an index
+     */
+    private boolean chooseIndexScan(TransactionId t, String alias, List<Predicate> preds, TableStats s,
+                                 boolean explain) {
+        int tableId = getTableId(alias);
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (s == null) {
+            return false;
+        }
+        List<Predicate> best = null;
+        SecondaryIndex bestIndex = null;
+        int[] bestFields = null;
+        double cost = s.estimateScanCost();
+        if (f instanceof BTreeFile) {
+            best = chooseKeyPrefix(((BTreeFile) f).keyFields(), preds, s);
+            if (best != null) {
+                cost = s.estimateIndexScanCost(s.estimateSelectivity(best));
+                if (cost >= s.estimateScanCost()) {
+                    return false;
+                }
+            }
+        } else {
+            int[] read = fieldsRead(alias, preds);
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+                List<Predicate> candidate = chooseKeyPrefix(index.getFields(), preds, s);
+                if (candidate == null) {
+                    continue;
+                }
+                boolean covers = read != null;
+                for (int i = 0; covers && i < read.length; i++) {
+                    covers = index.entryField(read[i]) >= 0;
+                }
+                double sel = s.estimateSelectivity(candidate);
+                double c = covers ? s.estimateIndexOnlyScanCost(index, sel) : s.estimateIndexScanCost(index, sel);
+                if (c < cost) {
+                    best = candidate;
+                    bestIndex = index;
+                    bestFields = covers ? (read.length > 0 ? read : new int[] { index.getFields()[0] }) : null;
+                    cost = c;
+                }
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        if (explain) {
+            StringBuilder desc = new StringBuilder();
+            for (Predicate p : best) {
+                desc.append(desc.length() == 0 ? "" : ", ").append("key ").append(p.getOp()).append(" ")
+                        .append(p.isParameterized() ? "?" : p.getOperand());
+            }
+            System.out.println("Reading " + alias + " through "
+                    + (bestIndex == null ? "its index" : bestIndex.getName()) + " (" + desc + ")"
+                    + (bestFields != null ? " alone" : ""));
+        }
+        IndexPredicate ipred = Predicate.toIndexPredicate(best);
+        OpIterator plan = bestIndex == null ? new BTreeScan(t, tableId, alias, ipred)
+                : new SecondaryIndexScan(t, bestIndex, alias, ipred, bestFields);
+        for (Predicate p : preds) {
+            if (!best.contains(p)) {
+                // the scan may return only some of the fields of the table
+                int field = plan.getTupleDesc().fieldNameToIndex(
+                        alias + "." + Database.getCatalog().getTupleDesc(tableId).getFieldName(p.getField()));
+                plan = new Filter(new Predicate(field, p.getOp(), p.getOperand()), plan);
+            }
+        }
+        subplanMap.put(alias, plan);
+        scanCosts.put(alias, cost);
+        return true;
+    }
+
+    /**
+     * If a plan reads a single table stored in a B+ tree, through a
+     * {@link BTreeScan} or a full scan of the tree, followed by filters, and
+     * the tuples it reads come out of the tree ordered on a field, return a
+     * plan producing them in the specified order without sorting them: the
+     * plan itself, or the plan with the tree read backwards. The tuples are
+     * ordered on a key field if each key field before it is fixed by
+     * equality in the search of the tree.
+     *
+     * @param field the field to order by, in the tuples of the plan
+     * @param asc true for ascending order, false for descending
+     * @return the plan producing the tuples in order, or null if they must
+     *     be sorted
+     */
+    private static OpIterator orderedByIndex(TransactionId t, OpIterator node, int field, boolean asc) {
+        Filter lowest = null;
+        OpIterator scan = node;
+        while (scan instanceof Filter) {
+            lowest = (Filter) scan;
+            scan = lowest.getChildren()[0];
+        }
+        int tableId;
+        String alias;
+        IndexPredicate ipred = null;
+        boolean reverse = false;
+        List<Predicate> filters = Collections.emptyList();
+        if (scan instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) scan;
+            tableId = s.getTableId();
+            alias = s.getAlias();
+            ipred = s.getIndexPredicate();
+            reverse = s.isReverse();
+        } else if (scan instanceof SeqScan
+                && Database.getCatalog().getDatabaseFile(((SeqScan) scan).getTableId()) instanceof BTreeFile
+                && ((SeqScan) scan).getRuntimeFilters().isEmpty()) {
+            SeqScan s = (SeqScan) scan;
+            tableId = s.getTableId();
+            alias = s.getAlias();
+            filters = s.getFilters();
+        } else {
+            return null;
+        }
+
+        int[] keys = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyFields();
+        int fixed = 0;
+        if (ipred != null) {
+            int n = ipred.getField() instanceof CompositeField ? ((CompositeField) ipred.getField()).numFields() : 1;
+            fixed = ipred.getOp() == Predicate.Op.EQUALS ? n : n - 1;
+        }
+        boolean ordered = false;
+        for (int i = 0; i <= fixed && i < keys.length; i++) {
+            ordered |= keys[i] == field;
+        }
+        if (!ordered) {
+            return null;
+        }
+        if (reverse != asc) {
+            return node;
+        }
+
+        OpIterator plan = new BTreeScan(t, tableId, alias, ipred, !asc);
+        for (Predicate p : filters) {
+            plan = new Filter(p, plan);
+        }
+        if (lowest == null) {
+            return plan;
+        }
+        lowest.setChildren(new OpIterator[] { plan });
+        return node;
+    }
+
+    /**
+     * Choose the filters to search an index keyed on the specified fields
+     * with: the most selective filter comparing the first key field with a
+     * constant, or comparing one of the next key fields after filters
+     * comparing each of the key fields before it by equality.
+     *
+     * @return the chosen filters, in the order of the key fields, or null if
+     *     no filter can search the index
+     */
+    private static List<Predicate> chooseKeyPrefix(int[] keys, List<Predicate> preds, TableStats s) {
+        List<Predicate> best = null;
+        double bestSel = 1.0;
+        List<Predicate> prefix = new ArrayList<>();
+        for (int key : keys) {
+            Predicate bestOnKey = null;
+            double bestOnKeySel = 1.0;
+            Predicate equality = null;
+            for (Predicate p : preds) {
+                if (p.getField() != key || p.getOp() == Predicate.Op.LIKE || p.getOp() == Predicate.Op.NOT_EQUALS) {
+                    continue;
+                }
+                List<Predicate> candidate = new ArrayList<>(prefix);
+                candidate.add(p);
+                double sel = s.estimateSelectivity(candidate);
+                if (bestOnKey == null || sel < bestOnKeySel) {
+                    bestOnKey = p;
+                    bestOnKeySel = sel;
+                }
+                if (equality == null && p.getOp() == Predicate.Op.EQUALS) {
+                    equality = p;
+                }
+            }
+            if (bestOnKey == null) {
+                break;
+            }
+            if (best == null || bestOnKeySel < bestSel) {
+                best = new ArrayList<>(prefix);
+                best.add(bestOnKey);
+                bestSel = bestOnKeySel;
+            }
+            // only a key field compared by equality can be followed by the next
+            if (equality == null) {
+                break;
+            }
+            prefix.add(equality);
+        }
+        return best;
+    }
+
+    /**
+     * Narrow each heap file scan to the fields the rest of the plan uses. A
+     * string field only needed in the output of a query with joins is left
+     * out of its scan, which returns each tuple's row number instead; the
+     * field is read by a {@link LateMaterialize} once the joins are done.
+     *
+     * @return the fields of each table to be read after the joins
+     */
+    private Map<String, int[]> projectScans(TransactionId t) {
+        Map<String, int[]> late = new HashMap<>();
+        // fields operators use, and fields that are only output
+        Set<String> used = new HashSet<>();
+        Set<String> output = new HashSet<>();
+        if (!fieldsUsed(used, output)) {
+            return late;
+        }
+
+        for (LogicalScanNode table : tables) {
+            OpIterator plan = subplanMap.get(table.alias);
+            DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+            if (!(plan instanceof SeqScan) || !(f instanceof HeapFile)) {
+                continue;
+            }
+            TupleDesc td = f.getTupleDesc();
+            List<Integer> read = new ArrayList<>();
+            List<Integer> readLate = new ArrayList<>();
+            for (int i = 0; i < td.numFields(); i++) {
+                String name = table.alias + "." + td.getFieldName(i);
+                if (used.contains(name)) {
+                    read.add(i);
+                } else if (output.contains(name)) {
+                    if (!joins.isEmpty() && td.getFieldType(i) == Type.STRING_TYPE)
+                        readLate.add(i);
+                    else
+                        read.add(i);
+                }
+            }
+            if (read.size() == td.numFields()) {
+                continue;
+            }
+            if (!readLate.isEmpty()) {
+                read.add(HeapFile.ROW_NUMBER);
+                late.put(table.alias, readLate.stream().mapToInt(Integer::intValue).toArray());
+            } else if (read.isEmpty()) {
+                read.add(0);
+            }
+            subplanMap.put(table.alias, new SeqScan(t, table.t, table.alias, ((SeqScan) plan).getFilters(),
+                    read.stream().mapToInt(Integer::intValue).toArray()));
+        }
+        return late;
+    }
+
+    /**
+     * Collect the fields the query uses, by their qualified names.
+     *
+     * @param used the set to add the fields operators use to
+     * @param output the set to add the fields that are only output to
+     * @return false if the query outputs all the fields of a table
+     */
+    private boolean fieldsUsed(Set<String> used, Set<String> output) {
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*")) {
+                return false;
+            }
+            (si.aggOp != null ? used : output).add(si.fname);
+        }
+        for (LogicalJoinNode lj : joins) {
+            used.add(lj.f1QuantifiedName);
+            used.add(lj.f2QuantifiedName);
+        }
+        if (groupByField != null)
+            used.add(groupByField);
+        if (aggField != null)
+            used.add(aggField);
+        if (hasOrderBy)
+            used.add(oByField);
+        return true;
+    }
+
+    /**
+     * @param preds the filters on the table
+     * @return the fields of the table with the specified alias the query
+     * reads, in order, or null if it outputs all of them
+     */
+    private int[] fieldsRead(String alias, List<Predicate> preds) {
+        Set<String> used = new HashSet<>();
+        if (!fieldsUsed(used, used)) {
+            return null;
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(getTableId(alias));
+        Set<Integer> read = new TreeSet<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (used.contains(alias + "." + td.getFieldName(i))) {
+                read.add(i);
+            }
+        }
+        for (Predicate p : preds) {
+            read.add(p.getField());
+        }
+        return read.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return the estimated cost of reading the table with the specified
+     * alias in the physical plan being built: a full scan, unless the table
+     * is read through its index
+     */
+    double getScanCost(String alias, TableStats s) {
+        Double cost = scanCosts.get(alias);
+        return cost == null ? s.estimateScanCost() : cost;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,6 +660,8 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,List<Predicate>> tablePredicates = new HashMap<>();
+        scanCosts.clear();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -324,7 +694,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
+            if (lf.param != null) {
+                lf.param.setType(ftyp);
+                f = lf.param;
+            } else if (ftyp == Type.INT_TYPE)
                 f = new IntField(new Integer(lf.c));
             else
                 f = new StringField(lf.c, Type.STRING_LEN);
@@ -335,20 +708,42 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel = s.estimateSelectivity(Collections.singletonList(p));
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            tablePredicates.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
-        
+
+        // several filters on one table may be correlated; let its stats
+        // estimate them together
+        for (Map.Entry<String, List<Predicate>> e : tablePredicates.entrySet()) {
+            if (e.getValue().size() > 1) {
+                TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+                filterSelectivities.put(e.getKey(), s.estimateSelectivity(e.getValue()));
+            }
+        }
+
+        // a table's filters are evaluated by the scan reading it, unless it's
+        // read through its index
+        for (Map.Entry<String, List<Predicate>> e : tablePredicates.entrySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            if (!chooseIndexScan(t, e.getKey(), e.getValue(), s, explain)) {
+                subplanMap.put(e.getKey(), new SeqScan(t, getTableId(e.getKey()), e.getKey(), e.getValue()));
+            }
+        }
+        Map<String, int[]> lateFields = projectScans(t);
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // each join combines the subplans holding its two tables; in a bushy
+        // plan both of them may already be the result of earlier joins
+
         for (LogicalJoinNode lj : joins) {
             OpIterator plan1;
             OpIterator plan2;
@@ -406,6 +801,14 @@ public class LogicalPlan {
         }
         
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        for (Map.Entry<String, int[]> e : lateFields.entrySet()) {
+            try {
+                node.getTupleDesc().fieldNameToIndex(e.getKey() + "." + HeapFile.ROW_NUMBER_NAME);
+            } catch (NoSuchElementException ex) {
+                continue; // an index join returned the table's tuples whole
+            }
+            node = new LateMaterialize(node, t, getTableId(e.getKey()), e.getKey(), e.getValue());
+        }
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
@@ -459,20 +862,53 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            int aggFieldIdx, groupByFieldIdx;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
-            } catch (NoSuchElementException | IllegalArgumentException e) {
+                aggFieldIdx = td.fieldNameToIndex(aggField);
+                groupByFieldIdx = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+            } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             }
-            node = aggNode;
+
+            // an aggregate directly over an unfiltered base table can be
+            // answered from a matching materialized view, if there is one
+            AggregateView view = null;
+            if (node instanceof SeqScan && ((SeqScan) node).getFilters().isEmpty()) {
+                int[] fields = ((SeqScan) node).getFields();
+                view = Database.getCatalog().findAggregateView(tables.get(0).t,
+                        groupByFieldIdx == Aggregator.NO_GROUPING ? Aggregator.NO_GROUPING : fields[groupByFieldIdx],
+                        fields[aggFieldIdx], getAggOp(aggOp));
+            }
+
+            if (view != null) {
+                if (explain)
+                    System.out.println("Answering aggregate from materialized view " + view);
+                node = view.iterator();
+            } else {
+                Aggregate aggNode;
+                try {
+                    aggNode = new Aggregate(node, aggFieldIdx, groupByFieldIdx, getAggOp(aggOp));
+                } catch (NoSuchElementException | IllegalArgumentException e) {
+                    throw new simpledb.ParsingException(e);
+                }
+                node = aggNode;
+            }
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIdx = node.getTupleDesc().fieldNameToIndex(oByField);
+            OpIterator ordered = hasAgg ? null : orderedByIndex(t, node, oByIdx, oByAsc);
+            if (ordered != null) {
+                if (explain)
+                    System.out.println("Ordering by " + oByField + (oByAsc ? "" : " DESC") + " through the index");
+                node = ordered;
+            } else {
+                node = new OrderBy(oByIdx, oByAsc, node);
+            }
+        }
+
+        if (limit >= 0) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -8,11 +8,31 @@ import simpledb.execution.Predicate;
  * {@link LogicalJoinNode}; t2 and f2 should always be null
  */
 public class LogicalSubplanJoinNode extends LogicalJoinNode {
+
+    /** How the tuples of the table are matched with the subquery */
+    public enum Kind {
+        /** t1.f1 op (subquery): a join with the subquery's tuples */
+        JOIN,
+        /** t1.f1 IN (subquery): the tuples of t1 with a match, each once */
+        SEMI,
+        /** t1.f1 NOT IN (subquery): the tuples of t1 without a match */
+        ANTI
+    }
     
     /** The subplan (used on the inner) of the join */
     final OpIterator subPlan;
+
+    final Kind kind;
+
+    /** The estimated number of tuples the subplan returns, or -1 if unknown */
+    final int subPlanCardinality;
     
     public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred) {
+        this(table1, joinField1, sp, pred, Kind.JOIN, -1);
+    }
+
+    public LogicalSubplanJoinNode(String table1, String joinField1, OpIterator sp, Predicate.Op pred,
+                                  Kind kind, int subPlanCardinality) {
         t1Alias = table1;
         String[] tmps = joinField1.split("[.]");
         if (tmps.length>1)
@@ -22,6 +42,13 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         f1QuantifiedName=t1Alias+"."+f1PureName;
         subPlan = sp;
         p = pred;
+        this.kind = kind;
+        this.subPlanCardinality = subPlanCardinality;
+    }
+
+    /** @return true if this is a semi-join or an anti-join */
+    public boolean isSemiJoin() {
+        return kind != Kind.JOIN;
     }
     
     @Override public int hashCode() {
@@ -37,7 +64,13 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
     }
     
     public LogicalSubplanJoinNode swapInnerOuter() {
-        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
+        return new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p, kind, subPlanCardinality);
+    }
+
+    public LogicalSubplanJoinNode withAlgorithm(JoinAlgorithm a) {
+        LogicalSubplanJoinNode j = new LogicalSubplanJoinNode(t1Alias, f1PureName, subPlan, p, kind, subPlanCardinality);
+        j.algorithm = a;
+        return j;
     }
 
 }
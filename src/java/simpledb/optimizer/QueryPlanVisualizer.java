@@ -4,7 +4,11 @@ import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Iterator;
 
+import simpledb.common.Database;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -12,11 +16,19 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String BLOCK_JOIN = "⨝(block)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String SEMI_JOIN = "⋉(hash)";
+    static final String ANTI_JOIN = "▷(hash)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
+    static final String LIMIT = "limit";
+    static final String FETCH = "fetch";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -29,7 +41,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (joinSymbol(o) != null && children.length == 2) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -42,6 +54,33 @@ public class QueryPlanVisualizer {
         return 2;
     }
 
+    /** @return the symbol of a join of two children, or null if o isn't one */
+    private static String joinSymbol(Operator o) {
+        if (o instanceof Join)
+            return JOIN;
+        if (o instanceof HashEquiJoin)
+            return HASH_JOIN;
+        if (o instanceof BlockNestedLoopJoin)
+            return BLOCK_JOIN;
+        if (o instanceof SortMergeJoin)
+            return MERGE_JOIN;
+        if (o instanceof HashSemiJoin)
+            return ((HashSemiJoin) o).isAnti() ? ANTI_JOIN : SEMI_JOIN;
+        return null;
+    }
+
+    private static JoinPredicate joinPredicate(Operator o) {
+        if (o instanceof Join)
+            return ((Join) o).getJoinPredicate();
+        if (o instanceof HashEquiJoin)
+            return ((HashEquiJoin) o).getJoinPredicate();
+        if (o instanceof BlockNestedLoopJoin)
+            return ((BlockNestedLoopJoin) o).getJoinPredicate();
+        if (o instanceof HashSemiJoin)
+            return ((HashSemiJoin) o).getJoinPredicate();
+        return ((SortMergeJoin) o).getJoinPredicate();
+    }
+
     private static class SubTreeDescriptor {
         int width;
         int upBarPosition;
@@ -67,17 +106,69 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
-            if (!tableName.equals(alias))
-                alias = " " + alias;
-            else
-                alias = "";
-            thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+        if (!(queryPlan instanceof Operator)) {
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                String tableName = s.getTableName();
+                String alias = s.getAlias();
+//                TupleDesc td = s.getTupleDesc();
+                if (!tableName.equals(alias))
+                    alias = " " + alias;
+                else
+                    alias = "";
+                StringBuilder filters = new StringBuilder();
+                TupleDesc td = Database.getCatalog().getTupleDesc(s.getTableId());
+                for (Predicate p : s.getFilters()) {
+                    filters.append(",").append(s.getAlias()).append(".")
+                            .append(td.getFieldName(p.getField()))
+                            .append(p.getOp()).append(p.getOperand());
+                }
+                thisNode.text = String.format("%1$s(%2$s)", SCAN,
+                        tableName + alias + filters);
+            } else if (queryPlan instanceof BTreeScan) {
+                BTreeScan s = (BTreeScan) queryPlan;
+                String tableName = s.getTableName();
+                String alias = s.getAlias();
+                if (!tableName.equals(alias))
+                    alias = " " + alias;
+                else
+                    alias = "";
+                IndexPredicate ipred = s.getIndexPredicate();
+                String key = "";
+                if (ipred != null) {
+                    int[] keyFields = ((BTreeFile) Database.getCatalog()
+                            .getDatabaseFile(s.getTableId())).keyFields();
+                    for (Predicate p : ipred.toPredicates(keyFields)) {
+                        key += "," + s.getTupleDesc().getFieldName(p.getField())
+                                + p.getOp() + p.getOperand();
+                    }
+                }
+                if (s.isReverse())
+                    key += ",desc";
+                thisNode.text = String.format("%1$s(%2$s)", INDEX_SCAN,
+                        tableName + alias + key);
+            } else if (queryPlan instanceof SecondaryIndexScan) {
+                SecondaryIndexScan s = (SecondaryIndexScan) queryPlan;
+                String tableName = s.getTableName();
+                String alias = s.getAlias();
+                if (!tableName.equals(alias))
+                    alias = " " + alias;
+                else
+                    alias = "";
+                String key = "";
+                TupleDesc td = Database.getCatalog().getTupleDesc(s.getTableId());
+                for (Predicate p : s.getIndexPredicate().toPredicates(s.getIndex().getFields())) {
+                    key += "," + s.getAlias() + "." + td.getFieldName(p.getField())
+                            + p.getOp() + p.getOperand();
+                }
+                if (s.getFields() != null)
+                    key += ",index only";
+                thisNode.text = String.format("%1$s(%2$s)", INDEX_SCAN,
+                        tableName + alias + key);
+            } else {
+                // other leaves, e.g. a materialized view
+                thisNode.text = String.format("%1$s(%2$s)", SCAN, queryPlan);
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -109,18 +200,17 @@ public class QueryPlanVisualizer {
             Operator plan = (Operator) queryPlan;
             OpIterator[] children = plan.getChildren();
 
-            if (plan instanceof Join) {
-                Join j = (Join) plan;
-                TupleDesc td = j.getTupleDesc();
-                JoinPredicate jp = j.getJoinPredicate();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
+            String joinSymbol = joinSymbol(plan);
+            if (joinSymbol != null && children.length == 2) {
+                JoinPredicate jp = joinPredicate(plan);
+                // a semi-join returns none of the fields of its second child
+                String field1 = children[0].getTupleDesc().getFieldName(jp.getField1());
+                String field2 = children[1].getTupleDesc().getFieldName(jp.getField2());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", joinSymbol,
+                        field1 + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = JOIN.length() / 2;
+                if (joinSymbol.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = joinSymbol.length() / 2;
 
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + adjustDepth + 3, children[0],
@@ -130,7 +220,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - JOIN.length() / 2;
+                        - joinSymbol.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -138,33 +228,27 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
+            } else if (plan instanceof IndexNestedLoopJoin) {
+                // the inner table is looked up rather than scanned, so it
+                // isn't a child
+                IndexNestedLoopJoin j = (IndexNestedLoopJoin) plan;
                 JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", INDEX_JOIN,
+                        j.getJoinField1Name() + jp.getOperator() + j.getJoinField2Name(),
+                        j.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
-                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[0],
+                if (INDEX_JOIN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = INDEX_JOIN.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
-                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[1],
-                        currentStartPosition + left.width + SPACE.length(), 0);
-                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.upBarPosition = child.upBarPosition;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
-                thisNode.width = Math.max(
-                        left.width + right.width + SPACE.length(),
+                        - INDEX_JOIN.length() / 2;
+                thisNode.width = Math.max(child.width,
                         thisNode.textStartPosition + thisNode.text.length()
                                 - currentStartPosition);
-                thisNode.leftChild = left;
-                thisNode.rightChild = right;
+                thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
             else if (plan instanceof Aggregate) {
@@ -240,6 +324,24 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                        l.getLimit(), l.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 StringBuilder fields = new StringBuilder();
@@ -262,6 +364,29 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof LateMaterialize) {
+                LateMaterialize l = (LateMaterialize) plan;
+                TupleDesc td = l.getTupleDesc();
+                int added = td.numFields() - (children[0].getTupleDesc().numFields() - 1);
+                StringBuilder fields = new StringBuilder();
+                for (int i = td.numFields() - added; i < td.numFields(); i++)
+                    fields.append(td.getFieldName(i)).append(",");
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", FETCH,
+                        fields.substring(0, fields.length() - 1), l.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (FETCH.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = FETCH.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - FETCH.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             }
             else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
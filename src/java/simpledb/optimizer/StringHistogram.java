@@ -2,93 +2,215 @@ package simpledb.optimizer;
 
 import simpledb.execution.Predicate;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
 /**
- * A class to represent a fixed-width histogram over a single String-based
+ * A class to represent an equi-depth histogram over a single String-based
  * field.
+ * <p>
+ * Values are collected into a fixed-size reservoir sample as they are added;
+ * bucket boundaries are computed from the sorted sample the first time an
+ * estimate is requested (and again if more values are added later).
  */
-public class StringHistogram {
-    final IntHistogram hist;
+public class StringHistogram implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+
+    /** The maximum number of values kept to build the buckets from */
+    static final int RESERVOIR_SIZE = 10000;
+
+    private final int numBuckets;
+    private transient String[] reservoir;
+    private transient Random rand;
+    private int numValues;
+    private boolean built = true;
+
+    // the buckets, computed from the reservoir
+    private String[] lo;
+    private String[] hi;
+    private int[] count;
+    private int[] distinct;
+    private int sampled;
 
     /**
      * Create a new StringHistogram with a specified number of buckets.
-     * <p>
-     * Our implementation is written in terms of an IntHistogram by converting
-     * each String to an integer.
-     * 
+     *
      * @param buckets
      *            the number of buckets
      */
     public StringHistogram(int buckets) {
-        hist = new IntHistogram(buckets, minVal(), maxVal());
+        numBuckets = buckets;
+        reservoir = new String[RESERVOIR_SIZE];
+        rand = new Random();
+        lo = hi = new String[0];
+        count = distinct = new int[0];
     }
 
-    /**
-     * Convert a string to an integer, with the property that if the return
-     * value(s1) < return value(s2), then s1 < s2
-     */
-    private int stringToInt(String s) {
-        int i;
-        int v = 0;
-        for (i = 3; i >= 0; i--) {
-            if (s.length() > 3 - i) {
-                int ci = s.charAt(3 - i);
-                v += (ci) << (i * 8);
-            }
+    /** Add a new value to thte histogram */
+    public void addValue(String s) {
+        if (reservoir == null) {
+            throw new IllegalStateException("cannot add values to a deserialized histogram");
         }
-
-        // XXX: hack to avoid getting wrong results for
-        // strings which don't output in the range min to max
-        if (!(s.equals("") || s.equals("zzzz"))) {
-            if (v < minVal()) {
-                v = minVal();
-            }
-
-            if (v > maxVal()) {
-                v = maxVal();
+        if (numValues < RESERVOIR_SIZE) {
+            reservoir[numValues] = s;
+        } else {
+            int j = rand.nextInt(numValues + 1);
+            if (j < RESERVOIR_SIZE) {
+                reservoir[j] = s;
             }
         }
-
-        return v;
+        numValues++;
+        built = false;
     }
 
-    /** @return the maximum value indexed by the histogram */
-    int maxVal() {
-        return stringToInt("zzzz");
+    private void build() {
+        if (built) {
+            return;
+        }
+        int n = Math.min(numValues, RESERVOIR_SIZE);
+        String[] sorted = Arrays.copyOf(reservoir, n);
+        Arrays.sort(sorted);
+        int b = n == 0 ? 0 : Math.min(numBuckets, n);
+        lo = new String[b];
+        hi = new String[b];
+        count = new int[b];
+        distinct = new int[b];
+        for (int i = 0; i < b; i++) {
+            int start = (int) ((long) n * i / b);
+            int end = (int) ((long) n * (i + 1) / b);
+            lo[i] = sorted[start];
+            hi[i] = sorted[end - 1];
+            count[i] = end - start;
+            int d = 1;
+            for (int j = start + 1; j < end; j++) {
+                if (!sorted[j].equals(sorted[j - 1])) {
+                    d++;
+                }
+            }
+            distinct[i] = d;
+        }
+        sampled = n;
+        built = true;
     }
 
-    /** @return the minimum value indexed by the histogram */
-    int minVal() {
-        return stringToInt("");
+    /**
+     * The position of s between lo and hi (lo <= s <= hi), as a fraction.
+     * Strings are compared as base-65536 fractions over the characters after
+     * the common prefix of lo and hi.
+     */
+    private static double position(String s, String lo, String hi) {
+        int prefix = 0;
+        while (prefix < lo.length() && prefix < hi.length() && lo.charAt(prefix) == hi.charAt(prefix)) {
+            prefix++;
+        }
+        double l = fraction(lo, prefix), h = fraction(hi, prefix), v = fraction(s, prefix);
+        if (h <= l) {
+            return 0.5;
+        }
+        return Math.max(0.0, Math.min(1.0, (v - l) / (h - l)));
     }
 
-    /** Add a new value to thte histogram */
-    public void addValue(String s) {
-        int val = stringToInt(s);
-        hist.addValue(val);
+    private static double fraction(String s, int from) {
+        double v = 0, scale = 1.0 / 65536;
+        for (int i = from; i < s.length() && i < from + 4; i++) {
+            v += s.charAt(i) * scale;
+            scale /= 65536;
+        }
+        return v;
     }
 
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
-     * 
+     *
      * @param op
      *            The operation being applied
      * @param s
      *            The string to apply op to
      */
     public double estimateSelectivity(Predicate.Op op, String s) {
-        int val = stringToInt(s);
-        return hist.estimateSelectivity(op, val);
+        build();
+        if (sampled == 0) {
+            return op == Predicate.Op.NOT_EQUALS ? 1.0 : 0.0;
+        }
+        if (op == Predicate.Op.LIKE) {
+            return likeSelectivity(s);
+        }
+        double lt = 0, eq = 0;
+        for (int b = 0; b < lo.length; b++) {
+            int cmpHi = s.compareTo(hi[b]);
+            int cmpLo = s.compareTo(lo[b]);
+            if (cmpHi > 0) {
+                lt += count[b];
+            } else if (cmpLo > 0) {
+                lt += count[b] * position(s, lo[b], hi[b]);
+            }
+            if (cmpLo >= 0 && cmpHi <= 0) {
+                eq += (double) count[b] / distinct[b];
+            }
+        }
+        lt /= sampled;
+        eq = Math.min(eq / sampled, 1.0 - lt);
+        switch (op) {
+            case EQUALS:
+                return eq;
+            case NOT_EQUALS:
+                return 1.0 - eq;
+            case LESS_THAN:
+                return lt;
+            case LESS_THAN_OR_EQ:
+                return lt + eq;
+            case GREATER_THAN:
+                return 1.0 - lt - eq;
+            case GREATER_THAN_OR_EQ:
+                return 1.0 - lt;
+        }
+        throw new RuntimeException("shouldn't get here");
+    }
+
+    /**
+     * LIKE is a substring match, which the buckets say nothing about, so
+     * estimate it from the reservoir directly when it is still available.
+     */
+    private double likeSelectivity(String s) {
+        if (reservoir == null) {
+            return 0.1;
+        }
+        int n = Math.min(numValues, RESERVOIR_SIZE), matches = 0;
+        for (int i = 0; i < n; i++) {
+            if (reservoir[i].contains(s)) {
+                matches++;
+            }
+        }
+        return (double) matches / n;
     }
 
     /**
      * @return the average selectivity of this histogram.
-     * 
+     *
      *         This is not an indispensable method to implement the basic join
      *         optimization. It may be needed if you want to implement a more
      *         efficient optimization
      * */
     public double avgSelectivity() {
-        return hist.avgSelectivity();
+        build();
+        int d = 0;
+        for (int b = 0; b < distinct.length; b++) {
+            d += distinct[b];
+            if (b > 0 && lo[b].equals(hi[b - 1])) {
+                d--;
+            }
+        }
+        return d == 0 ? 1.0 : 1.0 / d;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // only the buckets are saved
+        build();
+        out.defaultWriteObject();
     }
 }
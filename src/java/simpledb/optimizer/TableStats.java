@@ -2,19 +2,23 @@ package simpledb.optimizer;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import javax.xml.crypto.Data;
-import java.lang.reflect.Array;
+import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -22,7 +26,9 @@ import java.util.concurrent.ConcurrentMap;
  * <p>
  * This class is not needed in implementing lab1 and lab2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 3L;
 
     private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
 
@@ -34,6 +40,7 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
     }
 
     public static void setStatsMap(Map<String, TableStats> s) {
@@ -41,6 +48,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -51,18 +59,188 @@ public class TableStats {
         return statsMap;
     }
 
+    private static final AtomicLong version = new AtomicLong();
+
+    /**
+     * @return a number that changes whenever statistics are set, so that
+     *         plans built from older statistics can be recognized
+     */
+    public static long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Compute statistics for every table in the catalog, one table per
+     * worker thread. Statistics saved next to a table's data file by a
+     * previous run are reused as long as the data file hasn't changed since.
+     */
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
         System.out.println("Computing table stats.");
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<?>> builds = new ArrayList<>();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            builds.add(pool.submit(() -> {
+                TableStats s = loadStatistics(tableid);
+                if (s == null) {
+                    s = new TableStats(tableid, IOCOSTPERPAGE, sampleRateFor(tableid));
+                    s.saveStatistics();
+                }
+                modifications.remove(tableid);
+                setTableStats(Database.getCatalog().getTableName(tableid), s);
+            }));
+        }
+        pool.shutdown();
+        for (Future<?> f : builds) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
         }
         System.out.println("Done.");
     }
 
+    // number of tuples inserted or deleted per table since its stats were built
+    private static final ConcurrentMap<Integer, AtomicInteger> modifications = new ConcurrentHashMap<>();
+    private static final Set<Integer> refreshing = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TableStats refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // stats are rebuilt once max(refreshMinimum, refreshFraction * numTuples)
+    // tuples have been modified
+    private static volatile double refreshFraction = 0.2;
+    private static volatile int refreshMinimum = 1000;
+
+    /**
+     * Configure when statistics are refreshed in the background.
+     *
+     * @param fraction the fraction of a table's tuples that must be modified
+     * @param minimum  the minimum number of modified tuples
+     */
+    public static void setRefreshThreshold(double fraction, int minimum) {
+        refreshFraction = fraction;
+        refreshMinimum = minimum;
+    }
+
+    /**
+     * @return the number of tuples modified in the table since its current
+     * statistics were built
+     */
+    public static int getModificationCount(int tableid) {
+        AtomicInteger n = modifications.get(tableid);
+        return n == null ? 0 : n.get();
+    }
+
+    /**
+     * Called by the BufferPool for every tuple inserted into or deleted from
+     * a table. Once enough tuples have changed, the table's statistics are
+     * rebuilt (and saved) on a background thread; until then the old
+     * statistics remain in use.
+     */
+    public static void recordModification(int tableid) {
+        String name = Database.getCatalog().getTableName(tableid);
+        TableStats s = getTableStats(name);
+        if (s == null) {
+            return;
+        }
+        int n = modifications.computeIfAbsent(tableid, k -> new AtomicInteger()).incrementAndGet();
+        if (n >= Math.max(refreshMinimum, refreshFraction * s.numTuples) && refreshing.add(tableid)) {
+            refresher.submit(() -> {
+                try {
+                    modifications.get(tableid).set(0);
+                    TableStats fresh = new TableStats(tableid, s.ioCostPerPage, sampleRateFor(tableid));
+                    fresh.saveStatistics();
+                    setTableStats(name, fresh);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    refreshing.remove(tableid);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the file next to the table's data file that its statistics are
+     * saved in, or null if the table isn't stored in a file
+     */
+    static File statisticsFile(DbFile f) {
+        File data;
+        if (f instanceof HeapFile) {
+            data = ((HeapFile) f).getFile();
+        } else if (f instanceof BTreeFile) {
+            data = ((BTreeFile) f).getFile();
+        } else {
+            return null;
+        }
+        String name = data.getName();
+        if (name.endsWith(".dat")) {
+            name = name.substring(0, name.length() - ".dat".length());
+        }
+        return new File(data.getAbsoluteFile().getParentFile(), name + ".stats");
+    }
+
+    /**
+     * Write these statistics next to the table's data file. The data file's
+     * length and modification time are recorded so that stale statistics are
+     * not reloaded.
+     */
+    public void saveStatistics() {
+        File f = statisticsFile(dbFile);
+        if (f == null) {
+            return;
+        }
+        File tmp = new File(f.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeObject(this);
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            tmp.renameTo(f);
+        }
+    }
+
+    /**
+     * Load the statistics saved for a table by {@link #saveStatistics}.
+     *
+     * @return the saved statistics, or null if there are none or the table's
+     * data file has changed since they were saved
+     */
+    public static TableStats loadStatistics(int tableid) {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
+        File f = statisticsFile(dbFile);
+        if (f == null || !f.exists()) {
+            return null;
+        }
+        TableStats s;
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            s = (TableStats) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return null;
+        }
+        File data = dataFile(dbFile);
+        if (s.dataLength != data.length() || s.dataModified != data.lastModified()
+                || !s.td.equals(dbFile.getTupleDesc())
+                || !Arrays.deepEquals(s.columnGroups.toArray(), Database.getCatalog().getColumnGroups(tableid).toArray())) {
+            return null;
+        }
+        s.dbFile = dbFile;
+        return s;
+    }
+
+    private static File dataFile(DbFile f) {
+        return f instanceof HeapFile ? ((HeapFile) f).getFile() : ((BTreeFile) f).getFile();
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -70,14 +248,114 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Number of rows kept to estimate the selectivity of filters on a column
+     * group.
+     */
+    static final int ROW_SAMPLE_SIZE = 2000;
+
+    /**
+     * Number of rows whose integer values are kept to build the histograms
+     * of the integer columns, unless the
+     * configured error bound needs more (see {@link #setSampling}).
+     */
+    public static final int INT_SAMPLE_SIZE = 1 << 14;
+
+    // sampling configuration used by computeStatistics; the defaults scan
+    // every page
+    private static volatile double sampleRate = 1.0;
+    private static volatile double sampleMaxError = 0.0;
+    private static volatile double sampleConfidence = 0.95;
+    // the seed of the random choices of sampled pages and rows, or null for
+    // different choices every time
+    private static volatile Long sampleSeed = null;
+
+    /**
+     * Configure how {@link #computeStatistics} samples tables.
+     *
+     * @param rate       the minimum fraction of each table's pages to read, in (0, 1]
+     * @param maxError   the largest acceptable error of a range selectivity
+     *                   estimate, or 0 to rely on rate alone
+     * @param confidence the probability with which maxError must hold, in (0, 1)
+     */
+    public static void setSampling(double rate, double maxError, double confidence) {
+        if (rate <= 0 || rate > 1 || maxError < 0 || confidence <= 0 || confidence >= 1)
+            throw new IllegalArgumentException("invalid sampling configuration");
+        sampleRate = rate;
+        sampleMaxError = maxError;
+        sampleConfidence = confidence;
+    }
+
+    /**
+     * Seed the random choices of the pages and rows new statistics sample, so
+     * that they are the same every time, as a test needs.
+     *
+     * @param seed the seed, or null to choose differently every time
+     */
+    public static void setSampleSeed(Long seed) {
+        sampleSeed = seed;
+    }
+
+    private static Random sampleRandom() {
+        Long seed = sampleSeed;
+        return seed == null ? new Random() : new Random(seed);
+    }
+
+    /**
+     * The number of sampled tuples needed so that, with probability
+     * confidence, the sample's cumulative distribution is within epsilon of
+     * the table's everywhere (Dvoretzky-Kiefer-Wolfowitz). A range predicate's
+     * selectivity is a difference of two CDF values, so its error is at most
+     * 2 * epsilon.
+     */
+    public static int sampleSizeForError(double epsilon, double confidence) {
+        return (int) Math.ceil(Math.log(2.0 / (1.0 - confidence)) / (2.0 * epsilon * epsilon));
+    }
+
+    /**
+     * @return the fraction of the table's pages computeStatistics reads: the
+     * configured rate, raised if needed to meet the configured error bound
+     */
+    static double sampleRateFor(int tableid) {
+        double rate = sampleRate;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        int numPages = f.numPages();
+        if (sampleMaxError > 0 && numPages > 0) {
+            int tupleSize = f.getTupleDesc().getSize();
+            int tuplesPerPage = Math.max(1, (BufferPool.getPageSize() * 8) / (tupleSize * 8 + 1));
+            int pages = (int) Math.ceil((double) sampleSizeForError(sampleMaxError, sampleConfidence) / tuplesPerPage);
+            rate = Math.max(rate, (double) pages / numPages);
+        }
+        return Math.min(1.0, rate);
+    }
+
     private int ioCostPerPage;
-    private DbFile dbFile;
+    private transient DbFile dbFile;
     private int numTuples;
 
+    // the data file as of when these statistics were built
+    private long dataLength;
+    private long dataModified;
+
     private TupleDesc td;
     private Set<Integer> stringFieldIndices;
-    private IntHistogram[] intHistograms;
+    private EquiDepthHistogram[] intHistograms;
     private StringHistogram[] stringHistograms;
+    private int[] distinctValues;
+
+    // a uniform sample of rows, kept only if column groups are declared
+    private List<int[]> columnGroups;
+    private List<Tuple> rowSample;
+    private transient Random rowSampleRand;
+    private transient int rowsSeen;
+
+    // a uniform sample of the integer values of at most intSampleSize rows,
+    // buffered until the bucket boundaries are known
+    private transient int[][] intSamples;
+    private transient int intSampleSize;
+    private transient Random intSampleRand;
+    private transient HyperLogLog[] sketches;
+    private transient int numSampled;
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -88,92 +366,179 @@ public class TableStats {
      *                      sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, 1.0);
+    }
+
+    /**
+     * Create a new TableStats object from a random sample of the table's
+     * pages. Statistics are built in a single pass over the sampled pages and
+     * the tuple count is scaled up by the fraction of pages read. Tables that
+     * are not HeapFiles are always scanned completely. The histograms of
+     * integer columns are built from a reservoir of at most
+     * {@link #INT_SAMPLE_SIZE} of the rows read, or the number the configured
+     * error bound needs if more; their distinct values are counted over every
+     * row read.
+     *
+     * @param tableid       The table over which to compute statistics
+     * @param ioCostPerPage The cost per page of IO.
+     * @param sampleRate    The fraction of pages to read, in (0, 1]
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleRate) {
         try {
             this.ioCostPerPage = ioCostPerPage;
             dbFile = Database.getCatalog().getDatabaseFile(tableid);
+            if (statisticsFile(dbFile) != null) {
+                File data = dataFile(dbFile);
+                dataLength = data.length();
+                dataModified = data.lastModified();
+            }
             numTuples = 0;
             td = dbFile.getTupleDesc();
-            intHistograms = new IntHistogram[td.numFields()];
+            intHistograms = new EquiDepthHistogram[td.numFields()];
             stringHistograms = new StringHistogram[td.numFields()];
+            distinctValues = new int[td.numFields()];
+            intSamples = new int[td.numFields()][];
+            intSampleSize = INT_SAMPLE_SIZE;
+            if (sampleMaxError > 0)
+                intSampleSize = Math.max(intSampleSize, sampleSizeForError(sampleMaxError, sampleConfidence));
+            intSampleRand = sampleRandom();
+            sketches = new HyperLogLog[td.numFields()];
 
-            // scan the tuples, 1st scan: get min and max; 2nd scan: construct histograms on each attribute.
-            TransactionId tid = new TransactionId();
-            DbFileIterator it = dbFile.iterator(tid);
-            Iterator<TupleDesc.TDItem> tdIt = td.iterator();
-            it.open();
-
-            Integer[] minArray = new Integer[td.numFields()];
-            Integer[] maxArray = new Integer[td.numFields()];
+            columnGroups = new ArrayList<>(Database.getCatalog().getColumnGroups(tableid));
+            if (!columnGroups.isEmpty()) {
+                rowSample = new ArrayList<>();
+                rowSampleRand = sampleRandom();
+            }
 
             stringFieldIndices = new HashSet<>();
-
-            int i = 0;
-            while (tdIt.hasNext()) {
-                TupleDesc.TDItem item = tdIt.next();
-                if (item.fieldType == Type.STRING_TYPE) {
+            for (int i = 0; i < td.numFields(); i++) {
+                sketches[i] = new HyperLogLog();
+                if (td.getFieldType(i) == Type.STRING_TYPE) {
                     stringFieldIndices.add(i);
+                    stringHistograms[i] = new StringHistogram(NUM_HIST_BINS);
+                } else {
+                    intSamples[i] = new int[Math.min(1024, intSampleSize)];
                 }
-                i += 1;
             }
 
-            while (it.hasNext()) {
-                Tuple t = it.next();
-                numTuples += 1;
-                Iterator<Field> itFields = t.fields();
-                i = 0;
-                while (itFields.hasNext()) {
-                    if (!stringFieldIndices.contains(i)) {
-                        IntField field = (IntField) itFields.next();
-                        if (minArray[i] == null || field.getValue() < minArray[i]) {
-                            minArray[i] = field.getValue();
-                        }
-                        if (maxArray[i] == null || field.getValue() > maxArray[i]) {
-                            maxArray[i] = field.getValue();
-                        }
-                    } else {
-                        // don't care String fields.
-                        itFields.next();
+            TransactionId tid = new TransactionId();
+            int numPages = dbFile.numPages();
+            int pagesRead = numPages;
+            if (sampleRate < 1.0 && dbFile instanceof HeapFile && numPages > 1) {
+                int[] pages = choosePages(numPages, sampleRate, sampleRandom());
+                for (int pgNo : pages) {
+                    Page page = Database.getBufferPool().getPage(tid, new HeapPageId(tableid, pgNo), Permissions.READ_ONLY);
+                    Iterator<Tuple> it = ((HeapPage) page).iterator();
+                    while (it.hasNext()) {
+                        addSample(it.next());
                     }
-                    i += 1;
                 }
-
+                pagesRead = pages.length;
+            } else {
+                DbFileIterator it = dbFile.iterator(tid);
+                it.open();
+                while (it.hasNext()) {
+                    addSample(it.next());
+                }
+                it.close();
             }
-            for (i = 0; i < td.numFields(); i++) {
+            numTuples = pagesRead == 0 ? numSampled : (int) Math.round((double) numSampled * numPages / pagesRead);
+
+            // build the integer histograms from the buffered values, one
+            // column per thread
+            boolean sampled = pagesRead < numPages;
+            int numKept = Math.min(numSampled, intSampleSize);
+            IntStream.range(0, td.numFields()).parallel().forEach(i -> {
                 if (!stringFieldIndices.contains(i)) {
-                    intHistograms[i] = new IntHistogram(NUM_HIST_BINS, minArray[i], maxArray[i]);
-                } else {
-                    stringHistograms[i] = (new StringHistogram(NUM_HIST_BINS));
+                    intHistograms[i] = new EquiDepthHistogram(NUM_HIST_BINS, intSamples[i], numKept);
                 }
-            }
+                distinctValues[i] = scaleDistinct(sketches[i].estimate(), sampled);
+            });
+            intSamples = null;
+            sketches = null;
+
+        } catch (Exception e) {
+            System.out.println("?");
+        }
+    }
+
+    /**
+     * Pick ceil(rate * numPages) distinct page numbers uniformly at random
+     * (Floyd's algorithm), sorted so that they are read in file order.
+     */
+    private static int[] choosePages(int numPages, double rate, Random rand) {
+        int k = Math.max(1, Math.min(numPages, (int) Math.ceil(rate * numPages)));
+        Set<Integer> chosen = new HashSet<>();
+        for (int j = numPages - k; j < numPages; j++) {
+            int p = rand.nextInt(j + 1);
+            chosen.add(chosen.contains(p) ? j : p);
+        }
+        int[] pages = new int[k];
+        int i = 0;
+        for (int p : chosen) {
+            pages[i++] = p;
+        }
+        Arrays.sort(pages);
+        return pages;
+    }
 
-            it.rewind();
-            while (it.hasNext()) {
-                Tuple t = it.next();
-                Iterator<Field> itFields = t.fields();
-                i = 0;
-                while (itFields.hasNext()) {
-                    if (!stringFieldIndices.contains(i)) {
-                        IntField field = (IntField) itFields.next();
-                        intHistograms[i].addValue(field.getValue());
-                    } else {
-                        StringField field = (StringField) itFields.next();
-                        stringHistograms[i].addValue(field.getValue());
+    /**
+     * Turn the number of distinct values seen in the sample into an estimate
+     * for the table. A column that is (nearly) unique in the sample is assumed
+     * to be unique in the table; otherwise the sample is assumed to have seen
+     * every value.
+     */
+    private int scaleDistinct(long seen, boolean sampled) {
+        long d = seen;
+        if (sampled && numSampled > 0 && seen >= 0.9 * numSampled) {
+            d = Math.round((double) seen * numTuples / numSampled);
+        }
+        return (int) Math.max(1, Math.min(d, Math.max(numTuples, 1)));
+    }
+
+    private void addSample(Tuple t) {
+        // reservoir sampling of the integer values: once the reservoir is
+        // full, the row replaces a kept one with probability
+        // intSampleSize / (numSampled + 1)
+        int slot = numSampled < intSampleSize ? numSampled : intSampleRand.nextInt(numSampled + 1);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (stringFieldIndices.contains(i)) {
+                String v = ((StringField) t.getField(i)).getValue();
+                stringHistograms[i].addValue(v);
+                sketches[i].addValue(v);
+            } else {
+                int v = ((IntField) t.getField(i)).getValue();
+                sketches[i].addValue(v);
+                if (slot < intSampleSize) {
+                    if (slot == intSamples[i].length) {
+                        intSamples[i] = Arrays.copyOf(intSamples[i], Math.min(slot * 2, intSampleSize));
                     }
-                    i += 1;
+                    intSamples[i][slot] = v;
                 }
             }
+        }
+        numSampled++;
 
-        } catch (Exception e) {
-            System.out.println("?");
+        if (rowSample != null) {
+            // reservoir sampling
+            if (rowSample.size() < ROW_SAMPLE_SIZE) {
+                rowSample.add(copyOf(t));
+            } else {
+                int j = rowSampleRand.nextInt(rowsSeen + 1);
+                if (j < ROW_SAMPLE_SIZE) {
+                    rowSample.set(j, copyOf(t));
+                }
+            }
+            rowsSeen++;
+        }
+    }
+
+    private Tuple copyOf(Tuple t) {
+        Tuple copy = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            copy.setField(i, t.getField(i));
         }
+        return copy;
     }
 
     /**
@@ -193,6 +558,106 @@ public class TableStats {
         return dbFile.numPages() * ioCostPerPage;
     }
 
+    /**
+     * @return the field the table's B+ tree is keyed on, or -1 if the table
+     * isn't stored in a B+ tree
+     */
+    public int indexField() {
+        return dbFile instanceof BTreeFile ? ((BTreeFile) dbFile).keyField() : -1;
+    }
+
+    /**
+     * Estimate the cost of reading the tuples whose key satisfies a
+     * predicate from the table's B+ tree: reading one page per level of the
+     * tree down to the first matching leaf, then the further leaves holding
+     * the matching tuples, and comparing each of them.
+     *
+     * @param selectivity The fraction of the tuples the predicate matches
+     * @return The estimated cost, in the units of {@link #estimateScanCost()}
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        double matches = numTuples * selectivity;
+        return treeSearchCost(td.getSize(), keySize((BTreeFile) dbFile), matches) + matches;
+    }
+
+    /**
+     * @return the size of the keys the internal pages of a B+ tree hold: the
+     * values of all its key fields
+     */
+    private static int keySize(BTreeFile f) {
+        int size = 0;
+        for (int field : f.keyFields()) {
+            size += f.getTupleDesc().getFieldType(field).getLen();
+        }
+        return size;
+    }
+
+    /**
+     * Estimate the cost of reading the tuples whose indexed fields satisfy a
+     * predicate through a secondary index of the table: searching the index
+     * as {@link #estimateIndexScanCost} does, then reading each page of the
+     * table holding a matching tuple once, and comparing the tuples. A page
+     * of t tuples holds a match with probability 1 - (1 - selectivity)^t.
+     *
+     * @param index The index, over the table these statistics describe
+     * @param selectivity The fraction of the tuples the predicate matches
+     * @return The estimated cost, in the units of {@link #estimateScanCost()}
+     */
+    public double estimateIndexScanCost(SecondaryIndex index, double selectivity) {
+        double matches = numTuples * selectivity;
+        int pages = dbFile.numPages();
+        double tuplesPerPage = pages == 0 ? 0 : (double) numTuples / pages;
+        double pagesRead = pages * (1 - Math.pow(1 - selectivity, tuplesPerPage));
+        return estimateIndexOnlyScanCost(index, selectivity) + ioCostPerPage * pagesRead;
+    }
+
+    /**
+     * Estimate the cost of reading the fields of the tuples whose indexed
+     * fields satisfy a predicate from the entries of a secondary index of the
+     * table which holds them all: searching the index as
+     * {@link #estimateIndexScanCost} does, without reading the table.
+     *
+     * @param index The index, over the table these statistics describe
+     * @param selectivity The fraction of the tuples the predicate matches
+     * @return The estimated cost, in the units of {@link #estimateScanCost()}
+     */
+    public double estimateIndexOnlyScanCost(SecondaryIndex index, double selectivity) {
+        BTreeFile f = index.getFile();
+        double matches = numTuples * selectivity;
+        return treeSearchCost(f.getTupleDesc().getSize(), keySize(f), matches) + matches;
+    }
+
+    /**
+     * @return the cost of reading one page per level of a B+ tree over the
+     * table down to the first matching leaf, then the further leaves holding
+     * the matching tuples
+     * @param tupleSize the size of the tuples the tree stores
+     * @param keySize the size of the keys its internal pages store
+     * @param matches the number of matching tuples
+     */
+    private double treeSearchCost(int tupleSize, int keySize, double matches) {
+        int pageBits = BufferPool.getPageSize() * 8;
+        // the capacities of BTreeLeafPage and BTreeInternalPage
+        int tuplesPerLeaf = Math.max(1, (pageBits - 3 * 32) / (tupleSize * 8 + 1));
+        int fanout = Math.max(2, (pageBits - 2 * 32 - 9) / (keySize * 8 + 32 + 1) + 1);
+        double leaves = Math.max(1.0, Math.ceil((double) numTuples / tuplesPerLeaf));
+        int height = 1 + (int) Math.ceil(Math.log(leaves) / Math.log(fanout));
+        double moreLeaves = Math.max(0.0, Math.ceil(matches / tuplesPerLeaf) - 1);
+        return ioCostPerPage * (height + moreLeaves);
+    }
+
+    /**
+     * Estimate the cost of looking up the tuples whose key matches a value
+     * not known in advance, as an index nested loops join does.
+     *
+     * @param op The operator the key is compared with
+     * @return The estimated cost of one lookup, in the units of
+     * {@link #estimateScanCost()}
+     */
+    public double estimateIndexLookupCost(Predicate.Op op) {
+        return estimateIndexScanCost(avgSelectivity(indexField(), op));
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -217,7 +682,26 @@ public class TableStats {
      */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        return 1.0;
+        double eq = 1.0 / estimateDistinctValues(field);
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return eq;
+            case NOT_EQUALS:
+                return 1.0 - eq;
+            default:
+                // a range predicate keeps, on average, half of the other values
+                return (1.0 - eq) / 2 + (op == Predicate.Op.LESS_THAN_OR_EQ
+                        || op == Predicate.Op.GREATER_THAN_OR_EQ ? eq : 0);
+        }
+    }
+
+    /**
+     * @param field the index of the field
+     * @return the estimated number of distinct values of the field, at least 1
+     */
+    public int estimateDistinctValues(int field) {
+        return distinctValues[field];
     }
 
     /**
@@ -239,6 +723,73 @@ public class TableStats {
         }
     }
 
+    /**
+     * Estimate the selectivity of a conjunction of predicates over the table.
+     * Predicates on columns of a declared column group are estimated together
+     * from a sample of rows, so correlated columns aren't treated as
+     * independent; all other predicates are assumed independent. A predicate
+     * whose operand is a parameter not bound yet is estimated for a value
+     * not known in advance (see {@link #avgSelectivity}).
+     *
+     * @param predicates The predicates, with field indices into the table
+     * @return The estimated selectivity of all predicates together
+     */
+    public double estimateSelectivity(List<Predicate> predicates) {
+        List<Predicate> remaining = new ArrayList<>(predicates);
+        double sel = 1.0;
+        while (rowSample != null && !rowSample.isEmpty()) {
+            // the group covering the most remaining predicates goes first
+            List<Predicate> covered = null;
+            for (int[] group : columnGroups) {
+                List<Predicate> c = new ArrayList<>();
+                for (Predicate p : remaining) {
+                    if (!p.isParameterized() && Arrays.binarySearch(group, p.getField()) >= 0) {
+                        c.add(p);
+                    }
+                }
+                if (c.size() >= 2 && (covered == null || c.size() > covered.size())) {
+                    covered = c;
+                }
+            }
+            if (covered == null) {
+                break;
+            }
+            sel *= estimateSampleSelectivity(covered);
+            remaining.removeAll(covered);
+        }
+        for (Predicate p : remaining) {
+            sel *= p.isParameterized() ? avgSelectivity(p.getField(), p.getOp())
+                    : estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        return sel;
+    }
+
+    private double estimateSampleSelectivity(List<Predicate> predicates) {
+        int matches = 0;
+        for (Tuple t : rowSample) {
+            boolean all = true;
+            for (Predicate p : predicates) {
+                if (!p.filter(t)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                matches++;
+            }
+        }
+        if (matches > 0) {
+            return (double) matches / rowSample.size();
+        }
+        // too rare to show up in the sample; fall back on independence, which
+        // can't be more than the sample's resolution
+        double sel = 1.0;
+        for (Predicate p : predicates) {
+            sel *= estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+        }
+        return Math.min(sel, 1.0 / rowSample.size());
+    }
+
     /**
      * return the total number of tuples in this table
      */
@@ -1,14 +1,22 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.execution.AggregateView;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
+import simpledb.optimizer.TableStats;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -36,10 +44,26 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
+    /**
+     * Most pages read ahead at once, as a fraction of the pages in the pool:
+     * read-ahead may evict pages, so it is kept to a small part of the pool.
+     */
+    private static final int PREFETCH_FRACTION = 8;
+
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "BufferPool prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
     private int numPages;
 
     private Map<PageId, Page> pageId2Page;
 
+    // pages being read ahead, each with a future completed once it has been
+    // put in the pool or dropped
+    private final Map<PageId, CompletableFuture<Void>> prefetching = new HashMap<>();
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -83,23 +107,104 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        if (pageId2Page.containsKey(pid)) {
-            return pageId2Page.get(pid);
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            Page cached = pageId2Page.get(pid);
+            if (cached != null) {
+                return cached;
+            }
+            pending = prefetching.get(pid);
+        }
+        // a page being read ahead is waited for rather than read again
+        if (pending != null) {
+            pending.join();
+            synchronized (this) {
+                Page cached = pageId2Page.get(pid);
+                if (cached != null) {
+                    return cached;
+                }
+            }
         }
+        // read outside the lock so that threads loading different pages
+        // (e.g. parallel statistics builds) don't wait on each other's IO
         Catalog catalog = Database.getCatalog();
         DbFile dbFile = catalog.getDatabaseFile(pid.getTableId());
         Page res = dbFile.readPage(pid);
-        safePut(pid, res);
+        synchronized (this) {
+            Page cached = pageId2Page.get(pid);
+            if (cached != null) {
+                return cached;
+            }
+            safePut(pid, res);
+        }
         return res;
     }
 
-    private void safePut(PageId pid, Page res) throws DbException {
+    /**
+     * Start reading a page into the pool in the background, for a caller that
+     * expects to ask for it soon, such as a scan reading pages in a known
+     * order. Returns at once; the page is put in the pool when it has been
+     * read, and a getPage for it meanwhile waits for that read to finish
+     * instead of reading it again. Does nothing if the page is already in the
+     * pool or being read, or if as many pages as the pool can spare for
+     * read-ahead are being read.
+     * <p>
+     * A read-ahead takes no lock for any transaction: the page is fetched
+     * with getPage, and locked, when it is used.
+     *
+     * @param pid the ID of the page to read ahead
+     */
+    public void prefetchPage(PageId pid) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        synchronized (this) {
+            if (pageId2Page.containsKey(pid) || prefetching.containsKey(pid)
+                    || prefetching.size() >= numPages / PREFETCH_FRACTION) {
+                return;
+            }
+            prefetching.put(pid, done);
+        }
+        prefetcher.execute(() -> {
+            try {
+                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                synchronized (this) {
+                    // a page discarded while it was read may have changed on disk since
+                    if (prefetching.get(pid) == done && !pageId2Page.containsKey(pid)) {
+                        safePut(pid, page);
+                    }
+                }
+            } catch (RuntimeException | DbException e) {
+                // the page is read when it is asked for, if it still exists then
+            } finally {
+                synchronized (this) {
+                    prefetching.remove(pid, done);
+                }
+                done.complete(null);
+            }
+        });
+    }
+
+    private synchronized void safePut(PageId pid, Page res) throws DbException {
         if (pageId2Page.size() == numPages && !pageId2Page.containsKey(pid)) {
             evictPage();
         }
         pageId2Page.put(pid, res);
     }
 
+    /**
+     * Mark a page dirty on behalf of a transaction and put it in the cache,
+     * replacing any other version of it. Files whose pages other threads may
+     * change as soon as an operation releases them (see
+     * {@link simpledb.index.BTreeFile}) call this before releasing them,
+     * rather than leaving it to insertTuple and deleteTuple.
+     *
+     * @param tid  the transaction that dirtied the page
+     * @param page the page
+     */
+    public synchronized void putDirtied(TransactionId tid, Page page) throws DbException {
+        page.markDirty(true, tid);
+        safePut(page.getId(), page);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -168,6 +273,13 @@ public class BufferPool {
             page.markDirty(true, tid);
             safePut(page.getId(), page);
         }
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.insert(tid, t);
+        }
+        for (AggregateView view : Database.getCatalog().getAggregateViews(tableId)) {
+            view.insert(t);
+        }
+        TableStats.recordModification(tableId);
     }
 
     /**
@@ -187,11 +299,20 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        List<Page> pages = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        // the entries of the tuple are found by its record id, which the delete clears
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.delete(tid, t);
+        }
+        List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
             safePut(page.getId(), page);
         }
+        for (AggregateView view : Database.getCatalog().getAggregateViews(tableId)) {
+            view.delete(t);
+        }
+        TableStats.recordModification(tableId);
     }
 
     /**
@@ -205,6 +326,14 @@ public class BufferPool {
         for (PageId pageId : pageId2Page.keySet()) {
             flushPage(pageId);
         }
+        // the pages of the B+ trees are all on disk, so the pages reserved at the
+        // end of their files and not allocated yet can be given back
+        for (Iterator<Integer> it = Database.getCatalog().tableIdIterator(); it.hasNext(); ) {
+            DbFile file = Database.getCatalog().getDatabaseFile(it.next());
+            if (file instanceof BTreeFile) {
+                ((BTreeFile) file).trimReservedPages();
+            }
+        }
     }
 
     /**
@@ -220,6 +349,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         pageId2Page.remove(pid);
+        prefetching.remove(pid);
     }
 
     /**
@@ -0,0 +1,145 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, such as the key
+ * of a B+ tree on more than one field. Composite fields are ordered
+ * lexicographically: by their first values, then by their second values, and
+ * so on.
+ * <p>
+ * A composite field may be compared with a shorter one, or with a single field
+ * standing for a composite field of one value, and then only as many values
+ * as the shorter has are compared. So (5, 10) equals (5), and is greater than
+ * (4, 20), which is how a search on a prefix of a key finds every key
+ * starting with it.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of this field, of which there must be at least one.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one value");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of values in this field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th value of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the composite field of the first n values of this one
+     */
+    public CompositeField prefix(int n) {
+        return new CompositeField(Arrays.copyOf(fields, n));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(((CompositeField) field).fields, fields);
+    }
+
+    /**
+     * Write the values of this field one after the other, each as it is
+     * written on its own.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Read a composite field written by {@link #serialize(DataOutputStream)}.
+     *
+     * @param types The types of the values of the field
+     */
+    public static CompositeField parse(Type[] types, DataInputStream dis) throws java.text.ParseException {
+        Field[] fields = new Field[types.length];
+        for (int i = 0; i < types.length; i++)
+            fields[i] = types[i].parse(dis);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, over the values
+     * both have.
+     * Return semantics are as specified by Field.compare
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int c = compareTo(val);
+
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return c == 0;
+            case NOT_EQUALS:
+                return c != 0;
+            case GREATER_THAN:
+                return c > 0;
+            case GREATER_THAN_OR_EQ:
+                return c >= 0;
+            case LESS_THAN:
+                return c < 0;
+            case LESS_THAN_OR_EQ:
+                return c <= 0;
+        }
+
+        return false;
+    }
+
+    private int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[] { val };
+        for (int i = 0; i < Math.min(fields.length, other.length); i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the Type of this field, which is that of its first value.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
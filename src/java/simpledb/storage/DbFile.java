@@ -3,6 +3,7 @@ package simpledb.storage;
 
 import simpledb.common.DbException;
 import simpledb.common.Catalog;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -73,6 +74,47 @@ public interface DbFile {
      */
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that satisfy
+     * all of the specified predicates, whose fields are numbered as in
+     * {@link #getTupleDesc()}. Files that can test the predicates before
+     * building a tuple override this; by default the tuples returned by
+     * {@link #iterator(TransactionId)} are filtered.
+     *
+     * @return an iterator over the matching tuples stored in this DbFile.
+     */
+    default DbFileIterator iterator(TransactionId tid, List<Predicate> filters) {
+        DbFileIterator it = iterator(tid);
+        if (filters.isEmpty()) {
+            return it;
+        }
+        return new AbstractDbFileIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                it.open();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                super.close();
+                it.rewind();
+            }
+
+            public void close() {
+                super.close();
+                it.close();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    if (filters.stream().allMatch(p -> p.filter(t))) {
+                        return t;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
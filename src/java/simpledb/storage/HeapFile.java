@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -23,6 +24,13 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /**
+     * A field number that, in the fields an iterator is asked for, stands for
+     * each tuple's row number in the file, an IntField named ROW_NUMBER_NAME
+     */
+    public static final int ROW_NUMBER = -1;
+    public static final String ROW_NUMBER_NAME = "$row";
+
     private File file;
     private TupleDesc tupleDesc;
 
@@ -162,24 +170,71 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    /**
+     * @return the id of the tuple with the specified row number, as returned
+     * for {@link #ROW_NUMBER}
+     */
+    public RecordId recordId(int rowNumber) {
+        int slots = HeapPage.slotsPerPage(tupleDesc);
+        return new RecordId(new HeapPageId(getId(), rowNumber / slots), rowNumber % slots);
+    }
+
+    /**
+     * @return the row number of the tuple with the specified id, the inverse
+     * of {@link #recordId}
+     */
+    public int rowNumber(RecordId rid) {
+        return rid.getPageId().getPageNumber() * HeapPage.slotsPerPage(tupleDesc) + rid.getTupleNumber();
+    }
+
     public class HeapFileIterator implements DbFileIterator {
         Iterator<Tuple> it = null;
         TransactionId tid;
         HeapFile heapFile;
+        List<Predicate> filters;
+        int[] fields;
         boolean opened = false;
         int pgNo = 0;
 
 
         public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
+            this(heapFile, tid, Collections.emptyList());
+        }
+
+        /**
+         * An iterator over the tuples of the file that satisfy all of the
+         * specified predicates; see {@link HeapPage#iterator(List)}.
+         */
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, List<Predicate> filters) {
+            this(heapFile, tid, filters, null);
+        }
+
+        /**
+         * An iterator over the specified fields of the tuples of the file
+         * that satisfy all of the specified predicates; see
+         * {@link HeapPage#iterator(List, int[])}. If fields is null, the
+         * tuples are returned whole.
+         */
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, List<Predicate> filters, int[] fields) {
             this.heapFile = heapFile;
             this.tid = tid;
+            this.filters = filters;
+            this.fields = fields;
+        }
+
+        private Iterator<Tuple> pageIterator(HeapPage heapPage) {
+            if (fields != null) {
+                return heapPage.iterator(filters, fields);
+            }
+            return filters.isEmpty() ? heapPage.iterator() : heapPage.iterator(filters);
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
             opened = true;
+            pgNo = 0;
             HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(heapFile.getId(), pgNo), Permissions.READ_ONLY);
-            it = heapPage.iterator();
+            it = pageIterator(heapPage);
 
             nextHelper(true);
 
@@ -200,7 +255,7 @@ public class HeapFile implements DbFile {
                 pgNo += 1;
                 // 这个时候it必须有next。
                 HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(heapFile.getId(), pgNo), Permissions.READ_ONLY);
-                it = heapPage.iterator();
+                it = pageIterator(heapPage);
             }
             return res;
         }
@@ -215,7 +270,6 @@ public class HeapFile implements DbFile {
 
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
-            pgNo = 0;
             open();
         }
 
@@ -232,5 +286,22 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(this, tid);
     }
 
+    // see DbFile.java for javadocs
+    @Override
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> filters) {
+        return new HeapFileIterator(this, tid, filters);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored in this file that satisfy
+     * all of the specified predicates, holding only the specified fields of
+     * each, in that order; the other fields are never read.
+     *
+     * @param fields field numbers of the file's tuples, or {@link #ROW_NUMBER}
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> filters, int[] fields) {
+        return new HeapFileIterator(this, tid, filters, fields);
+    }
+
 }
 
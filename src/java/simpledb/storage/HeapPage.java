@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
@@ -22,8 +24,13 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    // tuples are built from the page's bytes the first time they're needed;
+    // until then a slot's entry is null
     final Tuple[] tuples;
     final int numSlots;
+    private final byte[] data;
+    // the offset of each field within a tuple
+    private final int[] fieldOffsets;
 
     TransactionId dirtyTid;
 
@@ -65,22 +72,16 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data;
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        header = Arrays.copyOf(data, getHeaderSize());
+
+        // the records are read as they are needed
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
 
         setBeforeImage();
     }
@@ -90,6 +91,11 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+        return slotsPerPage(td);
+    }
+
+    /** @return the number of tuple slots on a page of a table with the specified schema */
+    static int slotsPerPage(TupleDesc td) {
         int tupleSize = td.getSize();
         return (int)Math.floor((BufferPool.getPageSize()*8.0) / (tupleSize * 8 + 1));
     }
@@ -136,22 +142,49 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the offset in the page's bytes of the specified slot */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in the specified (used) slot, read from the page's
+     * bytes if it hasn't been yet
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    private Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = readTuple(slotId);
+            tuples[slotId] = t;
         }
+        return t;
+    }
+
+    /**
+     * Read the specified field of the tuple in a slot from the page's bytes,
+     * without building the tuple.
+     */
+    private Field readField(int slotId, int field) {
+        int off = slotOffset(slotId) + fieldOffsets[field];
+        Type type = td.getFieldType(field);
+        if (type == Type.INT_TYPE) {
+            return new IntField(((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                    | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff));
+        }
+        try {
+            return type.parse(new DataInputStream(new ByteArrayInputStream(data, off, type.getLen())));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Read the tuple in the specified slot from the page's bytes.
+     */
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(
+                new ByteArrayInputStream(data, slotOffset(slotId), td.getSize()));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -212,7 +245,15 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot; one never read is copied as it is
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
@@ -390,11 +431,82 @@ public class HeapPage implements Page {
         iterAux.clear();
         for (int i = 0; i < numSlots; i++) {
             if (isSlotUsed(i)) {
-                iterAux.add(tuples[i]);
+                iterAux.add(getTuple(i));
             }
         }
         return new hpIter();
     }
 
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     * the specified predicates (calling remove on this iterator throws an
+     * UnsupportedOperationException). The predicates are evaluated against
+     * the fields in the page's bytes, so tuples that fail them are never
+     * built.
+     */
+    public Iterator<Tuple> iterator(List<Predicate> filters) {
+        List<Tuple> matches = new ArrayList<>();
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i) && satisfies(i, filters)) {
+                matches.add(getTuple(i));
+            }
+        }
+        return Collections.unmodifiableList(matches).iterator();
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     * the specified predicates, as {@link #iterator(List)}, but holding only
+     * the specified fields, in that order. Only those fields are read from
+     * the page's bytes. {@link HeapFile#ROW_NUMBER} stands for the tuple's
+     * row number in its file (see {@link HeapFile#recordId}).
+     */
+    public Iterator<Tuple> iterator(List<Predicate> filters, int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            if (fields[k] == HeapFile.ROW_NUMBER) {
+                types[k] = Type.INT_TYPE;
+                names[k] = HeapFile.ROW_NUMBER_NAME;
+            } else {
+                types[k] = td.getFieldType(fields[k]);
+                names[k] = td.getFieldName(fields[k]);
+            }
+        }
+        TupleDesc projected = new TupleDesc(types, names);
+        List<Tuple> matches = new ArrayList<>();
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i) || !satisfies(i, filters)) {
+                continue;
+            }
+            Tuple t = new Tuple(projected);
+            t.setRecordId(new RecordId(pid, i));
+            for (int k = 0; k < fields.length; k++) {
+                t.setField(k, fields[k] == HeapFile.ROW_NUMBER
+                        ? new IntField(pid.getPageNumber() * numSlots + i) : getField(i, fields[k]));
+            }
+            matches.add(t);
+        }
+        return Collections.unmodifiableList(matches).iterator();
+    }
+
+    /**
+     * @return the specified field of the tuple in a used slot, read from the
+     * page's bytes if the tuple hasn't been built
+     */
+    public Field getField(int slotId, int field) {
+        Tuple t = tuples[slotId];
+        return t != null ? t.getField(field) : readField(slotId, field);
+    }
+
+    private boolean satisfies(int slotId, List<Predicate> filters) {
+        for (Predicate p : filters) {
+            if (!p.matches(getField(slotId, p.getField()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
 
@@ -0,0 +1,153 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class AggregateViewTest extends SimpleDbTestBase {
+
+  private HeapFile table;
+  private TransactionId tid;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    // 2 columns, 1000 rows, values in [0, 10) so groups repeat
+    table = SystemTestUtil.createRandomHeapFile(2, 1000, 10, null, new ArrayList<>(), "c");
+    tid = new TransactionId();
+  }
+
+  /** Drain an OpIterator into a set of its tuples' values */
+  private static Set<List<Integer>> contents(OpIterator it) throws Exception {
+    Set<List<Integer>> result = new HashSet<>();
+    it.open();
+    while (it.hasNext())
+      result.add(SystemTestUtil.tupleToList(it.next()));
+    it.close();
+    return result;
+  }
+
+  /** Recompute the aggregate from scratch */
+  private Set<List<Integer>> recompute(int gbField, int aField, Aggregator.Op op) throws Exception {
+    return contents(new Aggregate(new SeqScan(tid, table.getId(), ""), aField, gbField, op));
+  }
+
+  private AggregateView register(int gbField, int aField, Aggregator.Op op) throws Exception {
+    AggregateView view = new AggregateView(table.getId(), gbField, aField, op);
+    view.populate(tid);
+    Database.getCatalog().addAggregateView(view);
+    return view;
+  }
+
+  /**
+   * Views must stay equal to a recomputation as tuples are inserted and deleted
+   */
+  @Test public void maintainedOnInsertAndDelete() throws Exception {
+    Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.COUNT, Aggregator.Op.AVG,
+        Aggregator.Op.MIN, Aggregator.Op.MAX };
+    List<AggregateView> views = new ArrayList<>();
+    for (Aggregator.Op op : ops) {
+      views.add(register(0, 1, op));
+      views.add(register(Aggregator.NO_GROUPING, 1, op));
+    }
+
+    for (int i = 0; i < 50; i++) {
+      Tuple t = new Tuple(table.getTupleDesc());
+      t.setField(0, new IntField(i % 12));
+      t.setField(1, new IntField(i * 7));
+      Database.getBufferPool().insertTuple(tid, table.getId(), t);
+    }
+
+    // delete every third tuple, including the current minimum and maximum of some groups
+    List<Tuple> toDelete = new ArrayList<>();
+    DbFileIterator it = table.iterator(tid);
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      if (n++ % 3 == 0)
+        toDelete.add(t);
+    }
+    it.close();
+    for (Tuple t : toDelete)
+      Database.getBufferPool().deleteTuple(tid, t);
+
+    for (AggregateView view : views) {
+      assertEquals(view.toString(),
+          recompute(view.getGroupField(), view.getAggregateField(), view.getAggregateOp()),
+          contents(view.iterator()));
+    }
+  }
+
+  /**
+   * Deleting every tuple of a group removes the group from the view
+   */
+  @Test public void emptyGroupRemoved() throws Exception {
+    AggregateView view = register(0, 1, Aggregator.Op.MAX);
+    Tuple t = new Tuple(table.getTupleDesc());
+    t.setField(0, new IntField(-5));
+    t.setField(1, new IntField(3));
+    Database.getBufferPool().insertTuple(tid, table.getId(), t);
+    assertTrue(contents(view.iterator()).contains(Arrays.asList(-5, 3)));
+
+    Database.getBufferPool().deleteTuple(tid, t);
+    for (List<Integer> row : contents(view.iterator()))
+      assertFalse(row.get(0) == -5);
+  }
+
+  /**
+   * A matching single-table aggregate is planned as a scan of the view
+   */
+  @Test public void plannerUsesView() throws Exception {
+    String name = Database.getCatalog().getTableName(table.getId());
+    Map<String, TableStats> stats = new HashMap<>();
+    stats.put(name, new TableStats(table.getId(), 1000));
+
+    AggregateView view = register(0, 1, Aggregator.Op.SUM);
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(table.getId(), "t");
+    lp.addProjectField("t.c0", null);
+    lp.addProjectField("t.c1", "SUM");
+    lp.addAggregate("SUM", "t.c1", "t.c0");
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+    OpIterator child = ((Operator) plan).getChildren()[0];
+    assertFalse(child instanceof Aggregate);
+    assertEquals(contents(view.iterator()), contents(plan));
+
+    // a filtered query can't be answered from the view
+    lp = new LogicalPlan();
+    lp.addScan(table.getId(), "t");
+    lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, "4");
+    lp.addProjectField("t.c0", null);
+    lp.addProjectField("t.c1", "SUM");
+    lp.addAggregate("SUM", "t.c1", "t.c0");
+    plan = lp.physicalPlan(tid, stats, false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(AggregateViewTest.class);
+  }
+}
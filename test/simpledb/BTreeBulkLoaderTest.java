@@ -0,0 +1,146 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.openBTreeFile(2, f, 0);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Load the tuples in random order and check the file holds them in key order
+	 */
+	private void loadAndCheck(BTreeBulkLoader loader, List<List<Integer>> tuples) throws Exception {
+		Collections.shuffle(tuples, new Random(7));
+		for(List<Integer> t : tuples) {
+			loader.add(BTreeUtility.getBTreeTuple(t));
+		}
+		loader.finish();
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		tuples.sort(Comparator.comparing(t -> t.get(0)));
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(List<Integer> t : tuples) {
+			assertTrue(it.hasNext());
+			assertEquals(t.get(0), BTreeUtility.tupleToList(it.next()).get(0));
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	@Test
+	public void testMultiPassMerge() throws Exception {
+		BufferPool.setPageSize(1024);
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeUtility.generateRandomTuples(2, 31125, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+
+		// enough runs that they are merged in more than one pass
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setRunSize(100);
+		loadAndCheck(loader, tuples);
+
+		// three levels, with full pages but for the last two on each level
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		assertEquals(bf.numPages(), rootPtr.getRootId().getPageNumber());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(2, root.getNumEntries());
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+		assertEquals(0, first.getNumEmptySlots());
+	}
+
+	@Test
+	public void testFillFactor() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeUtility.generateRandomTuples(2, 10000, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setFillFactor(0.7);
+		loadAndCheck(loader, tuples);
+
+		BTreeLeafPage first = (BTreeLeafPage) Database.getBufferPool().getPage(
+				tid, new BTreePageId(bf.getId(), 1, BTreePageId.LEAF), Permissions.READ_ONLY);
+		assertEquals((int) (first.getMaxTuples() * 0.7), first.getNumTuples());
+
+		// the pages left free take inserts without splitting
+		int numPages = bf.numPages();
+		for(int i = 0; i < 20; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		assertEquals(numPages, bf.numPages());
+	}
+
+	@Test
+	public void testFillFactorRemainder() throws Exception {
+		// a remainder too small to share with the page before it
+		BufferPool.setPageSize(1024);
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setFillFactor(0.5);
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeUtility.generateRandomTuples(2, 62 * 10 + 3, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+		loadAndCheck(loader, tuples);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		new BTreeBulkLoader(bf).finish();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(1, bf.numPages());
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNonEmptyFile() throws Exception {
+		BTreeFile full = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+		new BTreeBulkLoader(full);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
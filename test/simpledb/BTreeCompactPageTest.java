@@ -0,0 +1,224 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests the compact pages of B+ trees on string keys
+ */
+public class BTreeCompactPageTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		File f = File.createTempFile("compact", ".dat");
+		f.deleteOnExit();
+		bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	/**
+	 * @return distinct random keys of varying length
+	 */
+	private static List<String> randomKeys(int n) {
+		Random r = new Random(11);
+		Set<String> keys = new LinkedHashSet<>();
+		while(keys.size() < n) {
+			StringBuilder sb = new StringBuilder("customer/");
+			int len = 5 + r.nextInt(30);
+			for(int i = 0; i < len; i++) {
+				sb.append((char) ('a' + r.nextInt(26)));
+			}
+			keys.add(sb.toString());
+		}
+		return new ArrayList<>(keys);
+	}
+
+	private void checkContents(List<String> keys) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<String> sorted = new ArrayList<>(keys);
+		Collections.sort(sorted);
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(String key : sorted) {
+			assertTrue(it.hasNext());
+			assertEquals(key, ((StringField) it.next().getField(0)).getValue());
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	private BTreePage root() throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * @return the tuples a leaf page holds in fixed-width slots
+	 */
+	private static int fixedMaxTuples() {
+		return (BufferPool.getPageSize() * 8 - 3 * 4 * 8) / (TD.getSize() * 8 + 1);
+	}
+
+	@Test
+	public void testLeafPageRoundTrip() throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), 0);
+		int n = 0;
+		while(page.getNumEmptySlots() > 0) {
+			page.insertTuple(tuple(String.format("customer/%05d", 3 * n), n));
+			n++;
+		}
+		page.insertTuple(tuple("", -1));
+		page.deleteTuple(page.iterator().next());
+
+		// keys sharing a prefix take few bytes, so many more fit than in fixed-width slots
+		assertTrue(n > 3 * fixedMaxTuples());
+
+		BTreeLeafPage copy = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertEquals(n, copy.getNumTuples());
+		Iterator<Tuple> it = page.iterator();
+		Iterator<Tuple> copyIt = copy.iterator();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			Tuple c = copyIt.next();
+			assertEquals(t.getField(0), c.getField(0));
+			assertEquals(t.getField(1), c.getField(1));
+			assertEquals(t.getRecordId(), c.getRecordId());
+		}
+		assertFalse(copyIt.hasNext());
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+	}
+
+	@Test
+	public void testSmallPagesKeepFixedSlots() throws Exception {
+		// too small to hold sixteen of the largest tuples
+		BufferPool.setPageSize(1024);
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreePage.createEmptyPageData(), 0);
+		assertEquals(fixedMaxTuples(), page.getMaxTuples());
+		assertEquals(fixedMaxTuples(), page.getNumEmptySlots());
+	}
+
+	@Test
+	public void testInsertAndDelete() throws Exception {
+		List<String> keys = randomKeys(20000);
+		for(int i = 0; i < keys.size(); i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i), i));
+		}
+		checkContents(keys);
+
+		// the keys separating leaf pages are cut short, so the root holds many more
+		// entries than fixed-width slots would allow
+		BTreeInternalPage root = (BTreeInternalPage) root();
+		assertTrue(root.getNumEntries() > 3 * BufferPool.getPageSize() / (Type.STRING_TYPE.getLen() + 4));
+		int keyLength = 0;
+		Iterator<BTreeEntry> it = root.iterator();
+		while(it.hasNext()) {
+			keyLength += ((StringField) it.next().getKey()).getValue().length();
+		}
+		assertTrue(keyLength < root.getNumEntries() * ("customer/".length() + 4));
+
+		// delete all but a few, so that pages are merged and redistributed
+		List<Tuple> stored = new ArrayList<>();
+		DbFileIterator fit = bf.iterator(tid);
+		fit.open();
+		while(fit.hasNext()) {
+			stored.add(fit.next());
+		}
+		fit.close();
+		Collections.shuffle(stored, new Random(3));
+		List<String> remaining = new ArrayList<>();
+		for(int i = 0; i < stored.size(); i++) {
+			if(i < 19900) {
+				Database.getBufferPool().deleteTuple(tid, stored.get(i));
+			}
+			else {
+				remaining.add(((StringField) stored.get(i).getField(0)).getValue());
+			}
+		}
+		checkContents(remaining);
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		List<String> keys = randomKeys(20000);
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setRunSize(3000);
+		for(int i = 0; i < keys.size(); i++) {
+			loader.add(tuple(keys.get(i), i));
+		}
+		loader.finish();
+		checkContents(keys);
+
+		// one level of internal pages, where fixed-width slots would take two
+		BTreeInternalPage root = (BTreeInternalPage) root();
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(root.getNumEntries() > BufferPool.getPageSize() / (Type.STRING_TYPE.getLen() + 4));
+
+		// the file takes inserts and deletes after loading
+		for(int i = 0; i < 200; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple("customer/" + i, i));
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	@Test
+	public void testBulkLoadFillFactor() throws Exception {
+		List<String> keys = randomKeys(3000);
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setFillFactor(0.5);
+		for(int i = 0; i < keys.size(); i++) {
+			loader.add(tuple(keys.get(i), i));
+		}
+		loader.finish();
+		checkContents(keys);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompactPageTest.class);
+	}
+}
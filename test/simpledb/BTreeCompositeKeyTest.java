@@ -0,0 +1,223 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests B+ trees keyed on more than one field
+ */
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final int TENANTS = 20;
+	private static final int TIMES = 300;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+	private final List<int[]> rows = new ArrayList<>();
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(1000);
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		// keyed on (tenant, ts), with a value stored alongside
+		bf = new BTreeFile(f, new int[] { 0, 1 }, Utility.getTupleDesc(3, "c"));
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+		Random r = new Random(5);
+		for(int tenant = 0; tenant < TENANTS; tenant++) {
+			for(int ts = 0; ts < TIMES; ts += 1 + r.nextInt(3)) {
+				rows.add(new int[] { tenant, ts, r.nextInt(1000) });
+			}
+		}
+		Collections.shuffle(rows, r);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private static Tuple tuple(int[] row) {
+		return BTreeUtility.getBTreeTuple(row);
+	}
+
+	private void insertAll() throws Exception {
+		for(int[] row : rows) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(row));
+		}
+	}
+
+	/**
+	 * Check that the tuples an iterator returns are the rows satisfying a condition, in key order
+	 */
+	private void checkMatches(DbFileIterator it, List<int[]> rows, java.util.function.Predicate<int[]> matches)
+			throws Exception {
+		List<int[]> expected = new ArrayList<>();
+		for(int[] row : rows) {
+			if(matches.test(row)) {
+				expected.add(row);
+			}
+		}
+		expected.sort(Comparator.<int[]>comparingInt(row -> row[0]).thenComparingInt(row -> row[1]));
+		it.open();
+		for(int[] row : expected) {
+			assertTrue(it.hasNext());
+			Tuple t = it.next();
+			assertEquals(row[0], ((IntField) t.getField(0)).getValue());
+			assertEquals(row[1], ((IntField) t.getField(1)).getValue());
+			assertEquals(row[2], ((IntField) t.getField(2)).getValue());
+		}
+		assertFalse(it.hasNext());
+		it.close();
+	}
+
+	private DbFileIterator search(Op op, Field value) {
+		return bf.indexIterator(tid, new IndexPredicate(op, value));
+	}
+
+	@Test
+	public void testKey() {
+		Tuple t = tuple(new int[] { 3, 7, 11 });
+		assertEquals(new CompositeField(new IntField(3), new IntField(7)), bf.getKey(t));
+		assertEquals(0, bf.keyField());
+		assertArrayEquals(new int[] { 0, 1 }, bf.keyFields());
+	}
+
+	@Test
+	public void testInsertAndScan() throws Exception {
+		insertAll();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		// the tuples are in order of tenant, then of ts
+		checkMatches(bf.iterator(tid), rows, row -> true);
+	}
+
+	@Test
+	public void testPrefixSearch() throws Exception {
+		insertAll();
+
+		// the first key field alone, as a field or as a composite field of one value
+		checkMatches(search(Op.EQUALS, new IntField(7)), rows, row -> row[0] == 7);
+		checkMatches(search(Op.EQUALS, new CompositeField(new IntField(7))), rows, row -> row[0] == 7);
+		checkMatches(search(Op.GREATER_THAN, new IntField(17)), rows, row -> row[0] > 17);
+		checkMatches(search(Op.LESS_THAN_OR_EQ, new IntField(2)), rows, row -> row[0] <= 2);
+
+		// equality on the tenant, and a range on the time
+		CompositeField tenantAt100 = new CompositeField(new IntField(7), new IntField(100));
+		checkMatches(search(Op.EQUALS, tenantAt100), rows, row -> row[0] == 7 && row[1] == 100);
+		checkMatches(search(Op.GREATER_THAN, tenantAt100), rows, row -> row[0] == 7 && row[1] > 100);
+		checkMatches(search(Op.GREATER_THAN_OR_EQ, tenantAt100), rows, row -> row[0] == 7 && row[1] >= 100);
+		checkMatches(search(Op.LESS_THAN, tenantAt100), rows, row -> row[0] == 7 && row[1] < 100);
+		checkMatches(search(Op.LESS_THAN_OR_EQ, tenantAt100), rows, row -> row[0] == 7 && row[1] <= 100);
+
+		// at the ends of the tree
+		CompositeField first = new CompositeField(new IntField(0), new IntField(5));
+		checkMatches(search(Op.LESS_THAN, first), rows, row -> row[0] == 0 && row[1] < 5);
+		CompositeField last = new CompositeField(new IntField(TENANTS - 1), new IntField(TIMES - 5));
+		checkMatches(search(Op.GREATER_THAN, last), rows, row -> row[0] == TENANTS - 1 && row[1] > TIMES - 5);
+	}
+
+	@Test
+	public void testReverseSearch() throws Exception {
+		insertAll();
+		CompositeField tenantAt100 = new CompositeField(new IntField(7), new IntField(100));
+		Field[] values = { new IntField(7), new IntField(0), new IntField(TENANTS - 1), tenantAt100 };
+		for(Field value : values) {
+			for(Op op : new Op[] { Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.LESS_THAN, Op.LESS_THAN_OR_EQ }) {
+				IndexPredicate ipred = new IndexPredicate(op, value);
+				List<int[]> forward = read(bf.indexIterator(tid, ipred));
+				List<int[]> reverse = read(bf.indexIterator(tid, ipred, true));
+				Collections.reverse(reverse);
+				assertEquals(forward.size(), reverse.size());
+				for(int i = 0; i < forward.size(); i++) {
+					assertArrayEquals(forward.get(i), reverse.get(i));
+				}
+			}
+		}
+	}
+
+	private static List<int[]> read(DbFileIterator it) throws Exception {
+		List<int[]> rows = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			rows.add(new int[] { ((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue() });
+		}
+		it.close();
+		return rows;
+	}
+
+	@Test
+	public void testDelete() throws Exception {
+		insertAll();
+		List<int[]> remaining = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		List<Tuple> toDelete = new ArrayList<>();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(1)).getValue() % 4 != 0) {
+				toDelete.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : toDelete) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		for(int[] row : rows) {
+			if(row[1] % 4 == 0) {
+				remaining.add(row);
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkMatches(bf.iterator(tid), remaining, row -> true);
+		CompositeField tenantAt100 = new CompositeField(new IntField(3), new IntField(100));
+		checkMatches(search(Op.GREATER_THAN_OR_EQ, tenantAt100), remaining, row -> row[0] == 3 && row[1] >= 100);
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setRunSize(500);
+		for(int[] row : rows) {
+			loader.add(tuple(row));
+		}
+		loader.finish();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		checkMatches(bf.iterator(tid), rows, row -> true);
+		CompositeField tenantAt100 = new CompositeField(new IntField(12), new IntField(100));
+		checkMatches(search(Op.LESS_THAN, tenantAt100), rows, row -> row[0] == 12 && row[1] < 100);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
@@ -0,0 +1,261 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests inserts, deletes and searches running at once on a BTreeFile
+ */
+public class BTreeConcurrencyTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * A BTreeFile which can hold a thread inside a structure modification: allocating a
+	 * new page, which a split does under the exclusive structure latch, waits until released
+	 */
+	private static class BlockingBTreeFile extends BTreeFile {
+		volatile Thread blocked = null;
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		BlockingBTreeFile(File f) {
+			super(f, 0, Utility.getTupleDesc(2));
+		}
+
+		@Override
+		public int numPages() {
+			if(Thread.currentThread() == blocked) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.numPages();
+		}
+	}
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		BufferPool.setPageSize(1024);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile createFile(boolean blocking) throws Exception {
+		File f = File.createTempFile("concurrent", ".dat");
+		f.deleteOnExit();
+		if(!blocking) {
+			return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		}
+		BTreeFile bf = new BlockingBTreeFile(f);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	/**
+	 * @return the tuples of the file, checking they are in key order
+	 */
+	private List<List<Integer>> scan(BTreeFile bf) throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			List<Integer> t = BTreeUtility.tupleToList(it.next());
+			if(!tuples.isEmpty()) {
+				assertTrue(tuples.get(tuples.size() - 1).get(0) <= t.get(0));
+			}
+			tuples.add(t);
+		}
+		it.close();
+		return tuples;
+	}
+
+	@Test
+	public void testConcurrentInsertsAndDeletes() throws Exception {
+		BTreeFile bf = createFile(false);
+		List<List<Integer>> expected = new ArrayList<>();
+		Random rand = new Random(3);
+		for(int i = 0; i < 2000; i++) {
+			List<Integer> t = Arrays.asList(rand.nextInt(BTreeUtility.MAX_RAND_VALUE), -i - 1);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(t));
+			expected.add(t);
+		}
+		// a small buffer pool, so that pages are evicted under the threads
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(30);
+
+		// each thread inserts tuples of its own, deleting half of them again
+		int threads = 16;
+		CyclicBarrier start = new CyclicBarrier(threads);
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		List<List<Integer>> remaining = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> workers = new ArrayList<>();
+		for(int n = 0; n < threads; n++) {
+			int thread = n;
+			workers.add(new Thread(() -> {
+				TransactionId wtid = new TransactionId();
+				Random r = new Random(thread);
+				List<List<Integer>> inserted = new ArrayList<>();
+				try {
+					start.await();
+					for(int i = 0; i < 300; i++) {
+						List<Integer> t = Arrays.asList(r.nextInt(BTreeUtility.MAX_RAND_VALUE), thread * 1000 + i);
+						Database.getBufferPool().insertTuple(wtid, bf.getId(), BTreeUtility.getBTreeTuple(t));
+						inserted.add(t);
+						if(i % 2 == 1) {
+							List<Integer> d = inserted.remove(r.nextInt(inserted.size()));
+							IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(d.get(0)));
+							DbFileIterator it = bf.indexIterator(wtid, ipred);
+							it.open();
+							Tuple found = null;
+							while(found == null && it.hasNext()) {
+								Tuple next = it.next();
+								if(BTreeUtility.tupleToList(next).equals(d)) {
+									found = next;
+								}
+							}
+							it.close();
+							if(found == null) {
+								throw new AssertionError("tuple " + d + " not found");
+							}
+							Database.getBufferPool().deleteTuple(wtid, found);
+						}
+					}
+					remaining.addAll(inserted);
+				} catch (Throwable e) {
+					errors.add(e);
+				} finally {
+					Database.getBufferPool().transactionComplete(wtid);
+				}
+			}));
+		}
+		for(Thread t : workers) {
+			t.start();
+		}
+		for(Thread t : workers) {
+			t.join();
+		}
+		assertEquals(Collections.emptyList(), errors);
+
+		expected.addAll(remaining);
+		Comparator<List<Integer>> byTuple = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0)).thenComparing(t -> t.get(1));
+		expected.sort(byTuple);
+		List<List<Integer>> tuples = scan(bf);
+		tuples.sort(byTuple);
+		assertEquals(expected, tuples);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	@Test
+	public void testReaderDuringSplit() throws Exception {
+		BlockingBTreeFile bf = (BlockingBTreeFile) createFile(true);
+		Database.resetBufferPool(2000);
+		Random rand = new Random(9);
+		for(int i = 0; i < 12000; i++) {
+			Tuple t = BTreeUtility.getBTreeTuple(rand.nextInt(BTreeUtility.MAX_RAND_VALUE), 2);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+
+		// fill the last leaf page, under the last of the root's children, with keys past
+		// all the others, so that the next such key splits it
+		int nextKey = BTreeUtility.MAX_RAND_VALUE;
+		BTreeInternalPage parent;
+		while(true) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+					BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+			BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+					rootPtr.getRootId(), Permissions.READ_ONLY);
+			BTreePageId parentId = root.reverseIterator().next().getRightChild();
+			assertEquals(BTreePageId.INTERNAL, parentId.pgcateg());
+			parent = (BTreeInternalPage) Database.getBufferPool().getPage(tid, parentId, Permissions.READ_ONLY);
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					parent.reverseIterator().next().getRightChild(), Permissions.READ_ONLY);
+			if(leaf.getNumEmptySlots() == 0) {
+				break;
+			}
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(nextKey++, 2));
+		}
+		// the split changes the leaf page and its parent, but not the root
+		assertTrue(parent.getNumEmptySlots() > 0);
+
+		Thread splitter = new Thread(() -> {
+			bf.blocked = Thread.currentThread();
+			try {
+				Database.getBufferPool().insertTuple(new TransactionId(), bf.getId(),
+						BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE - 1, 2));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		splitter.start();
+		assertTrue(bf.entered.await(10, TimeUnit.SECONDS));
+
+		// a search of the first leaf pages runs to the end while the split is under way
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		try {
+			Future<Integer> found = reader.submit(() -> {
+				TransactionId rtid = new TransactionId();
+				IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField(BTreeUtility.MAX_RAND_VALUE / 4));
+				DbFileIterator it = bf.indexIterator(rtid, ipred);
+				it.open();
+				int count = 0;
+				while(it.hasNext()) {
+					it.next();
+					count++;
+				}
+				it.close();
+				Database.getBufferPool().transactionComplete(rtid);
+				return count;
+			});
+			assertTrue(found.get(10, TimeUnit.SECONDS) > 0);
+			assertTrue(splitter.isAlive());
+		} finally {
+			reader.shutdownNow();
+			bf.release.countDown();
+		}
+		splitter.join();
+
+		List<List<Integer>> tuples = scan(bf);
+		assertEquals(12000 + nextKey - BTreeUtility.MAX_RAND_VALUE + 1, tuples.size());
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeConcurrencyTest.class);
+	}
+}
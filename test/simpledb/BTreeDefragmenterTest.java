@@ -0,0 +1,254 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BTreeDefragmenterTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private File f;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		BufferPool.setPageSize(1024);
+		f = File.createTempFile("defrag", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.openBTreeFile(2, f, 0);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Insert tuples in random order, so that the leaf pages are split all over the file,
+	 * then delete many of them, leaving the leaf pages sparse
+	 *
+	 * @return the tuples left, in key order
+	 */
+	private List<List<Integer>> fragment(int inserts, int deletes) throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeUtility.generateRandomTuples(2, inserts, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+		for(List<Integer> t : tuples) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(t));
+		}
+
+		Collections.shuffle(tuples, new Random(11));
+		List<List<Integer>> deleted = tuples.subList(0, deletes);
+		Map<Integer, Integer> toDelete = new HashMap<>();
+		for(List<Integer> t : deleted) {
+			toDelete.merge(t.get(0), 1, Integer::sum);
+		}
+		List<Tuple> found = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			int key = ((IntField) t.getField(0)).getValue();
+			if(toDelete.getOrDefault(key, 0) > 0) {
+				toDelete.merge(key, -1, Integer::sum);
+				found.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : found) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		Database.getBufferPool().flushAllPages();
+
+		List<List<Integer>> remaining = new ArrayList<>(tuples.subList(deletes, tuples.size()));
+		remaining.sort(Comparator.comparing(t -> t.get(0)));
+		return remaining;
+	}
+
+	/**
+	 * Check the file holds the tuples in key order
+	 *
+	 * @return the page numbers of the leaf pages, in key order
+	 */
+	private List<Integer> checkTuples(List<List<Integer>> tuples) throws Exception {
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Integer> leaves = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		for(List<Integer> t : tuples) {
+			assertTrue(it.hasNext());
+			Tuple next = it.next();
+			assertEquals(t.get(0), BTreeUtility.tupleToList(next).get(0));
+			int pageNo = next.getRecordId().getPageId().getPageNumber();
+			if(leaves.isEmpty() || leaves.get(leaves.size() - 1) != pageNo) {
+				leaves.add(pageNo);
+			}
+		}
+		assertFalse(it.hasNext());
+		it.close();
+		return leaves;
+	}
+
+	/**
+	 * Defragment the file and check it holds the tuples, in fewer leaf pages, one after
+	 * the other in key order at the start of the file, and in fewer pages overall
+	 *
+	 * @return the page numbers of the leaf pages, in key order
+	 */
+	private List<Integer> defragment(List<List<Integer>> tuples) throws Exception {
+		List<Integer> before = checkTuples(tuples);
+		int pagesBefore = bf.numPages();
+		long lengthBefore = f.length();
+
+		BTreeDefragmenter defragmenter = new BTreeDefragmenter(bf);
+		defragmenter.run();
+		assertTrue(defragmenter.isDone());
+		assertFalse(defragmenter.runBatch());
+
+		List<Integer> leaves = checkTuples(tuples);
+		assertTrue(leaves.size() < before.size());
+		assertTrue(bf.numPages() < pagesBefore);
+		assertTrue(f.length() < lengthBefore);
+		assertEquals(bf.numPages(), (f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+
+		// past any header page
+		assertTrue(leaves.get(0) <= 2);
+		for(int i = 1; i < leaves.size(); i++) {
+			int gap = leaves.get(i) - leaves.get(i - 1);
+			assertTrue(gap == 1 || gap == 2);
+		}
+		return leaves;
+	}
+
+	@Test
+	public void testDefragment() throws Exception {
+		List<List<Integer>> tuples = fragment(20000, 14000);
+		List<Integer> leaves = defragment(tuples);
+
+		// the leaf pages are full but for about one under each parent
+		Set<BTreePageId> parents = new HashSet<>();
+		int maxTuples = 0;
+		for(int pageNo : leaves) {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					new BTreePageId(bf.getId(), pageNo, BTreePageId.LEAF), Permissions.READ_ONLY);
+			parents.add(leaf.getParentId());
+			maxTuples = leaf.getMaxTuples();
+		}
+		assertTrue(leaves.size() <= (tuples.size() + maxTuples - 1) / maxTuples + parents.size());
+
+		// the file still takes inserts and deletes
+		List<Integer> t = Arrays.asList(5, 6);
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(t));
+		tuples.add(t);
+		tuples.sort(Comparator.comparing(x -> x.get(0)));
+		checkTuples(tuples);
+
+		// and is read back from disk the same
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		checkTuples(tuples);
+	}
+
+	@Test
+	public void testDeeperTree() throws Exception {
+		// the leaf pages have more than one parent, which are moved too
+		List<List<Integer>> tuples = fragment(30000, 15000);
+		defragment(tuples);
+
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		checkTuples(tuples);
+	}
+
+	@Test
+	public void testConcurrentScans() throws Exception {
+		List<List<Integer>> tuples = fragment(20000, 14000);
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+		Thread defragmenter = new Thread(() -> {
+			try {
+				new BTreeDefragmenter(bf, 2, 0).run();
+			} catch(Throwable e) {
+				errors.add(e);
+			}
+		});
+		defragmenter.start();
+
+		// scans running alongside the batches find all the tuples in key order
+		int scans = 0;
+		while(defragmenter.isAlive() || scans == 0) {
+			TransactionId scanTid = new TransactionId();
+			DbFileIterator it = bf.iterator(scanTid);
+			it.open();
+			for(List<Integer> t : tuples) {
+				assertTrue(it.hasNext());
+				assertEquals(t.get(0), BTreeUtility.tupleToList(it.next()).get(0));
+			}
+			assertFalse(it.hasNext());
+			it.close();
+			Database.getBufferPool().transactionComplete(scanTid);
+			scans++;
+		}
+		defragmenter.join();
+		assertEquals(Collections.emptyList(), errors);
+		checkTuples(tuples);
+	}
+
+	@Test
+	public void testEmptyFile() throws Exception {
+		BTreeDefragmenter defragmenter = new BTreeDefragmenter(bf, 1, 0);
+		defragmenter.run();
+		assertTrue(defragmenter.isDone());
+		checkTuples(Collections.emptyList());
+	}
+
+	@Test
+	public void testPacedBatches() throws Exception {
+		List<List<Integer>> tuples = fragment(3000, 2000);
+		BTreeDefragmenter defragmenter = new BTreeDefragmenter(bf, 2, 1000);
+		int batches = 0;
+		while(defragmenter.runBatch()) {
+			batches++;
+			// the file is consistent between batches
+			checkTuples(tuples);
+		}
+		assertTrue(batches > 1);
+		checkTuples(tuples);
+
+		long start = System.currentTimeMillis();
+		new BTreeDefragmenter(bf, 2, 20).run();
+		// at least one batch of 2 pages, at 20 pages a second
+		assertTrue(System.currentTimeMillis() - start >= 100);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoBatchPages() {
+		new BTreeDefragmenter(bf, 0, 0);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeDefragmenterTest.class);
+	}
+}
@@ -374,6 +374,45 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		}
 	}    
 
+	@Test
+	public void testFreePages() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0, 5);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+
+		// the first free page needs a header page, allocated past the end of the file
+		empty.setEmptyPage(tid, dirtypages, 3);
+		empty.setEmptyPage(tid, dirtypages, 2);
+		assertEquals(6, empty.numPages());
+		long reserved = BTreeRootPtrPage.getPageSize() + (long) (5 + BTreeFile.EXTENT_PAGES) * BufferPool.getPageSize();
+		assertEquals(reserved, emptyFile.length());
+
+		// free pages are reused lowest first, then pages are allocated from the extent
+		assertEquals(2, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(3, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(7, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(7, empty.numPages());
+		assertEquals(reserved, emptyFile.length());
+		empty.setEmptyPage(tid, dirtypages, 4);
+
+		// a checkpoint writes the header pages and gives back the reserved pages
+		for(Page p : dirtypages.values()) {
+			Database.getBufferPool().putDirtied(tid, p);
+		}
+		Database.getLogFile().logCheckpoint();
+		assertEquals(BTreeRootPtrPage.getPageSize() + 7L * BufferPool.getPageSize(), emptyFile.length());
+
+		// the free pages are read again from the header pages
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, emptyFile, 0);
+		assertEquals(7, reopened.numPages());
+		dirtypages = new HashMap<>();
+		assertEquals(4, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(8, reopened.getEmptyPageNo(tid, dirtypages));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
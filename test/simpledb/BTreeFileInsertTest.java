@@ -1,6 +1,7 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -176,6 +177,48 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testReopenAfterFlush() throws Exception {
+		File f = File.createTempFile("reopen", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+		Random rand = new Random(5);
+		for(int round = 0; round < 4; round++) {
+			for(int i = 0; i < 600; i++) {
+				Tuple t = BTreeUtility.getBTreeTuple(rand.nextInt(BTreeUtility.MAX_RAND_VALUE), 2);
+				Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+			}
+			Database.getBufferPool().flushAllPages();
+
+			// the pages the file grew by but did not allocate are not counted once it is reopened
+			Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+			bf = BTreeUtility.openBTreeFile(2, f, 0);
+			assertEquals(BTreeRootPtrPage.getPageSize() + (long) bf.numPages() * BufferPool.getPageSize(), f.length());
+
+			// only deletes free pages, so every page is in the tree
+			int treePages = 0;
+			Deque<BTreePageId> toVisit = new ArrayDeque<>();
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+					BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+			toVisit.add(rootPtr.getRootId());
+			while(!toVisit.isEmpty()) {
+				BTreePageId pid = toVisit.removeFirst();
+				treePages++;
+				if(pid.pgcateg() == BTreePageId.INTERNAL) {
+					BTreeInternalPage page = (BTreeInternalPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+					Iterator<BTreeEntry> it = page.iterator();
+					BTreeEntry e = null;
+					while(it.hasNext()) {
+						e = it.next();
+						toVisit.add(e.getLeftChild());
+					}
+					toVisit.add(e.getRightChild());
+				}
+			}
+			assertEquals(treePages, bf.numPages());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
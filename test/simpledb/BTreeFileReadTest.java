@@ -9,6 +9,7 @@ import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.execution.Predicate.Op;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.junit.After;
 import org.junit.Before;
@@ -207,6 +208,98 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	private static List<Tuple> readAll(DbFileIterator it) throws Exception {
+		List<Tuple> tuples = new ArrayList<>();
+		it.open();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		it.close();
+		return tuples;
+	}
+
+	/**
+	 * Check that a reverse iterator returns the tuples a forward iterator does, in the
+	 * opposite order of their keys
+	 */
+	private static void checkReverse(DbFileIterator forward, DbFileIterator reverse) throws Exception {
+		List<Tuple> expected = readAll(forward);
+		Collections.reverse(expected);
+		List<Tuple> actual = readAll(reverse);
+		assertEquals(expected.size(), actual.size());
+		List<String> expectedRows = new ArrayList<>();
+		List<String> actualRows = new ArrayList<>();
+		for(int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getField(0), actual.get(i).getField(0));
+			expectedRows.add(expected.get(i).toString());
+			actualRows.add(actual.get(i).toString());
+		}
+		// tuples with equal keys may come in any order
+		Collections.sort(expectedRows);
+		Collections.sort(actualRows);
+		assertEquals(expectedRows, actualRows);
+	}
+
+	/**
+	 * Unit test for the reverse iterators of BTreeFile, on a tree with duplicate keys
+	 * spanning leaf pages
+	 */
+	@Test public void reverseIterator() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, 500, null, null, 0);
+		checkReverse(bf.iterator(tid), bf.iterator(tid, true));
+		assertEquals(5000, readAll(bf.iterator(tid, true)).size());
+		for(int key : new int[] { -1, 0, 137, 250, 499, 500 }) {
+			for(Op op : new Op[] { Op.EQUALS, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ, Op.LESS_THAN, Op.LESS_THAN_OR_EQ }) {
+				IndexPredicate ipred = new IndexPredicate(op, new IntField(key));
+				checkReverse(bf.indexIterator(tid, ipred), bf.indexIterator(tid, ipred, true));
+			}
+		}
+	}
+
+	/**
+	 * Test that a range scan reads leaf pages ahead in the background, and a point
+	 * search doesn't
+	 */
+	@Test public void readAhead() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+		// note which threads read the leaf pages
+		Set<String> readers = ConcurrentHashMap.newKeySet();
+		BTreeFile tracked = new BTreeFile(bf.getFile(), 0, bf.getTupleDesc()) {
+			@Override
+			public Page readPage(PageId pid) {
+				if(((BTreePageId) pid).pgcateg() == BTreePageId.LEAF) {
+					readers.add(Thread.currentThread().getName());
+				}
+				return super.readPage(pid);
+			}
+		};
+		Database.getCatalog().addTable(tracked, UUID.randomUUID().toString());
+		Database.resetBufferPool(500);
+
+		Field key = new IntField(5000);
+		DbFileIterator it = tracked.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+		it.open();
+		while(it.hasNext()) {
+			assertEquals(key, it.next().getField(0));
+		}
+		it.close();
+		assertFalse(readers.contains("BufferPool prefetch"));
+
+		it = tracked.iterator(tid);
+		it.open();
+		int count = 0;
+		Field last = null;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertTrue(last == null || t.getField(0).compare(Op.GREATER_THAN_OR_EQ, last));
+			last = t.getField(0);
+			count++;
+		}
+		it.close();
+		assertEquals(20000, count);
+		assertTrue(readers.contains("BufferPool prefetch"));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
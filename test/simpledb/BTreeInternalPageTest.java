@@ -8,6 +8,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -174,6 +175,40 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() once entries have been deleted,
+	 * leaving empty slots between the used ones
+	 */
+	@Test public void testReverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		List<BTreeEntry> toDelete = new ArrayList<>();
+		for (int i = 0; it.hasNext(); i++) {
+			BTreeEntry e = it.next();
+			if (i % 3 == 1)
+				toDelete.add(e);
+		}
+		for (BTreeEntry e : toDelete)
+			page.deleteKeyAndRightChild(e);
+
+		List<BTreeEntry> entries = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		Collections.reverse(entries);
+
+		// the reverse iterator pairs each key with the same children as the iterator
+		it = page.reverseIterator();
+		for (BTreeEntry expected : entries) {
+			assertTrue(it.hasNext());
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -321,6 +356,39 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), on a page with empty slots between its entries
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		List<BTreeEntry> all = new ArrayList<>();
+		while (it.hasNext())
+			all.add(it.next());
+		for (int i = 1; i < all.size(); i += 3)
+			page.deleteKeyAndRightChild(all.get(i));
+		// the children of the entries left change as their neighbours are deleted
+		it = page.iterator();
+		List<BTreeEntry> entries = new ArrayList<>();
+		while (it.hasNext())
+			entries.add(it.next());
+		assertEquals(all.size() - (all.size() + 1) / 3, entries.size());
+
+		assertEquals(entries.get(0).getLeftChild(), page.findChild(null));
+		for (int key = -1; key <= 70000; key += 997) {
+			IntField f = new IntField(key);
+			// the left child of the first entry with a key at least f, or the last right child
+			BTreePageId expected = entries.get(entries.size() - 1).getRightChild();
+			for (BTreeEntry e : entries) {
+				if (f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+					expected = e.getLeftChild();
+					break;
+				}
+			}
+			assertEquals(expected, page.findChild(f));
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
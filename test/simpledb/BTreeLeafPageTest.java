@@ -7,6 +7,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -347,6 +348,36 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field), on a page with empty slots between its tuples
+	 */
+	@Test public void searchIterator() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		Iterator<Tuple> it = page.iterator();
+		List<Tuple> all = new ArrayList<>();
+		while (it.hasNext())
+			all.add(it.next());
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < all.size(); i++) {
+			if (i % 3 == 0)
+				page.deleteTuple(all.get(i));
+			else
+				tuples.add(all.get(i));
+		}
+
+		for (int key = -1; key <= 70000; key += 997) {
+			IntField f = new IntField(key);
+			Iterator<Tuple> search = page.iterator(f);
+			for (Tuple tup : tuples) {
+				if (tup.getField(0).compare(Op.GREATER_THAN_OR_EQ, f)) {
+					assertTrue(search.hasNext());
+					assertEquals(tup.getField(0), search.next().getField(0));
+				}
+			}
+			assertFalse(search.hasNext());
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
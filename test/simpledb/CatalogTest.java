@@ -2,6 +2,7 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -97,6 +98,26 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for Catalog.addColumnGroup() and getColumnGroups()
+     */
+    @Test public void columnGroups() {
+        int id3 = r.nextInt();
+        Database.getCatalog().addTable(new SkeletonFile(id3, Utility.getTupleDesc(3, "f")), SystemTestUtil.getUUID());
+        assertEquals(0, Database.getCatalog().getColumnGroups(id3).size());
+
+        Database.getCatalog().addColumnGroup(id3, Arrays.asList("f2", "f0"));
+        assertEquals(1, Database.getCatalog().getColumnGroups(id3).size());
+        Assert.assertArrayEquals(new int[] { 0, 2 }, Database.getCatalog().getColumnGroups(id3).get(0));
+
+        try {
+            Database.getCatalog().addColumnGroup(id3, Arrays.asList("f0", "nope"));
+            Assert.fail("Should not accept an unknown field");
+        } catch (NoSuchElementException e) {
+            // Expected to get here
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.EquiDepthHistogram;
+import simpledb.optimizer.HyperLogLog;
+import simpledb.optimizer.StringHistogram;
+
+public class EquiDepthHistogramTest {
+
+	/**
+	 * Skewed data: most values are 0, the rest are spread over [1, 10000].
+	 * A fixed-width histogram puts all of them in its first bucket.
+	 */
+	@Test public void skewTest() {
+		int[] values = new int[10000];
+		Random r = new Random(42);
+		for (int i = 0; i < values.length; i++)
+			values[i] = i % 10 == 0 ? 1 + r.nextInt(10000) : 0;
+		EquiDepthHistogram h = new EquiDepthHistogram(100, values, values.length);
+
+		Assert.assertEquals(0.9, h.estimateSelectivity(Op.EQUALS, 0), 0.01);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.NOT_EQUALS, 0), 0.01);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.GREATER_THAN, 0), 0.01);
+		Assert.assertEquals(0.95, h.estimateSelectivity(Op.LESS_THAN, 5000), 0.01);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, -1), 0.001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 10000), 0.001);
+	}
+
+	/**
+	 * Selectivities of the complementary operators add up to 1, also with
+	 * values at the extremes of the int range.
+	 */
+	@Test public void complementTest() {
+		int[] values = { Integer.MIN_VALUE, -5, 0, 0, 3, 7, 7, 7, 100, Integer.MAX_VALUE };
+		EquiDepthHistogram h = new EquiDepthHistogram(4, values, values.length);
+		for (int v : new int[] { Integer.MIN_VALUE, -6, 0, 5, 7, 1000, Integer.MAX_VALUE }) {
+			double lt = h.estimateSelectivity(Op.LESS_THAN, v);
+			Assert.assertEquals(1.0, lt + h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, v), 1e-9);
+			Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, v)
+					+ h.estimateSelectivity(Op.GREATER_THAN, v), 1e-9);
+			Assert.assertTrue(lt >= 0 && lt <= 1);
+		}
+		Assert.assertEquals(7, h.distinctValues());
+	}
+
+	/**
+	 * Strings are histogrammed by their full value, not a 4-character prefix.
+	 */
+	@Test public void stringTest() {
+		StringHistogram h = new StringHistogram(100);
+		for (int i = 0; i < 1000; i++)
+			h.addValue("customer" + (1000 + i));
+
+		Assert.assertEquals(0.001, h.estimateSelectivity(Op.EQUALS, "customer1500"), 0.001);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, "customer1500"), 0.05);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, "customer0"), 0.001);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN, "d"), 0.001);
+		Assert.assertEquals(0.019, h.estimateSelectivity(Op.LIKE, "99"), 0.001);
+		Assert.assertEquals(0.001, h.avgSelectivity(), 0.0001);
+	}
+
+	/**
+	 * HyperLogLog estimates stay within a few percent of the exact count.
+	 */
+	@Test public void distinctCountTest() {
+		for (int n : new int[] { 10, 1000, 100000 }) {
+			HyperLogLog ints = new HyperLogLog();
+			HyperLogLog strings = new HyperLogLog();
+			for (int i = 0; i < 3 * n; i++) {
+				ints.addValue(i % n);
+				strings.addValue("v" + (i % n));
+			}
+			Assert.assertEquals(n, ints.estimate(), n * 0.05 + 1);
+			Assert.assertEquals(n, strings.estimate(), n * 0.05 + 1);
+		}
+	}
+}
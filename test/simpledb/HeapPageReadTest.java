@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -102,6 +103,53 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(List)
+     */
+    @Test public void testFilteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        List<Predicate> filters = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(40000)));
+        Iterator<Tuple> it = page.iterator(filters);
+
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] > 20000 && values[1] < 40000) {
+                assertTrue(it.hasNext());
+                Tuple tup = it.next();
+                assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+            }
+        }
+        assertFalse(it.hasNext());
+
+        // tuples never built are written out unchanged
+        assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(List, int[])
+     */
+    @Test public void testProjectedIterator() throws Exception {
+        // the first page of its file, so row numbers are slot numbers
+        HeapPage page = new HeapPage(new HeapPageId(-1, 0), EXAMPLE_DATA);
+        List<Predicate> filters = Collections.singletonList(
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(20000)));
+        Iterator<Tuple> it = page.iterator(filters, new int[]{1, HeapFile.ROW_NUMBER});
+
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            if (EXAMPLE_VALUES[row][0] < 20000) {
+                assertTrue(it.hasNext());
+                Tuple tup = it.next();
+                assertEquals(2, tup.getTupleDesc().numFields());
+                assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(0)).getValue());
+                assertEquals(row, ((IntField) tup.getField(1)).getValue());
+                assertEquals(row, tup.getRecordId().getTupleNumber());
+            }
+        }
+        assertFalse(it.hasNext());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
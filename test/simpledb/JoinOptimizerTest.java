@@ -10,14 +10,28 @@ import org.junit.Test;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.LateMaterialize;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinAlgorithm;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
 import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
@@ -274,6 +288,332 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Without key information, an equality join is estimated from the
+     * number of distinct values of the join columns: |R||S|/max(ndv).
+     */
+    @Test
+    public void estimateJoinCardinalityDistinctValues() throws ParsingException, IOException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName2 + " t1, " + tableName2
+                        + " t2 WHERE t1.c8 = t2.c7;"),
+                new ArrayList<>());
+
+        // every column holds values in [0, 20)
+        int cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c" + 3, "c" + 4, Predicate.Op.EQUALS), 800, 2000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertEquals(800 * 2000 / 20, cardinality, 800 * 2000 / 20 * 0.1);
+
+        // with only 10 tuples on one side, at most 10 values can match
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c" + 3, "c" + 4, Predicate.Op.EQUALS), 10, 2000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertEquals(10 * 2000 / 20, cardinality, 10 * 2000 / 20 * 0.1);
+    }
+
+    /**
+     * Replay a join order, tracking which tables each intermediate result
+     * holds, and check that all of the tables end up joined. A join between
+     * two tables of the same result is a further predicate of a cycle in the
+     * join graph, applied after the join that combined them.
+     *
+     * @return true if some join combines two results of earlier joins
+     */
+    private static boolean checkJoinOrder(List<LogicalJoinNode> result, List<LogicalJoinNode> nodes, int tables) {
+        Assert.assertEquals(nodes.size(), result.size());
+        Map<String, Set<String>> joined = new HashMap<>();
+        boolean bushy = false;
+        for (LogicalJoinNode j : result) {
+            Set<String> left = joined.getOrDefault(j.t1Alias, new HashSet<>(Collections.singleton(j.t1Alias)));
+            Set<String> right = joined.getOrDefault(j.t2Alias, new HashSet<>(Collections.singleton(j.t2Alias)));
+            if (left == right) {
+                continue;
+            }
+            bushy |= left.size() > 1 && right.size() > 1;
+            left.addAll(right);
+            for (String t : left) {
+                joined.put(t, left);
+            }
+        }
+        Assert.assertEquals(tables, joined.get(result.get(0).t1Alias).size());
+        return bushy;
+    }
+
+    /**
+     * Create tables t0 ... t(tables-1) with two columns and rows rows,
+     * and add them to lp, stats and filterSelectivities
+     */
+    private static void createTables(int tables, int rows, LogicalPlan lp, Map<String, TableStats> stats,
+                                     Map<String, Double> filterSelectivities) throws IOException {
+        for (int i = 0; i < tables; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows * (i + 1), null, null, "c");
+            String name = "t" + i;
+            Database.getCatalog().addTable(f, name);
+            lp.addScan(f.getId(), name);
+            stats.put(name, new TableStats(f.getId(), 100));
+            filterSelectivities.put(name, 1.0);
+        }
+    }
+
+    /**
+     * Plan a join of many tables, each joined to every other, and check that
+     * the joins come out in an order that joins them all
+     */
+    @Test(timeout = 10000)
+    public void manyTableOrderJoinsTest() throws IOException, ParsingException {
+        final int TABLES = 12;
+        LogicalPlan lp = new LogicalPlan();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        createTables(TABLES, 10, lp, stats, filterSelectivities);
+        for (int i = 0; i < TABLES; i++) {
+            for (int k = 0; k < i; k++) {
+                nodes.add(new LogicalJoinNode("t" + k, "t" + i, "c0", "c0", Predicate.Op.EQUALS));
+            }
+        }
+        Collections.shuffle(nodes);
+
+        List<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+        checkJoinOrder(result, nodes, TABLES);
+    }
+
+    /**
+     * Joins of more tables than the dynamic programming threshold, or that
+     * take longer than the planning budget, are ordered greedily
+     */
+    @Test(timeout = 10000)
+    public void greedyOrderJoinsTest() throws IOException, ParsingException {
+        try {
+            // a chain of 40 tables, with every fifth table also joined to the first
+            final int TABLES = 40;
+            LogicalPlan lp = new LogicalPlan();
+            Map<String, TableStats> stats = new HashMap<>();
+            Map<String, Double> filterSelectivities = new HashMap<>();
+            List<LogicalJoinNode> nodes = new ArrayList<>();
+            createTables(TABLES, 5, lp, stats, filterSelectivities);
+            for (int i = 1; i < TABLES; i++) {
+                nodes.add(new LogicalJoinNode("t" + (i - 1), "t" + i, "c1", "c0", Predicate.Op.EQUALS));
+                if (i % 5 == 0) {
+                    nodes.add(new LogicalJoinNode("t0", "t" + i, "c0", "c1", Predicate.Op.EQUALS));
+                }
+            }
+            Collections.shuffle(nodes);
+            checkJoinOrder(new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false), nodes, TABLES);
+
+            // a clique small enough for dynamic programming, but with no time to do it
+            JoinOptimizer.setPlanningLimits(16, 1);
+            final int CLIQUE = 14;
+            lp = new LogicalPlan();
+            nodes = new ArrayList<>();
+            createTables(CLIQUE, 10, lp, stats, filterSelectivities);
+            for (int i = 0; i < CLIQUE; i++) {
+                for (int k = 0; k < i; k++) {
+                    nodes.add(new LogicalJoinNode("t" + k, "t" + i, "c0", "c0", Predicate.Op.EQUALS));
+                }
+            }
+            checkJoinOrder(new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false), nodes, CLIQUE);
+        } finally {
+            JoinOptimizer.setPlanningLimits(16, 500);
+        }
+    }
+
+    /**
+     * A chain of joins where joining both ends first and then the two
+     * results is cheaper than any left-deep plan: the optimizer should find
+     * the bushy plan, and the order it returns should build it
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws IOException, ParsingException {
+        // rows and number of distinct values of each table of the chain
+        final int[] ROWS = { 1000, 10, 100, 1000, 10 };
+        final int[] DISTINCT = { 492, 2, 6, 336, 9 };
+        LogicalPlan lp = new LogicalPlan();
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        for (int i = 0; i < ROWS.length; i++) {
+            List<List<Integer>> tuples = new ArrayList<>();
+            for (int r = 0; r < ROWS[i]; r++) {
+                tuples.add(Arrays.asList(r % DISTINCT[i], r % DISTINCT[i]));
+            }
+            HeapFile f = createDuplicateHeapFile(tuples, 2, "c");
+            String name = "t" + i;
+            Database.getCatalog().addTable(f, name);
+            lp.addScan(f.getId(), name);
+            stats.put(name, new TableStats(f.getId(), 100));
+            filterSelectivities.put(name, 1.0);
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode("t" + (i - 1), name, "c1", "c0", Predicate.Op.EQUALS));
+            }
+        }
+        filterSelectivities.put("t0", 0.1);
+        filterSelectivities.put("t4", 0.1);
+
+        List<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+        Assert.assertTrue(result.toString(), checkJoinOrder(result, nodes, ROWS.length));
+    }
+
+    /**
+     * Each join is costed with every algorithm that can execute it, and the
+     * cheapest is chosen: a block nested loops join for predicates other
+     * than equality, a hash join for equality unless the outer is too large
+     * to hash at once and the inner too expensive to compute again, and an
+     * index lookup for a few outer tuples joined with a table keyed on the
+     * join field.
+     */
+    @Test
+    public void chooseJoinAlgorithmTest() throws Exception {
+        JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(), new ArrayList<>());
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode gt = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.GREATER_THAN);
+
+        Assert.assertEquals(JoinAlgorithm.BLOCK_NESTED_LOOP,
+                jo.chooseJoinAlgorithm(gt, 1000, 1000, 1e4, 1e4, null));
+        Assert.assertEquals(JoinAlgorithm.HASH,
+                jo.chooseJoinAlgorithm(eq, 1000, 1000, 1e4, 1e4, null));
+        Assert.assertEquals(JoinAlgorithm.SORT_MERGE,
+                jo.chooseJoinAlgorithm(eq, 100000, 100000, 1e6, 1e7, null));
+        Assert.assertEquals(Double.POSITIVE_INFINITY,
+                jo.estimateJoinCost(JoinAlgorithm.HASH, gt, 10, 10, 10, 10, null), 0);
+
+        // keys 0 to 99, 200 tuples each
+        List<List<Integer>> indexedTuples = new ArrayList<>();
+        BTreeFile indexed = BTreeUtility.createRandomBTreeFile(2, 20000, 100, null, indexedTuples, 0);
+        Database.getCatalog().addTable(indexed, "indexed");
+        TableStats indexStats = new TableStats(indexed.getId(), 1000);
+        Assert.assertEquals(0, indexStats.indexField());
+        Assert.assertEquals(JoinAlgorithm.INDEX_NESTED_LOOP,
+                jo.chooseJoinAlgorithm(eq, 10, 20000, 1000, indexStats.estimateScanCost(), indexStats));
+        Assert.assertEquals(JoinAlgorithm.HASH,
+                jo.chooseJoinAlgorithm(eq, 1000, 20000, 1e4, indexStats.estimateScanCost(), indexStats));
+    }
+
+    /**
+     * A join the optimizer executes by looking up the tuples of the inner
+     * table in its B+ tree returns the same tuples as the join itself
+     */
+    @Test
+    public void indexJoinTest() throws Exception {
+        // keys 0 to 99, 200 tuples each; the planner needs named fields
+        List<List<Integer>> indexedTuples = new ArrayList<>();
+        BTreeFile indexed = BTreeUtility.createRandomBTreeFile(2, 20000, 100, null, indexedTuples, 0);
+        indexed = new BTreeFile(indexed.getFile(), 0, Utility.getTupleDesc(2, "k"));
+        Database.getCatalog().addTable(indexed, "indexed");
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        for (int r = 0; r < 10; r++) {
+            outerTuples.add(Arrays.asList(r * 7, r));
+        }
+        HeapFile outer = createDuplicateHeapFile(outerTuples, 2, "c");
+        Database.getCatalog().addTable(outer, "outer");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("indexed", new TableStats(indexed.getId(), 1000));
+        stats.put("outer", new TableStats(outer.getId(), 1000));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(outer.getId(), "o");
+        lp.addScan(indexed.getId(), "i");
+        lp.addFilter("i.k1", Predicate.Op.LESS_THAN, "30000");
+        lp.addJoin("o.c0", "i.k0", Predicate.Op.EQUALS);
+        lp.addProjectField("*", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        OpIterator join = plan;
+        while (join instanceof Operator && !(join instanceof IndexNestedLoopJoin)) {
+            join = ((Operator) join).getChildren()[0];
+        }
+        Assert.assertTrue(join instanceof IndexNestedLoopJoin);
+
+        int expected = 0;
+        for (List<Integer> o : outerTuples) {
+            for (List<Integer> i : indexedTuples) {
+                if (o.get(0).equals(i.get(0)) && i.get(1) < 30000) {
+                    expected++;
+                }
+            }
+        }
+        int actual = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            Assert.assertEquals(t.getField(0), t.getField(2));
+            Assert.assertTrue(((IntField) t.getField(3)).getValue() < 30000);
+            actual++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertTrue(expected > 0);
+        Assert.assertEquals(expected, actual);
+    }
+
+    /**
+     * Verify that a string field only needed in the output is read after the
+     * join, and that the scans carry only the fields the plan uses
+     */
+    @Test
+    public void lateMaterializationTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        File temp = File.createTempFile("people", ".dat");
+        temp.deleteOnExit();
+        TupleDesc peopleTD = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+                new String[]{"id", "name", "age"});
+        HeapFile people = new HeapFile(temp, peopleTD);
+        Database.getCatalog().addTable(people, "people");
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(peopleTD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("name" + i, Type.STRING_LEN));
+            t.setField(2, new IntField(20 + i % 50));
+            Database.getBufferPool().insertTuple(tid, people.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        List<List<Integer>> numTuples = new ArrayList<>();
+        for (int r = 0; r < 20; r++) {
+            numTuples.add(Arrays.asList(r * 7, r));
+        }
+        HeapFile nums = createDuplicateHeapFile(numTuples, 2, "c");
+        Database.getCatalog().addTable(nums, "nums");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("people", new TableStats(people.getId(), 1000));
+        stats.put("nums", new TableStats(nums.getId(), 1000));
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(nums.getId(), "n");
+        lp.addScan(people.getId(), "p");
+        lp.addJoin("n.c0", "p.id", Predicate.Op.EQUALS);
+        lp.addProjectField("p.name", null);
+        lp.addProjectField("n.c1", null);
+        tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        OpIterator late = ((Operator) plan).getChildren()[0];
+        Assert.assertTrue(late instanceof LateMaterialize);
+        OpIterator join = ((Operator) late).getChildren()[0];
+        for (OpIterator child : ((Operator) join).getChildren()) {
+            // neither name nor age is carried through the join
+            Assert.assertTrue(child instanceof SeqScan);
+            Assert.assertEquals(2, child.getTupleDesc().numFields());
+        }
+
+        int rows = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            int r = ((IntField) t.getField(1)).getValue();
+            Assert.assertEquals(new StringField("name" + r * 7, Type.STRING_LEN), t.getField(0));
+            rows++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        // people with ids 0 to 299 that are multiples of 7
+        Assert.assertEquals(20, rows);
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
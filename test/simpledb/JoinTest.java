@@ -9,10 +9,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.common.Utility;
+import simpledb.execution.BlockNestedLoopJoin;
+import simpledb.execution.HashSemiJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -112,6 +115,79 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for BlockNestedLoopJoin.getNext() and rewind(), using &gt;
+   * and = predicates
+   */
+  @Test public void blockNestedLoopJoin() throws Exception {
+    BlockNestedLoopJoin op = new BlockNestedLoopJoin(
+        new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0), scan1, scan2);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    assertEquals(11, countAfterRewind(op));
+
+    op = new BlockNestedLoopJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() and rewind(), including runs of
+   * equal keys on both sides
+   */
+  @Test public void sortMergeJoin() throws Exception {
+    SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    assertEquals(3, countAfterRewind(op));
+
+    OpIterator left = TestUtil.createTupleList(1, new int[] { 3, 1, 2, 3, 2 });
+    OpIterator right = TestUtil.createTupleList(1, new int[] { 2, 3, 4, 3, 3, 0 });
+    op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 2, 2,  2, 2,  3, 3,  3, 3,  3, 3,  3, 3,  3, 3,  3, 3 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    assertEquals(8, countAfterRewind(op));
+  }
+
+  /**
+   * Unit test for HashSemiJoin as a semi-join and an anti-join; duplicate
+   * keys on the right don't duplicate tuples on the left
+   */
+  @Test public void hashSemiJoin() throws Exception {
+    OpIterator right = TestUtil.createTupleList(1, new int[] { 3, 1, 1, 5, 9 });
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, right, false);
+    assertEquals(scan1.getTupleDesc(), op.getTupleDesc());
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1, new int[] { 1, 2,  3, 4,  5, 6 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    assertEquals(3, countAfterRewind(op));
+    op.close();
+
+    op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, right, true);
+    op.open();
+    expected = TestUtil.createTupleList(width1, new int[] { 7, 8 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    assertEquals(1, countAfterRewind(op));
+  }
+
+  private static int countAfterRewind(OpIterator op) throws Exception {
+    op.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    return count;
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.PreparedQuery;
+import simpledb.execution.Query;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+public class PreparedQueryTest extends SimpleDbTestBase {
+
+    private List<List<Integer>> tuples1;
+    private List<List<Integer>> tuples2;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples1 = new ArrayList<>();
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 1000, 50, null, tuples1, "c");
+        Database.getCatalog().addTable(f1, "TA");
+        TableStats.setTableStats("TA", new TableStats(f1.getId(), 1000));
+
+        tuples2 = new ArrayList<>();
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 200, 50, null, tuples2, "c");
+        Database.getCatalog().addTable(f2, "TB");
+        TableStats.setTableStats("TB", new TableStats(f2.getId(), 1000));
+    }
+
+    private static int count(Query q) throws DbException, TransactionAbortedException {
+        int rows = 0;
+        q.start();
+        while (q.hasNext()) {
+            q.next();
+            rows++;
+        }
+        q.close();
+        return rows;
+    }
+
+    /**
+     * A filter query is planned once and run with different parameters
+     */
+    @Test
+    public void executeWithParameters() throws Exception {
+        Parser p = new Parser();
+        PreparedQuery pq = p.prepare("SELECT t.c0, t.c1 FROM TA t WHERE t.c0 > ? AND t.c1 <= ?;");
+        Assert.assertEquals(2, pq.getParameterCount());
+
+        for (int[] values : new int[][]{{10, 40}, {45, 5}, {-1, 100}}) {
+            int expected = 0;
+            for (List<Integer> t : tuples1) {
+                if (t.get(0) > values[0] && t.get(1) <= values[1])
+                    expected++;
+            }
+            TransactionId tid = new TransactionId();
+            Query q = pq.execute(tid, String.valueOf(values[0]), String.valueOf(values[1]));
+            Assert.assertEquals(expected, count(q));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * A join query re-opens its whole plan on each execution
+     */
+    @Test
+    public void executeJoin() throws Exception {
+        Parser p = new Parser();
+        PreparedQuery pq = p.prepare("SELECT a.c1 FROM TA a, TB b WHERE a.c0 = b.c0 AND b.c1 = ?");
+        for (int v = 0; v < 50; v += 7) {
+            int expected = 0;
+            for (List<Integer> a : tuples1) {
+                for (List<Integer> b : tuples2) {
+                    if (a.get(0).equals(b.get(0)) && b.get(1) == v)
+                        expected++;
+                }
+            }
+            TransactionId tid = new TransactionId();
+            Assert.assertEquals(expected, count(pq.execute(tid, String.valueOf(v))));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * Plans are cached by the normalized text of the query, until the
+     * statistics or the catalog change
+     */
+    @Test
+    public void planCache() throws Exception {
+        Parser p = new Parser();
+        PreparedQuery pq = p.prepare("SELECT t.c0 FROM TA t WHERE t.c1 = ?;");
+        Assert.assertSame(pq, p.prepare("SELECT  t.c0\n FROM TA t   WHERE t.c1 = ? ;"));
+        Assert.assertTrue(pq.isValid());
+
+        TableStats.setTableStats("TA", TableStats.getTableStats("TA"));
+        Assert.assertFalse(pq.isValid());
+        PreparedQuery replanned = p.prepare("SELECT t.c0 FROM TA t WHERE t.c1 = ?;");
+        Assert.assertNotSame(pq, replanned);
+        Assert.assertTrue(replanned.isValid());
+
+        Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(2, 10, null, null), "TC");
+        Assert.assertFalse(replanned.isValid());
+        Assert.assertNotSame(replanned, p.prepare("SELECT t.c0 FROM TA t WHERE t.c1 = ?;"));
+    }
+
+    @Test
+    public void normalize() {
+        Assert.assertEquals("SELECT * FROM t WHERE t.a = 'x  y'",
+                Parser.normalize("  SELECT *\n\tFROM t  WHERE t.a = 'x  y' ;"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongParameterCount() throws Exception {
+        new Parser().prepare("SELECT t.c0 FROM TA t WHERE t.c1 = ?").execute(new TransactionId());
+    }
+
+    @Test(expected = ParsingException.class)
+    public void parameterOutsidePreparedQuery() throws ParsingException, IOException {
+        new Parser().generateLogicalPlan(new TransactionId(), "SELECT t.c0 FROM TA t WHERE t.c1 = ?;");
+    }
+
+    @Test(expected = ParsingException.class)
+    public void onlyQueriesArePrepared() throws ParsingException, IOException {
+        new Parser().prepare("DELETE FROM TA WHERE TA.c1 = ?");
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedQueryTest.class);
+    }
+}
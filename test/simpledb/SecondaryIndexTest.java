@@ -0,0 +1,245 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Tests secondary B+ tree indexes over heap file tables
+ */
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private HeapFile table;
+	private List<List<Integer>> tuples;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		table = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, tuples);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private SecondaryIndex addIndex(int... fields) throws Exception {
+		File f = File.createTempFile("secondary", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex index = new SecondaryIndex(f, table.getId(), fields);
+		Database.getCatalog().addIndex(index, tid);
+		return index;
+	}
+
+	/**
+	 * Check that a scan returns the tuples satisfying a condition, in the order of the heap file
+	 */
+	private void checkScan(SecondaryIndex index, IndexPredicate ipred, List<List<Integer>> tuples,
+			java.util.function.Predicate<List<Integer>> matches) throws Exception {
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> tup : tuples) {
+			if(matches.test(tup)) {
+				expected.add(tup);
+			}
+		}
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t", ipred);
+		assertEquals("t", scan.getAlias());
+		SystemTestUtil.matchTuples(scan, expected);
+
+		scan.open();
+		int lastRow = -1;
+		while(scan.hasNext()) {
+			int row = table.rowNumber(scan.next().getRecordId());
+			assertTrue(row > lastRow);
+			lastRow = row;
+		}
+		scan.close();
+	}
+
+	@Test
+	public void testBuild() throws Exception {
+		SecondaryIndex index = addIndex(1);
+		assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(table.getId()));
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+
+		int key = tuples.get(0).get(1);
+		checkScan(index, new IndexPredicate(Op.EQUALS, new IntField(key)), tuples, tup -> tup.get(1) == key);
+		checkScan(index, new IndexPredicate(Op.LESS_THAN, new IntField(10)), tuples, tup -> tup.get(1) < 10);
+		checkScan(index, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(95)), tuples, tup -> tup.get(1) >= 95);
+	}
+
+	@Test
+	public void testCompositeIndex() throws Exception {
+		SecondaryIndex index = addIndex(2, 0);
+		int key = tuples.get(0).get(2);
+		checkScan(index, new IndexPredicate(Op.EQUALS, new IntField(key)), tuples, tup -> tup.get(2) == key);
+		checkScan(index, new IndexPredicate(Op.GREATER_THAN, new CompositeField(new IntField(key), new IntField(50))),
+				tuples, tup -> tup.get(2) == key && tup.get(0) > 50);
+	}
+
+	@Test
+	public void testMaintenance() throws Exception {
+		SecondaryIndex index = addIndex(1);
+
+		// delete every tuple whose first field is even
+		List<Tuple> toDelete = new ArrayList<>();
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(0)).getValue() % 2 == 0) {
+				toDelete.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : toDelete) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		List<List<Integer>> remaining = new ArrayList<>();
+		for(List<Integer> tup : tuples) {
+			if(tup.get(0) % 2 != 0) {
+				remaining.add(tup);
+			}
+		}
+
+		// insert new tuples, which fill the freed slots before the end of the file
+		List<List<Integer>> inserted = new ArrayList<>();
+		for(int i = 0; i < 500; i++) {
+			List<Integer> tup = Arrays.asList(2 * i + 1, i % 7, i);
+			Tuple t = new Tuple(table.getTupleDesc());
+			for(int j = 0; j < tup.size(); j++) {
+				t.setField(j, new IntField(tup.get(j)));
+			}
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+			inserted.add(tup);
+		}
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+
+		List<List<Integer>> all = new ArrayList<>(remaining);
+		all.addAll(inserted);
+		checkScan(index, new IndexPredicate(Op.EQUALS, new IntField(3)), all, tup -> tup.get(1) == 3);
+		checkScan(index, new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(6)), all, tup -> tup.get(1) <= 6);
+	}
+
+	@Test
+	public void testDeleteThroughScan() throws Exception {
+		SecondaryIndex index = addIndex(1);
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField(20));
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t", ipred);
+		scan.open();
+		List<Tuple> found = new ArrayList<>();
+		while(scan.hasNext()) {
+			found.add(scan.next());
+		}
+		scan.close();
+		for(Tuple t : found) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		checkScan(index, ipred, tuples, tup -> false);
+		checkScan(index, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(20)), tuples, tup -> tup.get(1) >= 20);
+	}
+
+	@Test
+	public void testIncludedFields() throws Exception {
+		File f = File.createTempFile("secondary", ".dat");
+		f.deleteOnExit();
+		SecondaryIndex index = new SecondaryIndex(f, table.getId(), new int[] { 1 }, new int[] { 2 });
+		Database.getCatalog().addIndex(index, tid);
+		assertArrayEquals(new int[] { 2 }, index.getIncludedFields());
+		assertEquals(0, index.entryField(1));
+		assertEquals(2, index.entryField(2));
+		assertEquals(-1, index.entryField(0));
+
+		// the entries of tuples deleted and inserted later hold their included field too
+		List<Tuple> toDelete = new ArrayList<>();
+		DbFileIterator it = table.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(((IntField) t.getField(0)).getValue() % 2 == 0) {
+				toDelete.add(t);
+			}
+		}
+		it.close();
+		for(Tuple t : toDelete) {
+			Database.getBufferPool().deleteTuple(tid, t);
+		}
+		List<List<Integer>> all = new ArrayList<>();
+		for(List<Integer> tup : tuples) {
+			if(tup.get(0) % 2 != 0) {
+				all.add(tup);
+			}
+		}
+		for(int i = 0; i < 500; i++) {
+			List<Integer> tup = Arrays.asList(2 * i + 1, i % 7, i);
+			Tuple t = new Tuple(table.getTupleDesc());
+			for(int j = 0; j < tup.size(); j++) {
+				t.setField(j, new IntField(tup.get(j)));
+			}
+			Database.getBufferPool().insertTuple(tid, table.getId(), t);
+			all.add(tup);
+		}
+		BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+		checkScan(index, new IndexPredicate(Op.EQUALS, new IntField(3)), all, tup -> tup.get(1) == 3);
+
+		// a scan of the indexed and included fields reads them from the index, in its order
+		List<List<Integer>> expected = new ArrayList<>();
+		for(List<Integer> tup : all) {
+			if(tup.get(1) <= 6) {
+				expected.add(Arrays.asList(tup.get(2), tup.get(1)));
+			}
+		}
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t", new IndexPredicate(Op.LESS_THAN_OR_EQ,
+				new IntField(6)), new int[] { 2, 1 });
+		assertArrayEquals(new int[] { 2, 1 }, scan.getFields());
+		assertEquals("t." + table.getTupleDesc().getFieldName(2), scan.getTupleDesc().getFieldName(0));
+		List<List<Integer>> found = new ArrayList<>();
+		scan.open();
+		int lastKey = Integer.MIN_VALUE;
+		while(scan.hasNext()) {
+			List<Integer> tup = SystemTestUtil.tupleToList(scan.next());
+			assertTrue(tup.get(1) >= lastKey);
+			lastKey = tup.get(1);
+			found.add(tup);
+		}
+		scan.close();
+		Comparator<List<Integer>> byTuple = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0)).thenComparing(t -> t.get(1));
+		expected.sort(byTuple);
+		found.sort(byTuple);
+		assertEquals(expected, found);
+
+		try {
+			new SecondaryIndexScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(3)), new int[] { 0 });
+			fail("the index doesn't hold field 0");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
@@ -1,8 +1,11 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -10,14 +13,22 @@ import org.junit.Assert;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Utility;
 import simpledb.execution.Predicate;
+import simpledb.index.BTreeBulkLoader;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -160,4 +171,203 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that statistics built from a sample of the pages stay close to
+	 * the full-scan statistics.
+	 */
+	@Test public void sampledStatsTest() {
+		TableStats full = new TableStats(this.tableId, IO_COST);
+		TableStats sampled = new TableStats(this.tableId, IO_COST, 0.25);
+
+		Assert.assertEquals(full.estimateScanCost(), sampled.estimateScanCost(), 0.001);
+		Assert.assertEquals(full.totalTuples(), sampled.totalTuples(), full.totalTuples() * 0.05);
+
+		final Field halfMaxMin = new IntField(16);
+		for (int col = 0; col < 10; col++) {
+			for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+					Predicate.Op.GREATER_THAN_OR_EQ }) {
+				Assert.assertEquals(full.estimateSelectivity(col, op, halfMaxMin),
+						sampled.estimateSelectivity(col, op, halfMaxMin), 0.05);
+			}
+		}
+	}
+
+	/**
+	 * The integer statistics of a table with more rows than the reservoir
+	 * kept for them are still close to the table's.
+	 */
+	@Test public void reservoirTest() throws IOException {
+		int rows = 4 * TableStats.INT_SAMPLE_SIZE;
+		List<List<Integer>> big = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++)
+			big.add(Arrays.asList(i, i % 100, i % (rows / 4)));
+		File temp = File.createTempFile("table", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(big, temp, BufferPool.getPageSize(), 3);
+		HeapFile hf = Utility.openHeapFile(3, temp);
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+		TableStats s;
+		TableStats.setSampleSeed(5L);
+		try {
+			s = new TableStats(hf.getId(), IO_COST);
+		} finally {
+			TableStats.setSampleSeed(null);
+		}
+		Assert.assertEquals(rows, s.totalTuples());
+		Assert.assertEquals(0.25, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(rows / 4)), 0.02);
+		Assert.assertEquals(0.01, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(7)), 0.005);
+		Assert.assertEquals(rows, s.estimateDistinctValues(0), rows * 0.1);
+		Assert.assertEquals(100, s.estimateDistinctValues(1), 5);
+		// more distinct values than the reservoir holds rows are still counted
+		Assert.assertEquals(rows / 4, s.estimateDistinctValues(2), rows / 4 * 0.05);
+	}
+
+	/**
+	 * The internal pages of a B+ tree keyed on several fields hold longer
+	 * keys, so searching it costs more than searching one keyed on the first.
+	 */
+	@Test public void compositeIndexScanCostTest() throws Exception {
+		List<Tuple> rows = new ArrayList<>();
+		Random r = new Random(3);
+		for (int i = 0; i < 20000; i++) {
+			int[] row = new int[10];
+			for (int col = 0; col < row.length; col++)
+				row[col] = r.nextInt(1000);
+			rows.add(BTreeUtility.getBTreeTuple(row));
+		}
+		double[] costs = new double[2];
+		int[][] keys = new int[][] { { 0 }, { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 } };
+		for (int k = 0; k < keys.length; k++) {
+			File temp = File.createTempFile("table", ".dat");
+			temp.deleteOnExit();
+			BTreeFile bf = new BTreeFile(temp, keys[k], Utility.getTupleDesc(10));
+			Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+			BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+			for (Tuple t : rows)
+				loader.add(t);
+			loader.finish();
+			costs[k] = new TableStats(bf.getId(), IO_COST).estimateIndexScanCost(0.0);
+		}
+		Assert.assertTrue(costs[1] > costs[0]);
+	}
+
+	/**
+	 * The required sample size grows as the error bound tightens.
+	 */
+	@Test public void sampleSizeForErrorTest() {
+		int loose = TableStats.sampleSizeForError(0.05, 0.95);
+		int tight = TableStats.sampleSizeForError(0.01, 0.95);
+		Assert.assertEquals(738, loose);
+		Assert.assertTrue(tight > 20 * loose);
+		Assert.assertTrue(TableStats.sampleSizeForError(0.05, 0.99) > loose);
+	}
+
+	private File statisticsFile() {
+		String name = f.getFile().getName().replaceAll("\\.dat$", "");
+		return new File(f.getFile().getAbsoluteFile().getParentFile(), name + ".stats");
+	}
+
+	/**
+	 * Statistics saved next to the data file are reloaded until the data
+	 * file changes.
+	 */
+	@Test public void saveAndLoadTest() {
+		File saved = statisticsFile();
+		try {
+			TableStats s = new TableStats(this.tableId, IO_COST);
+			s.saveStatistics();
+			Assert.assertTrue(saved.exists());
+
+			TableStats loaded = TableStats.loadStatistics(this.tableId);
+			Assert.assertNotNull(loaded);
+			Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+			Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0.001);
+			Field v = new IntField(7);
+			for (int col = 0; col < 10; col++)
+				Assert.assertEquals(s.estimateSelectivity(col, Predicate.Op.LESS_THAN, v),
+						loaded.estimateSelectivity(col, Predicate.Op.LESS_THAN, v), 0.0);
+
+			Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() + 10000));
+			Assert.assertNull(TableStats.loadStatistics(this.tableId));
+		} finally {
+			saved.delete();
+		}
+	}
+
+	/**
+	 * Inserting enough tuples rebuilds the table's statistics in the
+	 * background.
+	 */
+	@Test public void refreshAfterModificationsTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		TableStats.setRefreshThreshold(0.0, 50);
+		try {
+			TransactionId tid = new TransactionId();
+			for (int i = 0; i < 50; i++) {
+				Tuple t = new Tuple(f.getTupleDesc());
+				for (int col = 0; col < 10; col++)
+					t.setField(col, new IntField(i));
+				Database.getBufferPool().insertTuple(tid, this.tableId, t);
+			}
+			for (int i = 0; i < 100 && TableStats.getTableStats(this.tableName) == s; i++)
+				Thread.sleep(100);
+			TableStats refreshed = TableStats.getTableStats(this.tableName);
+			Assert.assertNotSame(s, refreshed);
+			Assert.assertEquals(10250, refreshed.totalTuples());
+			Assert.assertEquals(0, TableStats.getModificationCount(this.tableId));
+		} finally {
+			TableStats.setRefreshThreshold(0.2, 1000);
+			TableStats.getStatsMap().remove(this.tableName);
+			statisticsFile().delete();
+		}
+	}
+
+	/**
+	 * Every column of the test table holds values in [0, 32).
+	 */
+	@Test public void distinctValuesTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(32, s.estimateDistinctValues(col), 2);
+			Assert.assertEquals(1.0 / 32, s.avgSelectivity(col, Predicate.Op.EQUALS), 0.005);
+		}
+	}
+
+	/**
+	 * Filters on columns of a declared column group are estimated jointly
+	 * instead of being assumed independent.
+	 */
+	@Test public void columnGroupTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 0, null, new ArrayList<>(), "c");
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 5000; i++) {
+			// the first two columns are always equal
+			Tuple t = new Tuple(hf.getTupleDesc());
+			t.setField(0, new IntField(i % 50));
+			t.setField(1, new IntField(i % 50));
+			t.setField(2, new IntField(i % 7));
+			Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		}
+		List<Predicate> preds = Arrays.asList(
+				new Predicate(0, Predicate.Op.EQUALS, new IntField(7)),
+				new Predicate(1, Predicate.Op.EQUALS, new IntField(7)),
+				new Predicate(2, Predicate.Op.LESS_THAN, new IntField(7)));
+
+		// independence: (1/50) * (1/50) * 1
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(1.0 / 2500, s.estimateSelectivity(preds), 0.0002);
+
+		Database.getCatalog().addColumnGroup(hf.getId(), Arrays.asList("c0", "c1"));
+		s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(1.0 / 50, s.estimateSelectivity(preds), 0.01);
+
+		// no sampled row matches: no more than the sample's resolution
+		preds = Arrays.asList(
+				new Predicate(0, Predicate.Op.EQUALS, new IntField(7)),
+				new Predicate(1, Predicate.Op.EQUALS, new IntField(8)));
+		Assert.assertTrue(s.estimateSelectivity(preds) <= 1.0 / 2000);
+	}
 }
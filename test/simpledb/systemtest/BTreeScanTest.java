@@ -11,12 +11,22 @@ import java.util.*;
 
 import org.junit.Test;
 
+import simpledb.Parser;
 import simpledb.common.Utility;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
 import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeBulkLoader;
 import simpledb.index.BTreeFile;
 import simpledb.index.BTreeScan;
 import simpledb.index.BTreeUtility;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -288,4 +298,279 @@ public class BTreeScanTest extends SimpleDbTestBase {
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);
     }
+
+    /** The leaf of a plan with no joins, under its filters and projection */
+    private static OpIterator leaf(OpIterator plan) {
+        while (plan instanceof Operator) {
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return plan;
+    }
+
+    private static OpIterator plan(BTreeFile f, TransactionId tid, String field, Op op, int value)
+            throws Exception {
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("indexed", new TableStats(f.getId(), 1000));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addFilter(field, op, Integer.toString(value));
+        lp.addProjectField("*", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** Test that the planner reads a table through its index only for selective filters on the key */
+    @Test public void testPlannerChoosesIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, 10000, null, tuples, 0);
+        // the planner needs named fields
+        f = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "k"));
+        Database.getCatalog().addTable(f, "indexed");
+        TransactionId tid = new TransactionId();
+
+        // a point query on the key searches the tree
+        int key = tuples.get(0).get(0);
+        List<List<Integer>> tuplesFiltered = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(0) == key) {
+                tuplesFiltered.add(tup);
+            }
+        }
+        OpIterator plan = plan(f, tid, "t.k0", Op.EQUALS, key);
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        SystemTestUtil.matchTuples(plan, tuplesFiltered);
+
+        // so does a narrow range
+        tuplesFiltered.clear();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(0) < 100) {
+                tuplesFiltered.add(tup);
+            }
+        }
+        plan = plan(f, tid, "t.k0", Op.LESS_THAN, 100);
+        assertTrue(leaf(plan) instanceof BTreeScan);
+        SystemTestUtil.matchTuples(plan, tuplesFiltered);
+
+        // a range covering most of the table, or a filter on another field, scans it
+        assertTrue(leaf(plan(f, tid, "t.k0", Op.LESS_THAN, 9000)) instanceof SeqScan);
+        assertTrue(leaf(plan(f, tid, "t.k1", Op.EQUALS, key)) instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean sorts(OpIterator plan) {
+        while (plan instanceof Operator) {
+            if (plan instanceof OrderBy) {
+                return true;
+            }
+            plan = ((Operator) plan).getChildren()[0];
+        }
+        return false;
+    }
+
+    /** Test that the planner reads a table in the order of its index, forwards or backwards, instead of sorting it */
+    @Test public void testPlannerUsesIndexOrder() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 10000, 10000, null, tuples, 0);
+        f = new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "k"));
+        Database.getCatalog().addTable(f, "ordered");
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("ordered", new TableStats(f.getId(), 1000));
+        tuples.sort(Comparator.comparingInt(tup -> tup.get(0)));
+
+        // the largest keys, read backwards from the end of the tree
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM ordered t ORDER BY t.k0 DESC LIMIT 10;");
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertFalse(sorts(plan));
+        assertTrue(leaf(plan) instanceof BTreeScan && ((BTreeScan) leaf(plan)).isReverse());
+        plan.open();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(plan.hasNext());
+            assertEquals(tuples.get(tuples.size() - 1 - i).get(0).intValue(),
+                    ((IntField) plan.next().getField(0)).getValue());
+        }
+        assertFalse(plan.hasNext());
+        plan.close();
+
+        // a search of the tree returns its tuples in order, and backwards in reverse order
+        List<List<Integer>> tuplesFiltered = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(0) < 100) {
+                tuplesFiltered.add(tup);
+            }
+        }
+        for (boolean asc : new boolean[] { true, false }) {
+            lp = new LogicalPlan();
+            lp.addScan(f.getId(), "t");
+            lp.addFilter("t.k0", Op.LESS_THAN, "100");
+            lp.addProjectField("*", null);
+            lp.addOrderBy("t.k0", asc);
+            plan = lp.physicalPlan(tid, stats, false);
+            assertFalse(sorts(plan));
+            assertEquals(!asc, ((BTreeScan) leaf(plan)).isReverse());
+            SystemTestUtil.matchTuples(plan, tuplesFiltered);
+            plan.open();
+            int last = asc ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+            while (plan.hasNext()) {
+                int key = ((IntField) plan.next().getField(0)).getValue();
+                assertTrue(asc ? key >= last : key <= last);
+                last = key;
+            }
+            plan.close();
+        }
+
+        // ordering on another field still sorts
+        lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addProjectField("*", null);
+        lp.addOrderBy("t.k1", true);
+        assertTrue(sorts(lp.physicalPlan(tid, stats, false)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the planner searches a tree keyed on two fields by equality on the first and a range on the second */
+    @Test public void testPlannerSearchesKeyPrefix() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeUtility.generateRandomTuples(3, 10000, 100, null, tuples);
+        File file = File.createTempFile("prefix", ".dat");
+        file.deleteOnExit();
+        BTreeFile f = new BTreeFile(file, new int[] { 0, 1 }, Utility.getTupleDesc(3, "k"));
+        Database.getCatalog().addTable(f, "composite");
+        BTreeBulkLoader loader = new BTreeBulkLoader(f);
+        for (List<Integer> tup : tuples) {
+            loader.add(BTreeUtility.getBTreeTuple(tup));
+        }
+        loader.finish();
+        TransactionId tid = new TransactionId();
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("composite", new TableStats(f.getId(), 1000));
+
+        int key = tuples.get(0).get(0);
+        List<List<Integer>> tuplesFiltered = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(0) == key && tup.get(1) < 30) {
+                tuplesFiltered.add(tup);
+            }
+        }
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addFilter("t.k1", Op.LESS_THAN, "30");
+        lp.addFilter("t.k0", Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("*", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        // both filters are answered by the search, none is left over it
+        assertTrue(plan instanceof Operator && ((Operator) plan).getChildren()[0] instanceof BTreeScan);
+        IndexPredicate ipred = ((BTreeScan) leaf(plan)).getIndexPredicate();
+        assertEquals(Op.LESS_THAN, ipred.getOp());
+        assertEquals(new CompositeField(new IntField(key), new IntField(30)), ipred.getField());
+        SystemTestUtil.matchTuples(plan, tuplesFiltered);
+
+        // a filter on the second key field alone can't search the tree
+        lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addFilter("t.k1", Op.EQUALS, "30");
+        lp.addProjectField("*", null);
+        assertTrue(leaf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that the planner reads a heap file table through a secondary index for selective filters on it */
+    @Test public void testPlannerUsesSecondaryIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 20000, 10000, null, tuples, "k");
+        String name = Database.getCatalog().getTableName(table.getId());
+        TransactionId tid = new TransactionId();
+        File file = File.createTempFile("secondary", ".dat");
+        file.deleteOnExit();
+        Database.getCatalog().addIndex(new SecondaryIndex(file, table.getId(), new int[] { 1 }), tid);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+
+        int key = tuples.get(0).get(1);
+        List<List<Integer>> tuplesFiltered = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(1) == key) {
+                tuplesFiltered.add(tup);
+            }
+        }
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.k1", Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("*", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(leaf(plan) instanceof SecondaryIndexScan);
+        SystemTestUtil.matchTuples(plan, tuplesFiltered);
+
+        // a range covering most of the table, or a filter on another field, scans it
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.k1", Op.LESS_THAN, "9000");
+        lp.addProjectField("*", null);
+        assertTrue(leaf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.k0", Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("*", null);
+        assertTrue(leaf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<List<Integer>> run(OpIterator plan) throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            tuples.add(SystemTestUtil.tupleToList(plan.next()));
+        }
+        plan.close();
+        tuples.sort(Comparator.<List<Integer>, Integer>comparing(t -> t.get(0)).thenComparing(t -> t.get(1)));
+        return tuples;
+    }
+
+    /**
+     * Test that the planner answers a query from a secondary index alone when its entries hold every field
+     * the query uses, even for a range too wide to be worth reading the table through the index
+     */
+    @Test public void testPlannerUsesCoveringIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, 20000, 10000, null, tuples, "k");
+        String name = Database.getCatalog().getTableName(table.getId());
+        TransactionId tid = new TransactionId();
+        File file = File.createTempFile("secondary", ".dat");
+        file.deleteOnExit();
+        Database.getCatalog().addIndex(new SecondaryIndex(file, table.getId(), new int[] { 1 }, new int[] { 2 }), tid);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(name, new TableStats(table.getId(), 1000));
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> tup : tuples) {
+            if (tup.get(1) < 2000 && tup.get(2) > 5000) {
+                expected.add(Arrays.asList(tup.get(2), tup.get(1)));
+            }
+        }
+        expected.sort(Comparator.<List<Integer>, Integer>comparing(t -> t.get(0)).thenComparing(t -> t.get(1)));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.k1", Op.LESS_THAN, "2000");
+        lp.addFilter("t.k2", Op.GREATER_THAN, "5000");
+        lp.addProjectField("t.k2", null);
+        lp.addProjectField("t.k1", null);
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(leaf(plan) instanceof SecondaryIndexScan);
+        assertArrayEquals(new int[] { 1, 2 }, ((SecondaryIndexScan) leaf(plan)).getFields());
+        assertEquals(expected, run(plan));
+
+        // a query using a field the index doesn't hold reads the table
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.k1", Op.LESS_THAN, "2000");
+        lp.addProjectField("t.k0", null);
+        assertTrue(leaf(lp.physicalPlan(tid, stats, false)) instanceof SeqScan);
+        lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.k1", Op.EQUALS, Integer.toString(tuples.get(0).get(1)));
+        lp.addProjectField("*", null);
+        plan = lp.physicalPlan(tid, stats, false);
+        assertTrue(leaf(plan) instanceof SecondaryIndexScan);
+        assertNull(((SecondaryIndexScan) leaf(plan)).getFields());
+        Database.getBufferPool().transactionComplete(tid);
+    }
 }
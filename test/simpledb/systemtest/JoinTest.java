@@ -1,20 +1,36 @@
 package simpledb.systemtest;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -79,6 +95,100 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * A hash join hands a bloom filter of its build keys to the scan of its
+     * probe side, which then lets through few tuples without a match
+     */
+    @Test public void testHashJoinRuntimeFilter()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20, 10000, null, t1Tuples, "c");
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 5000, 10000, null, t2Tuples, "c");
+
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t1 : t1Tuples) {
+            keys.add(t1.get(0));
+            for (List<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "a");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "b");
+        HashEquiJoin joinOp = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                ss1, new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)), ss2));
+        joinOp.open();
+        assertEquals(1, ss2.getRuntimeFilters().size());
+        Predicate bloom = ss2.getRuntimeFilters().get(0);
+        int passed = 0;
+        for (List<Integer> t2 : t2Tuples) {
+            if (bloom.matches(new IntField(t2.get(0)))) {
+                passed++;
+            } else {
+                assertFalse(keys.contains(t2.get(0)));
+            }
+        }
+        assertTrue(passed < expectedResults.size() + t2Tuples.size() / 10);
+        joinOp.close();
+
+        SystemTestUtil.matchTuples(joinOp, expectedResults);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private HeapFile createKeyTable(int rows) throws IOException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(Arrays.asList(i, -i));
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), COLUMNS);
+        HeapFile table = Utility.openHeapFile(COLUMNS, "c", temp);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    /**
+     * A hash join whose build side doesn't fit in one hash table reads its
+     * probe side once per batch, so it mustn't filter the probe side by the
+     * keys of one batch: here the sort-merge join below would keep the
+     * tuples it sorted under the filter of the first batch
+     */
+    @Test public void testHashJoinRuntimeFilterManyBatches()
+            throws IOException, DbException, TransactionAbortedException {
+        int rows = 2 * HashEquiJoin.MAP_SIZE + 5000;
+        HeapFile table1 = createKeyTable(rows);
+        HeapFile table2 = createKeyTable(rows);
+        HeapFile table3 = createKeyTable(rows);
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss1 = new SeqScan(tid, table1.getId(), "a");
+        SeqScan ss2 = new SeqScan(tid, table2.getId(), "b");
+        SeqScan ss3 = new SeqScan(tid, table3.getId(), "c");
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin joinOp = new HashEquiJoin(p, ss1, new SortMergeJoin(p, ss2, ss3));
+        joinOp.open();
+        int count = 0;
+        while (joinOp.hasNext()) {
+            Tuple t = joinOp.next();
+            assertEquals(t.getField(0), t.getField(2));
+            assertEquals(t.getField(0), t.getField(4));
+            count++;
+        }
+        assertEquals(rows, count);
+        joinOp.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -0,0 +1,45 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/** Runs the filter tests with the predicate pushed down into the scan. */
+public class ScanFilterTest extends FilterBase {
+    @Override
+    protected int applyPredicate(HeapFile table, TransactionId tid, Predicate predicate)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(tid, table.getId(), "", Collections.singletonList(predicate));
+        ss.open();
+
+        int resultCount = 0;
+        while (ss.hasNext()) {
+            assertTrue(predicate.filter(ss.next()));
+            resultCount += 1;
+        }
+
+        // a rewound scan returns the same tuples
+        ss.rewind();
+        int rewoundCount = 0;
+        while (ss.hasNext()) {
+            ss.next();
+            rewoundCount += 1;
+        }
+        assertEquals(resultCount, rewoundCount);
+
+        ss.close();
+        return resultCount;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanFilterTest.class);
+    }
+}
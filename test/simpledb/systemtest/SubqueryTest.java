@@ -0,0 +1,155 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.HashSemiJoin;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * IN, NOT IN, EXISTS and NOT EXISTS subqueries, planned as semi-joins and
+ * anti-joins
+ */
+public class SubqueryTest extends SimpleDbTestBase {
+
+    private List<List<Integer>> aTuples;
+    private List<List<Integer>> bTuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        aTuples = new ArrayList<>();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 2000, 200, null, aTuples, "c");
+        Database.getCatalog().addTable(a, "ta");
+        TableStats.setTableStats("ta", new TableStats(a.getId(), 1000));
+
+        // many duplicate keys, which must not duplicate tuples of ta
+        bTuples = new ArrayList<>();
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, bTuples, "c");
+        Database.getCatalog().addTable(b, "tb");
+        TableStats.setTableStats("tb", new TableStats(b.getId(), 1000));
+    }
+
+    /** @return the first fields of the tuples the query returns */
+    private List<Integer> run(String sql) throws IOException, ParsingException, DbException,
+            TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(containsSemiJoin(plan));
+        List<Integer> result = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            result.add(((IntField) t.getField(0)).getValue());
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        result.sort(null);
+        return result;
+    }
+
+    private static boolean containsSemiJoin(OpIterator op) {
+        if (op instanceof HashSemiJoin) {
+            return true;
+        }
+        if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                if (containsSemiJoin(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** @return ta.c0 of the tuples of ta whose c1 is (or isn't) c0 of a tuple of tb with c1 &gt; min */
+    private List<Integer> expected(boolean in, int min) {
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : bTuples) {
+            if (t.get(1) > min)
+                keys.add(t.get(0));
+        }
+        List<Integer> result = new ArrayList<>();
+        for (List<Integer> t : aTuples) {
+            if (keys.contains(t.get(1)) == in)
+                result.add(t.get(0));
+        }
+        result.sort(null);
+        return result;
+    }
+
+    @Test public void in() throws Exception {
+        assertEquals(expected(true, 50),
+                run("SELECT ta.c0 FROM ta WHERE ta.c1 IN (SELECT tb.c0 FROM tb WHERE tb.c1 > 50);"));
+    }
+
+    @Test public void notIn() throws Exception {
+        assertEquals(expected(false, 50),
+                run("SELECT ta.c0 FROM ta WHERE ta.c1 NOT IN (SELECT tb.c0 FROM tb WHERE tb.c1 > 50);"));
+    }
+
+    @Test public void exists() throws Exception {
+        assertEquals(expected(true, 80),
+                run("SELECT ta.c0 FROM ta WHERE EXISTS (SELECT tb.c1 FROM tb WHERE tb.c0 = ta.c1 AND tb.c1 > 80);"));
+    }
+
+    @Test public void notExists() throws Exception {
+        assertEquals(expected(false, -1),
+                run("SELECT ta.c0 FROM ta WHERE NOT EXISTS (SELECT * FROM tb WHERE ta.c1 = tb.c0);"));
+    }
+
+    /**
+     * A semi-join combined with a join and a filter of the outer query
+     */
+    @Test public void inWithJoin() throws Exception {
+        Set<Integer> keys = new HashSet<>();
+        for (List<Integer> t : bTuples) {
+            if (t.get(1) < 10)
+                keys.add(t.get(0));
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> a : aTuples) {
+            for (List<Integer> b : bTuples) {
+                if (a.get(0).equals(b.get(1)) && a.get(1) < 100 && keys.contains(a.get(1)))
+                    expected.add(a.get(0));
+            }
+        }
+        expected.sort(null);
+        assertEquals(expected, run("SELECT ta.c0 FROM ta, tb WHERE ta.c0 = tb.c1 AND ta.c1 < 100 "
+                + "AND ta.c1 IN (SELECT tb2.c0 FROM tb tb2 WHERE tb2.c1 < 10);"));
+    }
+
+    @Test(expected = ParsingException.class) public void inList() throws Exception {
+        run("SELECT ta.c0 FROM ta WHERE ta.c1 IN (1, 2, 3);");
+    }
+
+    @Test(expected = ParsingException.class) public void uncorrelatedExists() throws Exception {
+        run("SELECT ta.c0 FROM ta WHERE EXISTS (SELECT tb.c0 FROM tb WHERE tb.c1 > 3);");
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SubqueryTest.class);
+    }
+}